@@ -0,0 +1,359 @@
+package edu.uob;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// client library for DBServer: a fixed pool of connections shared by any number of threads. execute
+// returns straight away with a future; the command is written to the connection with the fewest answers
+// outstanding and a reader thread per connection completes the futures as the answers arrive, in order,
+// so many commands are in flight on each connection at once. Commands given to separate execute calls
+// may run on different connections in any order, executeAll keeps a batch on one connection in order.
+public class AsyncDBClient implements Closeable {
+    private static final char END_OF_TRANSMISSION = 4;
+    // lines a stream reads ahead of its caller before its connection stops reading
+    private static final int STREAM_BUFFER = 1024;
+    // marks the end of a stream's answer in its queue, compared by identity so no line can pass for it
+    private static final String END = new String("end");
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMillis;
+    private final int requestTimeoutMillis;
+    private final Connection[] connections;
+    private final AtomicInteger next;
+    private volatile String database;
+    private volatile boolean closed;
+
+    public AsyncDBClient(String host, int port, int poolSize, int connectTimeoutMillis, int requestTimeoutMillis) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.connections = new Connection[Math.max(1, poolSize)];
+        this.next = new AtomicInteger();
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection(i);
+        }
+    }
+
+    // a receiver of one answer, line by line
+    private interface Pending {
+        void line(String line);
+
+        void end();
+
+        void fail(Throwable error);
+    }
+
+    // an answer collected whole for a future
+    private static class Answer implements Pending {
+        private final StringBuilder text = new StringBuilder();
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        public void line(String line) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(line);
+        }
+
+        public void end() {
+            future.complete(text.toString());
+        }
+
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final BufferedWriter writer;
+        // receivers of the answers still to come, in the order the commands were written
+        private final Queue<Pending> pending;
+        private volatile boolean broken;
+
+        Connection(int slot) throws IOException {
+            this.socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            this.pending = new ConcurrentLinkedQueue<>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Thread thread = new Thread(() -> readAnswers(reader), "db-client-" + slot);
+            thread.setDaemon(true);
+            thread.start();
+            // a connection replacing a broken one selects the database the others have
+            String selected = database;
+            if (selected != null) {
+                send(List.of("USE " + selected + ";"), List.of(new Answer()));
+            }
+        }
+
+        void send(List<String> commands, List<? extends Pending> receivers) {
+            synchronized (this) {
+                try {
+                    if (broken) {
+                        throw new EOFException("Connection to " + host + ":" + port + " is closed");
+                    }
+                    for (int i = 0; i < commands.size(); i++) {
+                        pending.add(receivers.get(i));
+                        writer.write(commands.get(i).replace('\n', ' ').replace('\r', ' '));
+                        writer.newLine();
+                    }
+                    writer.flush();
+                    return;
+                } catch (IOException e) {
+                    broken = true;
+                    closeSocket();
+                }
+            }
+            // the reader thread fails whatever was queued once the socket is closed
+            for (Pending receiver : receivers) {
+                if (!pending.contains(receiver)) {
+                    receiver.fail(new EOFException("Connection to " + host + ":" + port + " is closed"));
+                }
+            }
+        }
+
+        private void readAnswers(BufferedReader reader) {
+            IOException failure;
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    Pending head = pending.peek();
+                    if (head == null) {
+                        continue;
+                    }
+                    if (line.length() == 1 && line.charAt(0) == END_OF_TRANSMISSION) {
+                        pending.poll();
+                        head.end();
+                    } else {
+                        head.line(line);
+                    }
+                }
+                failure = new EOFException("Server closed the connection");
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                broken = true;
+                closeSocket();
+                for (Pending receiver = pending.poll(); receiver != null; receiver = pending.poll()) {
+                    receiver.fail(failure);
+                }
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    // connections lost since the last command are opened again
+    private void repair() throws IOException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+        synchronized (connections) {
+            for (int slot = 0; slot < connections.length; slot++) {
+                if (connections[slot].broken) {
+                    connections[slot] = new Connection(slot);
+                }
+            }
+        }
+    }
+
+    // the connection with the fewest answers outstanding, ties taken in turn
+    private Connection pick() throws IOException {
+        repair();
+        int start = Math.floorMod(next.getAndIncrement(), connections.length);
+        Connection best = null;
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[(start + i) % connections.length];
+            if (best == null || connection.pending.size() < best.pending.size()) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    public CompletableFuture<String> execute(String command) {
+        List<String> tokens = QueryParser.tokenize(command.trim());
+        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("USE")) {
+            return use(tokens.get(1).replace(";", ""));
+        }
+        return executeAll(List.of(command)).thenApply(answers -> answers.get(0));
+    }
+
+    // the commands pipelined on one connection and answered in order
+    public CompletableFuture<List<String>> executeAll(List<String> commands) {
+        List<Answer> answers = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            answers.add(new Answer());
+        }
+        try {
+            pick().send(commands, answers);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<?>[] futures = answers.stream().map(answer -> answer.future).toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(futures)
+                .thenApply(done -> answers.stream().map(answer -> answer.future.join()).toList())
+                .orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // selects the database on every connection of the pool. Answers the first error, or the first answer
+    public CompletableFuture<String> use(String databaseName) {
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        try {
+            repair();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        for (Connection connection : connections) {
+            Answer answer = new Answer();
+            connection.send(List.of("USE " + databaseName + ";"), List.of(answer));
+            answers.add(answer.future);
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            for (CompletableFuture<String> answer : answers) {
+                if (!answer.join().startsWith("[OK]")) {
+                    return answer.join();
+                }
+            }
+            database = databaseName.toLowerCase();
+            return answers.get(0).join();
+        }).orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // a SELECT or JOIN whose rows are handed over as they are read from the socket rather than
+    // collected into one answer first
+    public ResultStream stream(String query) throws IOException {
+        ResultStream stream = new ResultStream();
+        pick().send(List.of(query), List.of(stream));
+        return stream;
+    }
+
+    // rows of one answer, each as its cells. A stream closed early discards the rest of its answer.
+    public class ResultStream implements Pending, Iterator<List<String>>, Closeable {
+        private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(STREAM_BUFFER);
+        private volatile Throwable failure;
+        private volatile boolean discarding;
+        private String status;
+        private List<String> header;
+        private String nextLine;
+        private boolean finished;
+
+        public void line(String line) {
+            try {
+                while (!discarding && !lines.offer(line, 100, TimeUnit.MILLISECONDS)) {
+                    // the caller is behind, stop reading the socket until it catches up
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void end() {
+            line(END);
+        }
+
+        public void fail(Throwable error) {
+            failure = error;
+            line(END);
+        }
+
+        private String take() {
+            try {
+                String line = lines.poll(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    throw new UncheckedIOException(new SocketTimeoutException("No answer within " + requestTimeoutMillis + " ms"));
+                }
+                if (line == END && failure != null) {
+                    throw new UncheckedIOException(failure instanceof IOException ? (IOException) failure : new IOException(failure));
+                }
+                return line;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for rows"));
+            }
+        }
+
+        private void readHeader() {
+            if (status != null) {
+                return;
+            }
+            String first = take();
+            if (first == END || !first.startsWith("[OK]")) {
+                StringBuilder error = new StringBuilder(first == END ? "[ERROR] Empty answer" : first);
+                for (String line = first == END ? END : take(); line != END; line = take()) {
+                    error.append('\n').append(line);
+                }
+                finished = true;
+                status = error.toString();
+                header = List.of();
+                return;
+            }
+            status = first.trim();
+            String columns = take();
+            finished = columns == END;
+            header = finished ? List.of() : List.of(columns.split("\t"));
+        }
+
+        // "[OK]", or the server's error message
+        public String getStatus() {
+            readHeader();
+            return status;
+        }
+
+        public List<String> getHeader() {
+            readHeader();
+            return header;
+        }
+
+        @Override
+        public boolean hasNext() {
+            readHeader();
+            if (nextLine == null && !finished) {
+                String line = take();
+                finished = line == END;
+                nextLine = finished ? null : line;
+            }
+            return nextLine != null;
+        }
+
+        @Override
+        public List<String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = nextLine;
+            nextLine = null;
+            return List.of(line.split("\t", -1));
+        }
+
+        @Override
+        public void close() {
+            discarding = true;
+            lines.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections) {
+            connection.closeSocket();
+        }
+    }
+}
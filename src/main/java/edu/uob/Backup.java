@@ -0,0 +1,146 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// BACKUP DATABASE <name> TO '<path>' copies a database while it keeps taking writes, the path taken
+// under the server's backup root. Each table is read as a snapshot of its current version, a block of
+// rows at a time, and its change log copied up to that version, so a write is either wholly in the copy
+// or not at all. Views are copied first, each with how far it had read its base tables: the base tables
+// copied after are then at least that far, and a restored view only has to catch up. The copy is built
+// in <path>.partial and moved into place once complete. RESTORE DATABASE <name> FROM '<path>' copies a
+// backup back as a new database folder, whose tables load from their files like any other's. A restore
+// isn't replicated, followers have no copy of the files: each server restores its own.
+public class Backup {
+    // table name to the version it was copied at and the rows copied, in the order they were copied
+    private final Map<String, long[]> tables;
+    private final long startedAt;
+    private int files;
+    private long bytes;
+    private long nanos;
+
+    private Backup() {
+        this.tables = new LinkedHashMap<>();
+        this.startedAt = System.nanoTime();
+    }
+
+    static Backup run(Database database, File target) throws IOException {
+        String[] existing = target.list();
+        if (target.exists() && (existing == null || existing.length > 0)) {
+            throw new IOException("'" + target + "' already exists");
+        }
+        File partial = new File(target.getPath() + ".partial");
+        deleteTree(partial);
+        Files.createDirectories(partial.toPath());
+        Backup backup = new Backup();
+        try {
+            List<String> names = database.tableNames();
+            names.sort(Comparator.comparing(name -> !database.isView(name)));
+            List<String> catalog = new ArrayList<>();
+            for (String name : names) {
+                Table table = database.loadedTable(name);
+                if (table == null) {
+                    continue; // dropped since the names were listed
+                }
+                MaterializedView view = database.getView(name);
+                long version;
+                if (view != null) {
+                    version = view.backup(table, partial);
+                } else {
+                    version = table.currentVersion();
+                    table.openSnapshot(version);
+                }
+                try {
+                    long rows = table.backup(partial, version);
+                    table.getChangeLog().copyTo(partial, version);
+                    backup.tables.put(name, new long[] {version, rows});
+                    catalog.add(name + "\t" + rows);
+                } finally {
+                    table.closeSnapshot(version);
+                }
+            }
+            Files.write(new File(partial, Database.CATALOG_FILE).toPath(), catalog);
+            backup.count(partial);
+            Files.deleteIfExists(target.toPath());
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            deleteTree(partial);
+            throw e;
+        }
+        backup.nanos = System.nanoTime() - backup.startedAt;
+        return backup;
+    }
+
+    // the backup's files are ready to load as they are, restoring is a copy into a hidden folder of the
+    // root and a move to the database's name
+    static Backup restore(File source, File databaseFolder) throws IOException {
+        if (!new File(source, Database.CATALOG_FILE).isFile()) {
+            throw new IOException("'" + source + "' is not a database backup");
+        }
+        if (databaseFolder.exists()) {
+            throw new IOException("Database " + databaseFolder.getName() + " already exists");
+        }
+        File partial = new File(databaseFolder.getParentFile(), "." + databaseFolder.getName() + ".restoring");
+        deleteTree(partial);
+        Backup backup = new Backup();
+        try {
+            copyTree(source, partial);
+            backup.count(partial);
+            Files.move(partial.toPath(), databaseFolder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            deleteTree(partial);
+            throw e;
+        }
+        backup.nanos = System.nanoTime() - backup.startedAt;
+        return backup;
+    }
+
+    private static void copyTree(File source, File target) throws IOException {
+        if (source.isDirectory()) {
+            Files.createDirectories(target.toPath());
+            String[] children = source.list();
+            for (String child : children != null ? children : new String[0]) {
+                copyTree(new File(source, child), new File(target, child));
+            }
+        } else {
+            Files.copy(source.toPath(), target.toPath());
+        }
+    }
+
+    private void count(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            files++;
+            bytes += file.length();
+            return;
+        }
+        for (File child : children) {
+            count(child);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    public Map<String, long[]> getTables() {
+        return Collections.unmodifiableMap(tables);
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    // e.g. "12.40 MB in 310 ms (40.0 MB/s)"
+    public String throughput() {
+        double megabytes = bytes / 1e6;
+        return String.format("%.2f MB in %d ms (%.1f MB/s)", megabytes, nanos / 1_000_000, megabytes / Math.max(nanos / 1e9, 1e-3));
+    }
+}
@@ -0,0 +1,35 @@
+package edu.uob;
+
+import java.util.*;
+
+// one RoaringBitmap of row positions per distinct value of a low-cardinality column, so == and !=
+// (and AND/OR of them) are answered with set operations. Values are keyed the way == compares them,
+// "65" and "65.0" share a bitmap. Deleted rows stay in until the table rebuilds the index on compaction.
+public class BitmapIndex {
+    private final Map<String, RoaringBitmap> bitmaps;
+
+    public BitmapIndex() {
+        this.bitmaps = new HashMap<>();
+    }
+
+    public void add(int position, String value) {
+        bitmaps.computeIfAbsent(Table.equalityKey(value), key -> new RoaringBitmap()).add(position);
+    }
+
+    public void update(int position, String oldValue, String newValue) {
+        RoaringBitmap old = bitmaps.get(Table.equalityKey(oldValue));
+        if (old != null) {
+            old.remove(position);
+            if (old.isEmpty()) {
+                bitmaps.remove(Table.equalityKey(oldValue));
+            }
+        }
+        add(position, newValue);
+    }
+
+    // positions whose value is == to the given one, never modify the result
+    public RoaringBitmap equalTo(String value) {
+        RoaringBitmap bitmap = bitmaps.get(Table.equalityKey(value));
+        return bitmap != null ? bitmap : new RoaringBitmap();
+    }
+}
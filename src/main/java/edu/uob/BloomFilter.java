@@ -0,0 +1,89 @@
+package edu.uob;
+
+import java.io.*;
+
+// probabilistic set of column values - "false" means the value is definitely absent
+public class BloomFilter {
+    private static final int MIN_CAPACITY = 1024;
+
+    private final double falsePositiveRate;
+    private final int capacity;
+    private final int hashCount;
+    private final long[] bits;
+    private int insertions;
+
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.capacity = Math.max(MIN_CAPACITY, expectedInsertions);
+        // optimal size m = -n ln(p) / ln(2)^2 and k = m/n ln(2)
+        long bitCount = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) Math.max(1, (bitCount + 63) / 64)];
+        this.hashCount = Math.max(1, (int) Math.round((double) bits.length * 64 / capacity * Math.log(2)));
+    }
+
+    private BloomFilter(double falsePositiveRate, int capacity, int hashCount, long[] bits, int insertions) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.capacity = capacity;
+        this.hashCount = hashCount;
+        this.bits = bits;
+        this.insertions = insertions;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    // more values than the filter was sized for, so the real false positive rate has drifted up
+    public boolean isSaturated() {
+        return insertions > capacity;
+    }
+
+    public void add(String value) {
+        long hash = HyperLogLog.hash64(value);
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash + i * (hash >>> 32 | 1), bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        insertions++;
+    }
+
+    public boolean mightContain(String value) {
+        long hash = HyperLogLog.hash64(value);
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash + i * (hash >>> 32 | 1), bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeDouble(falsePositiveRate);
+            out.writeInt(capacity);
+            out.writeInt(hashCount);
+            out.writeInt(insertions);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    public static BloomFilter read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            double falsePositiveRate = in.readDouble();
+            int capacity = in.readInt();
+            int hashCount = in.readInt();
+            int insertions = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(falsePositiveRate, capacity, hashCount, bits, insertions);
+        }
+    }
+}
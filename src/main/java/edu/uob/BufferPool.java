@@ -0,0 +1,132 @@
+package edu.uob;
+
+import java.util.*;
+
+// pages of PagedRowStores held in memory under one byte budget shared by every table. Pages are
+// evicted with the CLOCK algorithm - a page used since the hand last passed gets a second chance -
+// skipping pinned ones, and dirty pages are written back to their store before being dropped.
+public class BufferPool {
+    private static BufferPool shared;
+
+    private final List<Frame> frames;
+    private long budget;
+    private long usedBytes;
+    private int hand;
+
+    public BufferPool(long budget) {
+        this.frames = new ArrayList<>();
+        this.budget = budget;
+    }
+
+    public static synchronized BufferPool shared() {
+        if (shared == null) {
+            shared = new BufferPool(Long.MAX_VALUE);
+        }
+        return shared;
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    // makes a page resident, possibly evicting others to stay within the budget
+    synchronized void admit(Frame frame) {
+        frame.resident = true;
+        frame.referenced = true;
+        frames.add(frame);
+        usedBytes += frame.bytes;
+        evict();
+    }
+
+    // accounts for a resident page growing or shrinking
+    synchronized void resize(Frame frame, long delta) {
+        frame.bytes += delta;
+        usedBytes += delta;
+        if (delta > 0) {
+            evict();
+        }
+    }
+
+    synchronized void pin(Frame frame) {
+        frame.pins++;
+    }
+
+    synchronized void unpin(Frame frame) {
+        frame.pins--;
+    }
+
+    // drops every page of a store without writing it back
+    synchronized void release(PagedRowStore store) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            Frame frame = frames.get(i);
+            if (frame.store == store) {
+                remove(i);
+            }
+        }
+    }
+
+    private void evict() {
+        // two sweeps clear every reference bit, after that only pinned or busy pages remain
+        for (int checked = 0; usedBytes > budget && !frames.isEmpty() && checked < 2 * frames.size(); checked++) {
+            hand %= frames.size();
+            Frame frame = frames.get(hand);
+            if (frame.pins > 0) {
+                hand++;
+            } else if (frame.referenced) {
+                frame.referenced = false;
+                hand++;
+            } else if (frame.store.evict(frame)) {
+                remove(hand);
+                checked = 0;
+            } else {
+                hand++;
+            }
+        }
+    }
+
+    private void remove(int index) {
+        Frame frame = frames.get(index);
+        frame.resident = false;
+        usedBytes -= frame.bytes;
+        // swap with the last frame, the hand then looks at the moved one next
+        Frame last = frames.remove(frames.size() - 1);
+        if (index < frames.size()) {
+            frames.set(index, last);
+        }
+    }
+
+    // one page of rows, kept encoded so readers never share mutable Row objects with the evictor
+    static class Frame {
+        final PagedRowStore store;
+        final int number;
+        final String[] lines;
+        final int[] versions;
+        int count;
+        long bytes;
+        int pins;
+        boolean dirty;
+        boolean referenced;
+        boolean resident;
+
+        Frame(PagedRowStore store, int number, int capacity) {
+            this.store = store;
+            this.number = number;
+            this.lines = new String[capacity];
+            this.versions = new int[capacity];
+        }
+
+        // rough heap cost of a row line: the String, its char array and the slot
+        static long sizeOf(String line) {
+            return 56 + 2L * line.length();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// ordered record of a table's row changes, appended to <table>.changes as the writes are made, one line
+// per event: "<offset>\t<INSERT|UPDATE|DELETE|SCHEMA>\t<id>\t<values>". Inserts and updates carry the
+// row's values after the change, deletes only the id, SCHEMA the column names after an ALTER.
+// Writers only append to the file; each subscriber reads it back at its own pace from the offset it
+// asks for, so one that falls behind costs disk space rather than holding a writer up.
+public class ChangeLog {
+    private final File file;
+    // the table whose schema changes and drop count, partitions share their PartitionedTable's log
+    private final Table owner;
+    private BufferedWriter writer;
+    // offset of the last event written, and of the last one flushed where subscribers can read it
+    private long appended;
+    private long committed;
+    private boolean closed;
+
+    ChangeLog(File file, Table owner) {
+        this.file = file;
+        this.owner = owner;
+        this.appended = lastOffset(file);
+        this.committed = appended;
+    }
+
+    // the offset of the last complete event in the file, a torn last line is cut off
+    private static long lastOffset(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        long last = 0;
+        long validBytes = 0;
+        long bytes = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                bytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3 && fields[0].matches("[0-9]+")) {
+                    last = Long.parseLong(fields[0]);
+                    validBytes = bytes;
+                }
+            }
+            if (validBytes < file.length()) {
+                try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                    truncate.setLength(validBytes);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error reading change log " + file + ": " + e.getMessage());
+        }
+        return last;
+    }
+
+    synchronized void insert(int id, List<String> values) {
+        append("INSERT\t" + id + (values.isEmpty() ? "" : "\t" + String.join("\t", values)));
+    }
+
+    synchronized void update(int id, String[] values) {
+        append("UPDATE\t" + id + (values.length == 0 ? "" : "\t" + String.join("\t", values)));
+    }
+
+    synchronized void delete(int id) {
+        append("DELETE\t" + id);
+    }
+
+    synchronized void schema(Table table, List<String> columns) {
+        if (table == owner) {
+            append("SCHEMA\t" + String.join("\t", columns));
+            commit();
+        }
+    }
+
+    private void append(String event) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(++appended + "\t" + event);
+            writer.newLine();
+        } catch (IOException e) {
+            System.err.println("Error writing change log " + file + ": " + e.getMessage());
+        }
+    }
+
+    // makes the events of a finished write visible to subscribers
+    synchronized void commit() {
+        if (writer == null || committed == appended) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing change log " + file + ": " + e.getMessage());
+        }
+        committed = appended;
+        notifyAll();
+    }
+
+    // on DROP TABLE: subscribers see the end of the stream and the file goes
+    synchronized void drop(Table table) {
+        if (table != owner) {
+            return;
+        }
+        closed = true;
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing change log " + file + ": " + e.getMessage());
+        }
+        file.delete();
+        notifyAll();
+    }
+
+    // for BACKUP: the events up to the offset into a file of the same name in the folder. Committed
+    // events are complete lines on disk, so this reads the file while writers carry on appending.
+    void copyTo(File folder, long upTo) throws IOException {
+        if (upTo == 0 || !file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+             BufferedWriter copy = Files.newBufferedWriter(new File(folder, file.getName()).toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int tab = line.indexOf('\t');
+                if (tab == -1 || Long.parseLong(line.substring(0, tab)) > upTo) {
+                    break;
+                }
+                copy.write(line);
+                copy.newLine();
+            }
+        }
+    }
+
+    public synchronized long getOffset() {
+        return committed;
+    }
+
+    // waits until the event at the offset is committed. False on timeout or once the table is dropped.
+    private synchronized boolean await(long offset, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (committed < offset && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return !closed;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // events from an offset on, 1 being the first event of the table
+    public Subscription subscribe(long from) {
+        return new Subscription(Math.max(1, from));
+    }
+
+    public class Subscription implements Closeable {
+        private final long from;
+        private BufferedReader reader;
+        // offset of the last event read from the file
+        private long read;
+
+        Subscription(long from) {
+            this.from = from;
+        }
+
+        // offset the next event handed out will have
+        public long getNextOffset() {
+            return Math.max(from, read + 1);
+        }
+
+        // the next event, or null when none is committed within the timeout. EOFException once the
+        // table has been dropped.
+        public String next(long timeoutMillis) throws IOException, InterruptedException {
+            while (true) {
+                if (isClosed()) {
+                    throw new EOFException("Table dropped");
+                }
+                if (!await(read + 1, timeoutMillis)) {
+                    if (isClosed()) {
+                        throw new EOFException("Table dropped");
+                    }
+                    return null;
+                }
+                if (reader == null) {
+                    reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+                }
+                // committed events are complete lines on disk
+                String line = reader.readLine();
+                read = Long.parseLong(line.substring(0, line.indexOf('\t')));
+                if (read >= from) {
+                    return line;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package edu.uob;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+// columns decoded into one double[] per block of ZoneMap.BLOCK_SIZE rows, so filters run as tight
+// loops over a vector instead of parsing a cell per row. A cell that is not a number is NaN, which
+// compares exactly like evaluateCondition's fallback when the condition value is numeric: false for
+// everything but !=. Vectors are built the first time a block is filtered and dropped when it changes.
+// They are a cache of the rows, so each table's vectors stay under a byte limit, the oldest built going
+// first: -Dcwdb.vectors.bytes, by default a quarter of the buffer pool's budget when tables are paged and
+// no limit when they are on the heap.
+public class ColumnVectors {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // a built vector, in the order they were built
+    private static class Built {
+        final int block;
+        final int ordinal;
+        final double[] vector;
+
+        Built(int block, int ordinal, double[] vector) {
+            this.block = block;
+            this.ordinal = ordinal;
+            this.vector = vector;
+        }
+    }
+
+    // blocks.get(block)[ordinal], null while the vector hasn't been built
+    private final List<double[][]> blocks;
+    private final long maxBytes;
+    // vectors built, oldest first - ones dropped since are skipped when their turn comes
+    private final ArrayDeque<Built> built;
+    private long bytes;
+    private int columnCount;
+    private int rowCount;
+
+    public ColumnVectors(int columnCount) {
+        this(columnCount, defaultMaxBytes());
+    }
+
+    public ColumnVectors(int columnCount, long maxBytes) {
+        this.blocks = new ArrayList<>();
+        this.maxBytes = maxBytes;
+        this.built = new ArrayDeque<>();
+        reset(0, columnCount);
+    }
+
+    private static long defaultMaxBytes() {
+        long pool = Long.getLong("cwdb.bufferpool.bytes", 0L);
+        return Long.getLong("cwdb.vectors.bytes", pool > 0 ? Math.max(pool / 4, 1) : Long.MAX_VALUE);
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void reset(int rowCount, int columnCount) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        built.clear();
+        bytes = 0;
+        blocks.clear();
+        for (int i = 0; i < (rowCount + ZoneMap.BLOCK_SIZE - 1) / ZoneMap.BLOCK_SIZE; i++) {
+            blocks.add(new double[columnCount][]);
+        }
+    }
+
+    // the last block grows, its vectors are rebuilt on next use
+    public void append() {
+        int block = rowCount++ / ZoneMap.BLOCK_SIZE;
+        if (block == blocks.size()) {
+            blocks.add(new double[columnCount][]);
+        } else {
+            for (int ordinal = 0; ordinal < columnCount; ordinal++) {
+                drop(block, ordinal);
+            }
+        }
+    }
+
+    public void invalidate(int position, int ordinal) {
+        drop(position / ZoneMap.BLOCK_SIZE, ordinal);
+    }
+
+    private void drop(int block, int ordinal) {
+        double[] vector = blocks.get(block)[ordinal];
+        if (vector != null) {
+            bytes -= 8L * vector.length;
+            blocks.get(block)[ordinal] = null;
+        }
+    }
+
+    // the block's cells of a column, indexed from the block's first position
+    public double[] vector(int block, int ordinal, IntFunction<String> valueAtPosition) {
+        double[] vector = blocks.get(block)[ordinal];
+        if (vector == null) {
+            int start = block * ZoneMap.BLOCK_SIZE;
+            vector = new double[Math.min(rowCount, start + ZoneMap.BLOCK_SIZE) - start];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = parseNumber(valueAtPosition.apply(start + i));
+            }
+            blocks.get(block)[ordinal] = vector;
+            bytes += 8L * vector.length;
+            if (maxBytes != Long.MAX_VALUE) {
+                built.add(new Built(block, ordinal, vector));
+                evict(vector);
+            }
+        }
+        return vector;
+    }
+
+    // drops the oldest vectors over the limit, never the one just built for the caller
+    private void evict(double[] keep) {
+        while (bytes > maxBytes && !built.isEmpty() && built.peekFirst().vector != keep) {
+            Built oldest = built.pollFirst();
+            if (oldest.block < blocks.size() && blocks.get(oldest.block)[oldest.ordinal] == oldest.vector) {
+                drop(oldest.block, oldest.ordinal);
+            }
+        }
+        // entries of vectors dropped by writes pile up when nothing is over the limit
+        if (built.size() > 64 && built.size() > 2 * bytes / (8L * ZoneMap.BLOCK_SIZE)) {
+            built.removeIf(entry -> entry.block >= blocks.size() || blocks.get(entry.block)[entry.ordinal] != entry.vector);
+        }
+    }
+
+    // Double.parseDouble, NaN when the value is not a number. Plain decimals are converted directly and
+    // text that cannot be a number is rejected without throwing, most cells never reach the slow path.
+    public static double parseNumber(String value) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (point) {
+                    scale++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        // exact when the digits fit a double's mantissa and the power of ten is exact too
+        if (i == length && digits > 0 && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            double number = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -number : number;
+        }
+        if (!mightBeNumber(value)) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // false only for values Double.parseDouble certainly rejects
+    private static boolean mightBeNumber(String value) {
+        String trimmed = value.trim();
+        int i = trimmed.startsWith("-") || trimmed.startsWith("+") ? 1 : 0;
+        if (i >= trimmed.length()) {
+            return false;
+        }
+        char c = trimmed.charAt(i);
+        return (c >= '0' && c <= '9') || c == '.' || trimmed.startsWith("NaN", i) || trimmed.startsWith("Infinity", i);
+    }
+
+    // filter kernels: the positions in [from, to) of the vector satisfying the comparison are written to
+    // selection, their count returned. Branch-free so the JIT can unroll and vectorise them.
+    public static int select(double[] vector, int from, int to, String comparator, double value, int[] selection) {
+        switch (comparator) {
+            case "==":
+                return selectEqual(vector, from, to, value, selection);
+            case "!=":
+                return selectNotEqual(vector, from, to, value, selection);
+            case ">":
+                return selectGreater(vector, from, to, value, selection);
+            case ">=":
+                return selectGreaterOrEqual(vector, from, to, value, selection);
+            case "<":
+                return selectLess(vector, from, to, value, selection);
+            case "<=":
+                return selectLessOrEqual(vector, from, to, value, selection);
+            default:
+                return 0;
+        }
+    }
+
+    // positions whose cell is not a number, the only ones that can equal a non-numeric literal
+    public static int selectNaN(double[] vector, int from, int to, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] != vector[i] ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int selectEqual(double[] vector, int from, int to, double value, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] == value ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int selectNotEqual(double[] vector, int from, int to, double value, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] != value ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int selectGreater(double[] vector, int from, int to, double value, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] > value ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int selectGreaterOrEqual(double[] vector, int from, int to, double value, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] >= value ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int selectLess(double[] vector, int from, int to, double value, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] < value ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int selectLessOrEqual(double[] vector, int from, int to, double value, int[] selection) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            selection[count] = i;
+            count += vector[i] <= value ? 1 : 0;
+        }
+        return count;
+    }
+}
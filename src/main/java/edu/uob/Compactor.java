@@ -0,0 +1,32 @@
+package edu.uob;
+
+import java.util.concurrent.*;
+
+// background thread reclaiming tombstoned rows, in memory and on disk, once enough of a table is deleted
+public class Compactor {
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("cwdb.compaction.threshold", "0.25"));
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "table-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static boolean isDue(int tombstones, int physicalRows) {
+        return tombstones > 0 && tombstones >= THRESHOLD * physicalRows;
+    }
+
+    public static void schedule(Table table) {
+        EXECUTOR.execute(table::compact);
+    }
+
+    // waits for every compaction queued so far, so reloading a table never races a rewrite of its file
+    public static void awaitIdle() {
+        try {
+            EXECUTOR.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Compaction failed: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package edu.uob;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+// parsed WHERE clause: either a single <attribute> <comparator> <value> or an AND / OR of two conditions.
+// BNF: <Condition> ::= <And> (OR <And>)* ; <And> ::= <Term> (AND <Term>)* ; <Term> ::= "(" <Condition> ")" | <Comparison>
+public class Condition {
+    private static final List<String> COMPARATORS = List.of("==", "!=", ">=", "<=", ">", "<", "=");
+
+    private final String operator;
+    private final Condition left;
+    private final Condition right;
+    private final String attribute;
+    private final String comparator;
+    private final String value;
+
+    private Condition(String operator, Condition left, Condition right) {
+        this.operator = operator;
+        this.left = left;
+        this.right = right;
+        this.attribute = null;
+        this.comparator = null;
+        this.value = null;
+    }
+
+    private Condition(String attribute, String comparator, String value) {
+        this.operator = null;
+        this.left = null;
+        this.right = null;
+        this.attribute = attribute;
+        this.comparator = comparator;
+        this.value = value;
+    }
+
+    // null when the clause is not a valid condition
+    public static Condition parse(String clause) {
+        List<String> tokens = tokenize(clause);
+        if (tokens == null) {
+            return null;
+        }
+        int[] next = new int[1];
+        Condition condition = parseOr(tokens, next);
+        return condition != null && next[0] == tokens.size() ? condition : null;
+    }
+
+    public boolean isComparison() {
+        return operator == null;
+    }
+
+    // "AND" or "OR"
+    public String getOperator() {
+        return operator;
+    }
+
+    public Condition getLeft() {
+        return left;
+    }
+
+    public Condition getRight() {
+        return right;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public String getComparator() {
+        return comparator;
+    }
+
+    // as written in the query, string literals keep their quotes
+    public String getValue() {
+        return value;
+    }
+
+    // a copy with each ? value replaced by the next parameter, in the order the values are written
+    public Condition bind(Iterator<String> parameters) {
+        if (isComparison()) {
+            return value.equals(PreparedStatement.PARAMETER) ? new Condition(attribute, comparator, parameters.next()) : this;
+        }
+        Condition boundLeft = left.bind(parameters);
+        return new Condition(operator, boundLeft, right.bind(parameters));
+    }
+
+    // a copy with each comparison replaced by what the mapping makes of it
+    public Condition map(UnaryOperator<Condition> comparison) {
+        if (isComparison()) {
+            return comparison.apply(this);
+        }
+        return new Condition(operator, left.map(comparison), right.map(comparison));
+    }
+
+    public Condition withValue(String newValue) {
+        return new Condition(attribute, comparator, newValue);
+    }
+
+    // back to a WHERE clause that parses to the same condition
+    @Override
+    public String toString() {
+        if (isComparison()) {
+            return attribute + " " + comparator + " " + value;
+        }
+        return "(" + left + ") " + operator + " (" + right + ")";
+    }
+
+    public int countParameters() {
+        if (isComparison()) {
+            return value.equals(PreparedStatement.PARAMETER) ? 1 : 0;
+        }
+        return left.countParameters() + right.countParameters();
+    }
+
+    public List<String> getAttributes() {
+        List<String> attributes = new ArrayList<>();
+        collectAttributes(attributes);
+        return attributes;
+    }
+
+    private void collectAttributes(List<String> attributes) {
+        if (isComparison()) {
+            attributes.add(attribute);
+        } else {
+            left.collectAttributes(attributes);
+            right.collectAttributes(attributes);
+        }
+    }
+
+    private static Condition parseOr(List<String> tokens, int[] next) {
+        Condition condition = parseAnd(tokens, next);
+        while (condition != null && next[0] < tokens.size() && tokens.get(next[0]).equalsIgnoreCase("OR")) {
+            next[0]++;
+            Condition right = parseAnd(tokens, next);
+            condition = right == null ? null : new Condition("OR", condition, right);
+        }
+        return condition;
+    }
+
+    private static Condition parseAnd(List<String> tokens, int[] next) {
+        Condition condition = parseTerm(tokens, next);
+        while (condition != null && next[0] < tokens.size() && tokens.get(next[0]).equalsIgnoreCase("AND")) {
+            next[0]++;
+            Condition right = parseTerm(tokens, next);
+            condition = right == null ? null : new Condition("AND", condition, right);
+        }
+        return condition;
+    }
+
+    private static Condition parseTerm(List<String> tokens, int[] next) {
+        if (next[0] >= tokens.size()) {
+            return null;
+        }
+        if (tokens.get(next[0]).equals("(")) {
+            next[0]++;
+            Condition condition = parseOr(tokens, next);
+            if (condition == null || next[0] >= tokens.size() || !tokens.get(next[0]).equals(")")) {
+                return null;
+            }
+            next[0]++;
+            return condition;
+        }
+        if (next[0] + 3 > tokens.size()) {
+            return null;
+        }
+        String attribute = tokens.get(next[0]);
+        String comparator = tokens.get(next[0] + 1).toUpperCase();
+        String value = tokens.get(next[0] + 2);
+        if (!attribute.matches("[a-zA-Z0-9_]+") || !(COMPARATORS.contains(comparator) || comparator.equals("LIKE"))
+                || value.equals("(") || value.equals(")")) {
+            return null;
+        }
+        next[0] += 3;
+        return new Condition(attribute, comparator.equals("=") ? "==" : comparator, value);
+    }
+
+    // splits into parentheses, comparators, quoted literals and words; null on an unterminated literal
+    private static List<String> tokenize(String clause) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < clause.length()) {
+            char c = clause.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '\'') {
+                int end = clause.indexOf('\'', i + 1);
+                if (end == -1) {
+                    return null;
+                }
+                tokens.add(clause.substring(i, end + 1));
+                i = end + 1;
+            } else if ("=!<>".indexOf(c) != -1) {
+                int end = i + 1 < clause.length() && clause.charAt(i + 1) == '=' ? i + 2 : i + 1;
+                tokens.add(clause.substring(i, end));
+                i = end;
+            } else {
+                int end = i;
+                while (end < clause.length() && !Character.isWhitespace(clause.charAt(end)) && "()'=!<>".indexOf(clause.charAt(end)) == -1) {
+                    end++;
+                }
+                tokens.add(clause.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+}
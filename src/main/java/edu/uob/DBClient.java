@@ -13,7 +13,8 @@ public class DBClient {
 
     public static void main(String[] args) throws IOException {
         BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-        Socket socket = new Socket("localhost", 8888);
+        // java edu.uob.DBClient [host] [port]
+        Socket socket = new Socket(args.length > 0 ? args[0] : "localhost", args.length > 1 ? Integer.parseInt(args[1]) : 8888);
         BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
         while (!Thread.interrupted()) {
@@ -0,0 +1,92 @@
+package edu.uob;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// one connection speaking the DBServer protocol: a command per line, each answer followed by a line
+// holding END_OF_TRANSMISSION. The server answers in order, so several commands can be written
+// before reading any answer, one round trip for the lot.
+public class DBConnection implements Closeable {
+    static final char END_OF_TRANSMISSION = 4;
+
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final BufferedWriter writer;
+
+    public DBConnection(String host, int port, int timeoutMillis) throws IOException {
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        // a read blocked longer than this gives up on the server
+        socket.setSoTimeout(timeoutMillis);
+        socket.setTcpNoDelay(true);
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    // buffered until flush, commands must not span lines
+    public void write(String command) throws IOException {
+        writer.write(command.replace('\n', ' ').replace('\r', ' '));
+        writer.newLine();
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    // the next answer, in the order the commands were written
+    public String read() throws IOException {
+        StringBuilder answer = new StringBuilder();
+        for (String line = reader.readLine(); ; line = reader.readLine()) {
+            if (line == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            if (line.length() == 1 && line.charAt(0) == END_OF_TRANSMISSION) {
+                return answer.toString();
+            }
+            if (answer.length() > 0) {
+                answer.append('\n');
+            }
+            answer.append(line);
+        }
+    }
+
+    // one line of a feed the server streams without an end of transmission, such as SUBSCRIBE's
+    public String readLine() throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return line;
+    }
+
+    public String execute(String command) throws IOException {
+        write(command);
+        flush();
+        return read();
+    }
+
+    // pipelined: every command is sent before the first answer is read
+    public List<String> execute(List<String> commands) throws IOException {
+        for (String command : commands) {
+            write(command);
+        }
+        flush();
+        List<String> answers = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            answers.add(read());
+        }
+        return answers;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
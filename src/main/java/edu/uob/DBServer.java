@@ -2,6 +2,8 @@ package edu.uob;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -9,31 +11,86 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
 
 /** This class implements the DB server. */
 public class DBServer {
 
     private static final char END_OF_TRANSMISSION = 4;
+    // how long a subscription waits for changes before flushing and looking again
+    private static final long SUBSCRIPTION_POLL_MILLIS = 200;
     private String storageFolderPath;
+    private final ServerContext context;
     private final ManageCommand manageCommand;
+    private volatile ServerSocket listeningSocket;
 
+    // java edu.uob.DBServer [port], with -Dcwdb.storage=<folder>, -Dcwdb.replication.port=<port> to
+    // stream writes to followers, or -Dcwdb.replication.leader=<host>:<port> to run as a read replica
     public static void main(String args[]) throws IOException {
-        DBServer server = new DBServer();
-        server.blockingListenOn(8888);
+        DBServer server = new DBServer(System.getProperty("cwdb.storage", "databases"));
+        String replicationPort = System.getProperty("cwdb.replication.port");
+        if (replicationPort != null) {
+            System.out.println("Streaming writes to followers on port " + server.startLeader(Integer.parseInt(replicationPort)));
+        }
+        String leader = System.getProperty("cwdb.replication.leader");
+        if (leader != null) {
+            int colon = leader.lastIndexOf(':');
+            server.startFollower(leader.substring(0, colon), Integer.parseInt(leader.substring(colon + 1)));
+        }
+        server.blockingListenOn(args.length > 0 ? Integer.parseInt(args[0]) : 8888);
     }
 
     /**
     * KEEP this signature otherwise we won't be able to mark your submission correctly.
     */
     public DBServer() {
-        storageFolderPath = Paths.get("databases").toAbsolutePath().toString();
+        this("databases");
+    }
+
+    public DBServer(String storageFolder) {
+        storageFolderPath = Paths.get(storageFolder).toAbsolutePath().toString();
         try {
             // Create the database storage folder if it doesn't already exist !
             Files.createDirectories(Paths.get(storageFolderPath));
         } catch(IOException ioe) {
             System.out.println("Can't seem to create database storage folder " + storageFolderPath);
         }
-        manageCommand = new ManageCommand();
+        context = new ServerContext(new File(storageFolderPath));
+        manageCommand = new ManageCommand(context);
+    }
+
+    // the databases this server has open, as its sessions see them
+    ServerContext getContext() {
+        return context;
+    }
+
+    // streams every committed write to the followers that connect on the port, 0 picks a free one.
+    // Returns the port listened on.
+    public int startLeader(int port) throws IOException {
+        ReplicationLeader leader = new ReplicationLeader(context.getRoot(), port);
+        context.setLeader(leader);
+        return leader.getPort();
+    }
+
+    // from now on this server only applies the leader's writes, clients can still read
+    public ReplicationFollower startFollower(String host, int port) {
+        ReplicationFollower follower = new ReplicationFollower(context, host, port);
+        context.setFollower(follower);
+        follower.start();
+        return follower;
+    }
+
+    public void stopReplication() throws IOException {
+        ReplicationLeader leader = context.getLeader();
+        ReplicationFollower follower = context.getFollower();
+        context.setLeader(null);
+        context.setFollower(null);
+        if (leader != null) {
+            leader.close();
+        }
+        if (follower != null) {
+            follower.close();
+        }
     }
 
     /**
@@ -51,32 +108,132 @@ public class DBServer {
     public void blockingListenOn(int portNumber) throws IOException {
         try (ServerSocket s = new ServerSocket(portNumber)) {
             System.out.println("Server listening on port " + portNumber);
-            while (!Thread.interrupted()) {
-                try {
-                    blockingHandleConnection(s);
-                } catch (IOException e) {
-                    System.err.println("Server encountered a non-fatal IO error:");
-                    e.printStackTrace();
-                    System.err.println("Continuing...");
+            acceptConnections(s);
+        }
+    }
+
+    // listens on a daemon thread instead, 0 picks a free port. Returns the port listened on.
+    public int listenInBackground(int portNumber) throws IOException {
+        ServerSocket s = new ServerSocket(portNumber);
+        listeningSocket = s;
+        Thread acceptor = new Thread(() -> {
+            try (s) {
+                acceptConnections(s);
+            } catch (IOException e) {
+                // closed by stopListening
+            }
+        }, "server-" + s.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return s.getLocalPort();
+    }
+
+    public void stopListening() throws IOException {
+        if (listeningSocket != null) {
+            listeningSocket.close();
+        }
+    }
+
+    // every connection is served on a thread of its own, with a session of its own
+    private void acceptConnections(ServerSocket serverSocket) {
+        while (!Thread.interrupted() && !serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                Thread handler = new Thread(() -> blockingHandleConnection(s), "connection-" + s.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
                 }
+                System.err.println("Server encountered a non-fatal IO error:");
+                e.printStackTrace();
+                System.err.println("Continuing...");
             }
         }
     }
 
-    private void blockingHandleConnection(ServerSocket serverSocket) throws IOException {
-        try (Socket s = serverSocket.accept();
+    private void blockingHandleConnection(Socket socket) {
+        ManageCommand session = new ManageCommand(context);
+        try (Socket s = socket;
         BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
 
-            System.out.println("Connection established: " + serverSocket.getInetAddress());
+            System.out.println("Connection established: " + s.getRemoteSocketAddress());
+            // a line the client sent while a feed was streaming that didn't end it
+            CompletableFuture<String> pendingLine = null;
             while (!Thread.interrupted()) {
-                String incomingCommand = reader.readLine();
+                String incomingCommand = pendingLine != null ? pendingLine.join() : reader.readLine();
+                pendingLine = null;
+                if (incomingCommand == null) {
+                    return;
+                }
                 System.out.println("Received message: " + incomingCommand);
-                String result = handleCommand(incomingCommand);
+                String result;
+                try {
+                    result = session.executeCommand(incomingCommand).trim();
+                } catch (RuntimeException e) {
+                    // the client gets an answer and the connection stays up
+                    System.err.println("Command failed: " + incomingCommand + " " + e);
+                    result = "[ERROR] Command failed: " + e.getMessage();
+                }
                 writer.write(result);
                 writer.write("\n" + END_OF_TRANSMISSION + "\n");
-                writer.flush();
+                ChangeLog.Subscription subscription = session.takeSubscription();
+                if (subscription != null) {
+                    writer.flush();
+                    pendingLine = streamChanges(subscription, reader, writer);
+                }
+                // answers to pipelined commands go out together
+                if (pendingLine == null && !reader.ready()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    // after a SUBSCRIBE the connection carries one change per line until the client sends any line,
+    // answered with "[OK] Unsubscribed..." and the end of transmission. Dropping the table ends the feed
+    // the same way unasked, and the line the client sends next is then taken as its next command, which
+    // is what the returned future holds. A client that stops reading only holds up this connection: the
+    // table's writers append to the log on disk, which the feed catches up from once it reads again.
+    private CompletableFuture<String> streamChanges(ChangeLog.Subscription subscription, BufferedReader reader, BufferedWriter writer) throws IOException {
+        CompletableFuture<String> clientLine = CompletableFuture.supplyAsync(() -> {
+            try {
+                return reader.readLine();
+            } catch (IOException e) {
+                return null;
+            }
+        }, runnable -> {
+            Thread watcher = new Thread(runnable, "subscription-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        });
+        try (subscription) {
+            while (!clientLine.isDone()) {
+                String change = subscription.next(0);
+                if (change == null) {
+                    writer.flush();
+                    change = subscription.next(SUBSCRIPTION_POLL_MILLIS);
+                }
+                if (change != null) {
+                    writer.write(change);
+                    writer.write("\n");
+                }
             }
+            writer.write("[OK] Unsubscribed, resume FROM " + subscription.getNextOffset() + "\n" + END_OF_TRANSMISSION + "\n");
+            return null;
+        } catch (EOFException e) {
+            writer.write("[OK] Table dropped, feed ended at offset " + (subscription.getNextOffset() - 1) + "\n" + END_OF_TRANSMISSION + "\n");
+            writer.flush();
+            return clientLine;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return clientLine;
         }
     }
-}
\ No newline at end of file
+}
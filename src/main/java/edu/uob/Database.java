@@ -3,18 +3,45 @@ package edu.uob;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// tables of a database folder. Opening a database only reads its catalog and lists the folder, the
+// tables load in parallel on a shared pool and a query waits just for the tables it names. With
+// -Dcwdb.load.timing=true the load and first-query times are printed.
 public class Database {
+    // one line per table: name and row count when last written, tab separated
+    static final String CATALOG_FILE = ".catalog";
+    private static final ExecutorService LOADER = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "table-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     private final String databaseName;
     private final String databasePath;
-    private final Map<String, Table> tables;
+    private final Map<String, CompletableFuture<Table>> tables;
+    private final long openedAt;
+    private final AtomicBoolean firstQueryReported;
+    // materialized views by name, each kept in a table of the same name
+    private final Map<String, MaterializedView> views;
 
     public Database(String name) {
+        this(new File("databases"), name);
+    }
+
+    public Database(File root, String name) {
         this.databaseName = name.toLowerCase();
-        this.databasePath = Paths.get("databases", this.databaseName).toString();
-        this.tables = new HashMap<>();
+        this.databasePath = new File(root, this.databaseName).getPath();
+        this.tables = new ConcurrentHashMap<>();
+        this.openedAt = System.nanoTime();
+        this.firstQueryReported = new AtomicBoolean();
+        this.views = new ConcurrentHashMap<>();
         ensureDatabaseDirectory();
         loadTables();
+        loadViews();
     }
 
     // New getter for the database name.
@@ -28,37 +55,217 @@ public class Database {
             System.err.println("Error creating database directory: " + e.getMessage());
         }
     }
+
+    // the folder listing decides which tables exist, the catalog only orders the loads - largest first,
+    // so the longest load starts straight away. Tables the catalog doesn't know are sized by their file.
     private void loadTables() {
         File folder = new File(databasePath);
-        File[] files = folder.listFiles((dir, name) -> name.endsWith(".tab"));
-        if (files != null) {
-            for (File file : files) {
-                String tableName = file.getName().replace(".tab", "");
-                tables.put(tableName.toLowerCase(), new Table(tableName, file));
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".tab") || name.endsWith(PartitionedTable.DEFINITION_SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Map<String, Long> catalogRows = readCatalog();
+        Map<File, Long> weights = new HashMap<>();
+        for (File file : files) {
+            Long rows = catalogRows.get(tableName(file).toLowerCase());
+            weights.put(file, rows != null ? rows : file.length() / 32);
+        }
+        Arrays.sort(files, Comparator.comparing((File file) -> weights.get(file)).reversed());
+        AtomicInteger remaining = new AtomicInteger(files.length);
+        for (File file : files) {
+            String tableName = tableName(file);
+            boolean partitioned = file.getName().endsWith(PartitionedTable.DEFINITION_SUFFIX);
+            CompletableFuture<Table> table = CompletableFuture.supplyAsync(
+                    () -> partitioned ? new PartitionedTable(tableName, file) : new Table(tableName, file), LOADER);
+            tables.put(tableName.toLowerCase(), table);
+            table.whenComplete((loaded, error) -> {
+                if (error != null) {
+                    System.err.println("Error loading table " + tableName + ": " + error.getMessage());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    reportTiming(files.length + " table(s) loaded");
+                    saveCatalog();
+                }
+            });
+        }
+    }
+
+    // views catch up with their base tables when first read
+    private void loadViews() {
+        File[] files = new File(databasePath).listFiles((dir, name) -> name.endsWith(MaterializedView.DEFINITION_SUFFIX));
+        for (File file : files != null ? files : new File[0]) {
+            try {
+                MaterializedView view = MaterializedView.load(this, file);
+                views.put(view.getName(), view);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error loading view " + file + ": " + e.getMessage());
             }
         }
     }
 
+    File getFolder() {
+        return new File(databasePath);
+    }
+
+    private static String tableName(File file) {
+        return file.getName().replaceAll("\\.tab$|\\.partition$", "");
+    }
+
+    private Map<String, Long> readCatalog() {
+        Map<String, Long> rowCounts = new HashMap<>();
+        File catalog = new File(databasePath, CATALOG_FILE);
+        if (!catalog.exists()) {
+            return rowCounts;
+        }
+        try {
+            for (String line : Files.readAllLines(catalog.toPath())) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 2) {
+                    rowCounts.put(fields[0], Long.parseLong(fields[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Ignoring unreadable catalog " + catalog + ": " + e.getMessage());
+        }
+        return rowCounts;
+    }
+
+    // rewritten when tables are created, dropped or altered and once every table has loaded.
+    // Tables still loading keep their previous entry.
+    public synchronized void saveCatalog() {
+        Map<String, String> previous = new HashMap<>();
+        File catalog = new File(databasePath, CATALOG_FILE);
+        try {
+            if (catalog.exists()) {
+                for (String line : Files.readAllLines(catalog.toPath())) {
+                    previous.put(line.split("\t", 2)[0], line);
+                }
+            }
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, CompletableFuture<Table>> entry : new TreeMap<>(tables).entrySet()) {
+                Table table = entry.getValue().getNow(null);
+                if (table != null) {
+                    lines.add(entry.getKey() + "\t" + table.rowCount());
+                } else if (previous.containsKey(entry.getKey())) {
+                    lines.add(previous.get(entry.getKey()));
+                }
+            }
+            Path temp = Paths.get(databasePath, CATALOG_FILE + ".tmp");
+            Files.write(temp, lines);
+            Files.move(temp, catalog.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing catalog " + catalog + ": " + e.getMessage());
+        }
+    }
+
     public boolean createTable(String tableName, List<String> columns) {
+        return createTable(tableName, columns, null, 0);
+    }
+
+    // with a partition key the rows are spread over partitionCount partitions by its hash
+    public synchronized boolean createTable(String tableName, List<String> columns, String partitionKey, int partitionCount) {
         tableName = tableName.toLowerCase();
         if (tables.containsKey(tableName)) {
             return false;
         }
-        Table newTable = new Table(tableName, columns, new File(databasePath, tableName + ".tab"));
-        tables.put(tableName, newTable);
+        Table newTable = partitionKey == null
+                ? new Table(tableName, columns, new File(databasePath, tableName + ".tab"))
+                : new PartitionedTable(tableName, columns, new File(databasePath, tableName + PartitionedTable.DEFINITION_SUFFIX),
+                        partitionKey, partitionCount);
+        tables.put(tableName, CompletableFuture.completedFuture(newTable));
+        saveCatalog();
         return true;
     }
 
+    // waits for the table to finish loading, null if there is no such table or it failed to load. A
+    // view is brought up to date first.
     public Table getTable(String tableName) {
-        return tables.get(tableName.toLowerCase());
+        Table table = loadedTable(tableName);
+        MaterializedView view = views.get(tableName.toLowerCase());
+        if (table != null && view != null) {
+            view.refresh();
+        }
+        return table;
     }
 
-    public boolean dropTable(String tableName) {
+    // the table as it is, views included
+    Table loadedTable(String tableName) {
+        CompletableFuture<Table> table = tables.get(tableName.toLowerCase());
+        if (table == null) {
+            return null;
+        }
+        try {
+            Table loaded = table.join();
+            if (firstQueryReported.compareAndSet(false, true)) {
+                reportTiming("first table ready for queries");
+            }
+            return loaded;
+        } catch (CompletionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    public synchronized boolean dropTable(String tableName) {
         tableName = tableName.toLowerCase();
-        Table table = tables.remove(tableName);
+        Table table = loadedTable(tableName);
+        tables.remove(tableName);
         if (table != null) {
-            return table.deleteTableFile();
+            boolean deleted = table.deleteTableFile();
+            saveCatalog();
+            return deleted;
         }
         return false;
     }
-}
\ No newline at end of file
+
+    // CREATE MATERIALIZED VIEW, IllegalArgumentException saying why the query can't be a view
+    public synchronized void createView(String viewName, String query) {
+        MaterializedView view = MaterializedView.create(this, viewName.toLowerCase(), query);
+        views.put(view.getName(), view);
+    }
+
+    public synchronized boolean dropView(String viewName) {
+        MaterializedView view = views.remove(viewName.toLowerCase());
+        if (view == null) {
+            return false;
+        }
+        view.drop();
+        return dropTable(viewName);
+    }
+
+    // names of the tables, views included, in name order
+    public List<String> tableNames() {
+        return new ArrayList<>(new TreeSet<>(tables.keySet()));
+    }
+
+    MaterializedView getView(String viewName) {
+        return views.get(viewName.toLowerCase());
+    }
+
+    public boolean isView(String tableName) {
+        return views.containsKey(tableName.toLowerCase());
+    }
+
+    // names of the views reading from the table
+    public List<String> viewsOn(String tableName) {
+        List<String> names = new ArrayList<>();
+        for (MaterializedView view : views.values()) {
+            if (view.dependsOn(tableName)) {
+                names.add(view.getName());
+            }
+        }
+        return names;
+    }
+
+    // after a write, so the views are current before anyone reads them
+    public void refreshViews() {
+        for (MaterializedView view : views.values()) {
+            view.refresh();
+        }
+    }
+
+    private void reportTiming(String event) {
+        if (Boolean.getBoolean("cwdb.load.timing")) {
+            System.out.printf("Database %s: %s after %d ms%n", databaseName, event, (System.nanoTime() - openedAt) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package edu.uob;
+
+import java.io.File;
+import java.util.*;
+
+// the engine for code running in the same JVM. Statements go through the same parser and planner as the
+// server's, but a SELECT answers with a cursor over the cells the table hands out rather than tab
+// separated text, and rows are inserted straight from Java values with no quoting. Errors the server
+// would answer with come back as exceptions carrying the same message.
+public class EmbeddedDatabase {
+    private final ServerContext context;
+    private final ManageCommand session;
+    // session the direct inserts are logged under when the context leads replication
+    private final String sessionId;
+    private Database database;
+    private String loggedDatabase;
+
+    public EmbeddedDatabase(String storageFolder) {
+        this(new ServerContext(new File(storageFolder)));
+        if (!context.getRoot().isDirectory() && !context.getRoot().mkdirs()) {
+            System.err.println("Can't seem to create database storage folder " + storageFolder);
+        }
+    }
+
+    public EmbeddedDatabase(ServerContext context) {
+        this.context = context;
+        this.session = new ManageCommand(context);
+        this.sessionId = context.nextSessionId();
+    }
+
+    // any statement, answered with the server's message. Throws with the message on [ERROR].
+    public String execute(String statement) {
+        statement = statement.trim();
+        String result = session.executeCommand(statement.endsWith(";") ? statement : statement + ";");
+        if (result.startsWith("[ERROR]")) {
+            throw new IllegalStateException(result);
+        }
+        List<String> tokens = QueryParser.tokenize(statement.replaceAll(";$", ""));
+        if (tokens.get(0).equalsIgnoreCase("USE")) {
+            database = context.openDatabase(tokens.get(1).toLowerCase());
+        } else if (tokens.size() > 2 && tokens.get(0).equalsIgnoreCase("DROP") && tokens.get(1).equalsIgnoreCase("DATABASE")
+                && database != null && database.getDatabaseName().equalsIgnoreCase(tokens.get(2))) {
+            database = null;
+        }
+        return result;
+    }
+
+    public void use(String databaseName) {
+        execute("USE " + databaseName + ";");
+    }
+
+    // a SELECT reads the table's cells directly. Other statements answering with rows (JOIN, SHOW,
+    // ANALYZE, EXECUTE of a SELECT) run as text and their answer is split into the cursor.
+    public Cursor query(String statement) {
+        String query = statement.trim().replaceAll(";$", "").trim();
+        List<String> tokens = QueryParser.tokenize(query);
+        if (tokens.isEmpty() || !tokens.get(0).equalsIgnoreCase("SELECT")) {
+            return Cursor.fromAnswer(execute(query));
+        }
+        int fromIndex = -1;
+        for (int i = 1; i < tokens.size() && fromIndex == -1; i++) {
+            fromIndex = tokens.get(i).equalsIgnoreCase("FROM") ? i : -1;
+        }
+        if (fromIndex < 2 || tokens.size() <= fromIndex + 1) {
+            throw new IllegalArgumentException("[ERROR] Invalid SELECT syntax");
+        }
+        Table table = table(tokens.get(fromIndex + 1));
+        List<String> selectedColumns = new ArrayList<>();
+        if (fromIndex == 2 && tokens.get(1).equals("*")) {
+            selectedColumns.addAll(table.getColumns());
+        } else {
+            for (String column : String.join(" ", tokens.subList(1, fromIndex)).split(",")) {
+                selectedColumns.add(column.trim());
+            }
+        }
+        Condition condition = null;
+        if (tokens.size() > fromIndex + 2) {
+            if (!tokens.get(fromIndex + 2).equalsIgnoreCase("WHERE")) {
+                throw new IllegalArgumentException("[ERROR] Invalid SELECT syntax");
+            }
+            condition = Condition.parse(String.join(" ", tokens.subList(fromIndex + 3, tokens.size())));
+            if (condition == null) {
+                throw new IllegalArgumentException("[ERROR] Invalid WHERE condition syntax");
+            }
+        }
+        List<String[]> rows = table.selectCells(selectedColumns, condition);
+        if (rows == null) {
+            throw new IllegalArgumentException("[ERROR] Column not found");
+        }
+        return new Cursor(selectedColumns, rows);
+    }
+
+    // values are stored as their toString(), null as NULL
+    public void insert(String tableName, Object... values) {
+        insertAll(tableName, List.of(Arrays.asList(values)));
+    }
+
+    // the rows are written to the table file once, all or none of them. Like the text protocol's values,
+    // cells can't hold tabs, line breaks or single quotes.
+    public void insertAll(String tableName, List<? extends List<?>> rows) {
+        if (context.isReadOnly()) {
+            throw new IllegalStateException("[ERROR] Read-only replica, send writes to the leader");
+        }
+        Table table = table(tableName);
+        if (database.isView(tableName)) {
+            throw new IllegalArgumentException("[ERROR] " + tableName + " is a materialized view, write to its base tables");
+        }
+        List<List<String>> values = new ArrayList<>(rows.size());
+        for (List<?> row : rows) {
+            List<String> cells = new ArrayList<>(row.size());
+            for (Object value : row) {
+                String cell = value == null ? "NULL" : value instanceof Boolean ? value.toString().toUpperCase() : value.toString();
+                if (cell.indexOf('\t') != -1 || cell.indexOf('\n') != -1 || cell.indexOf('\r') != -1) {
+                    throw new IllegalArgumentException("[ERROR] Values can't hold tabs or line breaks: " + cell);
+                }
+                // the text protocol has no escape for a quote, an INSERT logged for followers couldn't hold it
+                if (cell.indexOf('\'') != -1) {
+                    throw new IllegalArgumentException("[ERROR] Values can't hold single quotes: " + cell);
+                }
+                cells.add(cell);
+            }
+            values.add(cells);
+        }
+        ReplicationLeader leader = context.getLeader();
+        if (leader == null) {
+            insertRows(table, tableName, values);
+            return;
+        }
+        leader.inCommitOrder(() -> {
+            insertRows(table, tableName, values);
+            logInserts(leader, tableName, values);
+            return null;
+        });
+    }
+
+    // views over the table see the rows like after an INSERT statement
+    private void insertRows(Table table, String tableName, List<List<String>> values) {
+        if (!table.insertRows(values)) {
+            throw new IllegalStateException("[ERROR] Failed to insert records into " + tableName);
+        }
+        database.refreshViews();
+    }
+
+    // followers replay text, so the direct inserts are logged as the INSERTs they stand for
+    private void logInserts(ReplicationLeader leader, String tableName, List<List<String>> rows) {
+        if (!database.getDatabaseName().equals(loggedDatabase)) {
+            leader.append(sessionId, "USE " + database.getDatabaseName() + ";");
+            loggedDatabase = database.getDatabaseName();
+        }
+        for (List<String> row : rows) {
+            StringJoiner literals = new StringJoiner(", ", "INSERT INTO " + tableName.toLowerCase() + " VALUES (", ");");
+            for (String cell : row) {
+                boolean plain = cell.equals("NULL") || cell.equals("TRUE") || cell.equals("FALSE") || !Double.isNaN(ColumnVectors.parseNumber(cell));
+                literals.add(plain ? cell : "'" + cell + "'");
+            }
+            leader.append(sessionId, literals.toString());
+        }
+    }
+
+    private Table table(String tableName) {
+        if (database == null) {
+            throw new IllegalStateException("[ERROR] No database selected");
+        }
+        Table table = database.getTable(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("[ERROR] Table not found");
+        }
+        return table;
+    }
+
+    // rows of an answer, read one at a time with next(). Columns are addressed by position from 0 or by name.
+    public static class Cursor {
+        private final List<String> columns;
+        private final List<String[]> rows;
+        private int position;
+
+        Cursor(List<String> columns, List<String[]> rows) {
+            this.columns = List.copyOf(columns);
+            this.rows = rows;
+            this.position = -1;
+        }
+
+        static Cursor fromAnswer(String answer) {
+            String[] lines = answer.split("\n");
+            if (lines.length < 2) {
+                return new Cursor(List.of(), List.of());
+            }
+            List<String[]> rows = new ArrayList<>(lines.length - 2);
+            for (int i = 2; i < lines.length; i++) {
+                rows.add(lines[i].split("\t", -1));
+            }
+            return new Cursor(List.of(lines[1].split("\t")), rows);
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        // moves to the next row, false once past the last
+        public boolean next() {
+            if (position < rows.size()) {
+                position++;
+            }
+            return position < rows.size();
+        }
+
+        public String getString(int column) {
+            if (position < 0 || position >= rows.size()) {
+                throw new NoSuchElementException("No current row, call next() first");
+            }
+            return rows.get(position)[column];
+        }
+
+        public String getString(String column) {
+            return getString(indexOf(column));
+        }
+
+        public boolean isNull(int column) {
+            return getString(column).equals("NULL");
+        }
+
+        public boolean isNull(String column) {
+            return isNull(indexOf(column));
+        }
+
+        // a whole number, written either way ("65" or "65.0")
+        public long getLong(int column) {
+            String cell = getString(column);
+            try {
+                return Long.parseLong(cell);
+            } catch (NumberFormatException e) {
+                double number = getDouble(column);
+                if (number != Math.rint(number)) {
+                    throw new NumberFormatException("Not a whole number: " + cell);
+                }
+                return (long) number;
+            }
+        }
+
+        public long getLong(String column) {
+            return getLong(indexOf(column));
+        }
+
+        public int getInt(int column) {
+            return Math.toIntExact(getLong(column));
+        }
+
+        public int getInt(String column) {
+            return getInt(indexOf(column));
+        }
+
+        public double getDouble(int column) {
+            return Double.parseDouble(getString(column));
+        }
+
+        public double getDouble(String column) {
+            return getDouble(indexOf(column));
+        }
+
+        public boolean getBoolean(int column) {
+            String cell = getString(column);
+            if (!cell.equalsIgnoreCase("TRUE") && !cell.equalsIgnoreCase("FALSE")) {
+                throw new IllegalArgumentException("Not a boolean: " + cell);
+            }
+            return cell.equalsIgnoreCase("TRUE");
+        }
+
+        public boolean getBoolean(String column) {
+            return getBoolean(indexOf(column));
+        }
+
+        private int indexOf(String column) {
+            int index = columns.indexOf(column);
+            if (index == -1) {
+                throw new IllegalArgumentException("No column " + column + " in " + columns);
+            }
+            return index;
+        }
+    }
+}
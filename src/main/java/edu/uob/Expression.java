@@ -0,0 +1,281 @@
+package edu.uob;
+
+import java.util.*;
+import java.util.function.Function;
+
+// value of an UPDATE SET assignment, evaluated against the row being updated.
+// BNF: <Expr> ::= <Sum> ("||" <Sum>)* ; <Sum> ::= <Product> (("+" | "-") <Product>)* ;
+//      <Product> ::= <Factor> (("*" | "/" | "%") <Factor>)* ;
+//      <Factor> ::= ("-" | "+") <Factor> | "(" <Expr> ")" | <Literal> | <AttributeName> | "?"
+// Arithmetic on a cell that isn't a number, or a division by zero, gives NULL. So does || with a NULL.
+public class Expression {
+    private static final Set<String> KEYWORDS = Set.of("TRUE", "FALSE", "NULL");
+
+    // "+", "-", "*", "/", "%", "||" or "NEG", null for the leaves below
+    private final String operator;
+    private final Expression left;
+    private final Expression right;
+    // literal text without its quotes, a column name or the parameter marker
+    private final String literal;
+    private final String column;
+    private final boolean parameter;
+
+    private Expression(String operator, Expression left, Expression right) {
+        this.operator = operator;
+        this.left = left;
+        this.right = right;
+        this.literal = null;
+        this.column = null;
+        this.parameter = false;
+    }
+
+    private Expression(String literal, String column, boolean parameter) {
+        this.operator = null;
+        this.left = null;
+        this.right = null;
+        this.literal = literal;
+        this.column = column;
+        this.parameter = parameter;
+    }
+
+    public static Expression literal(String value) {
+        return new Expression(value, null, false);
+    }
+
+    // null when the text is not a valid expression
+    public static Expression parse(String text) {
+        List<String> tokens = tokenize(text);
+        if (tokens == null || tokens.isEmpty()) {
+            return null;
+        }
+        int[] next = new int[1];
+        Expression expression = parseConcat(tokens, next);
+        return expression != null && next[0] == tokens.size() ? expression : null;
+    }
+
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    public List<String> getColumns() {
+        List<String> columns = new ArrayList<>();
+        collectColumns(columns);
+        return columns;
+    }
+
+    private void collectColumns(List<String> columns) {
+        if (column != null) {
+            columns.add(column);
+        } else if (operator != null) {
+            left.collectColumns(columns);
+            if (right != null) {
+                right.collectColumns(columns);
+            }
+        }
+    }
+
+    public int countParameters() {
+        if (operator == null) {
+            return parameter ? 1 : 0;
+        }
+        return left.countParameters() + (right == null ? 0 : right.countParameters());
+    }
+
+    // a copy with each ? replaced by the next parameter, a literal as written in the query
+    public Expression bind(Iterator<String> parameters) {
+        if (operator == null) {
+            return parameter ? literal(Table.unquote(parameters.next())) : this;
+        }
+        Expression boundLeft = left.bind(parameters);
+        return new Expression(operator, boundLeft, right == null ? null : right.bind(parameters));
+    }
+
+    // the value for a row, columns read through valueOf
+    public String evaluate(Function<String, String> valueOf) {
+        if (literal != null) {
+            return literal;
+        }
+        if (column != null) {
+            return valueOf.apply(column);
+        }
+        String a = left.evaluate(valueOf);
+        if (operator.equals("NEG")) {
+            return arithmetic("-", "0", a);
+        }
+        String b = right.evaluate(valueOf);
+        return operator.equals("||") ? concatenate(a, b) : arithmetic(operator, a, b);
+    }
+
+    private static String concatenate(String a, String b) {
+        return a.equalsIgnoreCase("NULL") || b.equalsIgnoreCase("NULL") ? "NULL" : a + b;
+    }
+
+    // whole numbers stay whole while they fit a long, anything else is computed as a double
+    private static String arithmetic(String operator, String a, String b) {
+        if (isWholeNumber(a) && isWholeNumber(b)) {
+            try {
+                long x = Long.parseLong(a);
+                long y = Long.parseLong(b);
+                switch (operator) {
+                    case "+":
+                        return String.valueOf(Math.addExact(x, y));
+                    case "-":
+                        return String.valueOf(Math.subtractExact(x, y));
+                    case "*":
+                        return String.valueOf(Math.multiplyExact(x, y));
+                    case "/":
+                        return y == 0 ? "NULL" : String.valueOf(x / y);
+                    default:
+                        return y == 0 ? "NULL" : String.valueOf(x % y);
+                }
+            } catch (ArithmeticException | NumberFormatException e) {
+                // overflowed, fall back to doubles
+            }
+        }
+        double x = ColumnVectors.parseNumber(a);
+        double y = ColumnVectors.parseNumber(b);
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            return "NULL";
+        }
+        double result;
+        switch (operator) {
+            case "+":
+                result = x + y;
+                break;
+            case "-":
+                result = x - y;
+                break;
+            case "*":
+                result = x * y;
+                break;
+            case "/":
+                if (y == 0) {
+                    return "NULL";
+                }
+                result = x / y;
+                break;
+            default:
+                if (y == 0) {
+                    return "NULL";
+                }
+                result = x % y;
+        }
+        String text = String.valueOf(result);
+        return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+    }
+
+    private static boolean isWholeNumber(String value) {
+        int start = value.startsWith("-") || value.startsWith("+") ? 1 : 0;
+        if (start == value.length()) {
+            return false;
+        }
+        for (int i = start; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Expression parseConcat(List<String> tokens, int[] next) {
+        Expression expression = parseSum(tokens, next);
+        while (expression != null && next[0] < tokens.size() && tokens.get(next[0]).equals("||")) {
+            next[0]++;
+            Expression right = parseSum(tokens, next);
+            expression = right == null ? null : new Expression("||", expression, right);
+        }
+        return expression;
+    }
+
+    private static Expression parseSum(List<String> tokens, int[] next) {
+        Expression expression = parseProduct(tokens, next);
+        while (expression != null && next[0] < tokens.size() && (tokens.get(next[0]).equals("+") || tokens.get(next[0]).equals("-"))) {
+            String operator = tokens.get(next[0]++);
+            Expression right = parseProduct(tokens, next);
+            expression = right == null ? null : new Expression(operator, expression, right);
+        }
+        return expression;
+    }
+
+    private static Expression parseProduct(List<String> tokens, int[] next) {
+        Expression expression = parseFactor(tokens, next);
+        while (expression != null && next[0] < tokens.size() && "*/%".contains(tokens.get(next[0]))) {
+            String operator = tokens.get(next[0]++);
+            Expression right = parseFactor(tokens, next);
+            expression = right == null ? null : new Expression(operator, expression, right);
+        }
+        return expression;
+    }
+
+    private static Expression parseFactor(List<String> tokens, int[] next) {
+        if (next[0] >= tokens.size()) {
+            return null;
+        }
+        String token = tokens.get(next[0]++);
+        if (token.equals("-") || token.equals("+")) {
+            // a signed number stays a literal as written, anything else is negated when evaluated
+            if (next[0] < tokens.size() && tokens.get(next[0]).matches("[0-9]+(\\.[0-9]+)?")) {
+                return literal(token + tokens.get(next[0]++));
+            }
+            Expression operand = parseFactor(tokens, next);
+            return operand == null || token.equals("+") ? operand : new Expression("NEG", operand, null);
+        }
+        if (token.equals("(")) {
+            Expression expression = parseConcat(tokens, next);
+            if (expression == null || next[0] >= tokens.size() || !tokens.get(next[0]).equals(")")) {
+                return null;
+            }
+            next[0]++;
+            return expression;
+        }
+        if (token.equals(PreparedStatement.PARAMETER)) {
+            return new Expression(null, null, true);
+        }
+        if (token.startsWith("'")) {
+            return literal(token.substring(1, token.length() - 1));
+        }
+        if (token.matches("[0-9]+(\\.[0-9]+)?") || KEYWORDS.contains(token.toUpperCase())) {
+            return literal(token);
+        }
+        if (token.matches("[a-zA-Z0-9_]+")) {
+            return new Expression(null, token, false);
+        }
+        return null;
+    }
+
+    // splits into quoted literals, operators, parentheses and words; null on an unterminated literal
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                int end = text.indexOf('\'', i + 1);
+                if (end == -1) {
+                    return null;
+                }
+                tokens.add(text.substring(i, end + 1));
+                i = end + 1;
+            } else if (text.startsWith("||", i)) {
+                tokens.add("||");
+                i += 2;
+            } else if ("+-*/%()?".indexOf(c) != -1) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end)) && "'+-*/%()?|".indexOf(text.charAt(end)) == -1) {
+                    end++;
+                }
+                if (end == i) {
+                    return null;
+                }
+                tokens.add(text.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,107 @@
+package edu.uob;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+// sorts longs within a MemoryBudget: values are buffered while the budget allows, each full buffer is
+// sorted and written out as a run, and the runs are merged back when the values are read.
+public class ExternalSorter implements Closeable {
+    private static final int MIN_BUFFER = 1024;
+
+    private final MemoryBudget budget;
+    private final List<File> runs;
+    private long[] buffer;
+    private int count;
+    private long reservedBytes;
+
+    public ExternalSorter(MemoryBudget budget) {
+        this.budget = budget;
+        this.runs = new ArrayList<>();
+        // the first buffer is always granted, sorting has to make progress
+        this.buffer = new long[MIN_BUFFER];
+    }
+
+    public void add(long value) throws IOException {
+        if (count == buffer.length) {
+            if (budget.tryReserve(8L * buffer.length)) {
+                reservedBytes += 8L * buffer.length;
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else {
+                spill();
+            }
+        }
+        buffer[count++] = value;
+    }
+
+    // visits every value added so far in ascending order
+    public void forEachSorted(LongConsumer action) throws IOException {
+        Arrays.sort(buffer, 0, count);
+        if (runs.isEmpty()) {
+            for (int i = 0; i < count; i++) {
+                action.accept(buffer[i]);
+            }
+            return;
+        }
+        List<DataInputStream> inputs = new ArrayList<>();
+        try {
+            // heap entries are {value, source}, source -1 being the in-memory buffer
+            PriorityQueue<long[]> heads = new PriorityQueue<>(Comparator.comparingLong(head -> head[0]));
+            for (int i = 0; i < runs.size(); i++) {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i))));
+                inputs.add(input);
+                heads.add(new long[]{input.readLong(), i});
+            }
+            int next = 0;
+            if (next < count) {
+                heads.add(new long[]{buffer[next++], -1});
+            }
+            while (!heads.isEmpty()) {
+                long[] head = heads.poll();
+                action.accept(head[0]);
+                int source = (int) head[1];
+                if (source == -1) {
+                    if (next < count) {
+                        heads.add(new long[]{buffer[next++], -1});
+                    }
+                } else {
+                    try {
+                        heads.add(new long[]{inputs.get(source).readLong(), source});
+                    } catch (EOFException e) {
+                        // run exhausted
+                    }
+                }
+            }
+        } finally {
+            for (DataInputStream input : inputs) {
+                input.close();
+            }
+        }
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(buffer, 0, count);
+        File run = budget.spillFile("sort");
+        runs.add(run);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (int i = 0; i < count; i++) {
+                output.writeLong(buffer[i]);
+            }
+        }
+        count = 0;
+    }
+
+    @Override
+    public void close() {
+        budget.release(reservedBytes);
+        reservedBytes = 0;
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+}
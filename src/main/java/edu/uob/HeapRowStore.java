@@ -0,0 +1,51 @@
+package edu.uob;
+
+import java.util.*;
+
+// every row kept on the heap, pinning is free
+public class HeapRowStore implements RowStore {
+    private final List<Row> rows;
+
+    public HeapRowStore() {
+        this.rows = new ArrayList<>();
+    }
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public Row get(int position) {
+        return rows.get(position);
+    }
+
+    @Override
+    public Row pin(int position) {
+        return rows.get(position);
+    }
+
+    @Override
+    public void unpin(int position, Row row, boolean dirty) {
+        // the row is the stored one, changes are already in place
+    }
+
+    @Override
+    public void add(Row row) {
+        rows.add(row);
+    }
+
+    @Override
+    public RowStore without(BitSet positions) {
+        HeapRowStore remaining = new HeapRowStore();
+        for (int position = positions.nextClearBit(0); position < rows.size(); position = positions.nextClearBit(position + 1)) {
+            remaining.rows.add(rows.get(position));
+        }
+        return remaining;
+    }
+
+    @Override
+    public void close() {
+        rows.clear();
+    }
+}
@@ -0,0 +1,78 @@
+package edu.uob;
+
+import java.util.Arrays;
+
+// equi-depth histogram over the numeric cells of a column, built by ANALYZE
+public class Histogram {
+    private static final int BUCKETS = 32;
+
+    // bounds[0] is the minimum, bounds[i] the upper bound of bucket i - 1
+    private final double[] bounds;
+    private final double numericFraction;
+
+    public Histogram(double[] numericValues, int totalValues) {
+        double[] sorted = numericValues.clone();
+        Arrays.sort(sorted);
+        int buckets = Math.min(BUCKETS, sorted.length);
+        this.bounds = new double[buckets + 1];
+        for (int i = 0; i <= buckets && sorted.length > 0; i++) {
+            bounds[i] = sorted[Math.min(sorted.length - 1, (int) ((long) i * sorted.length / buckets))];
+        }
+        if (buckets > 0) {
+            bounds[buckets] = sorted[sorted.length - 1];
+        }
+        this.numericFraction = totalValues == 0 ? 0 : (double) sorted.length / totalValues;
+    }
+
+    // estimated fraction of all cells (numeric or not) satisfying "cell comparator value"
+    public double selectivity(String comparator, double value, long distinctValues) {
+        if (bounds.length < 2) {
+            return 0;
+        }
+        double below = fractionBelow(value);
+        double equal = 1.0 / Math.max(1, distinctValues);
+        if (value < bounds[0] || value > bounds[bounds.length - 1]) {
+            equal = 0;
+        }
+        double fraction;
+        switch (comparator) {
+            case "==":
+                fraction = equal;
+                break;
+            case "<":
+                fraction = below;
+                break;
+            case "<=":
+                fraction = below + equal;
+                break;
+            case ">":
+                fraction = 1 - below - equal;
+                break;
+            case ">=":
+                fraction = 1 - below;
+                break;
+            default:
+                return 1;
+        }
+        return numericFraction * Math.max(0, Math.min(1, fraction));
+    }
+
+    // fraction of the numeric cells strictly below value, interpolated inside the bucket
+    private double fractionBelow(double value) {
+        int buckets = bounds.length - 1;
+        if (value <= bounds[0]) {
+            return 0;
+        }
+        if (value > bounds[buckets]) {
+            return 1;
+        }
+        for (int i = 1; i <= buckets; i++) {
+            if (value <= bounds[i]) {
+                double width = bounds[i] - bounds[i - 1];
+                double within = width == 0 ? 0 : (value - bounds[i - 1]) / width;
+                return (i - 1 + within) / buckets;
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,422 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// runs JOIN <t1> AND <t2> ON <a1> AND <a2> with the strategy chosen by the Planner.
+// Every strategy emits matches in (left row, right row) order, like the original nested loop.
+// Both sides are read through a JoinInput, as of the version the join started at and a block at a time
+// under each table's lock. Hash tables are charged to the query's MemoryBudget, a build side that does
+// not fit turns the hash join into a grace hash join over partition files. The answer is built up as
+// lines, each counted against the budget's result limit.
+public class JoinExecutor {
+    // partition files per level of a grace hash join, each level splits on the next 4 bits of the key hash
+    private static final int PARTITIONS = 16;
+    // a partition still too big at this depth is skewed towards a few keys, splitting again would not help
+    private static final int MAX_LEVEL = 4;
+    // rough heap cost of one build side entry besides its key: the boxed position and its list slot
+    private static final long ENTRY_BYTES = 32;
+
+    public static List<String> join(String leftName, Table left, String leftAttribute, String rightName, Table right,
+                                    String rightAttribute, Planner.JoinPlan plan, MemoryBudget budget) throws IOException {
+        List<String> leftCols = left.getColumns();
+        List<String> rightCols = right.getColumns();
+        int leftOrdinal = leftCols.indexOf(leftAttribute);
+        int rightOrdinal = rightCols.indexOf(rightAttribute);
+
+        List<String> joinHeader = new ArrayList<>();
+        joinHeader.add("id");
+        for (int i = 1; i < leftCols.size(); i++) {
+            joinHeader.add(leftName + "." + leftCols.get(i));
+        }
+        for (int i = 1; i < rightCols.size(); i++) {
+            joinHeader.add(rightName + "." + rightCols.get(i));
+        }
+        List<String> joinResults = new ArrayList<>();
+        joinResults.add(String.join("\t", joinHeader));
+
+        try (JoinInput leftRows = new JoinInput(left); JoinInput rightRows = new JoinInput(right)) {
+            Side leftSide = new Side(left, leftRows, leftAttribute, leftOrdinal);
+            Side rightSide = new Side(right, rightRows, rightAttribute, rightOrdinal);
+            JoinOutput output = new JoinOutput(joinResults, leftRows, rightRows, budget);
+            switch (plan.getStrategy()) {
+                case MERGE_JOIN:
+                    mergeJoin(leftSide, rightSide, output);
+                    break;
+                case HASH_JOIN:
+                    if (plan.isBuildLeft()) {
+                        hashJoinBuildLeft(leftSide, rightSide, output, budget);
+                    } else {
+                        hashJoinBuildRight(leftSide, rightSide, output, budget);
+                    }
+                    break;
+                default:
+                    nestedLoopJoin(leftSide, rightSide, output);
+            }
+        }
+        return joinResults;
+    }
+
+    // a join input with the column it is joined on, read a block of keys at a time
+    private static class Side {
+        final Table table;
+        final JoinInput rows;
+        final String attribute;
+        final int ordinal;
+        private String[] block;
+        private int blockStart;
+
+        Side(Table table, JoinInput rows, String attribute, int ordinal) {
+            this.table = table;
+            this.rows = rows;
+            this.attribute = attribute;
+            this.ordinal = ordinal;
+        }
+
+        int size() {
+            return rows.size();
+        }
+
+        // the join key at a position, null when the row isn't part of the join
+        String key(int position) {
+            if (block == null || position < blockStart || position >= blockStart + block.length) {
+                blockStart = position - position % JoinInput.BLOCK;
+                block = rows.keys(attribute, blockStart, Math.min(size(), blockStart + JoinInput.BLOCK));
+            }
+            return block[position - blockStart];
+        }
+
+        // false only when no row of the other side can hold the key
+        boolean mightMatch(Side other, String key) {
+            return other.table.mightContain(other.ordinal, key);
+        }
+    }
+
+    // probe keys rejected by a Bloom filter on the other table's join column skip the lookup entirely
+    private static void nestedLoopJoin(Side left, Side right, JoinOutput output) {
+        for (int i = 0; i < left.size(); i++) {
+            QueryContext.checkpoint(i);
+            String joinValue1 = left.key(i);
+            if (joinValue1 == null || !left.mightMatch(right, joinValue1)) {
+                continue;
+            }
+            for (int j = 0; j < right.size(); j++) {
+                if (joinValue1.equals(right.key(j))) {
+                    output.emit(i, j);
+                }
+            }
+        }
+    }
+
+    private static void hashJoinBuildRight(Side left, Side right, JoinOutput output, MemoryBudget budget) throws IOException {
+        long[] reserved = new long[1];
+        Map<String, List<Integer>> buildSide = buildHashTable(right, budget, reserved);
+        if (buildSide == null) {
+            graceHashJoin(left, right, output, budget);
+            return;
+        }
+        try {
+            for (int i = 0; i < left.size(); i++) {
+                QueryContext.checkpoint(i);
+                String key = left.key(i);
+                List<Integer> matches = key != null && left.mightMatch(right, key) ? buildSide.get(key) : null;
+                if (matches != null) {
+                    for (int j : matches) {
+                        output.emit(i, j);
+                    }
+                }
+            }
+        } finally {
+            budget.release(reserved[0]);
+        }
+    }
+
+    private static void hashJoinBuildLeft(Side left, Side right, JoinOutput output, MemoryBudget budget) throws IOException {
+        long[] reserved = new long[1];
+        Map<String, List<Integer>> buildSide = buildHashTable(left, budget, reserved);
+        if (buildSide == null) {
+            graceHashJoin(left, right, output, budget);
+            return;
+        }
+        // (left position, right position) pairs, sorted back into nested loop order before output
+        try (ExternalSorter pairs = new ExternalSorter(budget)) {
+            for (int j = 0; j < right.size(); j++) {
+                QueryContext.checkpoint(j);
+                String key = right.key(j);
+                List<Integer> matches = key != null && right.mightMatch(left, key) ? buildSide.get(key) : null;
+                if (matches != null) {
+                    for (int i : matches) {
+                        pairs.add(pair(i, j));
+                    }
+                }
+            }
+            emitPairs(pairs, output);
+        } finally {
+            budget.release(reserved[0]);
+        }
+    }
+
+    // both tables read in id order and joined on id, so a single pass over each is enough
+    private static void mergeJoin(Side left, Side right, JoinOutput output) {
+        int i = nextRow(left, 0);
+        int j = nextRow(right, 0);
+        while (i < left.size() && j < right.size()) {
+            QueryContext.checkpoint(i + j);
+            int leftId = Integer.parseInt(left.key(i));
+            int rightId = Integer.parseInt(right.key(j));
+            if (leftId < rightId) {
+                i = nextRow(left, i + 1);
+            } else if (leftId > rightId) {
+                j = nextRow(right, j + 1);
+            } else {
+                output.emit(i, j);
+                i = nextRow(left, i + 1);
+                j = nextRow(right, j + 1);
+            }
+        }
+    }
+
+    // the first position from the given one holding a row of the join
+    private static int nextRow(Side side, int position) {
+        while (position < side.size() && side.key(position) == null) {
+            position++;
+        }
+        return position;
+    }
+
+    // key -> positions, or null with nothing left reserved when the rows do not fit the budget
+    private static Map<String, List<Integer>> buildHashTable(Side side, MemoryBudget budget, long[] reserved) {
+        Map<String, List<Integer>> table = new HashMap<>();
+        try {
+            for (int position = 0; position < side.size(); position++) {
+                QueryContext.checkpoint(position);
+                String key = side.key(position);
+                if (key == null) {
+                    continue;
+                }
+                long cost = MemoryBudget.sizeOf(key) + ENTRY_BYTES;
+                if (!budget.tryReserve(cost)) {
+                    budget.release(reserved[0]);
+                    reserved[0] = 0;
+                    return null;
+                }
+                reserved[0] += cost;
+                table.computeIfAbsent(key, k -> new ArrayList<>(1)).add(position);
+            }
+        } catch (QueryContext.Cancelled e) {
+            // a join stopped while building keeps nothing reserved
+            budget.release(reserved[0]);
+            reserved[0] = 0;
+            throw e;
+        }
+        return table;
+    }
+
+    // both sides are written out as (position, key) records split by key hash, matching partitions are
+    // joined one at a time and the matching pairs sorted back into nested loop order
+    private static void graceHashJoin(Side left, Side right, JoinOutput output, MemoryBudget budget) throws IOException {
+        List<File> spillFiles = new ArrayList<>();
+        try (ExternalSorter pairs = new ExternalSorter(budget)) {
+            File[] leftParts = createPartitions("left", budget, spillFiles);
+            File[] rightParts = createPartitions("right", budget, spillFiles);
+            DataOutputStream[] leftOutputs = openPartitions(leftParts);
+            try {
+                for (int i = 0; i < left.size(); i++) {
+                    QueryContext.checkpoint(i);
+                    String key = left.key(i);
+                    if (key != null && left.mightMatch(right, key)) {
+                        writeRecord(leftOutputs[partitionOf(key, 0)], i, key);
+                    }
+                }
+            } finally {
+                closeAll(leftOutputs);
+            }
+            DataOutputStream[] rightOutputs = openPartitions(rightParts);
+            try {
+                for (int j = 0; j < right.size(); j++) {
+                    QueryContext.checkpoint(j);
+                    String key = right.key(j);
+                    if (key != null) {
+                        writeRecord(rightOutputs[partitionOf(key, 0)], j, key);
+                    }
+                }
+            } finally {
+                closeAll(rightOutputs);
+            }
+            for (int p = 0; p < PARTITIONS; p++) {
+                joinPartition(leftParts[p], rightParts[p], 1, budget, pairs, spillFiles);
+            }
+            emitPairs(pairs, output);
+        } finally {
+            for (File file : spillFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    // builds on the right partition and probes it with the left one, splitting both again if it does not fit
+    private static void joinPartition(File leftPart, File rightPart, int level, MemoryBudget budget, ExternalSorter pairs, List<File> spillFiles) throws IOException {
+        if (leftPart.length() == 0 || rightPart.length() == 0) {
+            return;
+        }
+        Map<String, List<Integer>> buildSide = new HashMap<>();
+        long reserved = 0;
+        try {
+            try (DataInputStream input = openRecords(rightPart)) {
+                for (Map.Entry<Integer, String> record = readRecord(input); record != null; record = readRecord(input)) {
+                    if (level < MAX_LEVEL) {
+                        long cost = MemoryBudget.sizeOf(record.getValue()) + ENTRY_BYTES;
+                        if (!budget.tryReserve(cost)) {
+                            buildSide = null;
+                            break;
+                        }
+                        reserved += cost;
+                    }
+                    buildSide.computeIfAbsent(record.getValue(), k -> new ArrayList<>(1)).add(record.getKey());
+                }
+            }
+            if (buildSide == null) {
+                budget.release(reserved);
+                reserved = 0;
+                File[] leftParts = repartition(leftPart, "left", level, budget, spillFiles);
+                File[] rightParts = repartition(rightPart, "right", level, budget, spillFiles);
+                for (int p = 0; p < PARTITIONS; p++) {
+                    joinPartition(leftParts[p], rightParts[p], level + 1, budget, pairs, spillFiles);
+                }
+                return;
+            }
+            try (DataInputStream input = openRecords(leftPart)) {
+                int probed = 0;
+                for (Map.Entry<Integer, String> record = readRecord(input); record != null; record = readRecord(input)) {
+                    QueryContext.checkpoint(probed++);
+                    List<Integer> matches = buildSide.get(record.getValue());
+                    if (matches != null) {
+                        for (int j : matches) {
+                            pairs.add(pair(record.getKey(), j));
+                        }
+                    }
+                }
+            }
+        } finally {
+            budget.release(reserved);
+        }
+    }
+
+    private static File[] repartition(File part, String side, int level, MemoryBudget budget, List<File> spillFiles) throws IOException {
+        File[] parts = createPartitions(side, budget, spillFiles);
+        DataOutputStream[] outputs = openPartitions(parts);
+        try (DataInputStream input = openRecords(part)) {
+            for (Map.Entry<Integer, String> record = readRecord(input); record != null; record = readRecord(input)) {
+                writeRecord(outputs[partitionOf(record.getValue(), level)], record.getKey(), record.getValue());
+            }
+        } finally {
+            closeAll(outputs);
+        }
+        part.delete();
+        return parts;
+    }
+
+    private static int partitionOf(String key, int level) {
+        return (int) (HyperLogLog.hash64(key) >>> (4 * level)) & (PARTITIONS - 1);
+    }
+
+    private static long pair(int leftPosition, int rightPosition) {
+        return (long) leftPosition << 32 | rightPosition;
+    }
+
+    private static void emitPairs(ExternalSorter pairs, JoinOutput output) throws IOException {
+        pairs.forEachSorted(pair -> output.emit((int) (pair >>> 32), (int) pair));
+    }
+
+    private static File[] createPartitions(String side, MemoryBudget budget, List<File> spillFiles) throws IOException {
+        File[] parts = new File[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++) {
+            parts[p] = budget.spillFile("join-" + side);
+            spillFiles.add(parts[p]);
+        }
+        return parts;
+    }
+
+    private static DataOutputStream[] openPartitions(File[] parts) throws IOException {
+        DataOutputStream[] outputs = new DataOutputStream[parts.length];
+        for (int p = 0; p < parts.length; p++) {
+            outputs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parts[p])));
+        }
+        return outputs;
+    }
+
+    private static void closeAll(DataOutputStream[] outputs) throws IOException {
+        for (DataOutputStream output : outputs) {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    private static DataInputStream openRecords(File part) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(part)));
+    }
+
+    private static void writeRecord(DataOutputStream output, int position, String key) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(position);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    // (position, key), or null at the end of the partition
+    private static Map.Entry<Integer, String> readRecord(DataInputStream input) throws IOException {
+        int position;
+        try {
+            position = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return Map.entry(position, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static class JoinOutput {
+        private final List<String> results;
+        private final JoinInput left;
+        private final JoinInput right;
+        private final MemoryBudget budget;
+        private final StringBuilder line;
+        private int joinId;
+        // a left row matches a run of right rows, it is read once for them
+        private int lastLeft;
+        private String[] leftCells;
+
+        JoinOutput(List<String> results, JoinInput left, JoinInput right, MemoryBudget budget) {
+            this.results = results;
+            this.left = left;
+            this.right = right;
+            this.budget = budget;
+            this.line = new StringBuilder();
+            this.joinId = 1;
+            this.lastLeft = -1;
+        }
+
+        void emit(int leftPosition, int rightPosition) {
+            QueryContext.checkpoint(joinId);
+            if (leftPosition != lastLeft) {
+                leftCells = left.row(leftPosition);
+                lastLeft = leftPosition;
+            }
+            line.setLength(0);
+            line.append(joinId++);
+            // appending non-id values of both tables.
+            for (String cell : leftCells) {
+                line.append('\t').append(cell);
+            }
+            for (String cell : right.row(rightPosition)) {
+                line.append('\t').append(cell);
+            }
+            String joined = line.toString();
+            budget.addResult(joined);
+            results.add(joined);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package edu.uob;
+
+import java.io.Closeable;
+import java.util.*;
+
+// one side of a JOIN: the table's rows as of the version the join started at, read by position under the
+// table's lock, a block of keys at a time. Neither side is copied onto the heap, and writes carry on
+// while the join runs, hidden by the versions its snapshot keeps. A partitioned table is read one
+// partition after the other, the positions of each following on from the last.
+class JoinInput implements Closeable {
+    static final int BLOCK = 4096;
+
+    private final List<Table> parts;
+    private final long[] versions;
+    // first position of each part, then the total
+    private final int[] starts;
+    // the columns after the id, as the table had them when the join started
+    private final List<String> columns;
+
+    JoinInput(Table table) {
+        List<String> all = table.getColumns();
+        this.columns = new ArrayList<>(all.subList(1, all.size()));
+        this.parts = table.joinParts();
+        this.versions = new long[parts.size()];
+        this.starts = new int[parts.size() + 1];
+        for (int i = 0; i < parts.size(); i++) {
+            long[] opened = parts.get(i).openJoin();
+            versions[i] = opened[0];
+            starts[i + 1] = starts[i] + (int) opened[1];
+        }
+    }
+
+    int size() {
+        return starts[parts.size()];
+    }
+
+    // the column's cells at positions from..to, null where a row isn't part of the join
+    String[] keys(String column, int from, int to) {
+        String[] keys = new String[to - from];
+        for (int part = 0; part < parts.size(); part++) {
+            int start = Math.max(from, starts[part]);
+            int end = Math.min(to, starts[part + 1]);
+            if (start < end) {
+                String[] cells = parts.get(part).cellsAsOf(column, versions[part], start - starts[part], end - starts[part]);
+                System.arraycopy(cells, 0, keys, start - from, cells.length);
+            }
+        }
+        return keys;
+    }
+
+    // the cells after the id of the row at a position
+    String[] row(int position) {
+        int part = Arrays.binarySearch(starts, position);
+        // a position starting a part is also the end of any empty part before it
+        part = part >= 0 ? lastStartingAt(part) : -part - 2;
+        String[] cells = parts.get(part).cellsAsOf(columns, versions[part], position - starts[part]);
+        return cells != null ? cells : new String[columns.size()];
+    }
+
+    private int lastStartingAt(int part) {
+        while (part + 1 < parts.size() && starts[part + 1] == starts[part]) {
+            part++;
+        }
+        return part;
+    }
+
+    @Override
+    public void close() {
+        for (int part = 0; part < parts.size(); part++) {
+            parts.get(part).closeSnapshot(versions[part]);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// drives a DBServer through AsyncDBClient with a fixed number of commands in flight and reports the
+// throughput and latencies. Works on a table of its own, in a database created for the run:
+// a mix of point SELECTs by id and INSERTs.
+//   java edu.uob.LoadGenerator [host] [port] [connections] [in flight] [seconds] [write percent]
+public class LoadGenerator {
+    private static final int PRELOADED_ROWS = 1000;
+
+    private final AsyncDBClient client;
+    private final int inFlight;
+    private final int writePercent;
+    private final AtomicLong completed;
+    private final AtomicLong errors;
+    // latency of every command completed, in microseconds
+    private final Queue<Long> latencies;
+    private long elapsedNanos;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int inFlight = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int writePercent = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+        try (AsyncDBClient client = new AsyncDBClient(host, port, connections, 5000, 30000)) {
+            LoadGenerator generator = new LoadGenerator(client, inFlight, writePercent);
+            generator.run(seconds * 1000L);
+            System.out.println(generator.report());
+        }
+    }
+
+    public LoadGenerator(AsyncDBClient client, int inFlight, int writePercent) {
+        this.client = client;
+        this.inFlight = Math.max(1, inFlight);
+        this.writePercent = writePercent;
+        this.completed = new AtomicLong();
+        this.errors = new AtomicLong();
+        this.latencies = new ConcurrentLinkedQueue<>();
+    }
+
+    public void run(long durationMillis) throws InterruptedException {
+        String database = "load" + System.nanoTime();
+        try {
+            client.execute("CREATE DATABASE " + database + ";").get();
+            client.execute("USE " + database + ";").get();
+            client.execute("CREATE TABLE load (name, value);").get();
+            List<String> rows = new ArrayList<>();
+            for (int i = 0; i < PRELOADED_ROWS; i++) {
+                rows.add("INSERT INTO load VALUES ('row" + i + "', " + i + ");");
+            }
+            client.executeAll(rows).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not set up the load table: " + e.getCause().getMessage(), e.getCause());
+        }
+        Semaphore slots = new Semaphore(inFlight);
+        Random random = new Random();
+        long start = System.nanoTime();
+        long deadline = start + durationMillis * 1_000_000;
+        while (System.nanoTime() < deadline) {
+            if (!slots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            String command = random.nextInt(100) < writePercent
+                    ? "INSERT INTO load VALUES ('extra', " + random.nextInt(1_000_000) + ");"
+                    : "SELECT name, value FROM load WHERE id == " + (1 + random.nextInt(PRELOADED_ROWS)) + ";";
+            long sent = System.nanoTime();
+            client.execute(command).whenComplete((answer, error) -> {
+                latencies.add((System.nanoTime() - sent) / 1000);
+                if (error != null || !answer.startsWith("[OK]")) {
+                    errors.incrementAndGet();
+                }
+                completed.incrementAndGet();
+                slots.release();
+            });
+        }
+        // wait for the commands still in flight
+        slots.acquire(inFlight);
+        elapsedNanos = System.nanoTime() - start;
+        client.execute("DROP DATABASE " + database + ";").join();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : completed.get() * 1e9 / elapsedNanos;
+    }
+
+    // the latency below which the given fraction of commands completed, in milliseconds
+    public double percentileMillis(double fraction) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))] / 1000.0;
+    }
+
+    public String report() {
+        return String.format("%d command(s) in %.1f s, %.0f/s with %d in flight, %d error(s), latency p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                getCompleted(), elapsedNanos / 1e9, getThroughput(), inFlight, getErrors(),
+                percentileMillis(0.5), percentileMillis(0.99), percentileMillis(1.0));
+    }
+}
@@ -1,14 +1,55 @@
 package edu.uob;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.regex.*;
 
 public class ManageCommand {
+    private static final Pattern PREPARE_PATTERN = Pattern.compile("^PREPARE\\s+([A-Za-z0-9]+)\\s+AS\\s+(.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern PARTITION_PATTERN = Pattern.compile("\\s+PARTITION\\s+BY\\s+HASH\\s*\\(\\s*([A-Za-z0-9]+)\\s*\\)\\s+INTO\\s+([0-9]+)$", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_PARTITIONS = 256;
+    private static final Pattern VIEW_PATTERN = Pattern.compile("^CREATE\\s+MATERIALIZED\\s+VIEW\\s+([A-Za-z0-9]+)\\s+AS\\s+(.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern BACKUP_PATTERN = Pattern.compile("^BACKUP\\s+DATABASE\\s+([A-Za-z0-9]+)\\s+TO\\s+'([^']+)'$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern RESTORE_PATTERN = Pattern.compile("^RESTORE\\s+DATABASE\\s+([A-Za-z0-9]+)\\s+FROM\\s+'([^']+)'$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EXECUTE_PATTERN = Pattern.compile("^EXECUTE\\s+([A-Za-z0-9]+)\\s*(?:\\((.*)\\))?$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // statements that change what a session or a database holds, the ones a leader streams to followers.
+    // RESTORE isn't one, it reads files on this server only: each server restores its own copy.
+    private static final Set<String> WRITE_COMMANDS = Set.of("CREATE", "DROP", "INSERT", "UPDATE", "DELETE", "ALTER");
+    private static final Set<String> SESSION_COMMANDS = Set.of("USE", "PREPARE", "DEALLOCATE");
+    // statements that can be stopped part way, they change nothing
+    private static final Set<String> READ_COMMANDS = Set.of("SELECT", "JOIN", "EXECUTE", "SHOW");
+
+    private final ServerContext context;
+    // set for the sessions a follower replays its leader's statements through
+    private final boolean replaying;
+    private final String sessionId;
     private Database currentDatabase;
+    // statements prepared on this connection, by name
+    private final Map<String, PreparedStatement> preparedStatements;
+    // statement timeout of this session in ms, 0 for none
+    private long timeoutMillis;
+    // feed opened by SUBSCRIBE, streamed by the server once the answer is sent
+    private ChangeLog.Subscription subscription;
+    // set once the leader has logged a statement of this session, its followers then hold a session for it
+    private boolean logged;
 
     public ManageCommand() {
+        this(new ServerContext(new File("databases")));
+    }
+
+    public ManageCommand(ServerContext context) {
+        this(context, false);
+    }
+
+    ManageCommand(ServerContext context, boolean replaying) {
+        this.context = context;
+        this.replaying = replaying;
+        this.sessionId = context.nextSessionId();
         this.currentDatabase = null;
+        this.preparedStatements = new HashMap<>();
+        this.timeoutMillis = Long.getLong("cwdb.statement.timeout", 0);
     }
 
     public String executeCommand(String query) {
@@ -19,6 +60,7 @@ public class ManageCommand {
         if (!query.endsWith(";")) {
             return "[ERROR] Query must end with a semicolon";
         }
+        String statement = query;
         // Remove the trailing semicolon.
         query = query.substring(0, query.length() - 1).trim();
 
@@ -28,6 +70,88 @@ public class ManageCommand {
         }
 
         String command = tokens.get(0).toUpperCase();
+        boolean write = isWrite(command, query);
+        if ((write || command.equals("RESTORE")) && !replaying && context.isReadOnly()) {
+            return "[ERROR] Read-only replica, send writes to the leader";
+        }
+        ReplicationLeader leader = context.getLeader();
+        if (leader != null && write) {
+            String body = query;
+            return leader.inCommitOrder(() -> apply(command, body, tokens, write, statement, leader));
+        }
+        return apply(command, query, tokens, write, statement, leader);
+    }
+
+    // runs the statement and logs it for the followers if it changed anything
+    private String apply(String command, String query, List<String> tokens, boolean write, String statement, ReplicationLeader leader) {
+        String result = run(command, query, tokens, write);
+        if (write && result.startsWith("[OK]") && currentDatabase != null) {
+            currentDatabase.refreshViews();
+        }
+        if (leader != null && result.startsWith("[OK]") && (write || SESSION_COMMANDS.contains(command))) {
+            leader.append(sessionId, statement);
+            logged = true;
+        }
+        return result;
+    }
+
+    // the connection is gone, followers can forget its session
+    public void close() {
+        ReplicationLeader leader = context.getLeader();
+        if (leader != null && logged) {
+            leader.endSession(sessionId);
+        }
+    }
+
+    // the statement runs registered with the server, so it can be listed and cancelled. Reads stop at
+    // their timeout, heavy queries first wait for a slot.
+    private String run(String command, String query, List<String> tokens, boolean write) {
+        String statement = query + ";";
+        QueryContext running = context.beginQuery(sessionId, statement, replaying ? 0 : timeoutMillis, !write && READ_COMMANDS.contains(command));
+        boolean admitted = false;
+        try {
+            if (!replaying && isHeavy(command, tokens)) {
+                admitted = context.admitHeavy(running);
+                if (!admitted) {
+                    return running.isCancelled() ? "[ERROR] Query cancelled" : "[ERROR] Server busy: too many heavy queries, try again later";
+                }
+            }
+            return dispatch(command, query, tokens);
+        } catch (QueryContext.Cancelled e) {
+            return "[ERROR] " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "[ERROR] Interrupted waiting to run";
+        } catch (RuntimeException e) {
+            // a failed statement is answered, the session carries on
+            System.err.println("Statement failed: " + statement + " " + e);
+            return "[ERROR] Statement failed: " + e.getMessage();
+        } finally {
+            if (admitted) {
+                context.releaseHeavy();
+            }
+            context.endQuery(running);
+        }
+    }
+
+    // JOINs, whole table SELECTs and ANALYZE visit every row, these go through admission control
+    private boolean isHeavy(String command, List<String> tokens) {
+        if (command.equals("SELECT")) {
+            return tokens.stream().noneMatch(token -> token.equalsIgnoreCase("WHERE"));
+        }
+        return command.equals("JOIN") || command.equals("ANALYZE");
+    }
+
+    private boolean isWrite(String command, String query) {
+        if (command.equals("EXECUTE")) {
+            Matcher matcher = EXECUTE_PATTERN.matcher(query);
+            PreparedStatement statement = matcher.matches() ? preparedStatements.get(matcher.group(1).toLowerCase()) : null;
+            return statement != null && !statement.getCommand().equals("SELECT");
+        }
+        return WRITE_COMMANDS.contains(command);
+    }
+
+    private String dispatch(String command, String query, List<String> tokens) {
         switch (command) {
             case "USE":
                 return handleUse(tokens);
@@ -47,6 +171,26 @@ public class ManageCommand {
                 return handleUpdate(query, tokens);
             case "JOIN":
                 return handleJoin(query, tokens);
+            case "ANALYZE":
+                return handleAnalyze(tokens);
+            case "PREPARE":
+                return handlePrepare(query);
+            case "EXECUTE":
+                return handleExecute(query);
+            case "DEALLOCATE":
+                return handleDeallocate(tokens);
+            case "SHOW":
+                return handleShow(tokens);
+            case "CANCEL":
+                return handleCancel(tokens);
+            case "SET":
+                return handleSet(tokens);
+            case "SUBSCRIBE":
+                return handleSubscribe(tokens);
+            case "BACKUP":
+                return handleBackup(query);
+            case "RESTORE":
+                return handleRestore(query);
             default:
                 return "[ERROR] Unsupported command: " + command;
         }
@@ -58,13 +202,13 @@ public class ManageCommand {
         if (!isValidIdentifier(dbName)) {
             return "[ERROR] Invalid database name: " + dbName;
         }
-        File dbFolder = new File("databases/" + dbName);
+        File dbFolder = context.databaseFolder(dbName);
 
         if (!dbFolder.exists() || !dbFolder.isDirectory()) {
             return "[ERROR] Database does not exist";
         }
 
-        this.currentDatabase = new Database(dbName);
+        this.currentDatabase = context.openDatabase(dbName);
         return "[OK] Switched to database " + dbName;
     }
 
@@ -77,7 +221,7 @@ public class ManageCommand {
             if (!isValidIdentifier(dbName)) {
                 return "[ERROR] Invalid database name: " + dbName;
             }
-            File dbFolder = new File("databases/" + dbName);
+            File dbFolder = context.databaseFolder(dbName);
             if (dbFolder.exists()) {
                 return "[ERROR] Database already exists";
             }
@@ -86,6 +230,10 @@ public class ManageCommand {
             } else {
                 return "[ERROR] Failed to create database";
             }
+        } else if (tokens.get(1).equalsIgnoreCase("INDEX")) {
+            return handleCreateIndex(query);
+        } else if (tokens.get(1).equalsIgnoreCase("MATERIALIZED")) {
+            return handleCreateView(query);
         } else if (tokens.get(1).equalsIgnoreCase("TABLE")) {
             if (currentDatabase == null) {
                 return "[ERROR] No database selected";
@@ -95,14 +243,26 @@ public class ManageCommand {
             if (!isValidIdentifier(tableName)) {
                 return "[ERROR] Invalid table name: " + tableName;
             }
+            // CREATE TABLE <TableName> [(<AttributeList>)] PARTITION BY HASH(<AttributeName>) INTO <n>
+            String partitionKey = null;
+            int partitionCount = 0;
+            Matcher partitioning = PARTITION_PATTERN.matcher(query);
+            if (partitioning.find()) {
+                partitionKey = partitioning.group(1);
+                try {
+                    partitionCount = Integer.parseInt(partitioning.group(2));
+                } catch (NumberFormatException e) {
+                    partitionCount = -1;
+                }
+                if (partitionCount < 1 || partitionCount > MAX_PARTITIONS) {
+                    return "[ERROR] Partition count must be between 1 and " + MAX_PARTITIONS;
+                }
+                query = query.substring(0, partitioning.start());
+            }
             if (!query.contains("(")) {
                 List<String> columns = new ArrayList<>();
                 columns.add("id");
-                if (currentDatabase.createTable(tableName, columns)) {
-                    return "[OK] Table " + tableName + " created";
-                } else {
-                    return "[ERROR] Table already exists";
-                }
+                return createTable(tableName, columns, partitionKey, partitionCount);
             }
             int start = query.indexOf('(');
             int end = query.lastIndexOf(')');
@@ -128,16 +288,110 @@ public class ManageCommand {
                 columnSet.add(column.toLowerCase());
                 columns.add(column);
             }
-            if (currentDatabase.createTable(tableName, columns)) {
-                return "[OK] Table " + tableName + " created";
-            } else {
-                return "[ERROR] Table already exists";
-            }
+            return createTable(tableName, columns, partitionKey, partitionCount);
         } else {
             return "[ERROR] Invalid CREATE command";
         }
     }
 
+    private String createTable(String tableName, List<String> columns, String partitionKey, int partitionCount) {
+        if (partitionKey != null && !columns.contains(partitionKey)) {
+            return "[ERROR] Partition key column not found: " + partitionKey;
+        }
+        if (currentDatabase.createTable(tableName, columns, partitionKey, partitionCount)) {
+            return "[OK] Table " + tableName + " created" + (partitionKey == null ? "" : " with " + partitionCount + " partition(s)");
+        } else {
+            return "[ERROR] Table already exists";
+        }
+    }
+
+
+    //  CREATE MATERIALIZED VIEW <name> AS SELECT ... | JOIN ... - kept up to date as the tables change
+    private String handleCreateView(String query) {
+        Matcher matcher = VIEW_PATTERN.matcher(query);
+        if (!matcher.matches()) {
+            return "[ERROR] Invalid CREATE MATERIALIZED VIEW syntax";
+        }
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String viewName = matcher.group(1).toLowerCase();
+        if (!isValidIdentifier(viewName)) {
+            return "[ERROR] Invalid view name: " + viewName;
+        }
+        try {
+            currentDatabase.createView(viewName, matcher.group(2).trim());
+        } catch (IllegalArgumentException e) {
+            return "[ERROR] " + e.getMessage();
+        }
+        return "[OK] Materialized view " + viewName + " created";
+    }
+
+    // views change only with their base tables
+    private String viewWriteError(String tableName) {
+        return currentDatabase.isView(tableName) ? "[ERROR] " + tableName + " is a materialized view, write to its base tables" : null;
+    }
+
+    //  CREATE INDEX ON <TableName> (<AttributeName>) USING BLOOM [<FalsePositiveRate>]
+    private String handleCreateIndex(String query) {
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        Pattern indexPattern = Pattern.compile("^CREATE\\s+INDEX\\s+ON\\s+([A-Za-z0-9]+)\\s*\\(\\s*([A-Za-z0-9]+)\\s*\\)\\s+USING\\s+([A-Za-z]+)(\\s+\\S+)?$", Pattern.CASE_INSENSITIVE);
+        Matcher matcher = indexPattern.matcher(query);
+        if (!matcher.matches()) {
+            return "[ERROR] Invalid CREATE INDEX syntax";
+        }
+        String tableName = matcher.group(1).toLowerCase();
+        String column = matcher.group(2);
+        String indexType = matcher.group(3).toUpperCase();
+        Table table = currentDatabase.getTable(tableName);
+        if (table == null) {
+            return "[ERROR] Table not found";
+        }
+        if (!table.getColumns().contains(column)) {
+            return "[ERROR] Column not found: " + column;
+        }
+        if (indexType.equals("BITMAP")) {
+            if (matcher.group(4) != null) {
+                return "[ERROR] Invalid CREATE INDEX syntax";
+            }
+            if (table.addBitmapIndex(column)) {
+                return "[OK] Bitmap index created on " + tableName + "." + column;
+            } else {
+                return "[ERROR] Index already exists on " + tableName + "." + column;
+            }
+        }
+        if (indexType.equals("TRIGRAM")) {
+            if (matcher.group(4) != null) {
+                return "[ERROR] Invalid CREATE INDEX syntax";
+            }
+            if (table.addTrigramIndex(column)) {
+                return "[OK] Trigram index created on " + tableName + "." + column;
+            } else {
+                return "[ERROR] Index already exists on " + tableName + "." + column;
+            }
+        }
+        if (!indexType.equals("BLOOM")) {
+            return "[ERROR] Unsupported index type: " + indexType;
+        }
+        double falsePositiveRate = Double.parseDouble(System.getProperty("cwdb.bloom.fpp", "0.01"));
+        if (matcher.group(4) != null) {
+            try {
+                falsePositiveRate = Double.parseDouble(matcher.group(4).trim());
+            } catch (NumberFormatException e) {
+                return "[ERROR] Invalid false positive rate: " + matcher.group(4).trim();
+            }
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            return "[ERROR] False positive rate must be between 0 and 1";
+        }
+        if (table.addBloomFilter(column, falsePositiveRate)) {
+            return "[OK] Bloom filter created on " + tableName + "." + column;
+        } else {
+            return "[ERROR] Index already exists on " + tableName + "." + column;
+        }
+    }
 
     private String handleInsert(String query, List<String> tokens) {
         if (tokens.size() < 4 || !tokens.get(1).equalsIgnoreCase("INTO")) {
@@ -151,6 +405,10 @@ public class ManageCommand {
         if (table == null) {
             return "[ERROR] Table not found";
         }
+        String viewError = viewWriteError(tableName);
+        if (viewError != null) {
+            return viewError;
+        }
         int valuesPos = query.toUpperCase().indexOf("VALUES");
         if (valuesPos == -1) {
             return "[ERROR] Invalid INSERT syntax: missing VALUES";
@@ -163,39 +421,15 @@ public class ManageCommand {
         String valuesPart = query.substring(start + 1, end).trim();
 
         // values are split by commas , and the quotes are preserved!
-        List<String> values = new ArrayList<>();
-        StringBuilder currentValue = new StringBuilder();
-        boolean insideQuotes = false;
-        for (int i = 0; i < valuesPart.length(); i++) {
-            char c = valuesPart.charAt(i);
-            if (c == '\'') {
-                insideQuotes = !insideQuotes;
-                currentValue.append(c);
-            } else if (c == ',' && !insideQuotes) {
-                values.add(currentValue.toString().trim());
-                currentValue.setLength(0);
-            } else {
-                currentValue.append(c);
-            }
-        }
-        if (currentValue.length() > 0) {
-            values.add(currentValue.toString().trim());
-        }
+        List<String> values = QueryParser.splitValues(valuesPart);
 
         // value processing: if a value is a quoted string, then the quotes are removed
         List<String> processedValues = new ArrayList<>();
         for (String val : values) {
-            if (val.startsWith("'") && val.endsWith("'") && val.length() >= 2) {
-                processedValues.add(val.substring(1, val.length() - 1));
-            } else {
-                if (!val.matches("[+-]?\\d+(\\.\\d+)?") &&
-                        !val.equalsIgnoreCase("TRUE") &&
-                        !val.equalsIgnoreCase("FALSE") &&
-                        !val.equalsIgnoreCase("NULL")) {
-                    return "[ERROR] Invalid value: " + val + ". String literals must be enclosed in single quotes.";
-                }
-                processedValues.add(val);
+            if (!QueryParser.isLiteral(val)) {
+                return "[ERROR] Invalid value: " + val + ". String literals must be enclosed in single quotes.";
             }
+            processedValues.add(Table.unquote(val));
         }
 
         if (table.insertRow(processedValues)) {
@@ -205,6 +439,15 @@ public class ManageCommand {
         }
     }
 
+    // true when the token at the index isn't part of a quoted value
+    private static boolean outsideQuotes(List<String> tokens, int index) {
+        int quotes = 0;
+        for (String token : tokens.subList(0, index)) {
+            quotes += token.chars().filter(c -> c == '\'').count();
+        }
+        return quotes % 2 == 0;
+    }
+
     private boolean isValidIdentifier(String id) {
         // Valid identifier: one or more letters and/or digits only.
         return id.matches("[A-Za-z0-9]+");
@@ -226,6 +469,18 @@ public class ManageCommand {
         if (fromIndex == -1 || fromIndex < 2 || tokens.size() <= fromIndex + 1) {
             return "[ERROR] Invalid SELECT syntax";
         }
+        // SELECT ... AS OF <version> reads the table as it was at that version. Words of a quoted value in
+        // the condition are tokens too, an AS OF counts only outside the quotes.
+        long asOf = -1;
+        int size = tokens.size();
+        if (size >= fromIndex + 5 && tokens.get(size - 3).equalsIgnoreCase("AS") && tokens.get(size - 2).equalsIgnoreCase("OF")
+                && outsideQuotes(tokens, size - 3)) {
+            if (!tokens.get(size - 1).matches("[0-9]+")) {
+                return "[ERROR] AS OF takes a version number";
+            }
+            asOf = Long.parseLong(tokens.get(size - 1));
+            tokens = tokens.subList(0, size - 3);
+        }
         StringBuilder colSpecBuilder = new StringBuilder();
         for (int i = 1; i < fromIndex; i++) {
             colSpecBuilder.append(tokens.get(i)).append(" \n ");
@@ -259,14 +514,27 @@ public class ManageCommand {
             }
         }
         List<String> results;
-        if (whereIndex == -1) {
+        if (asOf >= 0) {
+            Condition condition = null;
+            if (whereIndex != -1) {
+                condition = Condition.parse(String.join(" ", tokens.subList(whereIndex + 1, tokens.size())));
+                if (condition == null) {
+                    return "[ERROR] Invalid WHERE condition syntax";
+                }
+            }
+            results = table.selectRowsAsOf(selectedColumns, condition, asOf);
+            if (results.get(0).startsWith("[ERROR]")) {
+                return results.get(0);
+            }
+        } else if (whereIndex == -1) {
             results = table.selectRows(selectedColumns);
         } else {
-            StringBuilder conditionBuilder = new StringBuilder();
-            for (int i = whereIndex + 1; i < tokens.size(); i++) {
-                conditionBuilder.append(tokens.get(i)).append(" \n ");
+            // joined on spaces like the AS OF condition, a quoted value may hold several words
+            String conditionClause = String.join(" ", tokens.subList(whereIndex + 1, tokens.size()));
+            Condition compound = Condition.parse(conditionClause);
+            if (compound != null && !compound.isComparison()) {
+                return "[OK] \n" + String.join("\n", table.selectRows(selectedColumns, compound));
             }
-            String conditionClause = conditionBuilder.toString().trim();
             if (conditionClause.startsWith("(") && conditionClause.endsWith(")")) {
                 conditionClause = conditionClause.substring(1, conditionClause.length() - 1).trim();
             }
@@ -278,7 +546,8 @@ public class ManageCommand {
             String conditionAttribute = matcher.group(1);
             String comparator = matcher.group(2).toUpperCase();
             String conditionValue = matcher.group(3);
-            results = table.selectRows(selectedColumns, conditionAttribute, comparator, conditionValue);
+            Planner.ScanStrategy strategy = Planner.planScan(table, conditionAttribute, comparator, conditionValue);
+            results = table.selectRows(selectedColumns, conditionAttribute, comparator, conditionValue, strategy);
         }
         // adding [OK] tag to the results!
         return "[OK] \n" + String.join("\n", results);
@@ -292,12 +561,13 @@ public class ManageCommand {
         String dropType = tokens.get(1).toUpperCase();
         if (dropType.equals("DATABASE")) {
             String dbName = tokens.get(2).toLowerCase();
-            File dbFolder = new File("databases/" + dbName);
+            File dbFolder = context.databaseFolder(dbName);
             if (!dbFolder.exists() || !dbFolder.isDirectory()) {
                 return "[ERROR] Database does not exist";
             }
             boolean success = deleteDirectory(dbFolder);
             if (success) {
+                context.forgetDatabase(dbName);
                 if (currentDatabase != null && currentDatabase.getDatabaseName().equals(dbName)) {
                     currentDatabase = null;
                 }
@@ -305,11 +575,27 @@ public class ManageCommand {
             } else {
                 return "[ERROR] Failed to drop database " + dbName;
             }
+        } else if (dropType.equals("MATERIALIZED")) {
+            if (tokens.size() != 4 || !tokens.get(2).equalsIgnoreCase("VIEW")) {
+                return "[ERROR] Invalid DROP command";
+            }
+            if (currentDatabase == null) {
+                return "[ERROR] No database selected";
+            }
+            String viewName = tokens.get(3).toLowerCase();
+            return currentDatabase.dropView(viewName) ? "[OK] Materialized view " + viewName + " dropped" : "[ERROR] No materialized view " + viewName;
         } else if (dropType.equals("TABLE")) {
             if (currentDatabase == null) {
                 return "[ERROR] No database selected";
             }
             String tableName = tokens.get(2).toLowerCase();
+            if (currentDatabase.isView(tableName)) {
+                return "[ERROR] " + tableName + " is a materialized view, drop it with DROP MATERIALIZED VIEW";
+            }
+            List<String> views = currentDatabase.viewsOn(tableName);
+            if (!views.isEmpty()) {
+                return "[ERROR] Table " + tableName + " is read by materialized view(s) " + String.join(", ", views);
+            }
             boolean success = currentDatabase.dropTable(tableName);
             if (success) {
                 return "[OK] Table " + tableName + " dropped";
@@ -334,6 +620,10 @@ public class ManageCommand {
         if (table == null) {
             return "[ERROR] Table not found";
         }
+        String viewError = viewWriteError(tableName);
+        if (viewError != null) {
+            return viewError;
+        }
         int whereIndex = -1;
         for (int i = 3; i < tokens.size(); i++) {
             if (tokens.get(i).equalsIgnoreCase("WHERE")) {
@@ -349,6 +639,14 @@ public class ManageCommand {
             conditionBuilder.append(tokens.get(i)).append(" ");
         }
         String conditionClause = conditionBuilder.toString().trim();
+        Condition compound = Condition.parse(conditionClause);
+        if (compound != null && !compound.isComparison()) {
+            int deletedCount = table.deleteRows(compound);
+            if (deletedCount < 0) {
+                return "[ERROR] Column not found in WHERE clause: " + missingConditionColumn(table, compound);
+            }
+            return "[OK] " + deletedCount + " record(s) deleted from " + tableName;
+        }
         if (conditionClause.startsWith("(") && conditionClause.endsWith(")")) {
             conditionClause = conditionClause.substring(1, conditionClause.length() - 1).trim();
         }
@@ -360,7 +658,8 @@ public class ManageCommand {
         String conditionAttribute = matcher.group(1);
         String comparator = matcher.group(2).toUpperCase();
         String conditionValue = matcher.group(3);
-        int deletedCount = table.deleteRows(conditionAttribute, comparator, conditionValue);
+        Planner.ScanStrategy strategy = Planner.planScan(table, conditionAttribute, comparator, conditionValue);
+        int deletedCount = table.deleteRows(conditionAttribute, comparator, conditionValue, strategy);
         if (deletedCount < 0) {
             return "[ERROR] Column not found in WHERE clause: " + conditionAttribute;
         }
@@ -383,6 +682,10 @@ public class ManageCommand {
         if (table == null) {
             return "[ERROR] Table not found";
         }
+        String viewError = viewWriteError(tableName);
+        if (viewError != null) {
+            return viewError;
+        }
         String alterationType = tokens.get(3).toUpperCase();
         String attributeName = tokens.get(4);
         switch (alterationType) {
@@ -391,6 +694,7 @@ public class ManageCommand {
                     return "[ERROR] Column already exists: " + attributeName;
                 }
                 if (table.addColumn(attributeName)) {
+                    currentDatabase.saveCatalog();
                     return "[OK] Column " + attributeName + " added to " + tableName;
                 } else {
                     return "[ERROR] Failed to add column " + attributeName;
@@ -403,6 +707,7 @@ public class ManageCommand {
                     return "[ERROR] Cannot drop primary key column";
                 }
                 if (table.dropColumn(attributeName)) {
+                    currentDatabase.saveCatalog();
                     return "[OK] Column " + attributeName + " dropped from " + tableName;
                 } else {
                     return "[ERROR] Failed to drop column " + attributeName;
@@ -429,10 +734,15 @@ public class ManageCommand {
         if (table == null) {
             return "[ERROR] Table not found";
         }
+        String viewError = viewWriteError(tableName);
+        if (viewError != null) {
+            return viewError;
+        }
        // updateClause
         String updateClause = query.substring(setIndex + 5, whereIndex).trim();
-        String[] pairs = updateClause.split(",");
-        Map<String, String> updates = new HashMap<>();
+        // commas inside string literals don't separate assignments
+        List<String> pairs = QueryParser.splitValues(updateClause);
+        Map<String, Expression> updates = new LinkedHashMap<>();
         for (String pair : pairs) {
             pair = pair.trim();
             if (!pair.contains("=")) {
@@ -443,14 +753,33 @@ public class ManageCommand {
                 return "[ERROR] Invalid SET clause in " + pair;
             }
             String key = keyValue[0].trim();
-            String value = keyValue[1].trim();
             if (key.equalsIgnoreCase("id")) {
                 return "[ERROR] Cannot update primary key column";
             }
+            if (key.equals(table.getPartitionKey())) {
+                return "[ERROR] Cannot update partition key column";
+            }
+            // the value may be an expression over the row's current values, e.g. hits = hits + 1
+            Expression value = Expression.parse(keyValue[1].trim());
+            if (value == null) {
+                return "[ERROR] Invalid SET expression in " + pair;
+            }
+            String missing = missingColumn(table, value.getColumns());
+            if (!missing.isEmpty()) {
+                return "[ERROR] Column not found in SET clause: " + missing;
+            }
             updates.put(key, value);
         }
         // condition clause (after WHERE).
         String conditionClause = query.substring(whereIndex + 7).trim();
+        Condition compound = Condition.parse(conditionClause);
+        if (compound != null && !compound.isComparison()) {
+            int updateCount = table.updateRows(updates, compound);
+            if (updateCount < 0) {
+                return "[ERROR] Column not found in WHERE clause: " + missingConditionColumn(table, compound);
+            }
+            return "[OK] " + updateCount + " record(s) updated in " + tableName;
+        }
         if (conditionClause.startsWith("(") && conditionClause.endsWith(")")) {
             conditionClause = conditionClause.substring(1, conditionClause.length() - 1).trim();
         }
@@ -463,13 +792,306 @@ public class ManageCommand {
         String op = matcher.group(2).trim();  // Trim operator before comparison.
         String comparator = op.equals("=") ? "==" : op.toUpperCase();
         String conditionValue = matcher.group(3);
-        int updateCount = table.updateRows(updates, conditionAttribute, comparator, conditionValue);
+        Planner.ScanStrategy strategy = Planner.planScan(table, conditionAttribute, comparator, conditionValue);
+        int updateCount = table.updateRows(updates, conditionAttribute, comparator, conditionValue, strategy);
         if (updateCount < 0) {
             return "[ERROR] Column not found in WHERE clause: " + conditionAttribute;
         }
         return "[OK] " + updateCount + " record(s) updated in " + tableName;
     }
 
+    //  PREPARE <name> AS <statement> - parses a SELECT, INSERT, UPDATE or DELETE once, with ? for the
+    //  values supplied by each EXECUTE
+    private String handlePrepare(String query) {
+        Matcher matcher = PREPARE_PATTERN.matcher(query);
+        if (!matcher.matches()) {
+            return "[ERROR] Invalid PREPARE syntax";
+        }
+        String name = matcher.group(1).toLowerCase();
+        PreparedStatement statement = PreparedStatement.parse(matcher.group(2).trim());
+        if (statement == null) {
+            return "[ERROR] Only valid SELECT, INSERT, UPDATE and DELETE statements can be prepared";
+        }
+        preparedStatements.put(name, statement);
+        return "[OK] Statement " + name + " prepared with " + statement.getParameterCount() + " parameter(s)";
+    }
+
+    //  EXECUTE <name> [(<value>, ...)] - runs a prepared statement with the values bound in order
+    private String handleExecute(String query) {
+        Matcher matcher = EXECUTE_PATTERN.matcher(query);
+        if (!matcher.matches()) {
+            return "[ERROR] Invalid EXECUTE syntax";
+        }
+        PreparedStatement statement = preparedStatements.get(matcher.group(1).toLowerCase());
+        if (statement == null) {
+            return "[ERROR] No prepared statement named " + matcher.group(1);
+        }
+        List<String> parameters = matcher.group(2) == null || matcher.group(2).isBlank()
+                ? List.of() : QueryParser.splitValues(matcher.group(2).trim());
+        if (parameters.size() != statement.getParameterCount()) {
+            return "[ERROR] Expected " + statement.getParameterCount() + " parameter(s) but got " + parameters.size();
+        }
+        for (String parameter : parameters) {
+            if (!QueryParser.isLiteral(parameter)) {
+                return "[ERROR] Invalid value: " + parameter + ". String literals must be enclosed in single quotes.";
+            }
+        }
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String tableName = statement.getTableName();
+        Table table = currentDatabase.getTable(tableName);
+        if (table == null) {
+            return "[ERROR] Table not found";
+        }
+        if (!statement.getCommand().equals("SELECT") && viewWriteError(tableName) != null) {
+            return viewWriteError(tableName);
+        }
+        Condition condition = statement.bindCondition(parameters);
+        // a single comparison goes straight to the planned scan, as in the unprepared statements
+        boolean comparison = condition != null && condition.isComparison();
+        Planner.ScanStrategy strategy = comparison && table.getColumns().contains(condition.getAttribute())
+                ? Planner.planScan(table, condition.getAttribute(), condition.getComparator(), condition.getValue()) : null;
+        switch (statement.getCommand()) {
+            case "SELECT":
+                List<String> selectedColumns = statement.getColumns() == null ? table.getColumns() : statement.getColumns();
+                List<String> results;
+                if (condition == null) {
+                    results = table.selectRows(selectedColumns);
+                } else if (comparison) {
+                    results = table.selectRows(selectedColumns, condition.getAttribute(), condition.getComparator(), condition.getValue(), strategy);
+                } else {
+                    results = table.selectRows(selectedColumns, condition);
+                }
+                return "[OK] \n" + String.join("\n", results);
+            case "INSERT":
+                if (table.insertRow(statement.bindValues(parameters))) {
+                    return "[OK] Record inserted into " + tableName;
+                }
+                return "[ERROR] Failed to insert record";
+            case "UPDATE":
+                Map<String, Expression> updates = statement.bindUpdates(parameters);
+                if (table.getPartitionKey() != null && updates.containsKey(table.getPartitionKey())) {
+                    return "[ERROR] Cannot update partition key column";
+                }
+                String missing = missingColumn(table, statement.getUpdateColumns());
+                if (!missing.isEmpty()) {
+                    return "[ERROR] Column not found in SET clause: " + missing;
+                }
+                int updateCount = comparison
+                        ? table.updateRows(updates, condition.getAttribute(), condition.getComparator(), condition.getValue(), strategy)
+                        : table.updateRows(updates, condition);
+                if (updateCount < 0) {
+                    return "[ERROR] Column not found in WHERE clause: " + missingConditionColumn(table, condition);
+                }
+                return "[OK] " + updateCount + " record(s) updated in " + tableName;
+            default:
+                int deletedCount = comparison
+                        ? table.deleteRows(condition.getAttribute(), condition.getComparator(), condition.getValue(), strategy)
+                        : table.deleteRows(condition);
+                if (deletedCount < 0) {
+                    return "[ERROR] Column not found in WHERE clause: " + missingConditionColumn(table, condition);
+                }
+                return "[OK] " + deletedCount + " record(s) deleted from " + tableName;
+        }
+    }
+
+    private String handleDeallocate(List<String> tokens) {
+        if (tokens.size() != 2) {
+            return "[ERROR] Invalid DEALLOCATE syntax";
+        }
+        if (preparedStatements.remove(tokens.get(1).toLowerCase()) == null) {
+            return "[ERROR] No prepared statement named " + tokens.get(1);
+        }
+        return "[OK] Statement " + tokens.get(1).toLowerCase() + " deallocated";
+    }
+
+    //  CANCEL <query id> - the id as listed by SHOW QUERIES
+    private String handleCancel(List<String> tokens) {
+        if (tokens.size() != 2 || !tokens.get(1).matches("[0-9]+")) {
+            return "[ERROR] Invalid CANCEL syntax";
+        }
+        QueryContext cancelled = context.cancelQuery(Integer.parseInt(tokens.get(1)));
+        if (cancelled == null) {
+            return "[ERROR] No running query " + tokens.get(1);
+        }
+        return cancelled.isCancellable() ? "[OK] Cancelling query " + tokens.get(1)
+                : "[OK] Query " + tokens.get(1) + " is a write, it is only cancelled while waiting to run";
+    }
+
+    //  SET TIMEOUT <milliseconds> - for the statements of this session, 0 for none
+    private String handleSet(List<String> tokens) {
+        if (tokens.size() != 3 || !tokens.get(1).equalsIgnoreCase("TIMEOUT") || !tokens.get(2).matches("[0-9]+")) {
+            return "[ERROR] Invalid SET syntax";
+        }
+        timeoutMillis = Long.parseLong(tokens.get(2));
+        return "[OK] Statement timeout set to " + timeoutMillis + " ms";
+    }
+
+    //  SUBSCRIBE <table> [FROM <offset>] - changes to the table from the offset on, 1 by default
+    private String handleSubscribe(List<String> tokens) {
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        if ((tokens.size() != 2 && tokens.size() != 4) || (tokens.size() == 4
+                && (!tokens.get(2).equalsIgnoreCase("FROM") || !tokens.get(3).matches("[0-9]+")))) {
+            return "[ERROR] Invalid SUBSCRIBE syntax";
+        }
+        Table table = currentDatabase.getTable(tokens.get(1));
+        if (table == null) {
+            return "[ERROR] Table not found";
+        }
+        if (table.getChangeLog() == null) {
+            return "[ERROR] Table " + tokens.get(1) + " has no change feed";
+        }
+        long from = tokens.size() == 4 ? Long.parseLong(tokens.get(3)) : 1;
+        subscription = table.getChangeLog().subscribe(from);
+        return "[OK] Subscribed to " + tokens.get(1).toLowerCase() + " from offset " + subscription.getNextOffset()
+                + ", last committed offset " + table.getChangeLog().getOffset();
+    }
+
+    // the feed a SUBSCRIBE just opened, handed over once
+    public ChangeLog.Subscription takeSubscription() {
+        ChangeLog.Subscription taken = subscription;
+        subscription = null;
+        return taken;
+    }
+
+    // for a follower: "<database>\t<table>" of the rows the statement would write in this session - an
+    // INSERT, UPDATE, DELETE or the EXECUTE of one - null for any other statement
+    String rowWriteTarget(String statement) {
+        List<String> tokens = QueryParser.tokenize(statement.trim().replaceAll(";$", ""));
+        if (currentDatabase == null || tokens.size() < 3) {
+            return null;
+        }
+        String command = tokens.get(0).toUpperCase();
+        String tableName = null;
+        if (command.equals("INSERT") || command.equals("DELETE")) {
+            tableName = tokens.get(2);
+        } else if (command.equals("UPDATE")) {
+            tableName = tokens.get(1);
+        } else if (command.equals("EXECUTE")) {
+            PreparedStatement prepared = preparedStatements.get(tokens.get(1).toLowerCase());
+            if (prepared != null && !prepared.getCommand().equals("SELECT")) {
+                tableName = prepared.getTableName();
+            }
+        }
+        return tableName == null ? null : currentDatabase.getDatabaseName() + "\t" + tableName.toLowerCase();
+    }
+
+    //  BACKUP DATABASE <name> TO '<path>' - copies the database to the path under the backup root while it
+    //  keeps taking writes
+    private String handleBackup(String query) {
+        Matcher matcher = BACKUP_PATTERN.matcher(query);
+        if (!matcher.matches()) {
+            return "[ERROR] Invalid BACKUP syntax";
+        }
+        String dbName = matcher.group(1).toLowerCase();
+        if (!context.databaseFolder(dbName).isDirectory()) {
+            return "[ERROR] Database does not exist";
+        }
+        File target = context.backupFolder(matcher.group(2));
+        if (target == null) {
+            return "[ERROR] Backup paths are relative to the backup root and can't contain ..";
+        }
+        try {
+            Backup backup = Backup.run(context.openDatabase(dbName), target);
+            long rows = 0;
+            StringBuilder tables = new StringBuilder("table\tversion\trows");
+            for (Map.Entry<String, long[]> table : backup.getTables().entrySet()) {
+                rows += table.getValue()[1];
+                tables.append('\n').append(table.getKey()).append('\t').append(table.getValue()[0]).append('\t').append(table.getValue()[1]);
+            }
+            return "[OK] Backed up database " + dbName + " to '" + matcher.group(2) + "': " + backup.getTables().size() + " table(s), "
+                    + rows + " row(s), " + backup.throughput() + "\n" + tables;
+        } catch (IOException e) {
+            return "[ERROR] Backup of database " + dbName + " failed: " + e.getMessage();
+        }
+    }
+
+    //  RESTORE DATABASE <name> FROM '<path>' - a backup becomes a new database of that name
+    private String handleRestore(String query) {
+        Matcher matcher = RESTORE_PATTERN.matcher(query);
+        if (!matcher.matches()) {
+            return "[ERROR] Invalid RESTORE syntax";
+        }
+        String dbName = matcher.group(1).toLowerCase();
+        File source = context.backupFolder(matcher.group(2));
+        if (source == null) {
+            return "[ERROR] Backup paths are relative to the backup root and can't contain ..";
+        }
+        try {
+            Backup restore = Backup.restore(source, context.databaseFolder(dbName));
+            // a database of the name dropped earlier may still be open
+            context.forgetDatabase(dbName);
+            return "[OK] Restored database " + dbName + " from '" + matcher.group(2) + "': " + restore.getFiles() + " file(s), " + restore.throughput();
+        } catch (IOException e) {
+            return "[ERROR] Restore of database " + dbName + " failed: " + e.getMessage();
+        }
+    }
+
+    //  SHOW REPLICATION - this server's role and how far behind each replica is
+    private String handleShow(List<String> tokens) {
+        if (tokens.size() == 2 && tokens.get(1).equalsIgnoreCase("QUERIES")) {
+            List<String> rows = new ArrayList<>();
+            rows.add("id\tsession\tms\tstatement");
+            for (QueryContext running : context.runningQueries()) {
+                rows.add(running.getId() + "\t" + running.getSessionId() + "\t" + running.elapsedMillis() + "\t" + running.getStatement());
+            }
+            return "[OK] \n" + String.join("\n", rows);
+        }
+        //  SHOW VERSION <table> - the version a SELECT reads now and the oldest AS OF can still read
+        if (tokens.size() == 3 && tokens.get(1).equalsIgnoreCase("VERSION")) {
+            if (currentDatabase == null) {
+                return "[ERROR] No database selected";
+            }
+            Table table = currentDatabase.getTable(tokens.get(2));
+            if (table == null) {
+                return "[ERROR] Table not found";
+            }
+            return "[OK] \nversion\toldest\n" + table.currentVersion() + "\t" + table.oldestVersion();
+        }
+        if (tokens.size() != 2 || !tokens.get(1).equalsIgnoreCase("REPLICATION")) {
+            return "[ERROR] Invalid SHOW syntax";
+        }
+        List<String> rows = new ArrayList<>();
+        rows.add("name\tvalue");
+        ReplicationLeader leader = context.getLeader();
+        ReplicationFollower follower = context.getFollower();
+        if (leader != null) {
+            rows.add("role\tleader");
+            rows.add("position\t" + leader.getPosition());
+            for (Map.Entry<String, Long> replica : leader.getAcknowledged().entrySet()) {
+                rows.add("replica " + replica.getKey() + " applied\t" + replica.getValue());
+                rows.add("replica " + replica.getKey() + " lag\t" + Math.max(0, leader.getPosition() - replica.getValue()));
+            }
+        } else if (follower != null) {
+            rows.add("role\tfollower");
+            rows.add("leader\t" + follower.getLeaderAddress());
+            rows.add("connected\t" + follower.isConnected());
+            rows.add("applied\t" + follower.getApplied());
+            rows.add("leader position\t" + follower.getLeaderPosition());
+            rows.add("lag\t" + follower.getLag());
+            rows.add("lag ms\t" + follower.getLagMillis());
+        } else {
+            rows.add("role\tstandalone");
+        }
+        return "[OK] \n" + String.join("\n", rows);
+    }
+
+    private String missingConditionColumn(Table table, Condition condition) {
+        return missingColumn(table, condition.getAttributes());
+    }
+
+    private String missingColumn(Table table, List<String> attributes) {
+        for (String attribute : attributes) {
+            if (!table.getColumns().contains(attribute)) {
+                return attribute;
+            }
+        }
+        return "";
+    }
+
     // recursively delete a directory.
     private boolean deleteDirectory(File dir) {
         if (dir.isDirectory()) {
@@ -516,48 +1138,33 @@ public class ManageCommand {
         if (index2 == -1) {
             return "[ERROR] Column " + attr2 + " not found in table " + table2Name;
         }
-        //  the joined header-
-        List<String> joinHeader = new ArrayList<>();
-        joinHeader.add("id");
-        for (int i = 1; i < table1Cols.size(); i++) {
-            joinHeader.add(table1Name + "." + table1Cols.get(i));
-        }
-        for (int i = 1; i < table2Cols.size(); i++) {
-            joinHeader.add(table2Name + "." + table2Cols.get(i));
-        }
-        List<String> joinResults = new ArrayList<>();
-        joinResults.add(String.join("\t", joinHeader));
-        int joinId = 1;
-        // Retrieve rows from both tables.
-        List<Row> rows1 = table1.getRows();
-        List<Row> rows2 = table2.getRows();
-
-        for (Row r1 : rows1) {
-
-            String joinValue1 = attr1.equalsIgnoreCase("id")
-                    ? String.valueOf(r1.getId())
-                    : r1.getValues().get(index1 - 1);
-            for (Row r2 : rows2) {
-                String joinValue2 = attr2.equalsIgnoreCase("id")
-                        ? String.valueOf(r2.getId())
-                        : r2.getValues().get(index2 - 1);
-                if (joinValue1.equals(joinValue2)) {
-                    List<String> joinedRow = new ArrayList<>();
-                    joinedRow.add(String.valueOf(joinId++));
-                    // appending non-id values.
-                    for (int i = 1; i < table1Cols.size(); i++) {
-                        joinedRow.add(r1.getValues().get(i - 1));
-                    }
-                    // appending 2nd table non-id values.
-                    for (int i = 1; i < table2Cols.size(); i++) {
-                        joinedRow.add(r2.getValues().get(i - 1));
-                    }
-                    joinResults.add(String.join("\t", joinedRow));
-                }
-            }
+        Planner.JoinPlan plan = Planner.planJoin(table1, attr1, table2, attr2);
+        try {
+            List<String> joinResults = JoinExecutor.join(table1Name, table1, attr1, table2Name, table2, attr2, plan, MemoryBudget.forQuery(context.getRoot()));
+            return "[OK] \n" + String.join("\n", joinResults);
+        } catch (MemoryBudget.ResultTooLarge e) {
+            return "[ERROR] " + e.getMessage();
+        } catch (IOException e) {
+            System.err.println("Error spilling join of " + table1Name + " and " + table2Name + ": " + e.getMessage());
+            return "[ERROR] Join could not spill to disk";
         }
-        return "[OK] \n" + String.join("\n", joinResults);
 
     }
 
+    //  ANALYZE <TableName> - refreshes the statistics the planner works from
+    private String handleAnalyze(List<String> tokens) {
+        if (tokens.size() != 2) {
+            return "[ERROR] Invalid ANALYZE syntax";
+        }
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String tableName = tokens.get(1).toLowerCase();
+        Table table = currentDatabase.getTable(tableName);
+        if (table == null) {
+            return "[ERROR] Table not found";
+        }
+        return "[OK] \n" + String.join("\n", table.analyze());
+    }
+
 }
\ No newline at end of file
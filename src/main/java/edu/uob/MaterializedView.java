@@ -0,0 +1,397 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// CREATE MATERIALIZED VIEW <name> AS SELECT ... | JOIN ...: the answer is stored as a table of its own,
+// read like any other, and kept current from the change logs of its base tables. A refresh only applies
+// the changes logged since the last one: the view rows a changed base row made are deleted and whatever
+// the row makes now is inserted, so a change applied twice does no harm. <name>.view holds the defining
+// query, then per base table how far into its log the view has got and the table's columns there.
+public class MaterializedView {
+    static final String DEFINITION_SUFFIX = ".view";
+
+    private final Database database;
+    private final String name;
+    private final String query;
+    private final File definitionFile;
+    private final List<Source> sources;
+    // SELECT views: the WHERE condition, null for none
+    private final Condition condition;
+    // JOIN views: the join column of each of the two tables
+    private final List<String> joinColumns;
+
+    // a base table and how far the view has read its change log
+    private static class Source {
+        final String tableName;
+        long offset;
+        List<String> columns;
+        ChangeLog log;
+        ChangeLog.Subscription subscription;
+
+        Source(String tableName, long offset, List<String> columns) {
+            this.tableName = tableName;
+            this.offset = offset;
+            this.columns = columns;
+        }
+
+        // the rows changed since the offset, by id, with their latest cells by column name. Null for a
+        // row since deleted.
+        Map<Integer, Map<String, String>> readChanges(ChangeLog changeLog) {
+            Map<Integer, Map<String, String>> changes = new LinkedHashMap<>();
+            try {
+                if (log != changeLog) {
+                    // the table was reopened, the new instance logs to the same file
+                    closeSubscription();
+                    log = changeLog;
+                }
+                if (subscription == null) {
+                    subscription = log.subscribe(offset + 1);
+                }
+                for (String change = subscription.next(0); change != null; change = subscription.next(0)) {
+                    String[] fields = change.split("\t", -1);
+                    offset = Long.parseLong(fields[0]);
+                    if (fields[1].equals("SCHEMA")) {
+                        columns = List.of(Arrays.copyOfRange(fields, 2, fields.length));
+                        continue;
+                    }
+                    int id = Integer.parseInt(fields[2]);
+                    if (fields[1].equals("DELETE")) {
+                        changes.put(id, null);
+                        continue;
+                    }
+                    Map<String, String> cells = new HashMap<>();
+                    cells.put("id", fields[2]);
+                    for (int i = 1; i < columns.size() && i + 2 < fields.length; i++) {
+                        cells.put(columns.get(i), fields[i + 2]);
+                    }
+                    changes.remove(id);
+                    changes.put(id, cells);
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Error reading changes of " + tableName + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return changes;
+        }
+
+        void closeSubscription() {
+            if (subscription != null) {
+                try {
+                    subscription.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing changes of " + tableName + ": " + e.getMessage());
+                }
+                subscription = null;
+            }
+        }
+    }
+
+    private MaterializedView(Database database, String name, String query, List<Source> sources) {
+        this.database = database;
+        this.name = name.toLowerCase();
+        this.query = query;
+        this.definitionFile = new File(database.getFolder(), this.name + DEFINITION_SUFFIX);
+        this.sources = sources;
+        List<String> tokens = QueryParser.tokenize(query);
+        if (isJoin(tokens)) {
+            this.condition = null;
+            this.joinColumns = List.of(tokens.get(5), tokens.get(7));
+        } else {
+            int where = indexOf(tokens, "WHERE");
+            this.condition = where == -1 ? null : Condition.parse(String.join(" ", tokens.subList(where + 1, tokens.size())));
+            this.joinColumns = null;
+        }
+    }
+
+    private static int indexOf(List<String> tokens, String keyword) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).equalsIgnoreCase(keyword)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isJoin(List<String> tokens) {
+        return tokens.size() == 8 && tokens.get(0).equalsIgnoreCase("JOIN") && tokens.get(2).equalsIgnoreCase("AND")
+                && tokens.get(4).equalsIgnoreCase("ON") && tokens.get(6).equalsIgnoreCase("AND");
+    }
+
+    // checks the query against the database's tables, creates the view's table and fills it
+    static MaterializedView create(Database database, String name, String query) {
+        List<String> tokens = QueryParser.tokenize(query);
+        List<Table> bases = new ArrayList<>();
+        List<String> baseNames = new ArrayList<>();
+        List<String> viewColumns = new ArrayList<>();
+        viewColumns.add("id");
+        if (isJoin(tokens)) {
+            String leftName = tokens.get(1).toLowerCase();
+            String rightName = tokens.get(3).toLowerCase();
+            if (leftName.equals(rightName)) {
+                throw new IllegalArgumentException("A view can't join a table with itself");
+            }
+            for (int side = 0; side < 2; side++) {
+                String tableName = side == 0 ? leftName : rightName;
+                Table table = baseTable(database, tableName);
+                if (!table.getColumns().contains(tokens.get(5 + 2 * side))) {
+                    throw new IllegalArgumentException("Column " + tokens.get(5 + 2 * side) + " not found in table " + tableName);
+                }
+                for (String column : table.getColumns()) {
+                    viewColumns.add(tableName + "." + column);
+                }
+                bases.add(table);
+                baseNames.add(tableName);
+            }
+        } else if (!tokens.isEmpty() && tokens.get(0).equalsIgnoreCase("SELECT")) {
+            int from = indexOf(tokens, "FROM");
+            if (from < 2 || tokens.size() == from + 1 || (tokens.size() > from + 2 && !tokens.get(from + 2).equalsIgnoreCase("WHERE"))) {
+                throw new IllegalArgumentException("Invalid SELECT syntax");
+            }
+            String tableName = tokens.get(from + 1).toLowerCase();
+            Table table = baseTable(database, tableName);
+            List<String> selected = new ArrayList<>();
+            if (from == 2 && tokens.get(1).equals("*")) {
+                selected.addAll(table.getColumns());
+            } else {
+                for (String column : String.join(" ", tokens.subList(1, from)).split(",")) {
+                    selected.add(column.trim());
+                }
+            }
+            for (String column : selected) {
+                if (!table.getColumns().contains(column)) {
+                    throw new IllegalArgumentException("Column not found: " + column);
+                }
+                // the view's rows keep the ids of the rows they come from
+                if (!column.equalsIgnoreCase("id") && !viewColumns.contains(column)) {
+                    viewColumns.add(column);
+                }
+            }
+            if (tokens.size() > from + 2) {
+                Condition condition = Condition.parse(String.join(" ", tokens.subList(from + 3, tokens.size())));
+                if (condition == null) {
+                    throw new IllegalArgumentException("Invalid WHERE condition syntax");
+                }
+                for (String column : condition.getAttributes()) {
+                    if (!table.getColumns().contains(column)) {
+                        throw new IllegalArgumentException("Column not found in WHERE clause: " + column);
+                    }
+                }
+            }
+            bases.add(table);
+            baseNames.add(tableName);
+        } else {
+            throw new IllegalArgumentException("A view is defined by a SELECT or a JOIN");
+        }
+        if (!database.createTable(name, viewColumns)) {
+            throw new IllegalArgumentException("Table " + name + " already exists");
+        }
+        List<Source> sources = new ArrayList<>();
+        for (int side = 0; side < bases.size(); side++) {
+            // rows changed while the view fills are applied again by the first refresh
+            Table base = bases.get(side);
+            sources.add(new Source(baseNames.get(side), base.getChangeLog().getOffset(), base.getColumns()));
+        }
+        MaterializedView view = new MaterializedView(database, name, query, sources);
+        Table viewTable = database.loadedTable(name);
+        for (int side = 0; side < bases.size(); side++) {
+            Map<Integer, Map<String, String>> rows = new LinkedHashMap<>();
+            List<String> columns = bases.get(side).getColumns();
+            for (String[] cells : bases.get(side).selectCells(columns, null)) {
+                rows.put(Integer.parseInt(cells[0]), cellsByColumn(columns, cells));
+            }
+            view.apply(viewTable, side, rows);
+            if (view.joinColumns != null) {
+                // every pair was found from the left
+                break;
+            }
+        }
+        view.saveDefinition();
+        return view;
+    }
+
+    private static Table baseTable(Database database, String tableName) {
+        Table table = database.getTable(tableName);
+        if (table == null || database.isView(tableName)) {
+            throw new IllegalArgumentException("Table " + tableName + " not found");
+        }
+        if (table.getChangeLog() == null) {
+            throw new IllegalArgumentException("Table " + tableName + " has no change log to follow");
+        }
+        return table;
+    }
+
+    static MaterializedView load(Database database, File definitionFile) throws IOException {
+        List<String> lines = Files.readAllLines(definitionFile.toPath(), StandardCharsets.UTF_8);
+        List<Source> sources = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            sources.add(new Source(fields[0], Long.parseLong(fields[1]), List.of(Arrays.copyOfRange(fields, 2, fields.length))));
+        }
+        String name = definitionFile.getName().replaceAll("\\.view$", "");
+        return new MaterializedView(database, name, lines.get(0), sources);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public boolean dependsOn(String tableName) {
+        return sources.stream().anyMatch(source -> source.tableName.equalsIgnoreCase(tableName));
+    }
+
+    // applies the changes the base tables logged since the last refresh
+    synchronized void refresh() {
+        Table view = database.loadedTable(name);
+        if (view == null) {
+            return;
+        }
+        boolean refreshed = false;
+        for (int side = 0; side < sources.size(); side++) {
+            Source source = sources.get(side);
+            Table base = database.loadedTable(source.tableName);
+            if (base == null || base.getChangeLog() == null || (base.getChangeLog() == source.log && base.getChangeLog().getOffset() <= source.offset)) {
+                continue;
+            }
+            Map<Integer, Map<String, String>> changes = source.readChanges(base.getChangeLog());
+            if (!changes.isEmpty()) {
+                apply(view, side, changes);
+            }
+            refreshed = true;
+        }
+        if (refreshed) {
+            saveDefinition();
+        }
+    }
+
+    // the view rows the changed rows of one base table made are replaced by the ones they make now
+    private void apply(Table view, int side, Map<Integer, Map<String, String>> changes) {
+        Set<String> changedIds = new HashSet<>();
+        for (Integer id : changes.keySet()) {
+            changedIds.add(String.valueOf(id));
+        }
+        List<String> viewColumns = view.getColumns();
+        if (joinColumns == null) {
+            view.deleteRows("id", changedIds);
+            List<Integer> ids = new ArrayList<>();
+            List<List<String>> rows = new ArrayList<>();
+            for (Map.Entry<Integer, Map<String, String>> change : changes.entrySet()) {
+                Map<String, String> cells = change.getValue();
+                if (cells != null && (condition == null || Table.matches(condition, cells::get))) {
+                    ids.add(change.getKey());
+                    rows.add(project(viewColumns, cells, null));
+                }
+            }
+            if (!rows.isEmpty()) {
+                view.insertRows(ids.stream().mapToInt(Integer::intValue).toArray(), rows);
+            }
+            return;
+        }
+        Source source = sources.get(side);
+        Source other = sources.get(1 - side);
+        view.deleteRows(source.tableName + ".id", changedIds);
+        Map<String, List<Map<String, String>>> byKey = new LinkedHashMap<>();
+        for (Map<String, String> cells : changes.values()) {
+            if (cells != null && cells.get(joinColumns.get(side)) != null) {
+                byKey.computeIfAbsent(cells.get(joinColumns.get(side)), key -> new ArrayList<>()).add(cells);
+            }
+        }
+        Table otherTable = database.loadedTable(other.tableName);
+        if (byKey.isEmpty() || otherTable == null) {
+            return;
+        }
+        Map<String, List<Map<String, String>>> matches = otherRows(otherTable, joinColumns.get(1 - side), byKey.keySet());
+        List<List<String>> rows = new ArrayList<>();
+        for (Map.Entry<String, List<Map<String, String>>> entry : byKey.entrySet()) {
+            for (Map<String, String> cells : entry.getValue()) {
+                for (Map<String, String> otherCells : matches.getOrDefault(entry.getKey(), List.of())) {
+                    rows.add(side == 0 ? project(viewColumns, cells, otherCells) : project(viewColumns, otherCells, cells));
+                }
+            }
+        }
+        if (!rows.isEmpty()) {
+            view.insertRows(rows);
+        }
+    }
+
+    // the other table's rows whose join column holds each key, compared exactly as JOIN does
+    private static Map<String, List<Map<String, String>>> otherRows(Table table, String joinColumn, Set<String> keys) {
+        List<String> columns = table.getColumns();
+        int ordinal = columns.indexOf(joinColumn);
+        List<String[]> matches = table.selectCellsEqualTo(columns, joinColumn, keys);
+        Map<String, List<Map<String, String>>> rows = new HashMap<>();
+        for (String[] cells : matches != null ? matches : List.<String[]>of()) {
+            rows.computeIfAbsent(cells[ordinal], key -> new ArrayList<>()).add(cellsByColumn(columns, cells));
+        }
+        return rows;
+    }
+
+    private static Map<String, String> cellsByColumn(List<String> columns, String[] cells) {
+        Map<String, String> byColumn = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            byColumn.put(columns.get(i), cells[i]);
+        }
+        return byColumn;
+    }
+
+    // the view row's cells after its id. A base column dropped since the view was made reads as empty,
+    // as cells of added columns do in a table.
+    private List<String> project(List<String> viewColumns, Map<String, String> left, Map<String, String> right) {
+        List<String> row = new ArrayList<>(viewColumns.size() - 1);
+        for (String column : viewColumns.subList(1, viewColumns.size())) {
+            String value;
+            if (right == null) {
+                value = left.get(column);
+            } else {
+                String leftPrefix = sources.get(0).tableName + ".";
+                boolean fromLeft = column.startsWith(leftPrefix);
+                String baseColumn = column.substring((fromLeft ? leftPrefix : sources.get(1).tableName + ".").length());
+                value = (fromLeft ? left : right).get(baseColumn);
+            }
+            row.add(value != null ? value : "");
+        }
+        return row;
+    }
+
+    private List<String> definition() {
+        List<String> lines = new ArrayList<>();
+        lines.add(query);
+        for (Source source : sources) {
+            lines.add(source.tableName + "\t" + source.offset + "\t" + String.join("\t", source.columns));
+        }
+        return lines;
+    }
+
+    private void saveDefinition() {
+        try {
+            Path temp = Paths.get(definitionFile.getPath() + ".tmp");
+            Files.write(temp, definition(), StandardCharsets.UTF_8);
+            Files.move(temp, definitionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving view " + name + ": " + e.getMessage());
+        }
+    }
+
+    // for BACKUP: the definition goes to the folder with the version of the view's rows it is up to date
+    // with, which stays readable until the table's closeSnapshot. A restored view carries on from there.
+    synchronized long backup(Table table, File folder) throws IOException {
+        Files.write(new File(folder, definitionFile.getName()).toPath(), definition(), StandardCharsets.UTF_8);
+        long version = table.currentVersion();
+        table.openSnapshot(version);
+        return version;
+    }
+
+    synchronized void drop() {
+        for (Source source : sources) {
+            source.closeSubscription();
+        }
+        definitionFile.delete();
+    }
+}
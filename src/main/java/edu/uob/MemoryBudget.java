@@ -0,0 +1,90 @@
+package edu.uob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// per-query memory accountant. Operators reserve what they keep on the heap for the query and spill to
+// temp files under the server's .spill directory once a reservation is refused, so one big query cannot
+// take the server down. The limit comes from cwdb.query.memory.bytes, 64MB by default. The answer itself
+// can't spill, it is capped apart at cwdb.query.result.bytes, 256MB by default.
+public class MemoryBudget {
+    private static final long DEFAULT_LIMIT = 64L << 20;
+    private static final long DEFAULT_RESULT_LIMIT = 256L << 20;
+
+    private final long limit;
+    private final long resultLimit;
+    private final File spillDirectory;
+    private long reserved;
+    private long resultBytes;
+
+    // thrown when a query's answer grows past its limit
+    public static class ResultTooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ResultTooLarge(long limit) {
+            super("Result is over the " + limit + " byte limit, narrow the query", null, false, false);
+        }
+    }
+
+    public MemoryBudget(long limit, File spillDirectory) {
+        this(limit, DEFAULT_RESULT_LIMIT, spillDirectory);
+    }
+
+    public MemoryBudget(long limit, long resultLimit, File spillDirectory) {
+        this.limit = limit;
+        this.resultLimit = resultLimit;
+        this.spillDirectory = spillDirectory;
+    }
+
+    // a budget spilling under the server's storage root
+    public static MemoryBudget forQuery(File root) {
+        return new MemoryBudget(Long.getLong("cwdb.query.memory.bytes", DEFAULT_LIMIT),
+                Long.getLong("cwdb.query.result.bytes", DEFAULT_RESULT_LIMIT), new File(root, ".spill"));
+    }
+
+    // false, reserving nothing, when the query would go over its limit
+    public synchronized boolean tryReserve(long bytes) {
+        if (reserved + bytes > limit) {
+            return false;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    public synchronized void release(long bytes) {
+        reserved = Math.max(0, reserved - bytes);
+    }
+
+    // counts a line of the answer, which is held until the query is done
+    public synchronized void addResult(String line) {
+        resultBytes += sizeOf(line);
+        if (resultBytes > resultLimit) {
+            throw new ResultTooLarge(resultLimit);
+        }
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    // rough heap cost of a String held in a collection
+    public static long sizeOf(String value) {
+        return 56 + 2L * value.length();
+    }
+
+    public File spillFile(String prefix) throws IOException {
+        Files.createDirectories(spillDirectory.toPath());
+        File file = File.createTempFile(prefix, ".spill", spillDirectory);
+        file.deleteOnExit();
+        return file;
+    }
+}
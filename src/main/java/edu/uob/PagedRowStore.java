@@ -0,0 +1,319 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// rows split into pages of PAGE_ROWS, resident in the BufferPool while in use and otherwise kept in a
+// scratch file next to the table. Each page has a slot in the scratch file its evicted image is written
+// over in place; an image that outgrows its slot moves to a roomier one and leaves the old slot for other
+// pages, so the file stays around the size of the table. The .tab file stays the durable copy, the
+// scratch file is dropped.
+// A write saves only the changed rows - appended to the .tab file or to <table>.upd - so it reads just
+// their pages back. Not paged: the table's per-block ZoneMap zones (tens of bytes per block and column),
+// a tombstone bit per row, and trigram and bitmap indexes, which grow with the table; column vectors
+// have their own limit in ColumnVectors.
+public class PagedRowStore implements RowStore {
+    static final int PAGE_ROWS = 1024;
+
+    private final BufferPool pool;
+    private final File directory;
+    // guards everything below, the pool only tries it when evicting so tables never wait on each other
+    private final ReentrantLock lock;
+    private File scratchFile;
+    private RandomAccessFile scratch;
+    private long[] offsets;
+    private int[] lengths;
+    // room of each page's slot, 0 before its first eviction
+    private int[] capacities;
+    // slots no page holds any more, offset -> room, adjacent ones merged
+    private final TreeMap<Long, Integer> freeSlots;
+    private long scratchEnd;
+    private BufferPool.Frame[] resident;
+    private BufferPool.Frame lastFrame;
+    private int size;
+
+    public PagedRowStore(BufferPool pool, File directory) {
+        this.pool = pool;
+        this.directory = directory;
+        this.lock = new ReentrantLock();
+        this.offsets = new long[16];
+        this.lengths = new int[16];
+        this.capacities = new int[16];
+        this.freeSlots = new TreeMap<>();
+        this.resident = new BufferPool.Frame[16];
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Row get(int position) {
+        lock.lock();
+        try {
+            BufferPool.Frame frame = frame(position);
+            int slot = position % PAGE_ROWS;
+            return new Row(frame.lines[slot], frame.versions[slot]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Row pin(int position) {
+        lock.lock();
+        try {
+            BufferPool.Frame frame = frame(position);
+            pool.pin(frame);
+            int slot = position % PAGE_ROWS;
+            return new Row(frame.lines[slot], frame.versions[slot]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void unpin(int position, Row row, boolean dirty) {
+        lock.lock();
+        try {
+            // still resident, pinned pages are never evicted
+            BufferPool.Frame frame = resident[position / PAGE_ROWS];
+            if (dirty) {
+                int slot = position % PAGE_ROWS;
+                String line = row.toString();
+                long delta = BufferPool.Frame.sizeOf(line) - BufferPool.Frame.sizeOf(frame.lines[slot]);
+                frame.lines[slot] = line;
+                frame.versions[slot] = row.getSchemaVersion();
+                frame.dirty = true;
+                pool.unpin(frame);
+                pool.resize(frame, delta);
+            } else {
+                pool.unpin(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(Row row) {
+        lock.lock();
+        try {
+            int number = size / PAGE_ROWS;
+            BufferPool.Frame frame;
+            if (size % PAGE_ROWS == 0) {
+                ensureCapacity(number + 1);
+                offsets[number] = -1;
+                frame = new BufferPool.Frame(this, number, PAGE_ROWS);
+                frame.dirty = true;
+                resident[number] = frame;
+                pool.pin(frame);
+                pool.admit(frame);
+                pool.unpin(frame);
+            } else {
+                frame = page(number);
+            }
+            String line = row.toString();
+            frame.lines[frame.count] = line;
+            frame.versions[frame.count] = row.getSchemaVersion();
+            frame.count++;
+            frame.dirty = true;
+            size++;
+            pool.pin(frame);
+            pool.resize(frame, BufferPool.Frame.sizeOf(line));
+            pool.unpin(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RowStore without(BitSet positions) {
+        lock.lock();
+        try {
+            PagedRowStore remaining = new PagedRowStore(pool, directory);
+            for (int position = positions.nextClearBit(0); position < size; position = positions.nextClearBit(position + 1)) {
+                remaining.add(get(position));
+            }
+            close();
+            return remaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            pool.release(this);
+            Arrays.fill(resident, null);
+            lastFrame = null;
+            size = 0;
+            if (scratch != null) {
+                scratch.close();
+                scratch = null;
+                scratchFile.delete();
+            }
+            freeSlots.clear();
+            scratchEnd = 0;
+        } catch (IOException e) {
+            System.err.println("Error closing page file " + scratchFile + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called by the pool, false when the page cannot go right now
+    boolean evict(BufferPool.Frame frame) {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (frame.pins > 0) {
+                return false;
+            }
+            if (frame.dirty) {
+                writePage(frame);
+            }
+            resident[frame.number] = null;
+            if (lastFrame == frame) {
+                lastFrame = null;
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error writing page " + frame.number + " to " + scratchFile + ": " + e.getMessage());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private BufferPool.Frame frame(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Index " + position + " out of bounds for length " + size);
+        }
+        return page(position / PAGE_ROWS);
+    }
+
+    private BufferPool.Frame page(int number) {
+        BufferPool.Frame frame = lastFrame;
+        if (frame == null || frame.number != number) {
+            frame = resident[number];
+            if (frame == null) {
+                frame = readPage(number);
+                resident[number] = frame;
+                pool.pin(frame);
+                pool.admit(frame);
+                pool.unpin(frame);
+            }
+            lastFrame = frame;
+        }
+        frame.referenced = true;
+        return frame;
+    }
+
+    private void writePage(BufferPool.Frame frame) throws IOException {
+        if (scratch == null) {
+            scratchFile = File.createTempFile("rows", ".pages", directory);
+            scratchFile.deleteOnExit();
+            scratch = new RandomAccessFile(scratchFile, "rw");
+        }
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < frame.count; i++) {
+            page.append(frame.versions[i]).append('\t').append(frame.lines[i]).append('\n');
+        }
+        byte[] bytes = page.toString().getBytes(StandardCharsets.UTF_8);
+        int number = frame.number;
+        if (bytes.length > capacities[number]) {
+            if (capacities[number] > 0) {
+                free(offsets[number], capacities[number]);
+            }
+            // headroom so a page growing by a few rows at a time doesn't move on every eviction
+            capacities[number] = bytes.length + bytes.length / 4;
+            offsets[number] = allocate(capacities[number]);
+        }
+        scratch.seek(offsets[number]);
+        scratch.write(bytes);
+        lengths[number] = bytes.length;
+        frame.dirty = false;
+    }
+
+    // the first free slot with the room, what it has left over stays free. Else the end of the file.
+    private long allocate(int capacity) {
+        for (Map.Entry<Long, Integer> slot : freeSlots.entrySet()) {
+            if (slot.getValue() >= capacity) {
+                long offset = slot.getKey();
+                freeSlots.remove(offset);
+                if (slot.getValue() > capacity) {
+                    freeSlots.put(offset + capacity, slot.getValue() - capacity);
+                }
+                return offset;
+            }
+        }
+        long offset = scratchEnd;
+        scratchEnd += capacity;
+        return offset;
+    }
+
+    private void free(long offset, int capacity) {
+        Map.Entry<Long, Integer> before = freeSlots.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset && (long) before.getValue() + capacity <= Integer.MAX_VALUE) {
+            freeSlots.remove(before.getKey());
+            offset = before.getKey();
+            capacity += before.getValue();
+        }
+        Integer after = freeSlots.get(offset + capacity);
+        if (after != null && (long) after + capacity <= Integer.MAX_VALUE) {
+            freeSlots.remove(offset + capacity);
+            capacity += after;
+        }
+        if (offset + capacity == scratchEnd) {
+            // the end of the file is given back, it is written over next
+            scratchEnd = offset;
+        } else {
+            freeSlots.put(offset, capacity);
+        }
+    }
+
+    private BufferPool.Frame readPage(int number) {
+        BufferPool.Frame frame = new BufferPool.Frame(this, number, PAGE_ROWS);
+        try {
+            byte[] bytes = new byte[lengths[number]];
+            scratch.seek(offsets[number]);
+            scratch.readFully(bytes);
+            String page = new String(bytes, StandardCharsets.UTF_8);
+            int start = 0;
+            while (start < page.length()) {
+                int tab = page.indexOf('\t', start);
+                int end = page.indexOf('\n', tab);
+                frame.versions[frame.count] = Integer.parseInt(page.substring(start, tab));
+                frame.lines[frame.count] = page.substring(tab + 1, end);
+                frame.bytes += BufferPool.Frame.sizeOf(frame.lines[frame.count]);
+                frame.count++;
+                start = end + 1;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading page " + number + " from " + scratchFile, e);
+        }
+        return frame;
+    }
+
+    private void ensureCapacity(int pages) {
+        if (pages > offsets.length) {
+            int capacity = Math.max(pages, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            capacities = Arrays.copyOf(capacities, capacity);
+            resident = Arrays.copyOf(resident, capacity);
+        }
+    }
+}
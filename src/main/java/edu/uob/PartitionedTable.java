@@ -0,0 +1,530 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+// CREATE TABLE ... PARTITION BY HASH(<column>) INTO <n> - rows are spread over n partitions by the hash
+// of the key column, each an ordinary Table with its own file, indexes and compaction under
+// <table>.parts/. Partitions load, scan and write in parallel, and an == on the key only visits the
+// partition holding that value. <table>.partition records the key column and the partition count.
+public class PartitionedTable extends Table {
+    static final String DEFINITION_SUFFIX = ".partition";
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "partition-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final File definitionFile;
+    private final File partitionFolder;
+    private final String partitionKey;
+    private final List<Table> partitions;
+    // ordinal of the key column, moved by ALTERs of the columns before it
+    private volatile int keyOrdinal;
+    private int nextId;
+
+    public PartitionedTable(String name, List<String> columns, File definitionFile, String partitionKey, int partitionCount) {
+        super(name, columns);
+        this.definitionFile = definitionFile;
+        this.partitionFolder = partitionFolder(definitionFile);
+        this.partitionKey = partitionKey;
+        partitionFolder.mkdirs();
+        try {
+            Files.write(definitionFile.toPath(), List.of("HASH\t" + partitionKey + "\t" + partitionCount));
+        } catch (IOException e) {
+            System.err.println("Error saving partitioning of table " + name + ": " + e.getMessage());
+        }
+        this.partitions = inParallel(partitionCount, index -> new Table(name, columns, partitionFile(index)));
+        this.keyOrdinal = columns.indexOf(partitionKey);
+        this.nextId = 1;
+        shareChangeLog();
+    }
+
+    public PartitionedTable(String name, File definitionFile) {
+        super(name, List.of("id"));
+        this.definitionFile = definitionFile;
+        this.partitionFolder = partitionFolder(definitionFile);
+        String[] definition = readDefinition(definitionFile);
+        this.partitionKey = definition[1];
+        this.partitions = inParallel(Integer.parseInt(definition[2]), index -> new Table(name, partitionFile(index)));
+        this.keyOrdinal = getColumns().indexOf(partitionKey);
+        this.nextId = 1;
+        for (Table partition : partitions) {
+            nextId = Math.max(nextId, partition.nextId());
+        }
+        shareChangeLog();
+    }
+
+    // one feed for the whole table in <table>.changes, the partitions append to it
+    private void shareChangeLog() {
+        String baseName = definitionFile.getName().replaceAll("\\.partition$", "");
+        ChangeLog changeLog = new ChangeLog(new File(definitionFile.getParentFile(), baseName + ".changes"), this);
+        shareChangeLog(changeLog);
+        for (Table partition : partitions) {
+            partition.shareChangeLog(changeLog);
+        }
+    }
+
+    private static String[] readDefinition(File definitionFile) {
+        try {
+            String[] definition = Files.readAllLines(definitionFile.toPath()).get(0).split("\t");
+            if (definition.length == 3 && definition[0].equals("HASH")) {
+                return definition;
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            System.err.println("Error loading partitioning " + definitionFile + ": " + e.getMessage());
+        }
+        throw new IllegalStateException("Unreadable partitioning " + definitionFile);
+    }
+
+    private static File partitionFolder(File definitionFile) {
+        String baseName = definitionFile.getName().replaceAll("\\.partition$", "");
+        return new File(definitionFile.getParentFile(), baseName + ".parts");
+    }
+
+    private File partitionFile(int index) {
+        return new File(partitionFolder, "p" + index + ".tab");
+    }
+
+    // runs the task for each index on the worker pool, results in index order
+    private static <T> List<T> inParallel(int count, Function<Integer, T> task) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int partition = index;
+            futures.add(CompletableFuture.supplyAsync(QueryContext.carry(() -> task.apply(partition)), WORKERS));
+        }
+        List<T> results = new ArrayList<>(count);
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return results;
+    }
+
+    // the task run on each of the given partitions, in parallel
+    private <T> List<T> onPartitions(BitSet selected, Function<Table, T> task) {
+        int[] indexes = selected.stream().toArray();
+        return inParallel(indexes.length, i -> task.apply(partitions.get(indexes[i])));
+    }
+
+    private BitSet allPartitions() {
+        BitSet all = new BitSet(partitions.size());
+        all.set(0, partitions.size());
+        return all;
+    }
+
+    // numbers are hashed by their equality key, so "65" and "65.0" land in the same partition as == expects
+    private int partitionOf(String value) {
+        return Math.floorMod(equalityKey(value).hashCode(), partitions.size());
+    }
+
+    // the partitions that can hold rows satisfying the comparison
+    private BitSet prune(String conditionAttribute, String comparator, String conditionValue) {
+        if (!comparator.equals("==") || !conditionAttribute.equals(partitionKey)) {
+            return allPartitions();
+        }
+        BitSet selected = new BitSet(partitions.size());
+        selected.set(partitionOf(unquote(conditionValue)));
+        return selected;
+    }
+
+    private BitSet prune(Condition condition) {
+        if (condition.isComparison()) {
+            return prune(condition.getAttribute(), condition.getComparator(), condition.getValue());
+        }
+        BitSet selected = prune(condition.getLeft());
+        if (condition.getOperator().equals("OR")) {
+            selected.or(prune(condition.getRight()));
+        } else {
+            selected.and(prune(condition.getRight()));
+        }
+        // contradictory equalities match nothing, one partition still checks the columns exist
+        if (selected.isEmpty()) {
+            selected.set(0);
+        }
+        return selected;
+    }
+
+    @Override
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    @Override
+    public List<String> getColumns() {
+        return partitions.get(0).getColumns();
+    }
+
+    @Override
+    public int rowCount() {
+        int count = 0;
+        for (Table partition : partitions) {
+            count += partition.rowCount();
+        }
+        return count;
+    }
+
+    // ids ascend within every partition, which is what an id lookup in each of them needs
+    @Override
+    public boolean isClusteredById() {
+        for (Table partition : partitions) {
+            if (!partition.isClusteredById()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized List<String> analyze() {
+        onPartitions(allPartitions(), Table::analyze);
+        // the live positions of each partition, read in place one after the other. Writes come through
+        // this table's lock, so they stay put until the statistics are done.
+        int[][] live = new int[partitions.size()][];
+        int[] starts = new int[partitions.size() + 1];
+        for (int p = 0; p < partitions.size(); p++) {
+            live[p] = partitions.get(p).livePositions();
+            starts[p + 1] = starts[p] + live[p].length;
+        }
+        int rowCount = starts[partitions.size()];
+        List<String> columns = getColumns();
+        getStatistics().analyze(rowCount, columns.size(), ordinal -> index -> {
+            int p = Arrays.binarySearch(starts, index);
+            // an index starting a partition also ends any empty ones before it
+            if (p >= 0) {
+                while (starts[p + 1] == index) {
+                    p++;
+                }
+            } else {
+                p = -p - 2;
+            }
+            return partitions.get(p).cellAt(live[p][index - starts[p]], ordinal);
+        });
+        List<String> results = new ArrayList<>();
+        results.add("column\tdistinct\tnulls");
+        for (int ordinal = 0; ordinal < columns.size(); ordinal++) {
+            results.add(columns.get(ordinal) + "\t" + getStatistics().distinctValues(ordinal, rowCount) + "\t" + getStatistics().nullCount(ordinal));
+        }
+        return results;
+    }
+
+    private void recordWrites(int count) {
+        getStatistics().recordWrites(count);
+        if (getStatistics().needsAnalyze()) {
+            analyze();
+        }
+    }
+
+    @Override
+    public synchronized boolean addBloomFilter(String column, double falsePositiveRate) {
+        return !onPartitions(allPartitions(), partition -> partition.addBloomFilter(column, falsePositiveRate)).contains(false);
+    }
+
+    @Override
+    List<Table> joinParts() {
+        return partitions;
+    }
+
+    // a JOIN reads the partitions one after the other, only a single one is in id order
+    @Override
+    public boolean joinsInIdOrder() {
+        return partitions.size() == 1 && partitions.get(0).isClusteredById();
+    }
+
+    // on the key column only the partition the value hashes to is asked
+    @Override
+    public boolean mightContain(int ordinal, String value) {
+        if (ordinal == keyOrdinal) {
+            return partitions.get(partitionOf(value)).mightContain(ordinal, value);
+        }
+        for (Table partition : partitions) {
+            if (partition.mightContain(ordinal, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean addTrigramIndex(String column) {
+        return !onPartitions(allPartitions(), partition -> partition.addTrigramIndex(column)).contains(false);
+    }
+
+    @Override
+    public boolean hasTrigramIndex(String column) {
+        return partitions.get(0).hasTrigramIndex(column);
+    }
+
+    @Override
+    public synchronized boolean addBitmapIndex(String column) {
+        return !onPartitions(allPartitions(), partition -> partition.addBitmapIndex(column)).contains(false);
+    }
+
+    @Override
+    public boolean hasBitmapIndex(String column) {
+        return partitions.get(0).hasBitmapIndex(column);
+    }
+
+    // rows come back partition by partition, each partition's in row order
+    @Override
+    public List<String> selectRows(List<String> selectedColumns) {
+        // one version for every partition, they share the change log it counts in
+        return selectRowsAsOf(selectedColumns, null, currentVersion());
+    }
+
+    @Override
+    public List<String> selectRowsAsOf(List<String> selectedColumns, Condition condition, long version) {
+        List<List<String>> results = onPartitions(condition == null ? allPartitions() : prune(condition),
+                partition -> partition.selectRowsAsOf(selectedColumns, condition, version));
+        for (List<String> result : results) {
+            if (result.get(0).startsWith("[ERROR]")) {
+                return result;
+            }
+        }
+        return concatenate(results);
+    }
+
+    // the partitions read every version in the shared log's numbering
+    @Override
+    void openSnapshot(long version) {
+        for (Table partition : partitions) {
+            partition.openSnapshot(version);
+        }
+    }
+
+    @Override
+    void closeSnapshot(long version) {
+        for (Table partition : partitions) {
+            partition.closeSnapshot(version);
+        }
+    }
+
+    // the partitioning, then each partition's rows under <table>.parts/, written in parallel
+    @Override
+    long backup(File folder, long version) throws IOException {
+        Files.copy(definitionFile.toPath(), new File(folder, definitionFile.getName()).toPath());
+        File parts = new File(folder, partitionFolder.getName());
+        Files.createDirectories(parts.toPath());
+        try {
+            long rows = 0;
+            for (long written : onPartitions(allPartitions(), partition -> {
+                try {
+                    return partition.backup(parts, version);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })) {
+                rows += written;
+            }
+            return rows;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // the partitions kept versions from when each was opened, the latest of those holds for all
+    @Override
+    public long oldestVersion() {
+        long oldest = 0;
+        for (Table partition : partitions) {
+            oldest = Math.max(oldest, partition.oldestVersion());
+        }
+        return oldest;
+    }
+
+    @Override
+    public List<String> selectRows(List<String> selectedColumns, String conditionAttribute, String comparator, String conditionValue,
+                                   Planner.ScanStrategy strategy) {
+        return concatenate(onPartitions(prune(conditionAttribute, comparator, conditionValue),
+                partition -> partition.selectRows(selectedColumns, conditionAttribute, comparator, conditionValue, strategy)));
+    }
+
+    @Override
+    public List<String> selectRows(List<String> selectedColumns, Condition condition) {
+        return concatenate(onPartitions(prune(condition), partition -> partition.selectRows(selectedColumns, condition)));
+    }
+
+    @Override
+    public List<String[]> selectCells(List<String> selectedColumns, Condition condition) {
+        List<List<String[]>> results = onPartitions(condition == null ? allPartitions() : prune(condition),
+                partition -> partition.selectCells(selectedColumns, condition));
+        if (results.get(0) == null) {
+            return null;
+        }
+        List<String[]> combined = new ArrayList<>();
+        results.forEach(combined::addAll);
+        return combined;
+    }
+
+    @Override
+    public List<String[]> selectCellsEqualTo(List<String> selectedColumns, String column, Set<String> values) {
+        List<List<String[]>> results = onPartitions(allPartitions(), partition -> partition.selectCellsEqualTo(selectedColumns, column, values));
+        if (results.get(0) == null) {
+            return null;
+        }
+        List<String[]> combined = new ArrayList<>();
+        results.forEach(combined::addAll);
+        return combined;
+    }
+
+    // every partition answers with the same header, or the same error
+    private static List<String> concatenate(List<List<String>> results) {
+        if (results.get(0).isEmpty() || results.get(0).get(0).startsWith("[ERROR]")) {
+            return results.get(0);
+        }
+        int size = 1;
+        for (List<String> result : results) {
+            size += result.size() - 1;
+        }
+        List<String> combined = new ArrayList<>(size);
+        combined.add(results.get(0).get(0));
+        for (List<String> result : results) {
+            combined.addAll(result.subList(1, result.size()));
+        }
+        return combined;
+    }
+
+    @Override
+    public synchronized int deleteRows(String conditionAttribute, String comparator, String conditionValue, Planner.ScanStrategy strategy) {
+        return sum(onPartitions(prune(conditionAttribute, comparator, conditionValue),
+                partition -> partition.deleteRows(conditionAttribute, comparator, conditionValue, strategy)));
+    }
+
+    @Override
+    public synchronized int deleteRows(Condition condition) {
+        return sum(onPartitions(prune(condition), partition -> partition.deleteRows(condition)));
+    }
+
+    @Override
+    public synchronized int updateRows(Map<String, Expression> updates, String conditionAttribute, String comparator, String conditionValue,
+                                       Planner.ScanStrategy strategy) {
+        if (updates.containsKey(partitionKey)) {
+            return -1;
+        }
+        return sum(onPartitions(prune(conditionAttribute, comparator, conditionValue),
+                partition -> partition.updateRows(updates, conditionAttribute, comparator, conditionValue, strategy)));
+    }
+
+    @Override
+    public synchronized int updateRows(Map<String, Expression> updates, Condition condition) {
+        if (updates.containsKey(partitionKey)) {
+            return -1;
+        }
+        return sum(onPartitions(prune(condition), partition -> partition.updateRows(updates, condition)));
+    }
+
+    // -1 from any partition means a column was missing
+    private int sum(List<Integer> counts) {
+        int total = 0;
+        for (int count : counts) {
+            if (count < 0) {
+                return -1;
+            }
+            total += count;
+        }
+        recordWrites(total);
+        return total;
+    }
+
+    @Override
+    public synchronized boolean insertRow(List<String> values) {
+        List<String> columns = getColumns();
+        if (values.size() != columns.size() - 1) {
+            return false;
+        }
+        int id = nextId++;
+        String key = keyOrdinal == 0 ? String.valueOf(id) : values.get(keyOrdinal - 1);
+        if (!partitions.get(partitionOf(key)).insertRow(id, values)) {
+            return false;
+        }
+        for (int ordinal = 0; ordinal < columns.size(); ordinal++) {
+            getStatistics().recordValue(ordinal, ordinal == 0 ? String.valueOf(id) : values.get(ordinal - 1));
+        }
+        recordWrites(1);
+        return true;
+    }
+
+    // each partition takes its share of the batch in one write, the partitions in parallel
+    @Override
+    public synchronized boolean insertRows(List<List<String>> rows) {
+        List<String> columns = getColumns();
+        for (List<String> values : rows) {
+            if (values.size() != columns.size() - 1) {
+                return false;
+            }
+        }
+        List<List<Integer>> ids = new ArrayList<>();
+        List<List<List<String>>> shares = new ArrayList<>();
+        for (int p = 0; p < partitions.size(); p++) {
+            ids.add(new ArrayList<>());
+            shares.add(new ArrayList<>());
+        }
+        for (List<String> values : rows) {
+            int id = nextId++;
+            int partition = partitionOf(keyOrdinal == 0 ? String.valueOf(id) : values.get(keyOrdinal - 1));
+            ids.get(partition).add(id);
+            shares.get(partition).add(values);
+            for (int ordinal = 0; ordinal < columns.size(); ordinal++) {
+                getStatistics().recordValue(ordinal, ordinal == 0 ? String.valueOf(id) : values.get(ordinal - 1));
+            }
+        }
+        BitSet touched = new BitSet(partitions.size());
+        for (int p = 0; p < partitions.size(); p++) {
+            touched.set(p, !shares.get(p).isEmpty());
+        }
+        List<Boolean> inserted = onPartitions(touched, partition -> {
+            int p = partitions.indexOf(partition);
+            return partition.insertRows(ids.get(p).stream().mapToInt(Integer::intValue).toArray(), shares.get(p));
+        });
+        recordWrites(rows.size());
+        return !inserted.contains(false);
+    }
+
+    @Override
+    public synchronized boolean addColumn(String attributeName) {
+        if (getColumns().contains(attributeName) || attributeName.equalsIgnoreCase("id")) {
+            return false;
+        }
+        getStatistics().reset();
+        boolean added = !onPartitions(allPartitions(), partition -> partition.addColumn(attributeName)).contains(false);
+        getChangeLog().schema(this, getColumns());
+        return added;
+    }
+
+    // the key column decides where every row lives, so it stays
+    @Override
+    public synchronized boolean dropColumn(String attributeName) {
+        if (attributeName.equals(partitionKey) || !getColumns().contains(attributeName) || attributeName.equalsIgnoreCase("id")) {
+            return false;
+        }
+        getStatistics().reset();
+        boolean dropped = !onPartitions(allPartitions(), partition -> partition.dropColumn(attributeName)).contains(false);
+        keyOrdinal = getColumns().indexOf(partitionKey);
+        getChangeLog().schema(this, getColumns());
+        return dropped;
+    }
+
+    @Override
+    public synchronized boolean deleteTableFile() {
+        boolean deleted = !onPartitions(allPartitions(), Table::deleteTableFile).contains(false);
+        getChangeLog().drop(this);
+        File[] leftovers = partitionFolder.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+        return partitionFolder.delete() && definitionFile.delete() && deleted;
+    }
+}
@@ -0,0 +1,97 @@
+package edu.uob;
+
+import java.util.List;
+
+// picks an execution strategy for WHERE scans and JOINs from the table statistics
+public class Planner {
+    // above this estimated selectivity most blocks qualify anyway, so zone checks are wasted
+    private static final double ZONE_MAP_SELECTIVITY = 0.5;
+    // relative cost of inserting a row into a hash table compared to probing it
+    private static final double HASH_BUILD_COST = 3.0;
+
+    public enum ScanStrategy {
+        FULL_SCAN,
+        ZONE_MAP_SCAN,
+        // binary search over rows clustered by id
+        INDEX_LOOKUP,
+        // LIKE candidates from a trigram index, verified row by row
+        TRIGRAM_LOOKUP,
+        // == and != answered from a bitmap index without reading the rows
+        BITMAP_LOOKUP
+    }
+
+    public enum JoinStrategy {
+        NESTED_LOOP,
+        HASH_JOIN,
+        MERGE_JOIN
+    }
+
+    public static class JoinPlan {
+        private final JoinStrategy strategy;
+        private final boolean buildLeft;
+
+        JoinPlan(JoinStrategy strategy, boolean buildLeft) {
+            this.strategy = strategy;
+            this.buildLeft = buildLeft;
+        }
+
+        public JoinStrategy getStrategy() {
+            return strategy;
+        }
+
+        // for hash joins, whether the hash table is built on the first table
+        public boolean isBuildLeft() {
+            return buildLeft;
+        }
+
+        @Override
+        public String toString() {
+            return strategy == JoinStrategy.HASH_JOIN ? strategy + (buildLeft ? " (build left)" : " (build right)") : strategy.toString();
+        }
+    }
+
+    public static ScanStrategy planScan(Table table, String conditionAttribute, String comparator, String conditionValue) {
+        if (comparator.equals("LIKE") && table.hasTrigramIndex(conditionAttribute)
+                && TrigramIndex.isSearchable(Table.unquote(conditionValue))) {
+            return ScanStrategy.TRIGRAM_LOOKUP;
+        }
+        if ((comparator.equals("==") || comparator.equals("!=")) && table.hasBitmapIndex(conditionAttribute)) {
+            return ScanStrategy.BITMAP_LOOKUP;
+        }
+        boolean rangeOrEquality = List.of("==", ">", ">=", "<", "<=").contains(comparator);
+        if (!rangeOrEquality) {
+            return ScanStrategy.FULL_SCAN;
+        }
+        int ordinal = table.getColumns().indexOf(conditionAttribute);
+        if (ordinal == 0 && table.isClusteredById()) {
+            return ScanStrategy.INDEX_LOOKUP;
+        }
+        double selectivity = table.getStatistics().selectivity(ordinal, comparator, conditionValue, table.rowCount());
+        if (selectivity > ZONE_MAP_SELECTIVITY) {
+            return ScanStrategy.FULL_SCAN;
+        }
+        return ScanStrategy.ZONE_MAP_SCAN;
+    }
+
+    public static JoinPlan planJoin(Table left, String leftAttribute, Table right, String rightAttribute) {
+        int leftOrdinal = left.getColumns().indexOf(leftAttribute);
+        int rightOrdinal = right.getColumns().indexOf(rightAttribute);
+        if (leftOrdinal == 0 && rightOrdinal == 0 && left.joinsInIdOrder() && right.joinsInIdOrder()) {
+            return new JoinPlan(JoinStrategy.MERGE_JOIN, false);
+        }
+        double leftRows = left.rowCount();
+        double rightRows = right.rowCount();
+        long leftDistinct = left.getStatistics().distinctValues(leftOrdinal, left.rowCount());
+        long rightDistinct = right.getStatistics().distinctValues(rightOrdinal, right.rowCount());
+        double output = leftRows * rightRows / Math.max(1, Math.max(leftDistinct, rightDistinct));
+
+        double nestedLoopCost = leftRows * rightRows;
+        double buildRightCost = HASH_BUILD_COST * rightRows + leftRows + output;
+        // building on the left emits matches in probe order, which then have to be sorted back
+        double buildLeftCost = HASH_BUILD_COST * leftRows + rightRows + output * Math.max(1, Math.log(output) / Math.log(2));
+        if (nestedLoopCost <= Math.min(buildLeftCost, buildRightCost)) {
+            return new JoinPlan(JoinStrategy.NESTED_LOOP, false);
+        }
+        return new JoinPlan(JoinStrategy.HASH_JOIN, buildLeftCost < buildRightCost);
+    }
+}
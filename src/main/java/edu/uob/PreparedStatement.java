@@ -0,0 +1,200 @@
+package edu.uob;
+
+import java.util.*;
+
+// a SELECT, INSERT, UPDATE or DELETE parsed once by PREPARE, with ? in place of the values bound by
+// each EXECUTE. Parameters are numbered in the order they are written: INSERT values or SET values
+// first, then those of the WHERE clause.
+public class PreparedStatement {
+    public static final String PARAMETER = "?";
+
+    private final String command;
+    private final String tableName;
+    // SELECT projection, null for *
+    private final List<String> columns;
+    // INSERT values as written, string literals keep their quotes
+    private final List<String> values;
+    private final Map<String, Expression> updates;
+    // null when there is no WHERE clause
+    private final Condition condition;
+    private final int parameterCount;
+
+    private PreparedStatement(String command, String tableName, List<String> columns, List<String> values,
+                              Map<String, Expression> updates, Condition condition) {
+        this.command = command;
+        this.tableName = tableName;
+        this.columns = columns;
+        this.values = values;
+        this.updates = updates;
+        this.condition = condition;
+        int count = condition == null ? 0 : condition.countParameters();
+        for (String value : values) {
+            count += value.equals(PARAMETER) ? 1 : 0;
+        }
+        for (Expression value : updates.values()) {
+            count += value.countParameters();
+        }
+        this.parameterCount = count;
+    }
+
+    // null when the statement is not one that can be prepared, or is malformed
+    public static PreparedStatement parse(String statement) {
+        List<String> tokens = QueryParser.tokenize(statement);
+        switch (tokens.get(0).toUpperCase()) {
+            case "SELECT":
+                return parseSelect(tokens);
+            case "INSERT":
+                return parseInsert(statement, tokens);
+            case "UPDATE":
+                return parseUpdate(statement, tokens);
+            case "DELETE":
+                return parseDelete(tokens);
+            default:
+                return null;
+        }
+    }
+
+    private static PreparedStatement parseSelect(List<String> tokens) {
+        int fromIndex = indexOf(tokens, "FROM", 1);
+        if (fromIndex < 2 || tokens.size() <= fromIndex + 1) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : String.join(" ", tokens.subList(1, fromIndex)).split(",")) {
+            columns.add(column.trim());
+        }
+        if (columns.equals(List.of("*"))) {
+            columns = null;
+        }
+        Condition condition = null;
+        if (tokens.size() > fromIndex + 2) {
+            condition = parseWhere(tokens, fromIndex + 2);
+            if (condition == null) {
+                return null;
+            }
+        }
+        return new PreparedStatement("SELECT", tokens.get(fromIndex + 1).toLowerCase(), columns, List.of(), Map.of(), condition);
+    }
+
+    private static PreparedStatement parseInsert(String statement, List<String> tokens) {
+        if (tokens.size() < 4 || !tokens.get(1).equalsIgnoreCase("INTO")) {
+            return null;
+        }
+        int valuesPos = statement.toUpperCase().indexOf("VALUES");
+        int start = valuesPos == -1 ? -1 : statement.indexOf('(', valuesPos);
+        int end = statement.lastIndexOf(')');
+        if (start == -1 || end <= start) {
+            return null;
+        }
+        List<String> values = QueryParser.splitValues(statement.substring(start + 1, end).trim());
+        for (String value : values) {
+            if (!value.equals(PARAMETER) && !QueryParser.isLiteral(value)) {
+                return null;
+            }
+        }
+        return new PreparedStatement("INSERT", tokens.get(2).toLowerCase(), null, values, Map.of(), null);
+    }
+
+    private static PreparedStatement parseUpdate(String statement, List<String> tokens) {
+        int setIndex = statement.toUpperCase().indexOf(" SET ");
+        int whereIndex = statement.toUpperCase().indexOf(" WHERE ");
+        if (setIndex == -1 || whereIndex < setIndex) {
+            return null;
+        }
+        Map<String, Expression> updates = new LinkedHashMap<>();
+        for (String pair : QueryParser.splitValues(statement.substring(setIndex + 5, whereIndex))) {
+            String[] keyValue = pair.split("=", 2);
+            Expression value = keyValue.length == 2 ? Expression.parse(keyValue[1].trim()) : null;
+            if (value == null || keyValue[0].trim().equalsIgnoreCase("id")) {
+                return null;
+            }
+            updates.put(keyValue[0].trim(), value);
+        }
+        Condition condition = Condition.parse(statement.substring(whereIndex + 7).trim());
+        if (condition == null) {
+            return null;
+        }
+        return new PreparedStatement("UPDATE", tokens.get(1).toLowerCase(), null, List.of(), updates, condition);
+    }
+
+    private static PreparedStatement parseDelete(List<String> tokens) {
+        if (tokens.size() < 5 || !tokens.get(1).equalsIgnoreCase("FROM") || !tokens.get(3).equalsIgnoreCase("WHERE")) {
+            return null;
+        }
+        Condition condition = parseWhere(tokens, 3);
+        if (condition == null) {
+            return null;
+        }
+        return new PreparedStatement("DELETE", tokens.get(2).toLowerCase(), null, List.of(), Map.of(), condition);
+    }
+
+    private static Condition parseWhere(List<String> tokens, int whereIndex) {
+        if (!tokens.get(whereIndex).equalsIgnoreCase("WHERE")) {
+            return null;
+        }
+        return Condition.parse(String.join(" ", tokens.subList(whereIndex + 1, tokens.size())));
+    }
+
+    private static int indexOf(List<String> tokens, String keyword, int from) {
+        for (int i = from; i < tokens.size(); i++) {
+            if (tokens.get(i).equalsIgnoreCase(keyword)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    // INSERT values with the parameters bound, quotes removed
+    public List<String> bindValues(List<String> parameters) {
+        Iterator<String> next = parameters.iterator();
+        List<String> bound = new ArrayList<>(values.size());
+        for (String value : values) {
+            bound.add(Table.unquote(value.equals(PARAMETER) ? next.next() : value));
+        }
+        return bound;
+    }
+
+    // UPDATE assignments with the SET parameters bound
+    public Map<String, Expression> bindUpdates(List<String> parameters) {
+        Iterator<String> next = parameters.iterator();
+        Map<String, Expression> bound = new LinkedHashMap<>();
+        for (Map.Entry<String, Expression> update : updates.entrySet()) {
+            bound.put(update.getKey(), update.getValue().bind(next));
+        }
+        return bound;
+    }
+
+    // the columns read by the SET expressions
+    public List<String> getUpdateColumns() {
+        List<String> columns = new ArrayList<>();
+        for (Expression value : updates.values()) {
+            columns.addAll(value.getColumns());
+        }
+        return columns;
+    }
+
+    // the WHERE clause with its parameters bound, they follow those of the values or assignments
+    public Condition bindCondition(List<String> parameters) {
+        if (condition == null) {
+            return null;
+        }
+        int skipped = parameterCount - condition.countParameters();
+        return condition.bind(parameters.subList(skipped, parameters.size()).iterator());
+    }
+}
@@ -0,0 +1,128 @@
+package edu.uob;
+
+import java.util.function.Supplier;
+
+// a running statement: what SHOW QUERIES lists and CANCEL stops. Scans and joins call checkpoint() as
+// they go, which ends the statement by throwing Cancelled once it has been cancelled or has run past its
+// timeout. Only reads are cancellable - a write runs to the end once started, so no table is left half
+// updated.
+public class QueryContext {
+    private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<>();
+    // rows between checks in the loops that call checkpoint(int)
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final int id;
+    private final String sessionId;
+    private final String statement;
+    private final long startedAt;
+    private final long timeoutMillis;
+    private final boolean cancellable;
+    private volatile String cancelReason;
+
+    // thrown through the scan or join that noticed, and answered as an [ERROR]
+    public static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    QueryContext(int id, String sessionId, String statement, long timeoutMillis, boolean cancellable) {
+        this.id = id;
+        this.sessionId = sessionId;
+        this.statement = statement;
+        this.startedAt = System.nanoTime();
+        this.timeoutMillis = timeoutMillis;
+        this.cancellable = cancellable;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public boolean isCancellable() {
+        return cancellable;
+    }
+
+    public long elapsedMillis() {
+        return (System.nanoTime() - startedAt) / 1_000_000;
+    }
+
+    // time left before the timeout, Long.MAX_VALUE without one
+    public long remainingMillis() {
+        return timeoutMillis > 0 ? timeoutMillis - elapsedMillis() : Long.MAX_VALUE;
+    }
+
+    public void cancel() {
+        cancelReason = "Query cancelled";
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    public void check() {
+        if (!cancellable) {
+            return;
+        }
+        if (cancelReason != null) {
+            throw new Cancelled(cancelReason);
+        }
+        if (timeoutMillis > 0 && elapsedMillis() >= timeoutMillis) {
+            throw new Cancelled("Query timed out after " + timeoutMillis + " ms");
+        }
+    }
+
+    // the statement the calling thread is running, null outside one
+    public static QueryContext current() {
+        return CURRENT.get();
+    }
+
+    static void enter(QueryContext query) {
+        CURRENT.set(query);
+    }
+
+    static void exit() {
+        CURRENT.remove();
+    }
+
+    public static void checkpoint() {
+        QueryContext query = CURRENT.get();
+        if (query != null) {
+            query.check();
+        }
+    }
+
+    // for tight loops: only every CHECK_INTERVAL-th iteration looks at the statement
+    public static void checkpoint(int iteration) {
+        if (iteration % CHECK_INTERVAL == 0) {
+            checkpoint();
+        }
+    }
+
+    // work handed to another thread keeps checking the statement it was started for
+    static <T> Supplier<T> carry(Supplier<T> task) {
+        QueryContext query = CURRENT.get();
+        if (query == null) {
+            return task;
+        }
+        return () -> {
+            QueryContext previous = CURRENT.get();
+            CURRENT.set(query);
+            try {
+                return task.get();
+            } finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+}
@@ -12,6 +12,38 @@ public class QueryParser {
         return Arrays.asList(query.trim().split("\\s+"));
     }
 
+    // splits a VALUES list on commas outside quotes, the quotes are preserved
+    public static List<String> splitValues(String valuesPart) {
+        List<String> values = new ArrayList<>();
+        StringBuilder currentValue = new StringBuilder();
+        boolean insideQuotes = false;
+        for (int i = 0; i < valuesPart.length(); i++) {
+            char c = valuesPart.charAt(i);
+            if (c == '\'') {
+                insideQuotes = !insideQuotes;
+                currentValue.append(c);
+            } else if (c == ',' && !insideQuotes) {
+                values.add(currentValue.toString().trim());
+                currentValue.setLength(0);
+            } else {
+                currentValue.append(c);
+            }
+        }
+        if (currentValue.length() > 0) {
+            values.add(currentValue.toString().trim());
+        }
+        return values;
+    }
+
+    // a quoted string, a number, a boolean or NULL
+    public static boolean isLiteral(String value) {
+        if (value.startsWith("'") && value.endsWith("'") && value.length() >= 2) {
+            return true;
+        }
+        return value.matches("[+-]?\\d+(\\.\\d+)?") || value.equalsIgnoreCase("TRUE")
+                || value.equalsIgnoreCase("FALSE") || value.equalsIgnoreCase("NULL");
+    }
+
     public static boolean isValidQuery(String query) {
         query = query.trim().toUpperCase();
         if (!query.endsWith(";")) {
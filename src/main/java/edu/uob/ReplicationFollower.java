@@ -0,0 +1,211 @@
+package edu.uob;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// follower side of statement replication. Keeps a connection to the leader, reconnecting when it drops,
+// and replays each record through a session of its own mirroring the leader session that ran it, so
+// USE and PREPARE carry over to the writes that follow, until the leader reports the session closed.
+// The last applied position is kept under the storage root and a restarted follower asks the leader to
+// resume from there. Before a row write runs, the position file also records the change log offset of
+// the table it writes: a follower that stopped mid-record finds the offset moved if the write went in,
+// and then doesn't apply it twice.
+public class ReplicationFollower implements Closeable {
+    static final String POSITION_FILE = ".replica";
+    private static final long RETRY_MILLIS = 200;
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    private final ServerContext context;
+    private final String host;
+    private final int port;
+    private final File positionFile;
+    private final Map<String, ManageCommand> sessions;
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private volatile boolean connected;
+    private volatile long applied;
+    private volatile long leaderPosition;
+    // when the leader committed the last record applied here
+    private volatile long appliedCommittedAt;
+
+    public ReplicationFollower(ServerContext context, String host, int port) {
+        this.context = context;
+        this.host = host;
+        this.port = port;
+        this.positionFile = new File(context.getRoot(), POSITION_FILE);
+        this.sessions = new HashMap<>();
+        this.applied = readPosition();
+        this.leaderPosition = applied;
+        this.thread = new Thread(this::follow, "replication-follower");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public String getLeaderAddress() {
+        return host + ":" + port;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getApplied() {
+        return applied;
+    }
+
+    public long getLeaderPosition() {
+        return leaderPosition;
+    }
+
+    // statements the leader has committed that aren't applied here yet
+    public long getLag() {
+        return Math.max(0, leaderPosition - applied);
+    }
+
+    // while behind, how long ago the leader committed the last statement applied here, 0 when caught up
+    public long getLagMillis() {
+        return getLag() == 0 ? 0 : Math.max(0, System.currentTimeMillis() - appliedCommittedAt);
+    }
+
+    // waits until the record at a position is applied, false on timeout
+    public synchronized boolean awaitPosition(long position, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (applied < position) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private void follow() {
+        long retry = RETRY_MILLIS;
+        while (!closed) {
+            try (Socket connection = new Socket(host, port);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+                socket = connection;
+                writer.write("FOLLOW " + (applied + 1));
+                writer.newLine();
+                writer.flush();
+                connected = true;
+                retry = RETRY_MILLIS;
+                System.out.println("Following leader " + getLeaderAddress() + " from position " + (applied + 1));
+                for (String line = reader.readLine(); line != null && !closed; line = reader.readLine()) {
+                    if (receive(line)) {
+                        writer.write("ACK " + applied);
+                        writer.newLine();
+                        writer.flush();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    System.err.println("Lost leader " + getLeaderAddress() + ": " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(retry);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retry = Math.min(retry * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    // true when the line was a record that has now been applied
+    private boolean receive(String line) {
+        String[] fields = line.split("\t", 5);
+        if (fields[0].equals("HEAD")) {
+            leaderPosition = Long.parseLong(fields[1]);
+            return false;
+        }
+        long position = Long.parseLong(fields[0]);
+        leaderPosition = Long.parseLong(fields[1]);
+        if (position <= applied) {
+            return false;
+        }
+        appliedCommittedAt = Long.parseLong(fields[2]);
+        String statement = ReplicationLeader.unescape(fields[4]);
+        if (statement.isEmpty()) {
+            sessions.remove(fields[3]);
+        } else {
+            ManageCommand session = sessions.computeIfAbsent(fields[3], id -> new ManageCommand(context, true));
+            String target = session.rowWriteTarget(statement);
+            Table table = target == null ? null : table(target.split("\t")[0], target.split("\t")[1]);
+            if (table != null) {
+                savePosition(applied + "\t" + target + "\t" + table.currentVersion());
+            }
+            String result = session.executeCommand(statement);
+            if (!result.startsWith("[OK]")) {
+                System.err.println("Replicated statement " + position + " failed here: " + result);
+            }
+        }
+        synchronized (this) {
+            applied = position;
+            notifyAll();
+        }
+        savePosition(Long.toString(applied));
+        return true;
+    }
+
+    // "<applied>", or "<applied>\t<database>\t<table>\t<offset>" while the next record writes the table
+    private long readPosition() {
+        try {
+            if (!positionFile.exists()) {
+                return 0;
+            }
+            String[] fields = Files.readString(positionFile.toPath()).trim().split("\t");
+            long position = Long.parseLong(fields[0]);
+            Table table = fields.length == 4 ? table(fields[1], fields[2]) : null;
+            if (table != null && table.currentVersion() > Long.parseLong(fields[3])) {
+                // the write went in before the position was saved
+                position++;
+                savePosition(Long.toString(position));
+            }
+            return position;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Ignoring unreadable replica position " + positionFile + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // null when there is no such table
+    private Table table(String database, String tableName) {
+        if (!context.databaseFolder(database).isDirectory()) {
+            return null;
+        }
+        return context.openDatabase(database).loadedTable(tableName);
+    }
+
+    // written aside and moved over the old one, so a crash leaves either
+    private void savePosition(String position) {
+        try {
+            Path temp = new File(context.getRoot(), POSITION_FILE + ".tmp").toPath();
+            Files.writeString(temp, position);
+            Files.move(temp, positionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing replica position: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        Socket connection = socket;
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
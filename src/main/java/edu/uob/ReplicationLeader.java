@@ -0,0 +1,269 @@
+package edu.uob;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// leader side of statement replication. Every committed write is appended, with the session that ran
+// it, to a log kept under the storage root. Followers connect to the replication port, ask for the log
+// from a position and are streamed each record as it is appended, then acknowledge what they applied.
+// Protocol, one line each: follower "FOLLOW <position>", leader "<position>\t<log position>\t<record>"
+// or an idle "HEAD\t<log position>" heartbeat, follower "ACK <position>". A record with no statement
+// tells followers the session has closed.
+// The log is split into segments of cwdb.replication.segment records, .replication.<first position>
+// each. Only the one being appended to is held in memory; a follower further behind is streamed the
+// older ones from disk.
+public class ReplicationLeader implements Closeable {
+    static final String LOG_FILE = ".replication";
+    private static final long HEARTBEAT_MILLIS = 500;
+
+    private final File root;
+    private final int segmentRecords;
+    // first position of every segment, the last is the one appended to
+    private final TreeSet<Long> segments;
+    // record n of the current segment at index n - its first position:
+    // "<committed at millis>\t<session>\t<statement>"
+    private final List<String> records;
+    private BufferedWriter log;
+    private final ServerSocket serverSocket;
+    // follower address -> position of the last record it applied
+    private final Map<String, Long> acknowledged;
+    // held by a write from before it runs until it is appended, see inCommitOrder
+    private final Object commitOrder;
+
+    public ReplicationLeader(File root, int port) throws IOException {
+        this.root = root;
+        this.segmentRecords = Integer.getInteger("cwdb.replication.segment", 4096);
+        this.segments = new TreeSet<>();
+        this.records = new ArrayList<>();
+        // a log written before segments becomes the first one
+        Path unsegmented = new File(root, LOG_FILE).toPath();
+        if (Files.exists(unsegmented)) {
+            Files.move(unsegmented, segmentFile(1));
+        }
+        String[] names = root.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.matches("\\" + LOG_FILE + "\\.[0-9]+")) {
+                segments.add(Long.parseLong(name.substring(LOG_FILE.length() + 1)));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(1L);
+        } else if (Files.exists(segmentFile(segments.last()))) {
+            records.addAll(Files.readAllLines(segmentFile(segments.last()), StandardCharsets.UTF_8));
+        }
+        this.log = Files.newBufferedWriter(segmentFile(segments.last()), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (records.size() >= segmentRecords) {
+            startSegment();
+        }
+        this.serverSocket = new ServerSocket(port);
+        this.acknowledged = new ConcurrentHashMap<>();
+        this.commitOrder = new Object();
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized long getPosition() {
+        return segments.last() - 1 + records.size();
+    }
+
+    private Path segmentFile(long first) {
+        return new File(root, LOG_FILE + "." + first).toPath();
+    }
+
+    private void startSegment() throws IOException {
+        long first = getPosition() + 1;
+        log.close();
+        log = Files.newBufferedWriter(segmentFile(first), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        segments.add(first);
+        records.clear();
+    }
+
+    public Map<String, Long> getAcknowledged() {
+        return new TreeMap<>(acknowledged);
+    }
+
+    // writes run one at a time together with their append, so two sessions' writes to a table can't be
+    // logged in the other order from the one they were applied in here
+    public <T> T inCommitOrder(Supplier<T> write) {
+        synchronized (commitOrder) {
+            return write.get();
+        }
+    }
+
+    // called within inCommitOrder once the statement has been applied here
+    public synchronized void append(String session, String statement) {
+        String record = System.currentTimeMillis() + "\t" + session + "\t" + escape(statement);
+        try {
+            log.write(record);
+            log.newLine();
+            log.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing replication log: " + e.getMessage());
+        }
+        records.add(record);
+        notifyAll();
+        if (records.size() >= segmentRecords) {
+            try {
+                startSegment();
+            } catch (IOException e) {
+                System.err.println("Error starting replication log segment: " + e.getMessage());
+            }
+        }
+    }
+
+    // followers forget the session's USE and prepared statements
+    public void endSession(String session) {
+        append(session, "");
+    }
+
+    // the record at a position of the current segment, or null if none is appended within the timeout.
+    // Positions before the segment are read from disk by the caller.
+    private synchronized String await(long position, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (getPosition() < position) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        // a new segment started meanwhile, the position is on disk now
+        return position < segments.last() ? null : records.get((int) (position - segments.last()));
+    }
+
+    private synchronized boolean inMemory(long position) {
+        return position >= segments.last();
+    }
+
+    // the records from a position to the end of its segment, which is complete on disk
+    private List<String> readSegment(long position) throws IOException {
+        long first;
+        long next;
+        synchronized (this) {
+            first = segments.floor(position);
+            next = segments.higher(position);
+        }
+        List<String> read = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(segmentFile(first), StandardCharsets.UTF_8)) {
+            long at = first;
+            for (String line = reader.readLine(); line != null && at < next; line = reader.readLine(), at++) {
+                if (at >= position) {
+                    read.add(line);
+                }
+            }
+        }
+        return read;
+    }
+
+    private void acceptFollowers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread stream = new Thread(() -> stream(socket), "replication-stream");
+                stream.setDaemon(true);
+                stream.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error accepting follower: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void stream(Socket socket) {
+        String follower = socket.getRemoteSocketAddress().toString();
+        try (socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String hello = reader.readLine();
+            if (hello == null || !hello.startsWith("FOLLOW ")) {
+                return;
+            }
+            long next = Long.parseLong(hello.substring(7).trim());
+            acknowledged.put(follower, next - 1);
+            Thread acks = new Thread(() -> readAcknowledgements(reader, follower), "replication-acks");
+            acks.setDaemon(true);
+            acks.start();
+            while (!serverSocket.isClosed() && acks.isAlive()) {
+                if (!inMemory(next)) {
+                    List<String> backlog = readSegment(next);
+                    if (backlog.isEmpty()) {
+                        throw new IOException("Replication log segment holding position " + next + " is cut short");
+                    }
+                    for (String record : backlog) {
+                        writer.write(next + "\t" + getPosition() + "\t" + record);
+                        writer.newLine();
+                        next++;
+                    }
+                    writer.flush();
+                    continue;
+                }
+                String record = await(next, HEARTBEAT_MILLIS);
+                if (record == null) {
+                    writer.write("HEAD\t" + getPosition());
+                } else {
+                    writer.write(next + "\t" + getPosition() + "\t" + record);
+                    next++;
+                }
+                writer.newLine();
+                writer.flush();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Replication to " + follower + " stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            acknowledged.remove(follower);
+        }
+    }
+
+    private void readAcknowledgements(BufferedReader reader, String follower) {
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith("ACK ")) {
+                    acknowledged.put(follower, Long.parseLong(line.substring(4).trim()));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // the stream thread notices the follower is gone
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (this) {
+            log.close();
+        }
+    }
+
+    // statements are kept on one line
+    static String escape(String statement) {
+        return statement.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String statement) {
+        StringBuilder unescaped = new StringBuilder(statement.length());
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (c == '\\' && i + 1 < statement.length()) {
+                char next = statement.charAt(++i);
+                unescaped.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,378 @@
+package edu.uob;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+// compressed set of row positions. Positions are split by their high 16 bits into chunks, a chunk
+// holding few positions keeps them as a sorted char array, a dense one as a 65536-bit bitmap.
+public class RoaringBitmap {
+    // above this many values a bitmap chunk (8KB) is smaller than a sorted array
+    private static final int ARRAY_LIMIT = 4096;
+
+    private char[] keys;
+    private Chunk[] chunks;
+    private int size;
+
+    public RoaringBitmap() {
+        this.keys = new char[4];
+        this.chunks = new Chunk[4];
+    }
+
+    // every position in [from, to)
+    public static RoaringBitmap range(int from, int to) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int start = from; start < to; start = (start & ~0xFFFF) + 0x10000) {
+            int end = Math.min(to, (start & ~0xFFFF) + 0x10000);
+            BitmapChunk chunk = new BitmapChunk();
+            for (int position = start; position < end; position++) {
+                chunk.words[(position & 0xFFFF) >>> 6] |= 1L << position;
+            }
+            chunk.cardinality = end - start;
+            bitmap.appendChunk((char) (start >>> 16), chunk.shrink());
+        }
+        return bitmap;
+    }
+
+    public void add(int position) {
+        char key = (char) (position >>> 16);
+        int index = indexOf(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, key, new ArrayChunk());
+        }
+        chunks[index] = chunks[index].add((char) position);
+    }
+
+    public void remove(int position) {
+        int index = indexOf((char) (position >>> 16));
+        if (index >= 0) {
+            chunks[index] = chunks[index].remove((char) position);
+            if (chunks[index].cardinality() == 0) {
+                removeChunk(index);
+            }
+        }
+    }
+
+    public boolean contains(int position) {
+        int index = indexOf((char) (position >>> 16));
+        return index >= 0 && chunks[index].contains((char) position);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += chunks[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public RoaringBitmap copy() {
+        return or(new RoaringBitmap());
+    }
+
+    public RoaringBitmap and(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.appendChunk(keys[i], chunks[i++].and(other.chunks[j++]));
+            }
+        }
+        return result;
+    }
+
+    public RoaringBitmap or(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.appendChunk(keys[i], chunks[i++].copy());
+            } else if (i == size || keys[i] > other.keys[j]) {
+                result.appendChunk(other.keys[j], other.chunks[j++].copy());
+            } else {
+                result.appendChunk(keys[i], chunks[i++].or(other.chunks[j++]));
+            }
+        }
+        return result;
+    }
+
+    public RoaringBitmap andNot(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            boolean overlaps = j < other.size && other.keys[j] == keys[i];
+            result.appendChunk(keys[i], overlaps ? chunks[i].andNot(other.chunks[j]) : chunks[i].copy());
+        }
+        return result;
+    }
+
+    // visits the positions in ascending order
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            chunks[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertChunk(int index, char key, Chunk chunk) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            chunks = Arrays.copyOf(chunks, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(chunks, index, chunks, index + 1, size - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        size++;
+    }
+
+    private void removeChunk(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(chunks, index + 1, chunks, index, size - index - 1);
+        chunks[--size] = null;
+    }
+
+    // keys arrive in ascending order from the set operations, empty results are dropped
+    private void appendChunk(char key, Chunk chunk) {
+        if (chunk.cardinality() > 0) {
+            insertChunk(size, key, chunk);
+        }
+    }
+
+    private abstract static class Chunk {
+        abstract Chunk add(char value);
+
+        abstract Chunk remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract Chunk copy();
+
+        abstract void forEach(int high, IntConsumer action);
+
+        abstract BitmapChunk toBitmap();
+
+        Chunk and(Chunk other) {
+            if (other instanceof ArrayChunk) {
+                return other.and(this);
+            }
+            return toBitmap().andBits((BitmapChunk) other).shrink();
+        }
+
+        Chunk or(Chunk other) {
+            return toBitmap().orBits(other.toBitmap()).shrink();
+        }
+
+        Chunk andNot(Chunk other) {
+            return toBitmap().andNotBits(other.toBitmap()).shrink();
+        }
+    }
+
+    private static class ArrayChunk extends Chunk {
+        private char[] values = new char[4];
+        private int cardinality;
+
+        @Override
+        Chunk add(char value) {
+            int index = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 : Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_LIMIT) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, cardinality * 2);
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Chunk remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Chunk copy() {
+            ArrayChunk copy = new ArrayChunk();
+            copy.values = Arrays.copyOf(values, Math.max(4, cardinality));
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) {
+                action.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        BitmapChunk toBitmap() {
+            BitmapChunk bitmap = new BitmapChunk();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        // an array intersected with anything stays an array, probe the other chunk per value
+        @Override
+        Chunk and(Chunk other) {
+            ArrayChunk result = new ArrayChunk();
+            result.values = new char[Math.max(4, cardinality)];
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result.values[result.cardinality++] = values[i];
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Chunk andNot(Chunk other) {
+            ArrayChunk result = new ArrayChunk();
+            result.values = new char[Math.max(4, cardinality)];
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    result.values[result.cardinality++] = values[i];
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class BitmapChunk extends Chunk {
+        private final long[] words = new long[1024];
+        private int cardinality;
+
+        @Override
+        Chunk add(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Chunk remove(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) != 0) {
+                words[value >>> 6] &= ~bit;
+                cardinality--;
+            }
+            return cardinality <= ARRAY_LIMIT ? shrink() : this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Chunk copy() {
+            BitmapChunk copy = new BitmapChunk();
+            System.arraycopy(words, 0, copy.words, 0, words.length);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(high | (i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        BitmapChunk toBitmap() {
+            return this;
+        }
+
+        BitmapChunk andBits(BitmapChunk other) {
+            BitmapChunk result = new BitmapChunk();
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] = words[i] & other.words[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            return result;
+        }
+
+        BitmapChunk orBits(BitmapChunk other) {
+            BitmapChunk result = new BitmapChunk();
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] = words[i] | other.words[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            return result;
+        }
+
+        BitmapChunk andNotBits(BitmapChunk other) {
+            BitmapChunk result = new BitmapChunk();
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] = words[i] & ~other.words[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            return result;
+        }
+
+        // back to a sorted array once sparse enough
+        Chunk shrink() {
+            if (cardinality > ARRAY_LIMIT) {
+                return this;
+            }
+            ArrayChunk array = new ArrayChunk();
+            array.values = new char[Math.max(4, cardinality)];
+            forEach(0, position -> array.values[array.cardinality++] = (char) position);
+            return array;
+        }
+    }
+}
@@ -4,28 +4,101 @@ import java.util.*;
 
 public class Row {
     private final int id;
-    private final List<String> values;
+    // raw tab separated line from the .tab file, kept until the row is first modified
+    private String line;
+    private String[] values;
+    // schema version of the table the values were written under
+    private int schemaVersion;
 
     public Row(int id, List<String> values) {
+        this(id, values, 0);
+    }
+
+    public Row(int id, List<String> values, int schemaVersion) {
         this.id = id;
-        this.values = new ArrayList<>(values);
+        this.values = values.toArray(new String[0]);
+        this.schemaVersion = schemaVersion;
     }
 
     public Row(String[] data) {
         this.id = Integer.parseInt(data[0]);
-        this.values = new ArrayList<>(Arrays.asList(data).subList(1, data.length));
+        this.values = Arrays.copyOfRange(data, 1, data.length);
+    }
+
+    // lazily decoded row - only the id is parsed up front, the other cells are read on demand
+    public Row(String line) {
+        this(line, 0);
+    }
+
+    public Row(String line, int schemaVersion) {
+        int tab = line.indexOf('\t');
+        this.id = Integer.parseInt(tab == -1 ? line : line.substring(0, tab));
+        this.line = line;
+        this.schemaVersion = schemaVersion;
     }
 
     public int getId() {
         return id;
     }
 
+    public int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    // replaces the values with ones laid out for a newer schema
+    public void upgrade(String[] values, int schemaVersion) {
+        this.values = values;
+        this.line = null;
+        this.schemaVersion = schemaVersion;
+    }
+
+    // value of the index-th non-id column, without decoding the rest of the row
+    public String getValue(int index) {
+        if (values != null) {
+            return values[index];
+        }
+        int start = line.indexOf('\t');
+        for (int i = 0; i < index && start != -1; i++) {
+            start = line.indexOf('\t', start + 1);
+        }
+        if (start == -1) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for row " + id);
+        }
+        int end = line.indexOf('\t', start + 1);
+        return end == -1 ? line.substring(start + 1) : line.substring(start + 1, end);
+    }
+
+    public void setValue(int index, String value) {
+        decode(null)[index] = value;
+    }
+
     public List<String> getValues() {
+        return Collections.unmodifiableList(Arrays.asList(decode(null)));
+    }
+
+    public boolean isDecoded() {
+        return values != null;
+    }
+
+    // splits the raw line, sharing cells through the column dictionaries when given
+    public String[] decode(List<ValueDictionary> dictionaries) {
+        if (values == null) {
+            String[] tokens = line.split("\t", -1);
+            values = new String[tokens.length - 1];
+            for (int i = 0; i < values.length; i++) {
+                String cell = tokens[i + 1];
+                values[i] = dictionaries != null && i < dictionaries.size() ? dictionaries.get(i).intern(cell) : cell;
+            }
+            line = null;
+        }
         return values;
     }
 
     @Override
     public String toString() {
+        if (values == null) {
+            return line;
+        }
         return id + "\t" + String.join("\t", values);
     }
-}
\ No newline at end of file
+}
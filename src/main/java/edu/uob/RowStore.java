@@ -0,0 +1,36 @@
+package edu.uob;
+
+import java.io.File;
+import java.util.BitSet;
+
+// where a table keeps its rows, by position. On the heap by default, or paged through the shared
+// BufferPool when cwdb.bufferpool.bytes is set, so tables larger than the heap can be queried.
+public interface RowStore {
+
+    static RowStore create(File directory) {
+        long budget = Long.getLong("cwdb.bufferpool.bytes", 0L);
+        if (budget <= 0) {
+            return new HeapRowStore();
+        }
+        BufferPool pool = BufferPool.shared();
+        pool.setBudget(budget);
+        return new PagedRowStore(pool, directory);
+    }
+
+    int size();
+
+    // a row for reading, changes made to it are not kept
+    Row get(int position);
+
+    // a row to modify, its page stays in memory until unpin writes the changes back
+    Row pin(int position);
+
+    void unpin(int position, Row row, boolean dirty);
+
+    void add(Row row);
+
+    // a store holding the rows not in positions, in order. This store must not be used afterwards.
+    RowStore without(BitSet positions);
+
+    void close();
+}
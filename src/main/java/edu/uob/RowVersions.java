@@ -0,0 +1,187 @@
+package edu.uob;
+
+import java.util.*;
+
+// earlier versions of a table's rows, for reads of the table as it was. A version is the change log
+// offset a write committed at: rows inserted after the version are hidden, rows updated or deleted after
+// it show the cells they had then. Kept by row id, so compaction moving rows doesn't disturb them.
+// Versions older than the retention and than every open snapshot are collected as writes commit.
+class RowVersions {
+    // stamp of changes made by the write in progress, newer than any snapshot
+    private static final long UNCOMMITTED = Long.MAX_VALUE;
+
+    // a row's cells, id first, up to the version that replaced them
+    static class Version {
+        final List<String> columns;
+        final String[] cells;
+        long until;
+
+        Version(List<String> columns, String[] cells) {
+            this.columns = columns;
+            this.cells = cells;
+            this.until = UNCOMMITTED;
+        }
+
+        // cells of columns added since read as empty
+        String get(String column) {
+            int index = columns.indexOf(column);
+            return index == -1 ? "" : cells[index];
+        }
+    }
+
+    // a change kept for readers of earlier versions, with the row it was made to
+    private static class Change {
+        final int id;
+        // the replaced cells, null for an insert
+        final Version replaced;
+        long version;
+
+        Change(int id, Version replaced) {
+            this.id = id;
+            this.replaced = replaced;
+        }
+    }
+
+    // rows inserted since the horizon, by id, with the version that made them
+    private final Map<Integer, Long> insertedAt;
+    // cells rows had before each update since the horizon, oldest first
+    private final Map<Integer, ArrayDeque<Version>> updated;
+    // rows deleted since the horizon, with their cells at the time
+    private final Map<Integer, Version> deleted;
+    // changes of the write in progress, stamped when it commits
+    private final List<Change> pending;
+    // the stamped changes in commit order, the collector works from the front
+    private final ArrayDeque<Change> history;
+    // versions and when they were committed, for the retention
+    private final ArrayDeque<long[]> commits;
+    // open snapshots by version, with how many readers hold each
+    private final TreeMap<Long, Integer> snapshots;
+    // oldest version still readable
+    private long horizon;
+    // how long a committed version stays readable with no snapshot open on it
+    private final long retentionMillis;
+
+    RowVersions(long version) {
+        this.insertedAt = new HashMap<>();
+        this.updated = new HashMap<>();
+        this.deleted = new HashMap<>();
+        this.pending = new ArrayList<>();
+        this.history = new ArrayDeque<>();
+        this.commits = new ArrayDeque<>();
+        this.snapshots = new TreeMap<>();
+        this.horizon = version;
+        this.retentionMillis = Long.getLong("cwdb.mvcc.retention", 60_000);
+    }
+
+    void inserted(int id) {
+        insertedAt.put(id, UNCOMMITTED);
+        pending.add(new Change(id, null));
+    }
+
+    void updated(int id, List<String> columns, String[] cells) {
+        Version version = new Version(columns, cells);
+        updated.computeIfAbsent(id, key -> new ArrayDeque<>()).add(version);
+        pending.add(new Change(id, version));
+    }
+
+    void deleted(int id, List<String> columns, String[] cells) {
+        Version version = new Version(columns, cells);
+        deleted.put(id, version);
+        pending.add(new Change(id, version));
+    }
+
+    // the write's changes become part of the version, then what no reader can ask for any more goes
+    void commit(long version) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (Change change : pending) {
+            change.version = version;
+            if (change.replaced == null) {
+                insertedAt.put(change.id, version);
+            } else {
+                change.replaced.until = version;
+            }
+            history.add(change);
+        }
+        pending.clear();
+        commits.add(new long[] {version, System.currentTimeMillis()});
+        collect();
+    }
+
+    private void collect() {
+        long expired = horizon;
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        while (!commits.isEmpty() && commits.peekFirst()[1] < cutoff) {
+            expired = commits.pollFirst()[0];
+        }
+        horizon = Math.max(horizon, snapshots.isEmpty() ? expired : Math.min(expired, snapshots.firstKey()));
+        while (!history.isEmpty() && history.peekFirst().version <= horizon) {
+            Change change = history.pollFirst();
+            ArrayDeque<Version> versions = updated.get(change.id);
+            if (change.replaced == null) {
+                insertedAt.remove(change.id);
+            } else if (deleted.get(change.id) == change.replaced) {
+                deleted.remove(change.id);
+            } else if (versions != null) {
+                versions.remove(change.replaced);
+                if (versions.isEmpty()) {
+                    updated.remove(change.id);
+                }
+            }
+        }
+    }
+
+    long getHorizon() {
+        return horizon;
+    }
+
+    // keeps what the version needs until close
+    void open(long version) {
+        snapshots.merge(version, 1, Integer::sum);
+    }
+
+    void close(long version) {
+        snapshots.computeIfPresent(version, (key, count) -> count == 1 ? null : count - 1);
+        collect();
+    }
+
+    boolean hasOpenSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    // nothing newer than the horizon changed, every row reads as it is
+    boolean isEmpty() {
+        return insertedAt.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+    }
+
+    boolean isVisible(int id, long version) {
+        return insertedAt.getOrDefault(id, Long.MIN_VALUE) <= version;
+    }
+
+    // the row's cells at the version, null when they are the current ones
+    Version at(int id, long version) {
+        ArrayDeque<Version> versions = updated.get(id);
+        if (versions != null) {
+            for (Version candidate : versions) {
+                if (candidate.until > version) {
+                    return candidate;
+                }
+            }
+        }
+        Version gone = deleted.get(id);
+        return gone != null && gone.until > version ? gone : null;
+    }
+
+    // rows deleted since the version that existed at it, by id
+    SortedMap<Integer, Version> deletedAt(long version) {
+        SortedMap<Integer, Version> visible = new TreeMap<>();
+        for (Map.Entry<Integer, Version> entry : deleted.entrySet()) {
+            if (entry.getValue().until > version && isVisible(entry.getKey(), version)) {
+                Version earlier = at(entry.getKey(), version);
+                visible.put(entry.getKey(), earlier != null ? earlier : entry.getValue());
+            }
+        }
+        return visible;
+    }
+}
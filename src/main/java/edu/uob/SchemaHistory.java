@@ -0,0 +1,85 @@
+package edu.uob;
+
+import java.util.*;
+
+// versioned column layouts of a table. ALTER only appends a version, rows keep the layout they were
+// written with and are read through a mapping onto the current columns until compaction rewrites them.
+public class SchemaHistory {
+    // per version, the column ids of the stored non-id values in order
+    private final List<int[]> layouts;
+    // per version, where each current column sits in that version's layout (-1 when it was added later).
+    // Rebuilt whole and swapped in on ALTER, a reader without the table lock sees the old or the new one.
+    private volatile List<int[]> mappings;
+    // per version, the dictionaries lined up with its stored values
+    private final List<List<ValueDictionary>> aligned;
+    private final Map<Integer, ValueDictionary> dictionaries;
+    private int nextColumnId;
+
+    public SchemaHistory(int valueCount) {
+        this.layouts = new ArrayList<>();
+        this.mappings = List.of();
+        this.aligned = new ArrayList<>();
+        this.dictionaries = new HashMap<>();
+        int[] layout = new int[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            layout[i] = nextColumnId++;
+            dictionaries.put(layout[i], new ValueDictionary());
+        }
+        addVersion(layout);
+    }
+
+    public int currentVersion() {
+        return layouts.size() - 1;
+    }
+
+    public void addColumn() {
+        int[] current = layouts.get(currentVersion());
+        int[] layout = Arrays.copyOf(current, current.length + 1);
+        layout[current.length] = nextColumnId++;
+        dictionaries.put(layout[current.length], new ValueDictionary());
+        addVersion(layout);
+    }
+
+    public void dropColumn(int valueIndex) {
+        int[] current = layouts.get(currentVersion());
+        int[] layout = new int[current.length - 1];
+        System.arraycopy(current, 0, layout, 0, valueIndex);
+        System.arraycopy(current, valueIndex + 1, layout, valueIndex, layout.length - valueIndex);
+        dictionaries.remove(current[valueIndex]);
+        addVersion(layout);
+    }
+
+    // index into a row of the given version holding the current column, or -1 if the row predates it
+    public int physicalIndex(int version, int valueIndex) {
+        return mappings.get(version)[valueIndex];
+    }
+
+    // dictionaries lined up with the stored values of the given version
+    public List<ValueDictionary> dictionaries(int version) {
+        return aligned.get(version);
+    }
+
+    private void addVersion(int[] layout) {
+        layouts.add(layout);
+        List<ValueDictionary> versionDictionaries = new ArrayList<>(layout.length);
+        for (int columnId : layout) {
+            versionDictionaries.add(dictionaries.get(columnId));
+        }
+        aligned.add(Collections.unmodifiableList(versionDictionaries));
+        List<int[]> rebuilt = new ArrayList<>(layouts.size());
+        for (int[] stored : layouts) {
+            int[] mapping = new int[layout.length];
+            for (int i = 0; i < layout.length; i++) {
+                mapping[i] = -1;
+                for (int j = 0; j < stored.length; j++) {
+                    if (stored[j] == layout[i]) {
+                        mapping[i] = j;
+                        break;
+                    }
+                }
+            }
+            rebuilt.add(mapping);
+        }
+        mappings = rebuilt;
+    }
+}
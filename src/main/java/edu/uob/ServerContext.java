@@ -0,0 +1,168 @@
+package edu.uob;
+
+import java.io.File;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// state shared by every session of one DBServer: where its databases live, the databases already
+// opened, so sessions see each other's writes, the server's replication role, and the statements
+// running, with the slots heavy queries are admitted through
+public class ServerContext {
+    private final File root;
+    // BACKUP and RESTORE paths are taken under this folder
+    private final File backupRoot;
+    private final Map<String, Database> databases;
+    // session ids stay unique across restarts, a follower keys its replay sessions on them
+    private final String sessionPrefix;
+    private final AtomicLong sessionCount;
+    private volatile ReplicationLeader leader;
+    private volatile ReplicationFollower follower;
+    private final Map<Integer, QueryContext> queries;
+    private final AtomicInteger queryCount;
+    // heavy queries running at once, how many may wait for a slot and for how long
+    private final Semaphore heavySlots;
+    private final int heavyQueueLimit;
+    private final long heavyWaitMillis;
+    private final AtomicInteger heavyWaiting;
+
+    public ServerContext(File root) {
+        this.root = root;
+        String backups = System.getProperty("cwdb.backup.root");
+        this.backupRoot = backups != null ? new File(backups) : new File(root, ".backups");
+        this.databases = new ConcurrentHashMap<>();
+        this.sessionPrefix = Long.toString(System.currentTimeMillis(), 36);
+        this.sessionCount = new AtomicLong();
+        this.queries = new ConcurrentHashMap<>();
+        this.queryCount = new AtomicInteger();
+        this.heavySlots = new Semaphore(Integer.getInteger("cwdb.heavy.limit", Math.max(2, Runtime.getRuntime().availableProcessors())));
+        this.heavyQueueLimit = Integer.getInteger("cwdb.heavy.queue", 16);
+        this.heavyWaitMillis = Long.getLong("cwdb.heavy.wait", 10_000);
+        this.heavyWaiting = new AtomicInteger();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File databaseFolder(String databaseName) {
+        return new File(root, databaseName.toLowerCase());
+    }
+
+    // null for an absolute path or one that climbs out of the backup root with ".."
+    public File backupFolder(String path) {
+        Path relative;
+        try {
+            relative = Path.of(path);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (path.isEmpty() || relative.isAbsolute() || relative.getRoot() != null) {
+            return null;
+        }
+        for (Path name : relative) {
+            if (name.toString().equals("..")) {
+                return null;
+            }
+        }
+        return new File(backupRoot, path);
+    }
+
+    public Database openDatabase(String databaseName) {
+        return databases.computeIfAbsent(databaseName.toLowerCase(), name -> new Database(root, name));
+    }
+
+    // after DROP DATABASE, a database created later under the same name starts empty
+    public void forgetDatabase(String databaseName) {
+        databases.remove(databaseName.toLowerCase());
+    }
+
+    String nextSessionId() {
+        return sessionPrefix + "-" + sessionCount.incrementAndGet();
+    }
+
+    public ReplicationLeader getLeader() {
+        return leader;
+    }
+
+    void setLeader(ReplicationLeader leader) {
+        this.leader = leader;
+    }
+
+    public ReplicationFollower getFollower() {
+        return follower;
+    }
+
+    void setFollower(ReplicationFollower follower) {
+        this.follower = follower;
+    }
+
+    // a follower only takes writes from its leader
+    public boolean isReadOnly() {
+        return follower != null;
+    }
+
+    // registers the statement and makes it the calling thread's current one
+    QueryContext beginQuery(String sessionId, String statement, long timeoutMillis, boolean cancellable) {
+        QueryContext query = new QueryContext(queryCount.incrementAndGet(), sessionId, statement, timeoutMillis, cancellable);
+        queries.put(query.getId(), query);
+        QueryContext.enter(query);
+        return query;
+    }
+
+    void endQuery(QueryContext query) {
+        QueryContext.exit();
+        queries.remove(query.getId());
+    }
+
+    // the statement cancelled, null when no such statement is running
+    public QueryContext cancelQuery(int id) {
+        QueryContext query = queries.get(id);
+        if (query != null) {
+            query.cancel();
+        }
+        return query;
+    }
+
+    public List<QueryContext> runningQueries() {
+        List<QueryContext> running = new ArrayList<>(queries.values());
+        running.sort(Comparator.comparingInt(QueryContext::getId));
+        return running;
+    }
+
+    // waits for a heavy query slot while the statement is still wanted. False when too many are waiting
+    // already or no slot came free in time, the caller then turns the statement away.
+    boolean admitHeavy(QueryContext query) throws InterruptedException {
+        if (heavySlots.tryAcquire()) {
+            return true;
+        }
+        if (heavyWaiting.incrementAndGet() > heavyQueueLimit) {
+            heavyWaiting.decrementAndGet();
+            return false;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + Math.min(heavyWaitMillis, query.remainingMillis());
+            while (!query.isCancelled()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (heavySlots.tryAcquire(Math.min(remaining, 50), TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            heavyWaiting.decrementAndGet();
+        }
+    }
+
+    void releaseHeavy() {
+        heavySlots.release();
+    }
+}
@@ -0,0 +1,661 @@
+package edu.uob;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.*;
+
+// speaks the DBServer protocol to clients and spreads every table over several backend DBServers, the
+// shards. A row goes to the shard its shard key hashes to (CREATE TABLE ... SHARD BY HASH(<column>)),
+// or round robin for tables without one. Statements are sent, WHERE included, only to the shards that
+// can hold matching rows and the answers merged; JOINs on the shard keys run on every shard, other
+// JOINs here. Shards assign ids on their own, so the router maps them to global ones: local id l of
+// shard s is global id (l - 1) * shards + s + 1.
+public class ShardRouter {
+    private static final char END_OF_TRANSMISSION = 4;
+    // one line per sharded table: database, table and shard key, tab separated
+    static final String CATALOG_FILE = ".shards";
+    private static final Pattern SHARD_PATTERN = Pattern.compile("\\s+SHARD\\s+BY\\s+HASH\\s*\\(\\s*([A-Za-z0-9]+)\\s*\\)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COLUMNS_PATTERN = Pattern.compile("^CREATE\\s+TABLE\\s+[A-Za-z0-9]+\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COUNT_PATTERN = Pattern.compile("^\\[OK\\] (\\d+) (.*)$", Pattern.DOTALL);
+    // idle connections kept per shard
+    private static final int POOL_SIZE = 8;
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("cwdb.router.timeout", 30000);
+
+    private final List<InetSocketAddress> shards;
+    private final File catalogFile;
+    // "<database>.<table>" -> shard key
+    private final Map<String, String> shardKeys;
+    // "<database>.<table>" -> columns, asked of a shard when first needed
+    private final Map<String, List<String>> columns;
+    private final List<Deque<Backend>> idle;
+    // next shard of each table without a shard key, so its rows get global ids in insertion order
+    private final Map<String, AtomicLong> roundRobin;
+    private volatile ServerSocket listeningSocket;
+
+    // a pooled connection to a shard and the database selected on it
+    private static class Backend {
+        private final DBConnection connection;
+        private String database;
+
+        Backend(DBConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    // java edu.uob.ShardRouter <port> <host>:<port> <host>:<port> ...
+    public static void main(String[] args) throws IOException {
+        List<InetSocketAddress> shards = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            int colon = args[i].lastIndexOf(':');
+            shards.add(new InetSocketAddress(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1))));
+        }
+        ShardRouter router = new ShardRouter(shards, new File(CATALOG_FILE));
+        router.blockingListenOn(Integer.parseInt(args[0]));
+    }
+
+    public ShardRouter(List<InetSocketAddress> shards, File catalogFile) {
+        this.shards = new ArrayList<>(shards);
+        this.catalogFile = catalogFile;
+        this.shardKeys = new ConcurrentHashMap<>();
+        this.columns = new ConcurrentHashMap<>();
+        this.idle = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            idle.add(new ArrayDeque<>());
+        }
+        this.roundRobin = new ConcurrentHashMap<>();
+        loadCatalog();
+    }
+
+    private void loadCatalog() {
+        if (!catalogFile.exists()) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(catalogFile.toPath())) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    shardKeys.put(fields[0] + "." + fields[1], fields[2]);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable shard catalog " + catalogFile + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void saveCatalog() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(shardKeys).entrySet()) {
+            lines.add(entry.getKey().replaceFirst("\\.", "\t") + "\t" + entry.getValue());
+        }
+        try {
+            Files.write(catalogFile.toPath(), lines);
+        } catch (IOException e) {
+            System.err.println("Error writing shard catalog " + catalogFile + ": " + e.getMessage());
+        }
+    }
+
+    // what one client connection has selected
+    public class Session {
+        private String database;
+
+        public String execute(String query) {
+            if (query == null || query.trim().isEmpty()) {
+                return "[ERROR] Empty query";
+            }
+            query = query.trim();
+            if (!query.endsWith(";")) {
+                return "[ERROR] Query must end with a semicolon";
+            }
+            query = query.substring(0, query.length() - 1).trim();
+            List<String> tokens = QueryParser.tokenize(query);
+            if (tokens.isEmpty()) {
+                return "[ERROR] Empty query";
+            }
+            String command = tokens.get(0).toUpperCase();
+            if (database == null && !command.equals("USE") && !(tokens.size() > 1 && tokens.get(1).equalsIgnoreCase("DATABASE"))) {
+                return "[ERROR] No database selected";
+            }
+            try {
+                switch (command) {
+                    case "USE":
+                        return handleUse(this, query, tokens);
+                    case "CREATE":
+                        return handleCreate(database, query, tokens);
+                    case "DROP":
+                    case "ALTER":
+                        return handleSchemaChange(database, query, tokens);
+                    case "INSERT":
+                        return handleInsert(database, query, tokens);
+                    case "SELECT":
+                        return handleSelect(database, query, tokens);
+                    case "UPDATE":
+                    case "DELETE":
+                        return handleWrite(database, query, tokens);
+                    case "JOIN":
+                        return handleJoin(database, query, tokens);
+                    default:
+                        return "[ERROR] Unsupported command through the router: " + command;
+                }
+            } catch (IOException e) {
+                System.err.println("Shard request failed: " + e.getMessage());
+                return "[ERROR] A shard could not be reached: " + e.getMessage();
+            }
+        }
+    }
+
+    public Session newSession() {
+        return new Session();
+    }
+
+    private String handleUse(Session session, String query, List<String> tokens) throws IOException {
+        String answer = combine(broadcast(null, query + ";"));
+        if (answer.startsWith("[OK]")) {
+            session.database = tokens.get(1).toLowerCase();
+        }
+        return answer;
+    }
+
+    private String handleCreate(String database, String query, List<String> tokens) throws IOException {
+        if (tokens.size() < 3 || !tokens.get(1).equalsIgnoreCase("TABLE")) {
+            return combine(broadcast(database, query + ";"));
+        }
+        String table = tokens.get(2).toLowerCase();
+        Matcher sharding = SHARD_PATTERN.matcher(query);
+        String shardKey = null;
+        if (sharding.find()) {
+            shardKey = sharding.group(1);
+            query = query.substring(0, sharding.start()) + query.substring(sharding.end());
+            Matcher columnList = COLUMNS_PATTERN.matcher(query);
+            if (shardKey.equalsIgnoreCase("id")) {
+                return "[ERROR] Shards assign ids, a table can't be sharded by id";
+            }
+            if (!columnList.find() || Arrays.stream(columnList.group(1).split(",")).map(String::trim).noneMatch(shardKey::equals)) {
+                return "[ERROR] Shard key column not found: " + shardKey;
+            }
+        }
+        String answer = combine(broadcast(database, query + ";"));
+        if (answer.startsWith("[OK]")) {
+            columns.remove(database + "." + table);
+            if (shardKey != null) {
+                shardKeys.put(database + "." + table, shardKey);
+                saveCatalog();
+            }
+        }
+        return answer;
+    }
+
+    // DROP and ALTER go to every shard, and forget what was known of the table or database
+    private String handleSchemaChange(String database, String query, List<String> tokens) throws IOException {
+        String answer = combine(broadcast(database, query + ";"));
+        if (!answer.startsWith("[OK]") || tokens.size() < 3) {
+            return answer;
+        }
+        if (tokens.get(1).equalsIgnoreCase("DATABASE")) {
+            String dropped = tokens.get(2).toLowerCase();
+            shardKeys.keySet().removeIf(key -> key.startsWith(dropped + "."));
+            columns.keySet().removeIf(key -> key.startsWith(dropped + "."));
+            roundRobin.keySet().removeIf(key -> key.startsWith(dropped + "."));
+            saveCatalog();
+            // pooled connections still holding the dropped database select it again when it is recreated
+            for (Deque<Backend> pool : idle) {
+                synchronized (pool) {
+                    for (Backend backend : pool) {
+                        if (dropped.equals(backend.database)) {
+                            backend.database = null;
+                        }
+                    }
+                }
+            }
+        } else {
+            String table = database + "." + tokens.get(2).toLowerCase();
+            columns.remove(table);
+            if (tokens.get(0).equalsIgnoreCase("DROP")) {
+                roundRobin.remove(table);
+                if (shardKeys.remove(table) != null) {
+                    saveCatalog();
+                }
+            }
+        }
+        return answer;
+    }
+
+    private String handleInsert(String database, String query, List<String> tokens) throws IOException {
+        if (tokens.size() < 4 || !tokens.get(1).equalsIgnoreCase("INTO")) {
+            return "[ERROR] Invalid INSERT command";
+        }
+        String table = tokens.get(2).toLowerCase();
+        String shardKey = shardKeys.get(database + "." + table);
+        int shard = (int) Math.floorMod(roundRobin.computeIfAbsent(database + "." + table, key -> new AtomicLong()).getAndIncrement(), (long) shards.size());
+        int valuesPos = query.toUpperCase().indexOf("VALUES");
+        int start = valuesPos == -1 ? -1 : query.indexOf('(', valuesPos);
+        int end = query.lastIndexOf(')');
+        if (shardKey != null && start != -1 && end > start) {
+            List<String> values = QueryParser.splitValues(query.substring(start + 1, end).trim());
+            int ordinal = columnsOf(database, table).indexOf(shardKey);
+            if (ordinal > 0 && ordinal <= values.size()) {
+                shard = shardOf(Table.unquote(values.get(ordinal - 1)));
+            }
+        }
+        return send(database, Map.of(shard, List.of(query + ";"))).get(shard).get(0);
+    }
+
+    private String handleSelect(String database, String query, List<String> tokens) throws IOException {
+        int fromIndex = -1;
+        for (int i = 1; i < tokens.size() && fromIndex == -1; i++) {
+            fromIndex = tokens.get(i).equalsIgnoreCase("FROM") ? i : -1;
+        }
+        if (fromIndex == -1 || fromIndex + 1 >= tokens.size()) {
+            return "[ERROR] Invalid SELECT syntax";
+        }
+        String table = tokens.get(fromIndex + 1).toLowerCase();
+        return mergeRows(pushDown(database, table, query));
+    }
+
+    private String handleWrite(String database, String query, List<String> tokens) throws IOException {
+        if (tokens.size() < 3) {
+            return "[ERROR] Invalid " + tokens.get(0).toUpperCase() + " command";
+        }
+        boolean update = tokens.get(0).equalsIgnoreCase("UPDATE");
+        String table = tokens.get(update ? 1 : 2).toLowerCase();
+        String shardKey = shardKeys.get(database + "." + table);
+        int setIndex = query.toUpperCase().indexOf(" SET ");
+        int whereIndex = query.toUpperCase().indexOf(" WHERE ");
+        if (update && shardKey != null && setIndex != -1 && whereIndex > setIndex) {
+            for (String pair : QueryParser.splitValues(query.substring(setIndex + 5, whereIndex))) {
+                if (pair.split("=", 2)[0].trim().equals(shardKey)) {
+                    return "[ERROR] Cannot update shard key column";
+                }
+            }
+        }
+        return sumCounts(pushDown(database, table, query));
+    }
+
+    // the statement for each shard that can hold matching rows, with the WHERE clause's ids made local
+    private Map<Integer, List<String>> pushDown(String database, String table, String query) throws IOException {
+        int whereIndex = query.toUpperCase().indexOf(" WHERE ");
+        Condition condition = whereIndex == -1 ? null : Condition.parse(query.substring(whereIndex + 7).trim());
+        Map<Integer, List<String>> statements = new TreeMap<>();
+        if (condition == null) {
+            // nothing to rewrite, or a clause the shards will reject themselves
+            for (int shard = 0; shard < shards.size(); shard++) {
+                statements.put(shard, List.of(query + ";"));
+            }
+            return send(database, statements);
+        }
+        BitSet targets = shardsFor(condition, shardKeys.get(database + "." + table));
+        for (int shard = targets.nextSetBit(0); shard >= 0; shard = targets.nextSetBit(shard + 1)) {
+            statements.put(shard, List.of(query.substring(0, whereIndex) + " WHERE " + localIds(condition, shard) + ";"));
+        }
+        return send(database, statements);
+    }
+
+    // shards that can hold rows satisfying the condition: one for an == on the shard key or on id
+    private BitSet shardsFor(Condition condition, String shardKey) {
+        BitSet targets = new BitSet(shards.size());
+        if (condition.isComparison()) {
+            String value = Table.unquote(condition.getValue());
+            double id = condition.getAttribute().equals("id") ? ColumnVectors.parseNumber(value) : Double.NaN;
+            if (condition.getComparator().equals("==") && condition.getAttribute().equals(shardKey)) {
+                targets.set(shardOf(value));
+            } else if (condition.getComparator().equals("==") && id == Math.rint(id) && id >= 1) {
+                targets.set((int) ((long) (id - 1) % shards.size()));
+            } else {
+                targets.set(0, shards.size());
+            }
+            return targets;
+        }
+        targets = shardsFor(condition.getLeft(), shardKey);
+        if (condition.getOperator().equals("OR")) {
+            targets.or(shardsFor(condition.getRight(), shardKey));
+        } else {
+            targets.and(shardsFor(condition.getRight(), shardKey));
+        }
+        // a contradiction matches nothing, one shard still checks the statement is valid
+        if (targets.isEmpty()) {
+            targets.set(0);
+        }
+        return targets;
+    }
+
+    // global id g is local id (g - shard - 1) / shards + 1 on a shard, a fraction where none of its ids
+    // can be equal, and the order kept for the range comparators
+    private Condition localIds(Condition condition, int shard) {
+        return condition.map(comparison -> {
+            double global = ColumnVectors.parseNumber(Table.unquote(comparison.getValue()));
+            if (!comparison.getAttribute().equals("id") || comparison.getComparator().equals("LIKE") || Double.isNaN(global)) {
+                return comparison;
+            }
+            double local = (global - shard - 1) / shards.size() + 1;
+            return comparison.withValue(local == Math.rint(local) ? String.valueOf((long) local) : String.valueOf(local));
+        });
+    }
+
+    private long globalId(String localId, int shard) {
+        return (Long.parseLong(localId) - 1) * shards.size() + shard + 1;
+    }
+
+    private int shardOf(String value) {
+        return Math.floorMod(Table.equalityKey(value).hashCode(), shards.size());
+    }
+
+    private List<String> columnsOf(String database, String table) throws IOException {
+        List<String> known = columns.get(database + "." + table);
+        if (known != null) {
+            return known;
+        }
+        String answer = send(database, Map.of(0, List.of("SELECT * FROM " + table + " WHERE id == 0;"))).get(0).get(0);
+        String[] lines = answer.split("\n");
+        if (!answer.startsWith("[OK]") || lines.length < 2 || lines[1].startsWith("[ERROR]")) {
+            return List.of();
+        }
+        List<String> header = List.of(lines[1].split("\t"));
+        columns.put(database + "." + table, header);
+        return header;
+    }
+
+    // SELECT answers of the shards as one, ids made global and rows back in id order when id is selected
+    private String mergeRows(Map<Integer, List<String>> answers) {
+        String header = null;
+        int idColumn = -1;
+        List<String[]> rows = new ArrayList<>();
+        for (Map.Entry<Integer, List<String>> answer : answers.entrySet()) {
+            String[] lines = answer.getValue().get(0).split("\n");
+            if (!lines[0].startsWith("[OK]") || lines.length < 2 || lines[1].startsWith("[ERROR]")) {
+                return answer.getValue().get(0);
+            }
+            if (header == null) {
+                header = lines[1];
+                idColumn = Arrays.asList(header.split("\t")).indexOf("id");
+            }
+            for (int i = 2; i < lines.length; i++) {
+                String[] cells = lines[i].split("\t", -1);
+                if (idColumn != -1) {
+                    cells[idColumn] = String.valueOf(globalId(cells[idColumn], answer.getKey()));
+                }
+                rows.add(cells);
+            }
+        }
+        if (idColumn != -1) {
+            int column = idColumn;
+            rows.sort(Comparator.comparingLong(cells -> Long.parseLong(cells[column])));
+        }
+        StringBuilder merged = new StringBuilder("[OK] \n").append(header);
+        for (String[] cells : rows) {
+            merged.append('\n').append(String.join("\t", cells));
+        }
+        return merged.toString();
+    }
+
+    // "[OK] <n> record(s) ..." answers of the shards added up
+    private String sumCounts(Map<Integer, List<String>> answers) {
+        long total = 0;
+        String rest = null;
+        for (List<String> answer : answers.values()) {
+            Matcher count = COUNT_PATTERN.matcher(answer.get(0));
+            if (!count.matches()) {
+                return answer.get(0);
+            }
+            total += Long.parseLong(count.group(1));
+            rest = count.group(2);
+        }
+        return "[OK] " + total + " " + rest;
+    }
+
+    //  JOIN <TableName1> AND <TableName2> ON <AttributeName1> AND <AttributeName2>
+    private String handleJoin(String database, String query, List<String> tokens) throws IOException {
+        if (tokens.size() != 8) {
+            return "[ERROR] Invalid JOIN syntax";
+        }
+        String leftTable = tokens.get(1).toLowerCase();
+        String rightTable = tokens.get(3).toLowerCase();
+        String leftAttribute = tokens.get(5);
+        String rightAttribute = tokens.get(7);
+        if (leftAttribute.equals(shardKeys.get(database + "." + leftTable))
+                && rightAttribute.equals(shardKeys.get(database + "." + rightTable))) {
+            // matching keys live on the same shard, each shard joins its own rows
+            return renumber(broadcast(database, query + ";"));
+        }
+        Map<Integer, List<String>> statements = new TreeMap<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            statements.put(shard, List.of("SELECT * FROM " + leftTable + ";", "SELECT * FROM " + rightTable + ";"));
+        }
+        Map<Integer, List<String>> answers = send(database, statements);
+        Map<Integer, List<String>> left = new TreeMap<>();
+        Map<Integer, List<String>> right = new TreeMap<>();
+        for (Map.Entry<Integer, List<String>> answer : answers.entrySet()) {
+            left.put(answer.getKey(), List.of(answer.getValue().get(0)));
+            right.put(answer.getKey(), List.of(answer.getValue().get(1)));
+        }
+        String leftRows = mergeRows(left);
+        String rightRows = mergeRows(right);
+        if (!leftRows.startsWith("[OK]") || !rightRows.startsWith("[OK]")) {
+            return "[ERROR] One or both tables not found";
+        }
+        return join(leftTable, leftRows.split("\n"), leftAttribute, rightTable, rightRows.split("\n"), rightAttribute);
+    }
+
+    // a hash join over the merged rows, emitted in (left row, right row) order like a join on one server
+    private static String join(String leftName, String[] leftRows, String leftAttribute,
+                               String rightName, String[] rightRows, String rightAttribute) {
+        List<String> leftColumns = List.of(leftRows[1].split("\t"));
+        List<String> rightColumns = List.of(rightRows[1].split("\t"));
+        int leftOrdinal = leftColumns.indexOf(leftAttribute);
+        int rightOrdinal = rightColumns.indexOf(rightAttribute);
+        if (leftOrdinal == -1) {
+            return "[ERROR] Column " + leftAttribute + " not found in table " + leftName;
+        }
+        if (rightOrdinal == -1) {
+            return "[ERROR] Column " + rightAttribute + " not found in table " + rightName;
+        }
+        StringBuilder joined = new StringBuilder("[OK] \nid");
+        for (int i = 1; i < leftColumns.size(); i++) {
+            joined.append('\t').append(leftName).append('.').append(leftColumns.get(i));
+        }
+        for (int i = 1; i < rightColumns.size(); i++) {
+            joined.append('\t').append(rightName).append('.').append(rightColumns.get(i));
+        }
+        Map<String, List<String[]>> buildSide = new HashMap<>();
+        for (int i = 2; i < rightRows.length; i++) {
+            String[] cells = rightRows[i].split("\t", -1);
+            buildSide.computeIfAbsent(cells[rightOrdinal], key -> new ArrayList<>()).add(cells);
+        }
+        int joinId = 1;
+        for (int i = 2; i < leftRows.length; i++) {
+            String[] cells = leftRows[i].split("\t", -1);
+            for (String[] match : buildSide.getOrDefault(cells[leftOrdinal], List.of())) {
+                joined.append('\n').append(joinId++);
+                for (int c = 1; c < cells.length; c++) {
+                    joined.append('\t').append(cells[c]);
+                }
+                for (int c = 1; c < match.length; c++) {
+                    joined.append('\t').append(match[c]);
+                }
+            }
+        }
+        return joined.toString();
+    }
+
+    // join rows of every shard under one header, numbered again from 1
+    private static String renumber(Map<Integer, List<String>> answers) {
+        StringBuilder merged = null;
+        int joinId = 1;
+        for (List<String> answer : answers.values()) {
+            String[] lines = answer.get(0).split("\n");
+            if (!lines[0].startsWith("[OK]") || lines.length < 2) {
+                return answer.get(0);
+            }
+            if (merged == null) {
+                merged = new StringBuilder("[OK] \n").append(lines[1]);
+            }
+            for (int i = 2; i < lines.length; i++) {
+                merged.append('\n').append(joinId++).append(lines[i].substring(lines[i].indexOf('\t')));
+            }
+        }
+        return merged.toString();
+    }
+
+    // the first error of any shard, otherwise the first shard's answer
+    private static String combine(Map<Integer, List<String>> answers) {
+        for (List<String> answer : answers.values()) {
+            if (!answer.get(0).startsWith("[OK]")) {
+                return answer.get(0);
+            }
+        }
+        return answers.values().iterator().next().get(0);
+    }
+
+    private Map<Integer, List<String>> broadcast(String database, String statement) throws IOException {
+        Map<Integer, List<String>> statements = new TreeMap<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            statements.put(shard, List.of(statement));
+        }
+        return send(database, statements);
+    }
+
+    // each shard's statements, written to every shard before any answer is read, so the shards work on
+    // them at the same time and a shard given several answers them in one round trip
+    private Map<Integer, List<String>> send(String database, Map<Integer, List<String>> statements) throws IOException {
+        Map<Integer, Backend> borrowed = new TreeMap<>();
+        Map<Integer, Boolean> selecting = new HashMap<>();
+        try {
+            for (Map.Entry<Integer, List<String>> entry : statements.entrySet()) {
+                Backend backend = borrow(entry.getKey());
+                borrowed.put(entry.getKey(), backend);
+                boolean select = database != null && !database.equals(backend.database);
+                if (select) {
+                    backend.connection.write("USE " + database + ";");
+                }
+                selecting.put(entry.getKey(), select);
+                for (String statement : entry.getValue()) {
+                    backend.connection.write(statement);
+                }
+                backend.connection.flush();
+            }
+            Map<Integer, List<String>> answers = new TreeMap<>();
+            for (Map.Entry<Integer, Backend> entry : borrowed.entrySet()) {
+                Backend backend = entry.getValue();
+                if (selecting.get(entry.getKey())) {
+                    backend.database = backend.connection.read().startsWith("[OK]") ? database : null;
+                }
+                List<String> shardAnswers = new ArrayList<>();
+                for (String statement : statements.get(entry.getKey())) {
+                    String answer = backend.connection.read();
+                    if (statement.regionMatches(true, 0, "USE ", 0, 4)) {
+                        backend.database = answer.startsWith("[OK]") ? statement.substring(4, statement.length() - 1).trim().toLowerCase() : null;
+                    }
+                    shardAnswers.add(answer);
+                }
+                answers.put(entry.getKey(), shardAnswers);
+            }
+            for (Map.Entry<Integer, Backend> entry : borrowed.entrySet()) {
+                release(entry.getKey(), entry.getValue());
+            }
+            return answers;
+        } catch (IOException e) {
+            // answers may still be in flight on these, they can't be reused
+            for (Backend backend : borrowed.values()) {
+                backend.connection.close();
+            }
+            throw e;
+        }
+    }
+
+    private Backend borrow(int shard) throws IOException {
+        Deque<Backend> pool = idle.get(shard);
+        synchronized (pool) {
+            Backend backend = pool.poll();
+            if (backend != null) {
+                return backend;
+            }
+        }
+        InetSocketAddress address = shards.get(shard);
+        return new Backend(new DBConnection(address.getHostString(), address.getPort(), TIMEOUT_MILLIS));
+    }
+
+    private void release(int shard, Backend backend) throws IOException {
+        Deque<Backend> pool = idle.get(shard);
+        synchronized (pool) {
+            if (pool.size() < POOL_SIZE) {
+                pool.push(backend);
+                return;
+            }
+        }
+        backend.connection.close();
+    }
+
+    public void blockingListenOn(int portNumber) throws IOException {
+        try (ServerSocket s = new ServerSocket(portNumber)) {
+            System.out.println("Router listening on port " + portNumber + " for " + shards.size() + " shard(s)");
+            acceptConnections(s);
+        }
+    }
+
+    // listens on a daemon thread instead, 0 picks a free port. Returns the port listened on.
+    public int listenInBackground(int portNumber) throws IOException {
+        ServerSocket s = new ServerSocket(portNumber);
+        listeningSocket = s;
+        Thread acceptor = new Thread(() -> {
+            try (s) {
+                acceptConnections(s);
+            } catch (IOException e) {
+                // closed by stopListening
+            }
+        }, "router-" + s.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return s.getLocalPort();
+    }
+
+    public void stopListening() throws IOException {
+        if (listeningSocket != null) {
+            listeningSocket.close();
+        }
+        for (Deque<Backend> pool : idle) {
+            synchronized (pool) {
+                for (Backend backend : pool) {
+                    backend.connection.close();
+                }
+                pool.clear();
+            }
+        }
+    }
+
+    private void acceptConnections(ServerSocket serverSocket) {
+        while (!Thread.interrupted() && !serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                Thread handler = new Thread(() -> handleConnection(s), "router-connection-" + s.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                System.err.println("Router encountered a non-fatal IO error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        Session session = newSession();
+        try (Socket s = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
+            for (String command = reader.readLine(); command != null; command = reader.readLine()) {
+                writer.write(session.execute(command).trim());
+                writer.write("\n" + END_OF_TRANSMISSION + "\n");
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Router connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+        }
+    }
+}
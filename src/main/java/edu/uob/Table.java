@@ -1,21 +1,67 @@
 package edu.uob;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 public class Table {
+    // rows a snapshot read looks at per hold of the table's lock
+    private static final int SNAPSHOT_BLOCK = 4096;
     private final String tableName;
     private final File tableFile;
     private final List<String> columns;
-    private final List<Row> rows;
+    private RowStore rows;
+    // positions of deleted rows, skipped by scans until the compactor drops them
+    private final BitSet tombstones;
+    // column layouts the rows were written with, and one dictionary per column so repeated cells share a String
+    private SchemaHistory schema;
+    private final ZoneMap zoneMap;
+    private final ColumnVectors vectors;
+    private final TableStatistics statistics;
+    // optional per-column Bloom filters, keyed by column name
+    private final Map<String, BloomFilter> bloomFilters;
+    // values added to the filters since their .bloom files were written, the files are gone meanwhile
+    private int bloomWrites;
+    // optional per-column trigram indexes for LIKE, rebuilt from the rows on load
+    private final Map<String, TrigramIndex> trigramIndexes;
+    // optional per-column bitmap indexes for == and !=, rebuilt from the rows on load
+    private final Map<String, BitmapIndex> bitmapIndexes;
+    // ids ascend with row position, which lets id predicates binary search
+    private boolean clusteredById;
+    private boolean compactionScheduled;
+    private boolean dropped;
     private int nextId;
+    // row changes for SUBSCRIBE, null for a table without a file of its own
+    private ChangeLog changeLog;
+    // what rows looked like at the versions snapshot reads may still ask for
+    private RowVersions versions;
+    // rows the .tab file holds, the ones after are appended by the next save
+    private int savedRows;
+    // positions updated since the last save, and the lines <table>.upd has taken since the file was rewritten
+    private final BitSet updatedRows;
+    private int updateLines;
 
     public Table(String name, List<String> columns, File file) {
         this.tableName = name.toLowerCase();
         this.tableFile = file;
         this.columns = new ArrayList<>(columns);
-        this.rows = new ArrayList<>();
+        this.rows = RowStore.create(file.getParentFile());
+        this.tombstones = new BitSet();
+        this.schema = new SchemaHistory(this.columns.size() - 1);
+        this.zoneMap = new ZoneMap(this.columns.size());
+        this.vectors = new ColumnVectors(this.columns.size());
+        this.statistics = new TableStatistics();
+        this.bloomFilters = new LinkedHashMap<>();
+        this.trigramIndexes = new LinkedHashMap<>();
+        this.bitmapIndexes = new LinkedHashMap<>();
+        this.updatedRows = new BitSet();
+        this.clusteredById = true;
         this.nextId = 1;
+        this.changeLog = new ChangeLog(sidecarFile(".changes"), this);
+        this.versions = new RowVersions(changeLog.getOffset());
         saveTable();
     }
 
@@ -23,88 +69,937 @@ public class Table {
         this.tableName = name.toLowerCase();
         this.tableFile = file;
         this.columns = new ArrayList<>();
-        this.rows = new ArrayList<>();
+        this.rows = RowStore.create(file.getParentFile());
+        this.tombstones = new BitSet();
+        this.schema = new SchemaHistory(0);
+        this.zoneMap = new ZoneMap(0);
+        this.vectors = new ColumnVectors(0);
+        this.statistics = new TableStatistics();
+        this.bloomFilters = new LinkedHashMap<>();
+        this.trigramIndexes = new LinkedHashMap<>();
+        this.bitmapIndexes = new LinkedHashMap<>();
+        this.updatedRows = new BitSet();
+        // a compaction still running for an earlier instance of this table must not rewrite the file under us
+        Compactor.awaitIdle();
         loadTable();
+        loadIndexes();
+        this.changeLog = new ChangeLog(sidecarFile(".changes"), this);
+        this.versions = new RowVersions(changeLog.getOffset());
     }
+
+    // a table without rows or a file of its own, for PartitionedTable whose rows live in its partitions
+    Table(String name, List<String> columns) {
+        this.tableName = name.toLowerCase();
+        this.tableFile = null;
+        this.columns = new ArrayList<>(columns);
+        this.rows = new HeapRowStore();
+        this.tombstones = new BitSet();
+        this.schema = new SchemaHistory(this.columns.size() - 1);
+        this.zoneMap = new ZoneMap(this.columns.size());
+        this.vectors = new ColumnVectors(this.columns.size());
+        this.statistics = new TableStatistics();
+        this.bloomFilters = new LinkedHashMap<>();
+        this.trigramIndexes = new LinkedHashMap<>();
+        this.bitmapIndexes = new LinkedHashMap<>();
+        this.updatedRows = new BitSet();
+        this.clusteredById = true;
+        this.nextId = 1;
+        this.versions = new RowVersions(0);
+    }
+
+    public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    // partitions log their rows to the PartitionedTable's feed
+    void shareChangeLog(ChangeLog changeLog) {
+        this.changeLog = changeLog;
+        this.versions = new RowVersions(changeLog.getOffset());
+    }
+
+    // the change log offset of the last committed write, what SELECT ... AS OF counts in
+    public long currentVersion() {
+        return changeLog == null ? 0 : changeLog.getOffset();
+    }
+
+    // the earliest version AS OF can still read
+    public synchronized long oldestVersion() {
+        return versions.getHorizon();
+    }
+
     // select without condition
     public List<String> getColumns() {
         return new ArrayList<>(columns);
     }
+
+    public synchronized int rowCount() {
+        return rows.size() - tombstones.cardinality();
+    }
+
+    public boolean isClusteredById() {
+        return clusteredById;
+    }
+
+    // column rows are hash partitioned on, null for a table kept in one file
+    public String getPartitionKey() {
+        return null;
+    }
+
+    synchronized int nextId() {
+        return nextId;
+    }
+
+    public TableStatistics getStatistics() {
+        return statistics;
+    }
+
+    // ANALYZE - recollects the statistics and reports them per column
+    public synchronized List<String> analyze() {
+        int[] live = livePositions();
+        statistics.analyze(live.length, columns.size(), ordinal -> index -> valueAt(rows.get(live[index]), ordinal));
+        List<String> results = new ArrayList<>();
+        results.add("column\tdistinct\tnulls");
+        for (int ordinal = 0; ordinal < columns.size(); ordinal++) {
+            results.add(columns.get(ordinal) + "\t" + statistics.distinctValues(ordinal, live.length) + "\t" + statistics.nullCount(ordinal));
+        }
+        return results;
+    }
+
+    // CREATE INDEX ... USING BLOOM - built from the current rows and maintained on writes
+    public synchronized boolean addBloomFilter(String column, double falsePositiveRate) {
+        int ordinal = columns.indexOf(column);
+        if (ordinal == -1 || bloomFilters.containsKey(column)) {
+            return false;
+        }
+        bloomFilters.put(column, buildBloomFilter(ordinal, falsePositiveRate));
+        return saveIndexes();
+    }
+
+    private BloomFilter buildBloomFilter(int ordinal, double falsePositiveRate) {
+        BloomFilter filter = new BloomFilter(rowCount() * 2, falsePositiveRate);
+        for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+            filter.add(equalityKey(valueAt(rows.get(position), ordinal)));
+        }
+        return filter;
+    }
+
+    // false only when no row can hold the value in that column
+    public synchronized boolean mightContain(int ordinal, String value) {
+        BloomFilter filter = bloomFilters.get(columns.get(ordinal));
+        return filter == null || filter.mightContain(equalityKey(value));
+    }
+
+    private void addToBloomFilters(Row row) {
+        for (Map.Entry<String, BloomFilter> entry : bloomFilters.entrySet()) {
+            int ordinal = columns.indexOf(entry.getKey());
+            entry.getValue().add(equalityKey(valueAt(row, ordinal)));
+            if (entry.getValue().isSaturated()) {
+                entry.setValue(buildBloomFilter(ordinal, entry.getValue().getFalsePositiveRate()));
+            }
+            bloomFilterChanged();
+        }
+    }
+
+    // the bits on disk no longer hold every value: the file goes, a load before the next flush rebuilds
+    // the filter from the rows
+    private void bloomFilterChanged() {
+        if (bloomWrites++ == 0) {
+            for (String indexed : bloomFilters.keySet()) {
+                sidecarFile("." + indexed + ".bloom").delete();
+            }
+        }
+    }
+
+    // filters are written out with the index definitions, and once they have taken about as many values
+    // as there are rows since - each write doesn't pay for rewriting the bits
+    private boolean flushBloomFilters() {
+        if (bloomWrites <= rowCount()) {
+            return true;
+        }
+        return saveIndexes();
+    }
+
+    // CREATE INDEX ... USING TRIGRAM - built from the current rows and maintained on writes
+    public synchronized boolean addTrigramIndex(String column) {
+        int ordinal = columns.indexOf(column);
+        if (ordinal == -1 || trigramIndexes.containsKey(column)) {
+            return false;
+        }
+        trigramIndexes.put(column, buildTrigramIndex(ordinal));
+        return saveIndexes();
+    }
+
+    public synchronized boolean hasTrigramIndex(String column) {
+        return trigramIndexes.containsKey(column);
+    }
+
+    private TrigramIndex buildTrigramIndex(int ordinal) {
+        TrigramIndex index = new TrigramIndex();
+        for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+            index.add(position, valueAt(rows.get(position), ordinal));
+        }
+        return index;
+    }
+
+    // CREATE INDEX ... USING BITMAP - meant for low-cardinality columns such as booleans and enums
+    public synchronized boolean addBitmapIndex(String column) {
+        int ordinal = columns.indexOf(column);
+        if (ordinal == -1 || bitmapIndexes.containsKey(column)) {
+            return false;
+        }
+        bitmapIndexes.put(column, buildBitmapIndex(ordinal));
+        return saveIndexes();
+    }
+
+    public synchronized boolean hasBitmapIndex(String column) {
+        return bitmapIndexes.containsKey(column);
+    }
+
+    private BitmapIndex buildBitmapIndex(int ordinal) {
+        BitmapIndex index = new BitmapIndex();
+        for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+            index.add(position, valueAt(rows.get(position), ordinal));
+        }
+        return index;
+    }
+
+    // positions (tombstones included) answering the comparison from a bitmap index, null when there is none
+    private RoaringBitmap bitmapLookup(int attrIndex, String comparator, String conditionValue) {
+        BitmapIndex index = bitmapIndexes.get(columns.get(attrIndex));
+        String value = unquote(conditionValue);
+        // NaN is never == to anything, not even the "NaN" cells sharing its key
+        if (index == null || !(comparator.equals("==") || comparator.equals("!=")) || equalityKey(value).equals("NaN")) {
+            return null;
+        }
+        RoaringBitmap equal = index.equalTo(value);
+        // a copy, updates move positions between the index's bitmaps while the result is iterated
+        return comparator.equals("==") ? equal.copy() : RoaringBitmap.range(0, rows.size()).andNot(equal);
+    }
+
+    // numbers are compared numerically by ==, so "65" and "65.0" must share a key
+    static String equalityKey(String value) {
+        try {
+            double number = Double.parseDouble(value);
+            return Double.isNaN(number) ? value : String.valueOf(number == 0 ? 0.0 : number);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    static String unquote(String value) {
+        if (value.startsWith("'") && value.endsWith("'") && value.length() >= 2) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private void maybeAnalyze() {
+        if (statistics.needsAnalyze()) {
+            analyze();
+        }
+    }
+    // a whole table read is a snapshot of the latest version, so it doesn't hold writers up
     public List<String> selectRows(List<String> selectedColumns) {
+        return selectRowsAsOf(selectedColumns, null, currentVersion());
+    }
+
+    // the rows as they were at a version, header first. The table is locked a block of rows at a time
+    // rather than for the whole scan: writes get in between the blocks, and the versions kept while the
+    // snapshot is open hide what they change. The condition may be null.
+    public List<String> selectRowsAsOf(List<String> selectedColumns, Condition condition, long version) {
         List<String> results = new ArrayList<>();
         results.add(String.join("\t", selectedColumns));
-        for (Row row : rows) {
-            List<String> selectedValues = new ArrayList<>();
-            for (String col : selectedColumns) {
-                int colIndex = columns.indexOf(col);
-                if (colIndex == -1) {
-                    return List.of("[ERROR] Column not found: " + col);
-                }
-                if (col.equalsIgnoreCase("id")) {
-                    selectedValues.add(String.valueOf(row.getId()));
-                } else {
-                    selectedValues.add(row.getValues().get(colIndex - 1));
+        String error = scanAsOf(selectedColumns, condition, version, results::addAll);
+        return error == null ? results : List.of(error);
+    }
+
+    // hands the rows of the version over a block at a time, outside the table's lock. The error, null
+    // once every row has been handed over.
+    String scanAsOf(List<String> selectedColumns, Condition condition, long version, Consumer<List<String>> blocks) {
+        synchronized (this) {
+            String error = versionError(version);
+            if (error == null && resolveColumns(selectedColumns) == null) {
+                error = "[ERROR] Column not found: " + missingColumn(selectedColumns);
+            }
+            if (error == null && condition != null && !missingColumn(condition.getAttributes()).isEmpty()) {
+                error = "[ERROR] Column not found in WHERE clause: " + missingColumn(condition.getAttributes());
+            }
+            if (error != null) {
+                return error;
+            }
+            versions.open(version);
+        }
+        try {
+            StringBuilder line = new StringBuilder();
+            int position = 0;
+            // ids of the rows the blocks have read. A row deleted once the scan has passed it is among the
+            // deleted versions read at the end, but it has been handed over (or left out) already.
+            BitSet read = new BitSet();
+            boolean done = false;
+            while (!done) {
+                List<String> results = new ArrayList<>();
+                synchronized (this) {
+                    // an ALTER may have come in between blocks
+                    int[] ordinals = resolveColumns(selectedColumns);
+                    if (ordinals == null) {
+                        return "[ERROR] Column dropped while reading: " + missingColumn(selectedColumns);
+                    }
+                    boolean current = versions.isEmpty();
+                    for (int end = Math.min(rows.size(), position + SNAPSHOT_BLOCK); position < end; position++) {
+                        QueryContext.checkpoint(position);
+                        if (current && tombstones.get(position)) {
+                            continue;
+                        }
+                        Row row = rows.get(position);
+                        RowVersions.Version earlier = null;
+                        if (!current) {
+                            if (!versions.isVisible(row.getId(), version)) {
+                                continue;
+                            }
+                            earlier = versions.at(row.getId(), version);
+                        }
+                        // a row deleted since the version reads as it was, in its place
+                        if (earlier == null && tombstones.get(position)) {
+                            continue;
+                        }
+                        if (earlier == null && (condition == null || matches(condition, column -> valueAt(row, columns.indexOf(column))))) {
+                            results.add(projectRow(row, ordinals, line));
+                        } else if (earlier != null && (condition == null || matches(condition, earlier::get))) {
+                            results.add(projectVersion(earlier, selectedColumns, line));
+                        }
+                        read.set(row.getId());
+                    }
+                    if (position >= rows.size()) {
+                        // rows deleted since the version that compaction had already taken out, after the rest
+                        for (Map.Entry<Integer, RowVersions.Version> entry : versions.deletedAt(version).entrySet()) {
+                            RowVersions.Version deleted = entry.getValue();
+                            if (!read.get(entry.getKey()) && (condition == null || matches(condition, deleted::get))) {
+                                results.add(projectVersion(deleted, selectedColumns, line));
+                            }
+                        }
+                        done = true;
+                    }
                 }
+                blocks.accept(results);
             }
-            results.add(String.join("\t", selectedValues));
+            return null;
+        } finally {
+            closeSnapshot(version);
+        }
+    }
+
+    // keeps the version readable until closeSnapshot, for a reader that starts on it later
+    synchronized void openSnapshot(long version) {
+        versions.open(version);
+    }
+
+    // a JOIN's snapshot: {version, positions}. The rows of the version stay at their positions until
+    // closeSnapshot, compaction waits for it.
+    synchronized long[] openJoin() {
+        long version = currentVersion();
+        versions.open(version);
+        return new long[] {version, rows.size()};
+    }
+
+    // the tables a JOIN reads, one after the other
+    List<Table> joinParts() {
+        return List.of(this);
+    }
+
+    // a JOIN reads rows in position order, which is id order while the table is clustered
+    public boolean joinsInIdOrder() {
+        return isClusteredById();
+    }
+
+    // the column's cells at positions from..to as of the version, null where a row isn't part of it
+    synchronized String[] cellsAsOf(String column, long version, int from, int to) {
+        String[] cells = new String[to - from];
+        for (int position = from; position < to; position++) {
+            QueryContext.checkpoint(position);
+            Function<String, String> row = rowAsOf(position, version);
+            cells[position - from] = row == null ? null : row.apply(column);
+        }
+        return cells;
+    }
+
+    // the columns' cells of the row at a position as of the version, null when it isn't part of it
+    synchronized String[] cellsAsOf(List<String> selectedColumns, long version, int position) {
+        Function<String, String> row = rowAsOf(position, version);
+        if (row == null) {
+            return null;
+        }
+        String[] cells = new String[selectedColumns.size()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = row.apply(selectedColumns.get(i));
+        }
+        return cells;
+    }
+
+    // cells by column name, the ones the row had at the version. Columns dropped since read as empty.
+    private Function<String, String> rowAsOf(int position, long version) {
+        Row row = rows.get(position);
+        RowVersions.Version earlier = null;
+        if (!versions.isEmpty()) {
+            if (!versions.isVisible(row.getId(), version)) {
+                return null;
+            }
+            earlier = versions.at(row.getId(), version);
+        }
+        if (earlier != null) {
+            return earlier::get;
+        }
+        if (tombstones.get(position)) {
+            return null;
+        }
+        return column -> {
+            int ordinal = columns.indexOf(column);
+            return ordinal == -1 ? "" : valueAt(row, ordinal);
+        };
+    }
+
+    synchronized void closeSnapshot(long version) {
+        versions.close(version);
+        // a compaction skipped while the snapshot was open
+        if (!versions.hasOpenSnapshots() && !compactionScheduled && Compactor.isDue(tombstones.cardinality(), rows.size())) {
+            compactionScheduled = true;
+            Compactor.schedule(this);
         }
-        return results;
+    }
+
+    // null when the version can be read
+    private String versionError(long version) {
+        if (version > currentVersion()) {
+            return "[ERROR] Version " + version + " of " + tableName + " isn't committed, the latest is " + currentVersion();
+        }
+        if (version < versions.getHorizon()) {
+            return "[ERROR] Version " + version + " of " + tableName + " is no longer kept, the oldest is " + versions.getHorizon();
+        }
+        return null;
+    }
+
+    private static String projectVersion(RowVersions.Version version, List<String> selectedColumns, StringBuilder line) {
+        line.setLength(0);
+        for (int i = 0; i < selectedColumns.size(); i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            line.append(version.get(selectedColumns.get(i)));
+        }
+        return line.toString();
     }
 
     // SELECT with a WHERE condition.
-    public List<String> selectRows(List<String> selectedColumns, String conditionAttribute, String comparator, String conditionValue) {
-        List<String> results = new ArrayList<>();
-        results.add(String.join("\t", selectedColumns));
+    public synchronized List<String> selectRows(List<String> selectedColumns, String conditionAttribute, String comparator, String conditionValue,
+                                   Planner.ScanStrategy strategy) {
         int attrIndex = columns.indexOf(conditionAttribute);
         if (attrIndex == -1) {
             return List.of("[ERROR] Column not found in WHERE clause: " + conditionAttribute);
         }
-        for (Row row : rows) {
-            String rowValue;
-            rowValue = conditionAttribute.equalsIgnoreCase("id") ? String.valueOf(row.getId()) : row.getValues().get(attrIndex - 1);
+        int[] ordinals = resolveColumns(selectedColumns);
+        if (ordinals == null) {
+            return List.of("[ERROR] Column not found: " + missingColumn(selectedColumns));
+        }
+        List<String> results = new ArrayList<>();
+        results.add(String.join("\t", selectedColumns));
+        StringBuilder line = new StringBuilder();
+        forEachMatch(attrIndex, comparator, conditionValue, strategy, position -> results.add(projectRow(rows.get(position), ordinals, line)));
+        return results;
+    }
 
-            if (evaluateCondition(rowValue, comparator, conditionValue)) {
-                List<String> selectedValues = new ArrayList<>();
-                for (String col : selectedColumns) {
-                    int colIndex = columns.indexOf(col);
-                    if (colIndex == -1) {
-                        return List.of("[ERROR] Column not found: " + col);
-                    }
-                    if (col.equalsIgnoreCase("id")) {
-                        selectedValues.add(String.valueOf(row.getId()));
-                    } else {
-                        selectedValues.add(row.getValues().get(colIndex - 1));
+    // SELECT with a compound WHERE condition.
+    public synchronized List<String> selectRows(List<String> selectedColumns, Condition condition) {
+        String missing = missingColumn(condition.getAttributes());
+        if (!missing.isEmpty()) {
+            return List.of("[ERROR] Column not found in WHERE clause: " + missing);
+        }
+        int[] ordinals = resolveColumns(selectedColumns);
+        if (ordinals == null) {
+            return List.of("[ERROR] Column not found: " + missingColumn(selectedColumns));
+        }
+        List<String> results = new ArrayList<>();
+        results.add(String.join("\t", selectedColumns));
+        StringBuilder line = new StringBuilder();
+        forEachMatch(condition, position -> results.add(projectRow(rows.get(position), ordinals, line)));
+        return results;
+    }
+
+    // matching rows with the projected cells kept apart, for callers in the same JVM that would only split
+    // the lines again. Null when a column doesn't exist, a null condition matches every row.
+    public synchronized List<String[]> selectCells(List<String> selectedColumns, Condition condition) {
+        int[] ordinals = resolveColumns(selectedColumns);
+        if (ordinals == null || (condition != null && !missingColumn(condition.getAttributes()).isEmpty())) {
+            return null;
+        }
+        List<String[]> results = new ArrayList<>();
+        IntConsumer project = position -> results.add(cellsAt(position, ordinals));
+        if (condition == null) {
+            for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+                QueryContext.checkpoint(position);
+                project.accept(position);
+            }
+        } else {
+            forEachMatch(condition, project);
+        }
+        return results;
+    }
+
+    // rows whose column holds one of the values as the same string, the way JOIN matches keys. With a
+    // bitmap index on the column only the values' bitmaps are read, those key numbers by value so every
+    // candidate is compared again. Null when a column doesn't exist.
+    public synchronized List<String[]> selectCellsEqualTo(List<String> selectedColumns, String column, Set<String> values) {
+        int[] ordinals = resolveColumns(selectedColumns);
+        int ordinal = columns.indexOf(column);
+        if (ordinals == null || ordinal == -1) {
+            return null;
+        }
+        List<String[]> results = new ArrayList<>();
+        IntConsumer project = position -> {
+            if (!tombstones.get(position) && values.contains(valueAt(rows.get(position), ordinal))) {
+                results.add(cellsAt(position, ordinals));
+            }
+        };
+        BitmapIndex index = bitmapIndexes.get(column);
+        if (index != null) {
+            RoaringBitmap positions = new RoaringBitmap();
+            for (String value : values) {
+                positions = positions.or(index.equalTo(value));
+            }
+            positions.forEach(project);
+        } else {
+            for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+                QueryContext.checkpoint(position);
+                project.accept(position);
+            }
+        }
+        return results;
+    }
+
+    private String[] cellsAt(int position, int[] ordinals) {
+        Row row = rows.get(position);
+        String[] cells = new String[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            cells[i] = valueAt(row, ordinals[i]);
+        }
+        return cells;
+    }
+
+    private void forEachMatch(Condition condition, IntConsumer action) {
+        match(condition, null).forEach(position -> {
+            if (!tombstones.get(position)) {
+                action.accept(position);
+            }
+        });
+    }
+
+    // positions satisfying the condition, tombstones possibly included. When candidates is given only
+    // those positions need checking - the result may still hold others, callers intersect it.
+    private RoaringBitmap match(Condition condition, RoaringBitmap candidates) {
+        if (condition.isComparison()) {
+            int attrIndex = columns.indexOf(condition.getAttribute());
+            String comparator = condition.getComparator();
+            String conditionValue = condition.getValue();
+            RoaringBitmap bitmap = bitmapLookup(attrIndex, comparator, conditionValue);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            RoaringBitmap matches = new RoaringBitmap();
+            if (candidates != null) {
+                candidates.forEach(position -> {
+                    if (!tombstones.get(position) && evaluateCondition(valueAt(rows.get(position), attrIndex), comparator, conditionValue)) {
+                        matches.add(position);
                     }
+                });
+            } else {
+                Planner.ScanStrategy strategy = Planner.planScan(this, condition.getAttribute(), comparator, conditionValue);
+                forEachMatch(attrIndex, comparator, conditionValue, strategy, matches::add);
+            }
+            return matches;
+        }
+        if (condition.getOperator().equals("OR")) {
+            return match(condition.getLeft(), candidates).or(match(condition.getRight(), candidates));
+        }
+        // AND - a side answered from bitmaps goes first, the other side then only checks its matches
+        boolean swap = isBitmapAnswerable(condition.getRight()) && !isBitmapAnswerable(condition.getLeft());
+        Condition first = swap ? condition.getRight() : condition.getLeft();
+        Condition second = swap ? condition.getLeft() : condition.getRight();
+        RoaringBitmap matches = match(first, candidates);
+        return matches.isEmpty() ? matches : matches.and(match(second, matches));
+    }
+
+    private boolean isBitmapAnswerable(Condition condition) {
+        if (condition.isComparison()) {
+            String comparator = condition.getComparator();
+            return bitmapIndexes.containsKey(condition.getAttribute()) && (comparator.equals("==") || comparator.equals("!="));
+        }
+        return isBitmapAnswerable(condition.getLeft()) && isBitmapAnswerable(condition.getRight());
+    }
+
+    // visits the positions of the live rows satisfying the condition, in row order
+    private void forEachMatch(int attrIndex, String comparator, String conditionValue, Planner.ScanStrategy strategy, IntConsumer action) {
+        if (comparator.equals("==") && !mightContain(attrIndex, unquote(conditionValue))) {
+            return;
+        }
+        TrigramIndex trigramIndex = trigramIndexes.get(columns.get(attrIndex));
+        if (strategy == Planner.ScanStrategy.TRIGRAM_LOOKUP && trigramIndex != null && comparator.equals("LIKE")
+                && TrigramIndex.isSearchable(unquote(conditionValue))) {
+            for (int position : trigramIndex.candidates(unquote(conditionValue))) {
+                QueryContext.checkpoint(position);
+                if (!tombstones.get(position) && evaluateCondition(valueAt(rows.get(position), attrIndex), comparator, conditionValue)) {
+                    action.accept(position);
+                }
+            }
+            return;
+        }
+        RoaringBitmap bitmap = strategy == Planner.ScanStrategy.BITMAP_LOOKUP ? bitmapLookup(attrIndex, comparator, conditionValue) : null;
+        if (bitmap != null) {
+            bitmap.forEach(position -> {
+                if (!tombstones.get(position)) {
+                    action.accept(position);
+                }
+            });
+            return;
+        }
+        int from = 0;
+        int to = rows.size();
+        if (strategy == Planner.ScanStrategy.INDEX_LOOKUP) {
+            int[] range = idRange(comparator, conditionValue);
+            from = range[0];
+            to = range[1];
+        }
+        // blocks are filtered a batch at a time: the comparison fills a selection vector, tombstones are
+        // only checked for the selected positions
+        String literal = unquote(conditionValue);
+        boolean numeric = isNumber(literal);
+        double number = ColumnVectors.parseNumber(literal);
+        int[] selection = new int[ZoneMap.BLOCK_SIZE];
+        for (int block = from / ZoneMap.BLOCK_SIZE; block < zoneMap.blockCount() && blockStart(block) < to; block++) {
+            QueryContext.checkpoint();
+            if (strategy == Planner.ScanStrategy.ZONE_MAP_SCAN && !mayMatch(block, attrIndex, comparator, conditionValue)) {
+                continue;
+            }
+            int start = blockStart(block);
+            int count;
+            if (comparator.equals("LIKE")) {
+                count = 0;
+                for (int position = Math.max(from, start); position < Math.min(to, blockEnd(block)); position++) {
+                    selection[count] = position - start;
+                    count += evaluateCondition(valueAt(rows.get(position), attrIndex), comparator, conditionValue) ? 1 : 0;
+                }
+            } else {
+                double[] vector = vectors.vector(block, attrIndex, position -> valueAt(rows.get(position), attrIndex));
+                int lo = Math.max(from, start) - start;
+                int hi = Math.min(to, blockEnd(block)) - start;
+                count = numeric ? ColumnVectors.select(vector, lo, hi, comparator, number, selection)
+                        : selectText(vector, lo, hi, start, attrIndex, comparator, literal, selection);
+            }
+            for (int i = 0; i < count; i++) {
+                int position = start + selection[i];
+                if (!tombstones.get(position)) {
+                    action.accept(position);
                 }
-                results.add(String.join("\t", selectedValues));
             }
         }
-        return results;
     }
 
-    public int deleteRows(String conditionAttribute, String comparator, String conditionValue) {
+    // a literal that isn't a number: it can only equal cells that aren't numbers either, and range
+    // comparisons never match, as in evaluateCondition
+    private int selectText(double[] vector, int from, int to, int start, int attrIndex, String comparator, String literal, int[] selection) {
+        int count = 0;
+        if (comparator.equals("==")) {
+            int candidates = ColumnVectors.selectNaN(vector, from, to, selection);
+            for (int i = 0; i < candidates; i++) {
+                selection[count] = selection[i];
+                count += valueAt(rows.get(start + selection[i]), attrIndex).equals(literal) ? 1 : 0;
+            }
+        } else if (comparator.equals("!=")) {
+            for (int i = from; i < to; i++) {
+                selection[count] = i;
+                count += vector[i] == vector[i] || !valueAt(rows.get(start + i), attrIndex).equals(literal) ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isNumber(String value) {
+        if (!Double.isNaN(ColumnVectors.parseNumber(value))) {
+            return true;
+        }
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // [from, to) positions whose id can satisfy the comparison, found by binary search
+    private int[] idRange(String comparator, String conditionValue) {
+        double bound;
+        try {
+            bound = Double.parseDouble(unquote(conditionValue));
+        } catch (NumberFormatException e) {
+            return new int[]{0, 0};
+        }
+        if (Double.isNaN(bound)) {
+            return new int[]{0, 0};
+        }
+        switch (comparator) {
+            case "==":
+                return new int[]{firstIdAbove(bound, true), firstIdAbove(bound, false)};
+            case ">":
+                return new int[]{firstIdAbove(bound, false), rows.size()};
+            case ">=":
+                return new int[]{firstIdAbove(bound, true), rows.size()};
+            case "<":
+                return new int[]{0, firstIdAbove(bound, true)};
+            case "<=":
+                return new int[]{0, firstIdAbove(bound, false)};
+            default:
+                return new int[]{0, rows.size()};
+        }
+    }
+
+    // first position whose id is above bound (or equal to it when inclusive)
+    private int firstIdAbove(double bound, boolean inclusive) {
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int id = rows.get(mid).getId();
+            if (id > bound || (inclusive && id == bound)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // projection is resolved to column ordinals once per query, 0 being the id column
+    private int[] resolveColumns(List<String> selectedColumns) {
+        int[] ordinals = new int[selectedColumns.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = columns.indexOf(selectedColumns.get(i));
+            if (ordinals[i] == -1) {
+                return null;
+            }
+        }
+        return ordinals;
+    }
+
+    private String missingColumn(List<String> selectedColumns) {
+        for (String col : selectedColumns) {
+            if (!columns.contains(col)) {
+                return col;
+            }
+        }
+        return "";
+    }
+
+    // false when the block's zone proves no row in it can satisfy the condition
+    private boolean mayMatch(int block, int ordinal, String comparator, String conditionValue) {
+        return zoneMap.mayMatch(block, ordinal, comparator, conditionValue, position -> valueAt(rows.get(position), ordinal));
+    }
+
+    private int blockStart(int block) {
+        return block * ZoneMap.BLOCK_SIZE;
+    }
+
+    private int blockEnd(int block) {
+        return Math.min(rows.size(), (block + 1) * ZoneMap.BLOCK_SIZE);
+    }
+
+    // value of a current column, read through the layout the row was written with
+    private String valueAt(Row row, int ordinal) {
+        if (ordinal == 0) {
+            return String.valueOf(row.getId());
+        }
+        int index = schema.physicalIndex(row.getSchemaVersion(), ordinal - 1);
+        return index == -1 ? "" : row.getValue(index);
+    }
+
+    // rewrites a row written under an older schema into the current layout
+    private String[] upgrade(Row row) {
+        int version = schema.currentVersion();
+        if (row.getSchemaVersion() == version) {
+            return row.decode(schema.dictionaries(version));
+        }
+        List<ValueDictionary> current = schema.dictionaries(version);
+        String[] values = new String[columns.size() - 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = current.get(i).intern(valueAt(row, i + 1));
+        }
+        row.upgrade(values, version);
+        return values;
+    }
+
+    private String formatRow(Row row) {
+        if (row.getSchemaVersion() == schema.currentVersion()) {
+            return row.toString();
+        }
+        StringBuilder line = new StringBuilder().append(row.getId());
+        for (int ordinal = 1; ordinal < columns.size(); ordinal++) {
+            line.append('\t').append(valueAt(row, ordinal));
+        }
+        return line.toString();
+    }
+
+    // only the projected cells of the row are decoded
+    private String projectRow(Row row, int[] ordinals, StringBuilder line) {
+        line.setLength(0);
+        for (int i = 0; i < ordinals.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            if (ordinals[i] == 0) {
+                line.append(row.getId());
+            } else {
+                line.append(valueAt(row, ordinals[i]));
+            }
+        }
+        return line.toString();
+    }
+
+    // rows are only tombstoned here, the background compactor reclaims them later
+    public synchronized int deleteRows(String conditionAttribute, String comparator, String conditionValue, Planner.ScanStrategy strategy) {
         int attrIndex = columns.indexOf(conditionAttribute);
         if (attrIndex == -1) {
             return -1;
         }
-        int deleteCount = 0;
-        Iterator<Row> iterator = rows.iterator();
-        while (iterator.hasNext()) {
-            Row row = iterator.next();
-            String rowValue;
-            rowValue = conditionAttribute.equalsIgnoreCase("id") ? String.valueOf(row.getId()) : row.getValues().get(attrIndex - 1);
+        return deleteMatches(action -> forEachMatch(attrIndex, comparator, conditionValue, strategy, action));
+    }
+
+    public synchronized int deleteRows(Condition condition) {
+        if (!missingColumn(condition.getAttributes()).isEmpty()) {
+            return -1;
+        }
+        return deleteMatches(action -> forEachMatch(condition, action));
+    }
+
+    // deletes the rows whose cell in the column is one of the values
+    synchronized int deleteRows(String column, Set<String> values) {
+        int ordinal = columns.indexOf(column);
+        if (ordinal == -1) {
+            return -1;
+        }
+        return deleteMatches(action -> {
+            for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+                if (values.contains(valueAt(rows.get(position), ordinal))) {
+                    action.accept(position);
+                }
+            }
+        });
+    }
+
+    private int deleteMatches(Consumer<IntConsumer> scan) {
+        BitSet matches = new BitSet(rows.size());
+        scan.accept(matches::set);
+        int deleteCount = matches.cardinality();
+        if (deleteCount > 0) {
+            tombstones.or(matches);
+            appendTombstones(matches);
+            List<String> layout = List.copyOf(columns);
+            for (int position = matches.nextSetBit(0); position >= 0; position = matches.nextSetBit(position + 1)) {
+                Row row = rows.get(position);
+                String[] cells = new String[layout.size()];
+                for (int ordinal = 0; ordinal < cells.length; ordinal++) {
+                    cells[ordinal] = valueAt(row, ordinal);
+                }
+                versions.deleted(row.getId(), layout, cells);
+                if (changeLog != null) {
+                    changeLog.delete(row.getId());
+                }
+            }
+            commitChanges();
+            statistics.recordWrites(deleteCount);
+            maybeAnalyze();
+            if (!compactionScheduled && Compactor.isDue(tombstones.cardinality(), rows.size())) {
+                compactionScheduled = true;
+                Compactor.schedule(this);
+            }
+        }
+        return deleteCount;
+    }
 
-            if (evaluateCondition(rowValue, comparator, conditionValue)) {
-                iterator.remove();
-                deleteCount++;
+    // drops tombstoned rows from memory and rewrites the file without them, rows still on an
+    // older schema are brought to the current layout on the way
+    public synchronized void compact() {
+        compactionScheduled = false;
+        // rows move, open snapshots read by position - the last one to close schedules it again
+        if (tombstones.isEmpty() || dropped || !tableFile.exists() || versions.hasOpenSnapshots()) {
+            return;
+        }
+        rows = rows.without(tombstones);
+        for (int position = 0; position < rows.size(); position++) {
+            if (rows.get(position).getSchemaVersion() != schema.currentVersion()) {
+                Row row = rows.pin(position);
+                upgrade(row);
+                rows.unpin(position, row, true);
             }
         }
-        // save changes and update nextId
+        tombstones.clear();
+        zoneMap.reset(rows.size(), columns.size());
+        vectors.reset(rows.size(), columns.size());
+        // positions moved, the trigram postings and bitmaps have to follow
+        for (Map.Entry<String, TrigramIndex> entry : trigramIndexes.entrySet()) {
+            entry.setValue(buildTrigramIndex(columns.indexOf(entry.getKey())));
+        }
+        for (Map.Entry<String, BitmapIndex> entry : bitmapIndexes.entrySet()) {
+            entry.setValue(buildBitmapIndex(columns.indexOf(entry.getKey())));
+        }
         saveTable();
-        updateNextId();
-        return deleteCount;
     }
-    private boolean evaluateCondition(String rowValue, String comparator, String conditionValue) {
+
+    // <table>.del lists the ids deleted since the .tab file was last written
+    private void appendTombstones(BitSet positions) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(sidecarFile(".del"), true))) {
+            for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position + 1)) {
+                writer.write(String.valueOf(rows.get(position).getId()));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving deletes of table " + tableName + ": " + e.getMessage());
+        }
+    }
+
+    private void loadTombstones() {
+        File deleteFile = sidecarFile(".del");
+        if (!deleteFile.exists()) {
+            return;
+        }
+        // the deleted ids are few compared to the rows, so they are collected first and the rows matched in one pass
+        Set<Integer> deletedIds = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(deleteFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    deletedIds.add(Integer.parseInt(line.trim()));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error loading deletes of table " + tableName + ": " + e.getMessage());
+        }
+        for (int position = 0; position < rows.size() && !deletedIds.isEmpty(); position++) {
+            if (deletedIds.remove(rows.get(position).getId())) {
+                tombstones.set(position);
+            }
+        }
+    }
+
+    // the condition checked against a row that isn't in the table, its cells given by column name
+    static boolean matches(Condition condition, Function<String, String> valueOf) {
+        if (condition.isComparison()) {
+            String value = valueOf.apply(condition.getAttribute());
+            return value != null && evaluateCondition(value, condition.getComparator(), condition.getValue());
+        }
+        boolean left = matches(condition.getLeft(), valueOf);
+        if (condition.getOperator().equals("OR")) {
+            return left || matches(condition.getRight(), valueOf);
+        }
+        return left && matches(condition.getRight(), valueOf);
+    }
+
+    private static boolean evaluateCondition(String rowValue, String comparator, String conditionValue) {
         if (conditionValue.startsWith("'") && conditionValue.endsWith("'") && conditionValue.length() >= 2) {
             conditionValue = conditionValue.substring(1, conditionValue.length() - 1);
         }
@@ -158,70 +1053,346 @@ public class Table {
                     return false;
                 }
             case "LIKE":
-                // (((Case-insensitive))) substring
-                return rowValue.toLowerCase().contains(conditionValue.toLowerCase());
+                // (((Case-insensitive))) substring, matched in place instead of lowercasing both strings
+                for (int i = 0; i + conditionValue.length() <= rowValue.length(); i++) {
+                    if (rowValue.regionMatches(true, i, conditionValue, 0, conditionValue.length())) {
+                        return true;
+                    }
+                }
+                return false;
             default:
                 return false;
         }
     }
     private void loadTable() {
+        Map<Integer, String> updates = loadUpdates();
         try (BufferedReader reader = new BufferedReader(new FileReader(tableFile))) {
             String headerLine = reader.readLine();
             if (headerLine != null) {
                 columns.addAll(Arrays.asList(headerLine.split("\t")));
             }
+            // the header is the layout every row in the file was written with
+            schema = new SchemaHistory(Math.max(0, columns.size() - 1));
             String line;
+            clusteredById = true;
+            int lastId = Integer.MIN_VALUE;
             while ((line = reader.readLine()) != null) {
                 if (line.trim().isEmpty()) {
                     continue; // skip blank lines.
                 }
-                String[] tokens = line.split("\t", -1);
-                if (tokens.length == 0 || tokens[0].trim().isEmpty()) {
+                int tab = line.indexOf('\t');
+                if ((tab == -1 ? line : line.substring(0, tab)).trim().isEmpty()) {
                     continue;
                 }
-                rows.add(new Row(tokens));
+                // cells stay encoded until a query or a mutation needs them
+                Row row = new Row(line, 0);
+                String updated = updates.isEmpty() ? null : updates.remove(row.getId());
+                if (updated != null) {
+                    row = new Row(updated, 0);
+                }
+                if (lastId >= row.getId()) {
+                    clusteredById = false;
+                }
+                lastId = row.getId();
+                rows.add(row);
             }
+            savedRows = rows.size();
+            loadSchemaChanges();
+            zoneMap.reset(rows.size(), columns.size());
+            vectors.reset(rows.size(), columns.size());
             updateNextId();
+            loadTombstones();
         } catch (IOException e) {
             System.err.println("Error loading table " + tableName + ": " + e.getMessage());
         }
     }
 
+    // <table>.upd holds rows updated since the .tab file was last written, in the layout of its header,
+    // by id - the last line of an id is its current cells
+    private Map<Integer, String> loadUpdates() {
+        Map<Integer, String> updates = new HashMap<>();
+        File updateFile = sidecarFile(".upd");
+        if (!updateFile.exists()) {
+            return updates;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(updateFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    updates.put(Integer.parseInt(line.substring(0, tab).trim()), line);
+                    updateLines++;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error loading updates of table " + tableName + ": " + e.getMessage());
+        }
+        return updates;
+    }
+
     private void updateNextId() {
         nextId = 1;
-        for (Row row : rows) {
-            int rowId = row.getId();
+        for (int position = 0; position < rows.size(); position++) {
+            int rowId = rows.get(position).getId();
             if (rowId >= nextId) {
                 nextId = rowId + 1;
             }
         }
     }
 
-    public boolean insertRow(List<String> values) {
+    public synchronized boolean insertRow(List<String> values) {
+        return insertRow(nextId, values);
+    }
+
+    // a partition takes its ids from the PartitionedTable, so they stay unique across partitions
+    synchronized boolean insertRow(int id, List<String> values) {
         if (values.size() != columns.size() - 1) {
             return false;
         }
-        Row newRow = new Row(nextId++, values);
+        appendRow(id, values);
+        maybeAnalyze();
+        return saveAndCommit();
+    }
+
+    // the rows go in together and the file is written once, rather than once per row. None are
+    // inserted when any has the wrong number of values.
+    public synchronized boolean insertRows(List<List<String>> rows) {
+        int[] ids = new int[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = nextId + i;
+        }
+        return insertRows(ids, rows);
+    }
+
+    synchronized boolean insertRows(int[] ids, List<List<String>> values) {
+        for (List<String> row : values) {
+            if (row.size() != columns.size() - 1) {
+                return false;
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            appendRow(ids[i], values.get(i));
+        }
+        maybeAnalyze();
+        return saveAndCommit();
+    }
+
+    private void appendRow(int id, List<String> values) {
+        List<ValueDictionary> dictionaries = schema.dictionaries(schema.currentVersion());
+        List<String> interned = new ArrayList<>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            interned.add(dictionaries.get(i).intern(values.get(i)));
+        }
+        if (rows.size() > 0 && rows.get(rows.size() - 1).getId() >= id) {
+            clusteredById = false;
+        }
+        nextId = Math.max(nextId, id + 1);
+        Row newRow = new Row(id, interned, schema.currentVersion());
         rows.add(newRow);
-        return saveTable();
+        zoneMap.append(ordinal -> valueAt(newRow, ordinal));
+        vectors.append();
+        for (int ordinal = 0; ordinal < columns.size(); ordinal++) {
+            statistics.recordValue(ordinal, valueAt(newRow, ordinal));
+        }
+        statistics.recordWrites(1);
+        addToBloomFilters(newRow);
+        for (Map.Entry<String, TrigramIndex> entry : trigramIndexes.entrySet()) {
+            entry.getValue().add(rows.size() - 1, valueAt(newRow, columns.indexOf(entry.getKey())));
+        }
+        for (Map.Entry<String, BitmapIndex> entry : bitmapIndexes.entrySet()) {
+            entry.getValue().add(rows.size() - 1, valueAt(newRow, columns.indexOf(entry.getKey())));
+        }
+        if (changeLog != null) {
+            changeLog.insert(id, values);
+        }
+        versions.inserted(id);
+    }
+
+    private boolean saveAndCommit() {
+        boolean saved = saveChanges();
+        commitChanges();
+        return saved;
+    }
+
+    // subscribers and snapshot reads see the changes once they are in the table file
+    private void commitChanges() {
+        if (changeLog != null) {
+            changeLog.commit();
+            versions.commit(changeLog.getOffset());
+        }
     }
 
     private boolean saveTable() {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(tableFile))) {
             writer.write(String.join("\t", columns));
             writer.newLine();
-            for (Row row : rows) {
-                writer.write(row.toString());
+            for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+                writer.write(formatRow(rows.get(position)));
                 writer.newLine();
             }
-            return true;
         } catch (IOException e) {
             System.err.println("Error saving table " + tableName + ": " + e.getMessage());
             return false;
         }
+        // the rewritten file no longer holds the deleted rows, and its header is the current schema
+        sidecarFile(".del").delete();
+        sidecarFile(".schema").delete();
+        sidecarFile(".upd").delete();
+        savedRows = rows.size();
+        updatedRows.clear();
+        updateLines = 0;
+        return saveIndexes();
     }
 
-    public boolean addColumn(String attributeName) {
+    // writes only what changed since the last save: new rows are appended to the .tab file and updated
+    // ones to <table>.upd. The file is rewritten instead while an ALTER is pending in .schema, as every
+    // line must be in the header's layout until then, and once .upd holds more lines than there are rows.
+    private boolean saveChanges() {
+        if (sidecarFile(".schema").exists() || savedRows > rows.size() || updateLines + updatedRows.cardinality() > rowCount()) {
+            return saveTable();
+        }
+        try {
+            if (savedRows < rows.size()) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(tableFile, true))) {
+                    for (int position = savedRows; position < rows.size(); position++) {
+                        writer.write(formatRow(rows.get(position)));
+                        writer.newLine();
+                    }
+                }
+            }
+            int first = updatedRows.nextSetBit(0);
+            if (first != -1 && first < savedRows) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(sidecarFile(".upd"), true))) {
+                    // rows appended above are written with their updates already
+                    for (int position = first; position != -1 && position < savedRows; position = updatedRows.nextSetBit(position + 1)) {
+                        writer.write(formatRow(rows.get(position)));
+                        writer.newLine();
+                        updateLines++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving table " + tableName + ": " + e.getMessage());
+            return false;
+        }
+        savedRows = rows.size();
+        updatedRows.clear();
+        return flushBloomFilters();
+    }
+
+    // for BACKUP: the version's rows to a file of this table's name in the folder, and the index
+    // definitions - Bloom filters are rebuilt from the rows on load. Rows are handed over a block at a
+    // time, the file is written outside the table's lock. Returns the rows written.
+    long backup(File folder, long version) throws IOException {
+        List<String> header;
+        List<String> indexes;
+        synchronized (this) {
+            header = new ArrayList<>(columns);
+            indexes = indexDefinitions();
+        }
+        long[] written = new long[1];
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(folder, tableFile.getName())))) {
+            writer.write(String.join("\t", header));
+            writer.newLine();
+            String error = scanAsOf(header, null, version, block -> {
+                try {
+                    for (String row : block) {
+                        writer.write(row);
+                        writer.newLine();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                written[0] += block.size();
+            });
+            if (error != null) {
+                throw new IOException(error.replaceFirst("^\\[ERROR\\] ", ""));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (!indexes.isEmpty()) {
+            Files.write(new File(folder, sidecarFile(".idx").getName()).toPath(), indexes);
+        }
+        return written[0];
+    }
+
+    // <table>.idx lists the index definitions, each Bloom filter's bits go to <table>.<column>.bloom
+    private File sidecarFile(String suffix) {
+        String baseName = tableFile.getName().replaceAll("\\.tab$", "");
+        return new File(tableFile.getParentFile(), baseName + suffix);
+    }
+
+    private boolean saveIndexes() {
+        File indexFile = sidecarFile(".idx");
+        if (bloomFilters.isEmpty() && trigramIndexes.isEmpty() && bitmapIndexes.isEmpty()) {
+            indexFile.delete();
+            return true;
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile))) {
+            for (String definition : indexDefinitions()) {
+                writer.write(definition);
+                writer.newLine();
+            }
+            for (Map.Entry<String, BloomFilter> entry : bloomFilters.entrySet()) {
+                entry.getValue().write(sidecarFile("." + entry.getKey() + ".bloom"));
+            }
+            bloomWrites = 0;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving indexes of table " + tableName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private List<String> indexDefinitions() {
+        List<String> definitions = new ArrayList<>();
+        for (Map.Entry<String, BloomFilter> entry : bloomFilters.entrySet()) {
+            definitions.add(entry.getKey() + "\tBLOOM\t" + entry.getValue().getFalsePositiveRate());
+        }
+        for (String column : trigramIndexes.keySet()) {
+            definitions.add(column + "\tTRIGRAM");
+        }
+        for (String column : bitmapIndexes.keySet()) {
+            definitions.add(column + "\tBITMAP");
+        }
+        return definitions;
+    }
+
+    private void loadIndexes() {
+        File indexFile = sidecarFile(".idx");
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] definition = line.split("\t");
+                int ordinal = columns.indexOf(definition[0]);
+                if (definition.length == 2 && ordinal != -1 && definition[1].equals("TRIGRAM")) {
+                    trigramIndexes.put(definition[0], buildTrigramIndex(ordinal));
+                    continue;
+                }
+                if (definition.length == 2 && ordinal != -1 && definition[1].equals("BITMAP")) {
+                    bitmapIndexes.put(definition[0], buildBitmapIndex(ordinal));
+                    continue;
+                }
+                if (definition.length < 3 || ordinal == -1 || !definition[1].equals("BLOOM")) {
+                    continue;
+                }
+                try {
+                    bloomFilters.put(definition[0], BloomFilter.read(sidecarFile("." + definition[0] + ".bloom")));
+                } catch (IOException e) {
+                    // missing or truncated bits - rebuild them from the rows
+                    bloomFilters.put(definition[0], buildBloomFilter(ordinal, Double.parseDouble(definition[2])));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading indexes of table " + tableName + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized boolean addColumn(String attributeName) {
         if (attributeName.equalsIgnoreCase("id")) {
             return false; // cannot add a column named "id".
         }
@@ -229,14 +1400,18 @@ public class Table {
             return false;
         }
         columns.add(attributeName);
-        // adding a default empty string for the new column, for each row
-        for (Row row : rows) {
-            row.getValues().add("");
+        // metadata only - rows written before this version read the new column as an empty string
+        schema.addColumn();
+        zoneMap.reset(rows.size(), columns.size());
+        vectors.reset(rows.size(), columns.size());
+        statistics.reset();
+        if (changeLog != null) {
+            changeLog.schema(this, columns);
         }
-        return saveTable();
+        return appendSchemaChange("ADD", attributeName);
     }
 
-    public boolean dropColumn(String attributeName) {
+    public synchronized boolean dropColumn(String attributeName) {
         if (attributeName.equalsIgnoreCase("id")) {
             return false; // the primary key column cant be dropped
         }
@@ -245,55 +1420,176 @@ public class Table {
             return false;
         }
         columns.remove(index);
-        for (Row row : rows) {
-            if (index - 1 >= 0 && index - 1 < row.getValues().size()) {
-                row.getValues().remove(index - 1);
+        if (bloomFilters.remove(attributeName) != null) {
+            sidecarFile("." + attributeName + ".bloom").delete();
+        }
+        trigramIndexes.remove(attributeName);
+        bitmapIndexes.remove(attributeName);
+        // metadata only - the cells stay in the file until the next rewrite and are no longer mapped
+        schema.dropColumn(index - 1);
+        zoneMap.reset(rows.size(), columns.size());
+        vectors.reset(rows.size(), columns.size());
+        statistics.reset();
+        if (changeLog != null) {
+            changeLog.schema(this, columns);
+        }
+        if (!saveIndexes()) {
+            return false;
+        }
+        return appendSchemaChange("DROP", attributeName);
+    }
+
+    // <table>.schema logs the ALTERs made since the .tab file was last written
+    private boolean appendSchemaChange(String change, String attributeName) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(sidecarFile(".schema"), true))) {
+            writer.write(change + "\t" + attributeName);
+            writer.newLine();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving schema of table " + tableName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void loadSchemaChanges() {
+        File schemaFile = sidecarFile(".schema");
+        if (!schemaFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(schemaFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] change = line.split("\t");
+                if (change.length < 2) {
+                    continue;
+                }
+                int index = columns.indexOf(change[1]);
+                if (change[0].equals("ADD") && index == -1) {
+                    columns.add(change[1]);
+                    schema.addColumn();
+                } else if (change[0].equals("DROP") && index > 0) {
+                    columns.remove(index);
+                    schema.dropColumn(index - 1);
+                }
             }
+        } catch (IOException e) {
+            System.err.println("Error loading schema of table " + tableName + ": " + e.getMessage());
         }
-        return saveTable();
     }
 
-    public boolean deleteTableFile() {
+    public synchronized boolean deleteTableFile() {
+        dropped = true;
+        rows.close();
+        if (changeLog != null) {
+            changeLog.drop(this);
+        }
+        sidecarFile(".del").delete();
+        sidecarFile(".schema").delete();
+        sidecarFile(".upd").delete();
+        for (String column : bloomFilters.keySet()) {
+            sidecarFile("." + column + ".bloom").delete();
+        }
+        sidecarFile(".idx").delete();
         return tableFile.delete();
     }
 
-    public int updateRows(Map<String, String> updates, String conditionAttribute, String comparator, String conditionValue) {
+    public synchronized int updateRows(Map<String, Expression> updates, String conditionAttribute, String comparator, String conditionValue,
+                          Planner.ScanStrategy strategy) {
         int condIndex = columns.indexOf(conditionAttribute);
         if (condIndex == -1) {
             return -1;
         }
-        int updateCount = 0;
-        for (Row row : rows) {
-            String rowValue;
-            if (conditionAttribute.equalsIgnoreCase("id")) {
-                rowValue = String.valueOf(row.getId());
-            } else {
-                rowValue = row.getValues().get(condIndex - 1);
-            }
-            if (evaluateCondition(rowValue, comparator, conditionValue)) {
-               // corresponding column value is updated for each update !!
-                for (Map.Entry<String, String> entry : updates.entrySet()) {
-                    String colName = entry.getKey();
-                    String newValue = entry.getValue();
-                    if (colName.equalsIgnoreCase("id")) {
-                        continue; // skip updating primary key.
-                    }
-                    int colIndex = columns.indexOf(colName);
-                    if (colIndex == -1) {
-                        return -1;
-                    }
-                    //since "id" is at columns[0] taking row values corresponding to column values from index 1
-                    row.getValues().set(colIndex - 1, newValue);
+        return updateMatches(updates, action -> forEachMatch(condIndex, comparator, conditionValue, strategy, action));
+    }
+
+    public synchronized int updateRows(Map<String, Expression> updates, Condition condition) {
+        if (!missingColumn(condition.getAttributes()).isEmpty()) {
+            return -1;
+        }
+        return updateMatches(updates, action -> forEachMatch(condition, action));
+    }
+
+    private int updateMatches(Map<String, Expression> updates, Consumer<IntConsumer> scan) {
+        // target columns are resolved before any row is touched
+        Map<Integer, Expression> assignments = new LinkedHashMap<>();
+        for (Map.Entry<String, Expression> entry : updates.entrySet()) {
+            String colName = entry.getKey();
+            if (colName.equalsIgnoreCase("id")) {
+                continue; // skip updating primary key.
+            }
+            int colIndex = columns.indexOf(colName);
+            if (colIndex == -1) {
+                return -1;
+            }
+            assignments.put(colIndex, entry.getValue());
+            if (!missingColumn(entry.getValue().getColumns()).isEmpty()) {
+                return -1;
+            }
+        }
+        List<ValueDictionary> dictionaries = schema.dictionaries(schema.currentVersion());
+        int[] updateCount = new int[1];
+        String[] newValues = new String[assignments.size()];
+        List<String> layout = List.copyOf(columns);
+        scan.accept(position -> {
+            Row row = rows.pin(position);
+            //since "id" is at columns[0] taking row values corresponding to column values from index 1
+            String[] values = upgrade(row);
+            String[] cells = new String[values.length + 1];
+            cells[0] = String.valueOf(row.getId());
+            System.arraycopy(values, 0, cells, 1, values.length);
+            versions.updated(row.getId(), layout, cells);
+            // every expression sees the row as it was before this update
+            int next = 0;
+            for (Expression expression : assignments.values()) {
+                newValues[next++] = expression.isLiteral() ? expression.evaluate(null)
+                        : expression.evaluate(column -> valueAt(row, columns.indexOf(column)));
+            }
+            // corresponding column value is updated for each update !!
+            next = 0;
+            for (int colIndex : assignments.keySet()) {
+                String newValue = newValues[next++];
+                TrigramIndex trigramIndex = trigramIndexes.get(columns.get(colIndex));
+                if (trigramIndex != null) {
+                    trigramIndex.update(position, values[colIndex - 1], newValue);
                 }
-                updateCount++;
+                BitmapIndex bitmapIndex = bitmapIndexes.get(columns.get(colIndex));
+                if (bitmapIndex != null) {
+                    bitmapIndex.update(position, values[colIndex - 1], newValue);
+                }
+                values[colIndex - 1] = dictionaries.get(colIndex - 1).intern(newValue);
+                zoneMap.invalidate(position, colIndex);
+                vectors.invalidate(position, colIndex);
+                statistics.recordValue(colIndex, newValue);
+                BloomFilter filter = bloomFilters.get(columns.get(colIndex));
+                if (filter != null) {
+                    filter.add(equalityKey(newValue));
+                    bloomFilterChanged();
+                }
+            }
+            rows.unpin(position, row, true);
+            updatedRows.set(position);
+            if (changeLog != null) {
+                changeLog.update(row.getId(), values);
             }
+            updateCount[0]++;
+        });
+        statistics.recordWrites(updateCount[0]);
+        maybeAnalyze();
+        saveAndCommit();
+        return updateCount[0];
+    }
+
+    synchronized int[] livePositions() {
+        int[] live = new int[rows.size() - tombstones.cardinality()];
+        int index = 0;
+        for (int position = tombstones.nextClearBit(0); position < rows.size(); position = tombstones.nextClearBit(position + 1)) {
+            live[index++] = position;
         }
-        saveTable();
-        return updateCount;
+        return live;
     }
 
-    // return copy == current rows for joins
-    public List<Row> getRows() {
-        return new ArrayList<>(rows);
+    // a cell of the row at a position, read in place
+    synchronized String cellAt(int position, int ordinal) {
+        return valueAt(rows.get(position), ordinal);
     }
 }
\ No newline at end of file
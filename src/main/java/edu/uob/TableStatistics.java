@@ -0,0 +1,101 @@
+package edu.uob;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+// row count, distinct values and histograms per column. Collected by ANALYZE, after which
+// distinct counts follow every write and the histograms are rebuilt once enough rows changed.
+public class TableStatistics {
+    private static final double REANALYZE_FRACTION = 0.2;
+
+    private HyperLogLog[] distinct;
+    private Histogram[] histograms;
+    private int[] nullCounts;
+    private int analyzedRows;
+    private int modifications;
+
+    public boolean isAnalyzed() {
+        return distinct != null;
+    }
+
+    // columnValues.apply(ordinal) gives a position -> cell lookup for that column
+    public void analyze(int rowCount, int columnCount, IntFunction<IntFunction<String>> columnValues) {
+        distinct = new HyperLogLog[columnCount];
+        histograms = new Histogram[columnCount];
+        nullCounts = new int[columnCount];
+        for (int ordinal = 0; ordinal < columnCount; ordinal++) {
+            IntFunction<String> valueAt = columnValues.apply(ordinal);
+            distinct[ordinal] = new HyperLogLog();
+            double[] numbers = new double[rowCount];
+            int numeric = 0;
+            for (int position = 0; position < rowCount; position++) {
+                String value = valueAt.apply(position);
+                distinct[ordinal].add(value);
+                if (value.isEmpty() || value.equalsIgnoreCase("NULL")) {
+                    nullCounts[ordinal]++;
+                    continue;
+                }
+                try {
+                    double number = Double.parseDouble(value);
+                    if (!Double.isNaN(number)) {
+                        numbers[numeric++] = number;
+                    }
+                } catch (NumberFormatException e) {
+                    // not part of the histogram
+                }
+            }
+            histograms[ordinal] = new Histogram(Arrays.copyOf(numbers, numeric), rowCount);
+        }
+        analyzedRows = rowCount;
+        modifications = 0;
+    }
+
+    // drop everything, e.g. when the columns change
+    public void reset() {
+        distinct = null;
+        histograms = null;
+        nullCounts = null;
+    }
+
+    public void recordValue(int ordinal, String value) {
+        if (isAnalyzed()) {
+            distinct[ordinal].add(value);
+        }
+    }
+
+    public void recordWrites(int count) {
+        modifications += count;
+    }
+
+    public boolean needsAnalyze() {
+        return isAnalyzed() && modifications > REANALYZE_FRACTION * Math.max(analyzedRows, 100);
+    }
+
+    // falls back to assuming every value is distinct when the table was never analyzed
+    public long distinctValues(int ordinal, int rowCount) {
+        if (!isAnalyzed()) {
+            return rowCount;
+        }
+        return Math.max(1, Math.min(rowCount, distinct[ordinal].estimate()));
+    }
+
+    public int nullCount(int ordinal) {
+        return isAnalyzed() ? nullCounts[ordinal] : 0;
+    }
+
+    // estimated fraction of rows matching the condition, or -1 when unknown
+    public double selectivity(int ordinal, String comparator, String conditionValue, int rowCount) {
+        if (!isAnalyzed()) {
+            return -1;
+        }
+        if (conditionValue.startsWith("'") && conditionValue.endsWith("'") && conditionValue.length() >= 2) {
+            conditionValue = conditionValue.substring(1, conditionValue.length() - 1);
+        }
+        try {
+            double value = Double.parseDouble(conditionValue);
+            return histograms[ordinal].selectivity(comparator, value, distinctValues(ordinal, rowCount));
+        } catch (NumberFormatException e) {
+            return comparator.equals("==") ? 1.0 / distinctValues(ordinal, rowCount) : -1;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package edu.uob;
+
+import java.util.*;
+
+// case-folded trigram -> ascending row positions containing it. LIKE patterns of 3+ characters only
+// have to verify the rows holding every trigram of the pattern. Entries can go stale (updated or
+// deleted rows) and are weeded out by the verification, the table rebuilds the index on compaction.
+public class TrigramIndex {
+    private final Map<Long, Postings> postings;
+
+    public TrigramIndex() {
+        this.postings = new HashMap<>();
+    }
+
+    public static boolean isSearchable(String pattern) {
+        return pattern.length() >= 3;
+    }
+
+    public void add(int position, String value) {
+        for (long trigram : trigrams(value)) {
+            postings.computeIfAbsent(trigram, key -> new Postings()).add(position);
+        }
+    }
+
+    // moves a row from its old value's trigrams to the new value's
+    public void update(int position, String oldValue, String newValue) {
+        Set<Long> added = trigrams(newValue);
+        for (long trigram : trigrams(oldValue)) {
+            if (!added.remove(trigram)) {
+                Postings list = postings.get(trigram);
+                if (list != null) {
+                    list.remove(position);
+                }
+            }
+        }
+        for (long trigram : added) {
+            postings.computeIfAbsent(trigram, key -> new Postings()).add(position);
+        }
+    }
+
+    // ascending positions that may contain the pattern, intersected starting from the rarest trigram
+    public int[] candidates(String pattern) {
+        List<Postings> lists = new ArrayList<>();
+        for (long trigram : trigrams(pattern)) {
+            Postings list = postings.get(trigram);
+            if (list == null || list.size == 0) {
+                return new int[0];
+            }
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        int[] result = Arrays.copyOf(lists.get(0).positions, lists.get(0).size);
+        int size = result.length;
+        for (int i = 1; i < lists.size() && size > 0; i++) {
+            size = intersect(result, size, lists.get(i));
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    // keeps the first size entries of result that also appear in list, returns how many remain
+    private static int intersect(int[] result, int size, Postings list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size && j < list.size; i++) {
+            j = Postings.lowerBound(list.positions, j, list.size, result[i]);
+            if (j < list.size && list.positions[j] == result[i]) {
+                result[kept++] = result[i];
+            }
+        }
+        return kept;
+    }
+
+    // distinct trigrams of the value, folded the same way as the case-insensitive LIKE check
+    private static Set<Long> trigrams(String value) {
+        Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= value.length(); i++) {
+            trigrams.add((long) fold(value.charAt(i)) << 32 | (long) fold(value.charAt(i + 1)) << 16 | fold(value.charAt(i + 2)));
+        }
+        return trigrams;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    // sorted growable int list, appends are the common case since inserts go to the end
+    private static class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int position) {
+            int index = size > 0 && positions[size - 1] < position ? size : lowerBound(positions, 0, size, position);
+            if (index < size && positions[index] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            System.arraycopy(positions, index, positions, index + 1, size - index);
+            positions[index] = position;
+            size++;
+        }
+
+        void remove(int position) {
+            int index = lowerBound(positions, 0, size, position);
+            if (index < size && positions[index] == position) {
+                System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+                size--;
+            }
+        }
+
+        static int lowerBound(int[] values, int from, int to, int key) {
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
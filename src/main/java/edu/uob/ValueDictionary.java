@@ -0,0 +1,31 @@
+package edu.uob;
+
+import java.util.*;
+
+// canonical String per distinct value of one column, so rows repeating a value share one instance.
+// Columns with too many distinct values stop interning, the dictionary would outweigh the savings.
+public class ValueDictionary {
+    private static final int MAX_ENTRIES = 1 << 16;
+
+    private final Map<String, String> values;
+    private boolean saturated;
+
+    public ValueDictionary() {
+        this.values = new HashMap<>();
+    }
+
+    public String intern(String value) {
+        if (saturated) {
+            return value;
+        }
+        String canonical = values.putIfAbsent(value, value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (values.size() > MAX_ENTRIES) {
+            values.clear();
+            saturated = true;
+        }
+        return value;
+    }
+}
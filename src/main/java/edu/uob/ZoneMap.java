@@ -0,0 +1,123 @@
+package edu.uob;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+// min/max statistics per block of rows, so range and equality scans can skip blocks that can't match.
+// Zones are computed lazily, the first time a column is filtered on, and widened on insert.
+public class ZoneMap {
+    public static final int BLOCK_SIZE = 1024;
+
+    private static class Zone {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        // cells that parse as a number, and those of them that are comparable (not NaN)
+        int parsedCount;
+        int numericCount;
+        int nullCount;
+        int rowCount;
+
+        void add(String value) {
+            rowCount++;
+            if (value.isEmpty() || value.equalsIgnoreCase("NULL")) {
+                nullCount++;
+                return;
+            }
+            try {
+                double number = Double.parseDouble(value);
+                parsedCount++;
+                if (!Double.isNaN(number)) {
+                    numericCount++;
+                    min = Math.min(min, number);
+                    max = Math.max(max, number);
+                }
+            } catch (NumberFormatException e) {
+                // plain string cell
+            }
+        }
+    }
+
+    // blocks.get(block)[ordinal], null while the zone hasn't been computed
+    private final List<Zone[]> blocks;
+    private int columnCount;
+    private int rowCount;
+
+    public ZoneMap(int columnCount) {
+        this.blocks = new ArrayList<>();
+        reset(0, columnCount);
+    }
+
+    // drop every zone, e.g. after rows have moved
+    public void reset(int rowCount, int columnCount) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        blocks.clear();
+        for (int i = 0; i < blockCount(); i++) {
+            blocks.add(new Zone[columnCount]);
+        }
+    }
+
+    public int blockCount() {
+        return (rowCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    public void append(IntFunction<String> valueAtOrdinal) {
+        int block = rowCount++ / BLOCK_SIZE;
+        if (block == blocks.size()) {
+            blocks.add(new Zone[columnCount]);
+        }
+        Zone[] zones = blocks.get(block);
+        for (int ordinal = 0; ordinal < columnCount; ordinal++) {
+            if (zones[ordinal] != null) {
+                zones[ordinal].add(valueAtOrdinal.apply(ordinal));
+            }
+        }
+    }
+
+    // an updated value may shrink the block's range, so the zone is recomputed on next use
+    public void invalidate(int position, int ordinal) {
+        blocks.get(position / BLOCK_SIZE)[ordinal] = null;
+    }
+
+    public boolean mayMatch(int block, int ordinal, String comparator, String conditionValue, IntFunction<String> valueAtPosition) {
+        Zone zone = blocks.get(block)[ordinal];
+        if (zone == null) {
+            zone = new Zone();
+            int end = Math.min(rowCount, (block + 1) * BLOCK_SIZE);
+            for (int position = block * BLOCK_SIZE; position < end; position++) {
+                zone.add(valueAtPosition.apply(position));
+            }
+            blocks.get(block)[ordinal] = zone;
+        }
+        if (conditionValue.startsWith("'") && conditionValue.endsWith("'") && conditionValue.length() >= 2) {
+            conditionValue = conditionValue.substring(1, conditionValue.length() - 1);
+        }
+        double condNum;
+        try {
+            condNum = Double.parseDouble(conditionValue);
+        } catch (NumberFormatException e) {
+            if (comparator.equals("==")) {
+                // a string literal can only equal a cell that doesn't parse as a number either
+                return zone.parsedCount < zone.rowCount;
+            }
+            // range comparisons against a string literal never match
+            return comparator.equals("!=") || comparator.equals("LIKE");
+        }
+        // NaN compares false against everything, as in evaluateCondition
+        boolean numericCondition = !Double.isNaN(condNum);
+        switch (comparator) {
+            case "==":
+                return numericCondition && zone.numericCount > 0 && condNum >= zone.min && condNum <= zone.max;
+            case ">":
+                return numericCondition && zone.numericCount > 0 && zone.max > condNum;
+            case ">=":
+                return numericCondition && zone.numericCount > 0 && zone.max >= condNum;
+            case "<":
+                return numericCondition && zone.numericCount > 0 && zone.min < condNum;
+            case "<=":
+                return numericCondition && zone.numericCount > 0 && zone.min <= condNum;
+            default:
+                return true;
+        }
+    }
+}
@@ -3,7 +3,16 @@ package edu.uob;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AdvancedDBTests {
 
@@ -101,4 +110,1238 @@ public class AdvancedDBTests {
         String response = sendCommand("SELECT * FROM marks;");
         assertTrue(response.contains("Simon"), "Data should persist after server restart.");
     }
+
+    @Test
+    public void testProjectionOnReloadedTable() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE marks (name, mark, pass);");
+        sendCommand("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommand("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        String response = sendCommand("SELECT pass, name FROM marks WHERE mark > 50;");
+        assertTrue(response.contains("pass\tname"), "Header should follow the projection order.");
+        assertTrue(response.contains("TRUE\tSimon"), "Only the projected cells should be returned.");
+        assertFalse(response.contains("Chris"), "Rows failing the condition should be filtered.");
+
+        response = sendCommand("SELECT grade FROM marks;");
+        assertTrue(response.contains("[ERROR]"), "Unknown projected column should be rejected.");
+    }
+
+    @Test
+    public void testRangeQueriesAcrossBlocks() throws IOException {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        // write a table spanning several zone map blocks straight to disk
+        List<String> lines = new ArrayList<>();
+        lines.add("id\tname\tmark");
+        for (int i = 1; i <= 3000; i++) {
+            lines.add(i + "\tstudent" + i + "\t" + (i % 7 == 0 ? "absent" : String.valueOf(i)));
+        }
+        Files.write(Paths.get("databases", dbName, "marks.tab"), lines);
+        sendCommand("USE " + dbName + ";");
+
+        String response = sendCommand("SELECT id FROM marks WHERE mark > 2990;");
+        assertEquals(9, response.split("\n").length - 2, "Only rows above the bound should match.");
+        response = sendCommand("SELECT name FROM marks WHERE mark == 'absent';");
+        assertEquals(428, response.split("\n").length - 2, "String equality must not be pruned by numeric zones.");
+
+        sendCommand("UPDATE marks SET mark = 5000 WHERE id == 10;");
+        response = sendCommand("SELECT name FROM marks WHERE mark >= 5000;");
+        assertTrue(response.contains("student10"), "Updated value should be found after the zone is refreshed.");
+
+        response = sendCommand("DELETE FROM marks WHERE mark < 100;");
+        assertTrue(response.contains("84 record(s) deleted"), "Rows below the bound should be deleted.");
+        response = sendCommand("SELECT id FROM marks WHERE mark <= 1030;");
+        assertEquals(798, response.split("\n").length - 2, "Range scan should see rows shifted across blocks.");
+    }
+
+    @Test
+    public void testAnalyzeReportsStatistics() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE marks (name, pass);");
+        sendCommand("INSERT INTO marks VALUES ('Simon', TRUE);");
+        sendCommand("INSERT INTO marks VALUES ('Rob', FALSE);");
+        sendCommand("INSERT INTO marks VALUES ('Chris', FALSE);");
+        sendCommand("INSERT INTO marks VALUES ('Sion', NULL);");
+
+        String response = sendCommand("ANALYZE marks;");
+        assertTrue(response.contains("[OK]"), "ANALYZE should succeed.");
+        assertTrue(response.contains("name\t4\t0"), "Every name is distinct.");
+        assertTrue(response.contains("pass\t3\t1"), "pass holds two booleans and a NULL.");
+        assertTrue(sendCommand("ANALYZE missing;").contains("[ERROR]"), "Unknown table should be rejected.");
+
+        response = sendCommand("SELECT name FROM marks WHERE id >= 3;");
+        assertTrue(response.contains("Chris") && response.contains("Sion") && !response.contains("Rob"), "Id range should use the clustered lookup.");
+    }
+
+    @Test
+    public void testJoinStrategiesAgree() throws IOException {
+        File dir = Files.createTempDirectory("joins").toFile();
+        Table left = new Table("left", List.of("id", "name", "team"), new File(dir, "left.tab"));
+        Table right = new Table("right", List.of("id", "team", "city"), new File(dir, "right.tab"));
+        for (int i = 0; i < 60; i++) {
+            left.insertRow(List.of("player" + i, "team" + (i % 7)));
+            right.insertRow(List.of("team" + (i % 11), "city" + i));
+        }
+        MemoryBudget budget = MemoryBudget.forQuery(dir);
+        List<String> expected = JoinExecutor.join("left", left, "team", "right", right, "team",
+                new Planner.JoinPlan(Planner.JoinStrategy.NESTED_LOOP, false), budget);
+        assertEquals(expected, JoinExecutor.join("left", left, "team", "right", right, "team",
+                new Planner.JoinPlan(Planner.JoinStrategy.HASH_JOIN, false), budget), "Hash join building right should match.");
+        assertEquals(expected, JoinExecutor.join("left", left, "team", "right", right, "team",
+                new Planner.JoinPlan(Planner.JoinStrategy.HASH_JOIN, true), budget), "Hash join building left should match.");
+        assertEquals(expected, JoinExecutor.join("left", left, "team", "right", right, "team",
+                Planner.planJoin(left, "team", right, "team"), budget), "Planned join should match.");
+
+        expected = JoinExecutor.join("left", left, "id", "right", right, "id",
+                new Planner.JoinPlan(Planner.JoinStrategy.NESTED_LOOP, false), budget);
+        assertEquals(Planner.JoinStrategy.MERGE_JOIN, Planner.planJoin(left, "id", right, "id").getStrategy());
+        assertEquals(expected, JoinExecutor.join("left", left, "id", "right", right, "id",
+                new Planner.JoinPlan(Planner.JoinStrategy.MERGE_JOIN, false), budget), "Merge join on id should match.");
+        left.deleteTableFile();
+        right.deleteTableFile();
+        dir.delete();
+    }
+
+    @Test
+    public void testJoinSpillsUnderMemoryBudget() throws IOException {
+        File dir = Files.createTempDirectory("spills").toFile();
+        Table left = new Table("left", List.of("id", "name", "team"), new File(dir, "left.tab"));
+        Table right = new Table("right", List.of("id", "team", "city"), new File(dir, "right.tab"));
+        for (int i = 0; i < 400; i++) {
+            left.insertRow(List.of("player" + i, "team" + (i % 13)));
+            right.insertRow(List.of("team" + (i % 17), "city" + i));
+        }
+        File spills = new File(dir, ".spill");
+        List<String> expected = JoinExecutor.join("left", left, "team", "right", right, "team",
+                new Planner.JoinPlan(Planner.JoinStrategy.NESTED_LOOP, false), new MemoryBudget(2048, spills));
+        for (boolean buildLeft : new boolean[]{false, true}) {
+            // far too small for either side, the hash join has to partition through spill files
+            MemoryBudget budget = new MemoryBudget(2048, spills);
+            assertEquals(expected, JoinExecutor.join("left", left, "team", "right", right, "team",
+                    new Planner.JoinPlan(Planner.JoinStrategy.HASH_JOIN, buildLeft), budget), "Spilled join should match the nested loop.");
+            assertEquals(0, budget.getReserved(), "Every reservation should be released.");
+        }
+        File[] leftover = spills.listFiles();
+        assertTrue(leftover != null && leftover.length == 0, "Spill files should go under the given directory and be removed after the join.");
+        // the answer can't spill, going over its limit stops the join
+        assertThrows(MemoryBudget.ResultTooLarge.class, () -> JoinExecutor.join("left", left, "team", "right", right, "team",
+                new Planner.JoinPlan(Planner.JoinStrategy.HASH_JOIN, false), new MemoryBudget(2048, 4096, spills)));
+
+        MemoryBudget budget = new MemoryBudget(4096, spills);
+        try (ExternalSorter sorter = new ExternalSorter(budget)) {
+            for (int i = 0; i < 5000; i++) {
+                sorter.add((i * 7919L) % 5000);
+            }
+            assertTrue(sorter.getRunCount() > 0, "Values beyond the budget should spill as runs.");
+            long[] previous = {-1};
+            sorter.forEachSorted(value -> {
+                assertEquals(previous[0] + 1, value, "Merged runs should come back in order.");
+                previous[0] = value;
+            });
+            assertEquals(4999, previous[0]);
+        }
+        assertEquals(0, budget.getReserved());
+        left.deleteTableFile();
+        right.deleteTableFile();
+        spills.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testBloomFilterIndex() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE marks (name, mark);");
+        sendCommand("INSERT INTO marks VALUES ('Simon', 65);");
+
+        String response = sendCommand("CREATE INDEX ON marks (mark) USING BLOOM 0.001;");
+        assertTrue(response.contains("[OK]"), "Bloom filter creation should succeed.");
+        assertTrue(sendCommand("CREATE INDEX ON marks (grade) USING BLOOM;").contains("[ERROR]"), "Unknown column should be rejected.");
+        assertTrue(sendCommand("CREATE INDEX ON marks (name) USING BLOOM 2;").contains("[ERROR]"), "Rate must be a probability.");
+        assertTrue(Files.exists(Paths.get("databases", dbName, "marks.mark.bloom")), "Filter should be persisted next to the table.");
+
+        sendCommand("INSERT INTO marks VALUES ('Rob', 35);");
+        assertFalse(Files.exists(Paths.get("databases", dbName, "marks.mark.bloom")), "A write drops the stale bits instead of rewriting them.");
+        sendCommand("UPDATE marks SET mark = 40 WHERE name == 'Rob';");
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        assertTrue(sendCommand("SELECT name FROM marks WHERE mark == 65.0;").contains("Simon"), "Numeric equality must survive the filter.");
+        assertTrue(sendCommand("SELECT name FROM marks WHERE mark == 40;").contains("Rob"), "Updated value should be in the filter.");
+        response = sendCommand("SELECT name FROM marks WHERE mark == 99;");
+        assertEquals("[OK] \nname", response, "Absent key should return only the header.");
+    }
+
+    @Test
+    public void testTombstonedDeletesAndCompaction() throws IOException {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE marks (name, mark);");
+        for (int i = 1; i <= 10; i++) {
+            sendCommand("INSERT INTO marks VALUES ('student" + i + "', " + (i * 10) + ");");
+        }
+        // below the compaction threshold the delete is only recorded next to the table
+        assertTrue(sendCommand("DELETE FROM marks WHERE mark == 100;").contains("1 record(s) deleted"));
+        assertTrue(Files.exists(Paths.get("databases", dbName, "marks.del")), "Delete should be logged, not rewritten.");
+
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        String response = sendCommand("SELECT * FROM marks;");
+        assertFalse(response.contains("student10"), "Logged delete should survive a restart.");
+        sendCommand("INSERT INTO marks VALUES ('late', 5);");
+        assertTrue(sendCommand("SELECT id FROM marks WHERE name == 'late';").contains("11"), "Deleted ids should not be reused.");
+
+        assertTrue(sendCommand("DELETE FROM marks WHERE mark < 60;").contains("6 record(s) deleted"));
+        Compactor.awaitIdle();
+        assertFalse(Files.exists(Paths.get("databases", dbName, "marks.del")), "Compaction should fold the deletes into the file.");
+        assertEquals(5, Files.readAllLines(Paths.get("databases", dbName, "marks.tab")).size(), "Header and four live rows should remain.");
+        response = sendCommand("SELECT name FROM marks WHERE mark >= 60;");
+        assertEquals(6, response.split("\n").length, "Scans should see only the live rows.");
+    }
+
+    @Test
+    public void testAlterWithoutRewritingRows() throws IOException {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE marks (name, mark);");
+        sendCommand("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommand("INSERT INTO marks VALUES ('Rob', 35);");
+        List<String> before = Files.readAllLines(Paths.get("databases", dbName, "marks.tab"));
+
+        assertTrue(sendCommand("ALTER TABLE marks ADD pass;").contains("[OK]"));
+        assertEquals(before, Files.readAllLines(Paths.get("databases", dbName, "marks.tab")), "ALTER should not rewrite the rows.");
+        String response = sendCommand("SELECT * FROM marks;");
+        assertTrue(response.contains("id\tname\tmark\tpass"), "New column should be in the header.");
+        assertTrue(response.contains("Simon\t65\t\n"), "Old rows should read the new column as empty.");
+        sendCommand("UPDATE marks SET pass = TRUE WHERE mark > 50;");
+        assertTrue(sendCommand("ALTER TABLE marks DROP mark;").contains("[OK]"));
+
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        response = sendCommand("SELECT * FROM marks;");
+        assertFalse(response.contains("65"), "Dropped column should stay hidden after a restart.");
+        assertTrue(response.contains("Simon\tTRUE"), "Updated cell should survive a restart.");
+        sendCommand("ALTER TABLE marks ADD mark;");
+        response = sendCommand("SELECT mark FROM marks WHERE name == 'Rob';");
+        assertFalse(response.contains("35"), "Re-added column should not bring back the dropped values.");
+        sendCommand("INSERT INTO marks VALUES ('Chris', FALSE, 20);");
+        assertTrue(sendCommand("SELECT * FROM marks WHERE mark == 20;").contains("Chris\tFALSE\t20"));
+    }
+
+    @Test
+    public void testTrigramIndexForLike() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE people (name, city);");
+        sendCommand("INSERT INTO people VALUES ('Simon', 'Bristol');");
+        sendCommand("INSERT INTO people VALUES ('Rob', 'Bath');");
+        assertTrue(sendCommand("CREATE INDEX ON people (name) USING TRIGRAM;").contains("[OK]"));
+        Table people = server.getContext().openDatabase(dbName).getTable("people");
+        assertEquals(Planner.ScanStrategy.TRIGRAM_LOOKUP, Planner.planScan(people, "name", "LIKE", "'imo'"));
+        assertEquals(Planner.ScanStrategy.FULL_SCAN, Planner.planScan(people, "name", "LIKE", "'im'"));
+
+        sendCommand("INSERT INTO people VALUES ('SIMONE', 'Leeds');");
+        String response = sendCommand("SELECT city FROM people WHERE name LIKE 'simo';");
+        assertTrue(response.contains("Bristol") && response.contains("Leeds"), "LIKE should stay case-insensitive.");
+        sendCommand("UPDATE people SET name = 'Chris' WHERE city == 'Bristol';");
+        sendCommand("DELETE FROM people WHERE city == 'Leeds';");
+        response = sendCommand("SELECT city FROM people WHERE name LIKE 'simo';");
+        assertFalse(response.contains("Bristol") || response.contains("Leeds"), "Updated and deleted rows should not match.");
+        assertTrue(sendCommand("SELECT city FROM people WHERE name LIKE 'HRI';").contains("Bristol"), "Updated value should be indexed.");
+        assertTrue(sendCommand("SELECT city FROM people WHERE name LIKE 'o';").contains("Bath"), "Short patterns should still scan.");
+
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        assertTrue(sendCommand("SELECT city FROM people WHERE name LIKE 'chr';").contains("Bristol"), "Index should be rebuilt after a restart.");
+    }
+
+    @Test
+    public void testBitmapIndexesCombinePredicates() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE marks (name, pass, grade);");
+        sendCommand("INSERT INTO marks VALUES ('Simon', TRUE, 'A');");
+        sendCommand("INSERT INTO marks VALUES ('Rob', FALSE, 'C');");
+        sendCommand("INSERT INTO marks VALUES ('Sion', TRUE, 'B');");
+        sendCommand("INSERT INTO marks VALUES ('Chris', TRUE, 'A');");
+        assertTrue(sendCommand("CREATE INDEX ON marks (pass) USING BITMAP;").contains("[OK]"));
+        assertTrue(sendCommand("CREATE INDEX ON marks (grade) USING BITMAP;").contains("[OK]"));
+        assertEquals(Planner.ScanStrategy.BITMAP_LOOKUP, Planner.planScan(server.getContext().openDatabase(dbName).getTable("marks"), "pass", "!=", "TRUE"));
+
+        String response = sendCommand("SELECT name FROM marks WHERE pass == TRUE AND grade == 'A';");
+        assertEquals(4, response.split("\n").length, "Header and two rows should match.");
+        assertTrue(response.contains("Simon") && response.contains("Chris"));
+        response = sendCommand("SELECT name FROM marks WHERE (grade == 'B') OR (pass != TRUE);");
+        assertTrue(response.contains("Sion") && response.contains("Rob") && !response.contains("Simon"));
+        response = sendCommand("SELECT name FROM marks WHERE pass == TRUE AND name LIKE 'si';");
+        assertTrue(response.contains("Simon") && response.contains("Sion") && !response.contains("Chris"), "Unindexed predicates should check the bitmap matches.");
+
+        assertTrue(sendCommand("UPDATE marks SET pass = FALSE WHERE grade == 'A' AND name == 'Chris';").contains("1 record(s) updated"));
+        assertTrue(sendCommand("DELETE FROM marks WHERE grade == 'C' OR pass == FALSE;").contains("2 record(s) deleted"));
+        response = sendCommand("SELECT name FROM marks WHERE pass == TRUE OR grade == 'C';");
+        assertTrue(response.contains("Simon") && response.contains("Sion") && !response.contains("Chris") && !response.contains("Rob"));
+        assertTrue(sendCommand("SELECT name FROM marks WHERE pass == TRUE AND missing == 1;").contains("[ERROR]"));
+    }
+
+    @Test
+    public void testPagedTablesWithinBufferPoolBudget() throws IOException {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        List<String> lines = new ArrayList<>();
+        lines.add("id\tname\tmark");
+        for (int i = 1; i <= 5000; i++) {
+            lines.add(i + "\tstudent" + i + "\t" + (i % 100));
+        }
+        Files.write(Paths.get("databases", dbName, "marks.tab"), lines);
+        // about 100KB of pages, well below the table's size
+        System.setProperty("cwdb.bufferpool.bytes", "100000");
+        try {
+            sendCommand("USE " + dbName + ";");
+            assertTrue(BufferPool.shared().getUsedBytes() <= 100000, "Loading should evict pages to stay within the budget.");
+            String response = sendCommand("SELECT name FROM marks WHERE mark == 42;");
+            assertEquals(50, response.split("\n").length - 2);
+            assertTrue(response.contains("student4942"), "Rows from evicted pages should be read back.");
+
+            assertTrue(sendCommand("UPDATE marks SET mark = 500 WHERE name == 'student7';").contains("1 record(s) updated"));
+            sendCommand("SELECT * FROM marks;");
+            assertTrue(sendCommand("SELECT name FROM marks WHERE mark == 500;").contains("student7"), "Dirty pages should be written back before eviction.");
+            assertEquals(5001, Files.readAllLines(Paths.get("databases", dbName, "marks.tab")).size(), "An update shouldn't rewrite the table file.");
+            assertEquals(List.of("7\tstudent7\t500"), Files.readAllLines(Paths.get("databases", dbName, "marks.upd")));
+            server = new DBServer();
+            sendCommand("USE " + dbName + ";");
+            assertTrue(sendCommand("SELECT name FROM marks WHERE mark == 500;").contains("student7"), "Logged updates should be applied on load.");
+            assertTrue(sendCommand("DELETE FROM marks WHERE mark < 50;").contains("2499 record(s) deleted"));
+            Compactor.awaitIdle();
+            assertEquals(2502, Files.readAllLines(Paths.get("databases", dbName, "marks.tab")).size(), "Compaction should rewrite the paged rows.");
+            assertFalse(Files.exists(Paths.get("databases", dbName, "marks.upd")));
+            assertEquals(2501, sendCommand("SELECT id FROM marks;").split("\n").length - 2);
+            sendCommand("INSERT INTO marks VALUES ('late', 99);");
+            assertEquals(2503, Files.readAllLines(Paths.get("databases", dbName, "marks.tab")).size(), "An insert should append its row.");
+            assertTrue(BufferPool.shared().getUsedBytes() <= 100000);
+            // evicted pages are written over in their slots, the scratch files don't grow with every round
+            long[] scratchBytes = new long[5];
+            for (int round = 0; round < 5; round++) {
+                assertTrue(sendCommand("UPDATE marks SET name = 'renamed" + round + "' WHERE mark >= 50;").contains("[OK]"));
+                sendCommand("SELECT * FROM marks;");
+                for (File pages : Paths.get("databases", dbName).toFile().listFiles((directory, name) -> name.endsWith(".pages"))) {
+                    scratchBytes[round] += pages.length();
+                }
+            }
+            assertEquals(scratchBytes[1], scratchBytes[4], "Rewritten pages should reuse their slots.");
+
+            // column vectors are a cache, bounded like the pages
+            ColumnVectors vectors = new ColumnVectors(2, 3 * 8 * ZoneMap.BLOCK_SIZE);
+            vectors.reset(10 * ZoneMap.BLOCK_SIZE, 2);
+            for (int block = 0; block < 10; block++) {
+                assertEquals(1.0, vectors.vector(block, 1, position -> "1")[0]);
+            }
+            assertTrue(vectors.getBytes() <= 3 * 8 * ZoneMap.BLOCK_SIZE);
+        } finally {
+            System.clearProperty("cwdb.bufferpool.bytes");
+        }
+    }
+
+    @Test
+    public void testVectorizedScansMatchRowAtATime() throws IOException {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        String[] cells = new String[3000];
+        List<String> lines = new ArrayList<>();
+        lines.add("id\tname\tmark");
+        for (int i = 0; i < cells.length; i++) {
+            // numbers, text, empty cells and numbers only Double.parseDouble understands, across three blocks
+            String[] kinds = {String.valueOf(i % 50), "text" + (i % 3), "", "NaN", "1e2", " 7", "-0.5"};
+            cells[i] = kinds[i % kinds.length];
+            lines.add((i + 1) + "\tstudent" + i + "\t" + cells[i]);
+        }
+        Files.write(Paths.get("databases", dbName, "marks.tab"), lines);
+        sendCommand("USE " + dbName + ";");
+        String[][] conditions = {{">", "5"}, {"==", "100"}, {"!=", "7"}, {"<=", "-0.5"}, {"==", "NaN"},
+                {"==", "'text1'"}, {"!=", "'text1'"}, {">", "'text1'"}};
+        for (String[] condition : conditions) {
+            long expected = Arrays.stream(cells).filter(cell -> compare(cell, condition[0], condition[1])).count();
+            String response = sendCommand("SELECT id FROM marks WHERE mark " + condition[0] + " " + condition[1] + ";");
+            assertEquals(expected, response.split("\n").length - 2, "Batch scan should match for mark " + condition[0] + " " + condition[1]);
+        }
+        // updated, deleted and appended rows must not be served from stale vectors
+        sendCommand("UPDATE marks SET mark = 1000 WHERE name == 'student10';");
+        sendCommand("DELETE FROM marks WHERE name == 'student70';");
+        sendCommand("INSERT INTO marks VALUES ('late', 2000);");
+        assertEquals("[OK] \nname\nstudent10\nlate", sendCommand("SELECT name FROM marks WHERE mark > 999;"));
+        long twenties = Arrays.stream(cells).filter("20"::equals).count();
+        assertEquals(twenties - 1, sendCommand("SELECT id FROM marks WHERE mark == 20;").split("\n").length - 2);
+    }
+
+    @Test
+    public void testPreparedStatements() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE orders (item, qty);");
+        assertTrue(sendCommand("PREPARE add AS INSERT INTO orders VALUES (?, ?);").contains("2 parameter(s)"));
+        for (int i = 1; i <= 20; i++) {
+            assertTrue(sendCommand("EXECUTE add ('item" + i + "', " + i + ");").contains("[OK]"));
+        }
+        assertTrue(sendCommand("PREPARE byId AS SELECT item FROM orders WHERE id == ?;").contains("[OK]"));
+        assertEquals("[OK] \nitem\nitem7", sendCommand("EXECUTE byId (7);"));
+        assertEquals("[OK] \nitem\nitem12", sendCommand("EXECUTE byId (12);"), "The cached plan should take new values.");
+
+        sendCommand("PREPARE range AS SELECT id FROM orders WHERE qty > ? AND item != ?;");
+        assertEquals("[OK] \nid\n19\n20", sendCommand("EXECUTE range (17, 'item18');"));
+        sendCommand("PREPARE setQty AS UPDATE orders SET qty = ? WHERE item == ?;");
+        assertTrue(sendCommand("EXECUTE setQty (500, 'item3');").contains("1 record(s) updated"));
+        sendCommand("PREPARE drop AS DELETE FROM orders WHERE qty >= ?;");
+        assertTrue(sendCommand("EXECUTE drop (20);").contains("2 record(s) deleted"), "Both item3 and item20 should go.");
+
+        assertTrue(sendCommand("EXECUTE byId (1, 2);").contains("[ERROR]"), "Parameter count must match.");
+        assertTrue(sendCommand("EXECUTE byId (abc);").contains("[ERROR]"), "Strings must be quoted.");
+        assertTrue(sendCommand("EXECUTE missing (1);").contains("[ERROR]"));
+        assertTrue(sendCommand("PREPARE bad AS DROP TABLE orders;").contains("[ERROR]"));
+        assertTrue(sendCommand("DEALLOCATE byId;").contains("[OK]"));
+        assertTrue(sendCommand("EXECUTE byId (7);").contains("[ERROR]"), "Deallocated statements are gone.");
+        // statements belong to the connection that prepared them
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        assertTrue(sendCommand("EXECUTE add ('x', 1);").contains("[ERROR]"));
+    }
+
+    @Test
+    public void testUpdateExpressions() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE pages (path, hits, ratio);");
+        sendCommand("INSERT INTO pages VALUES ('home', 10, 3);");
+        sendCommand("INSERT INTO pages VALUES ('about', 4, 2);");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sendCommand("UPDATE pages SET hits = hits + 1 WHERE path == 'home';").contains("1 record(s) updated"));
+        }
+        assertEquals("[OK] \nhits\n15", sendCommand("SELECT hits FROM pages WHERE path == 'home';"), "Increments should apply in place.");
+
+        // every assignment sees the row as it was, so this swaps the two columns
+        sendCommand("UPDATE pages SET hits = ratio, ratio = hits WHERE path == 'about';");
+        assertEquals("[OK] \nhits\tratio\n2\t4", sendCommand("SELECT hits, ratio FROM pages WHERE path == 'about';"));
+        sendCommand("UPDATE pages SET ratio = (hits + 1) * 2 / 4.0 - -1, path = path || '/v2' WHERE hits > 1;");
+        assertEquals("[OK] \npath\tratio\nhome/v2\t9\nabout/v2\t2.5", sendCommand("SELECT path, ratio FROM pages;"));
+        sendCommand("UPDATE pages SET ratio = hits / 0 WHERE path == 'home/v2';");
+        assertEquals("[OK] \nratio\nNULL", sendCommand("SELECT ratio FROM pages WHERE hits == 15;"), "Division by zero gives NULL.");
+        sendCommand("UPDATE pages SET path = path || ratio WHERE hits == 15;");
+        assertEquals("[OK] \npath\nNULL", sendCommand("SELECT path FROM pages WHERE hits == 15;"), "Concatenating NULL gives NULL.");
+        sendCommand("UPDATE pages SET ratio = 'x' || NULL WHERE hits == 2;");
+        assertEquals("[OK] \nratio\nNULL", sendCommand("SELECT ratio FROM pages WHERE hits == 2;"));
+        sendCommand("UPDATE pages SET path = 'a, b' WHERE hits == 15;");
+        assertEquals("[OK] \npath\na, b", sendCommand("SELECT path FROM pages WHERE hits == 15;"), "Commas in literals are not separators.");
+
+        assertTrue(sendCommand("UPDATE pages SET hits = views + 1 WHERE hits == 15;").contains("[ERROR]"), "Unknown columns are rejected.");
+        assertTrue(sendCommand("UPDATE pages SET hits = hits + WHERE hits == 15;").contains("[ERROR]"), "Malformed expressions are rejected.");
+        sendCommand("PREPARE bump AS UPDATE pages SET hits = hits + ? WHERE hits == ?;");
+        sendCommand("EXECUTE bump (5, 15);");
+        assertTrue(sendCommand("SELECT hits FROM pages;").contains("20"), "Expressions can take parameters.");
+    }
+
+    @Test
+    public void testParallelStartupWithCatalog() throws IOException {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        for (int t = 0; t < 6; t++) {
+            sendCommand("CREATE TABLE t" + t + " (name, mark);");
+            sendCommand("INSERT INTO t" + t + " VALUES ('student" + t + "', " + (t * 10) + ");");
+        }
+        List<String> big = new ArrayList<>();
+        big.add("id\tname\tmark");
+        for (int i = 1; i <= 50000; i++) {
+            big.add(i + "\tstudent" + i + "\t" + (i % 100));
+        }
+        Files.write(Paths.get("databases", dbName, "big.tab"), big);
+
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        assertTrue(sendCommand("SELECT name FROM t3;").contains("student3"), "A query should only wait for its own table.");
+        assertEquals(501, sendCommand("SELECT id FROM big WHERE mark == 7;").split("\n").length - 1);
+        for (int t = 0; t < 6; t++) {
+            assertTrue(sendCommand("SELECT mark FROM t" + t + ";").contains(String.valueOf(t * 10)));
+        }
+        sendCommand("ALTER TABLE t1 ADD grade;");
+        sendCommand("DROP TABLE t2;");
+        List<String> catalog = Files.readAllLines(Paths.get("databases", dbName, Database.CATALOG_FILE));
+        assertTrue(catalog.contains("t1\t1"), "Altered tables keep their entry, the schema is read from the table file.");
+        assertTrue(catalog.stream().noneMatch(line -> line.startsWith("t2\t")), "Dropped tables should leave the catalog.");
+        assertTrue(catalog.contains("big\t50000"), "Loaded tables should be recorded with their row counts.");
+        assertTrue(sendCommand("SELECT name FROM t2;").contains("[ERROR]"));
+    }
+
+    @Test
+    public void testReplicationToReadReplica() throws IOException, InterruptedException {
+        DBServer leader = new DBServer(Files.createTempDirectory("leader").toString());
+        DBServer follower = new DBServer(Files.createTempDirectory("follower").toString());
+        try {
+            int port = leader.startLeader(0);
+            ReplicationFollower replica = follower.startFollower("localhost", port);
+            leader.handleCommand("CREATE DATABASE shop;");
+            leader.handleCommand("USE shop;");
+            leader.handleCommand("CREATE TABLE items (name, price);");
+            leader.handleCommand("INSERT INTO items VALUES ('pen', 2);");
+            leader.handleCommand("INSERT INTO items VALUES ('book', 12);");
+            leader.handleCommand("PREPARE add AS INSERT INTO items VALUES (?, ?);");
+            leader.handleCommand("EXECUTE add ('lamp', 30);");
+            leader.handleCommand("UPDATE items SET price = price * 2 WHERE name == 'pen';");
+            leader.handleCommand("DELETE FROM items WHERE name == 'book';");
+            assertTrue(leader.handleCommand("SELECT * FROM items;").contains("lamp"));
+            assertTrue(leader.handleCommand("INSERT INTO missing VALUES (1);").contains("[ERROR]"));
+            assertTrue(leader.handleCommand("SHOW REPLICATION;").contains("position\t9"), "Only successful writes are logged.");
+
+            assertTrue(replica.awaitPosition(9, 5000), "The follower should catch up with the leader.");
+            follower.handleCommand("USE shop;");
+            String rows = follower.handleCommand("SELECT name, price FROM items;");
+            assertTrue(rows.contains("pen\t4") && rows.contains("lamp\t30") && !rows.contains("book"), rows);
+            assertTrue(follower.handleCommand("INSERT INTO items VALUES ('cup', 5);").contains("[ERROR]"), "Replicas are read-only.");
+            String status = follower.handleCommand("SHOW REPLICATION;");
+            assertTrue(status.contains("role\tfollower") && status.contains("applied\t9") && status.contains("lag\t0"), status);
+            assertTrue(leader.handleCommand("SHOW REPLICATION;").contains("role\tleader"));
+        } finally {
+            leader.stopReplication();
+            follower.stopReplication();
+        }
+    }
+
+    @Test
+    public void testReplicationLogSegmentsAndRestarts() throws IOException, InterruptedException {
+        File leaderRoot = Files.createTempDirectory("leader").toFile();
+        File followerRoot = Files.createTempDirectory("follower").toFile();
+        DBServer leader = new DBServer(leaderRoot.toString());
+        DBServer follower = new DBServer(followerRoot.toString());
+        System.setProperty("cwdb.replication.segment", "4");
+        try {
+            leader.startLeader(0);
+        } finally {
+            System.clearProperty("cwdb.replication.segment");
+        }
+        try {
+            ManageCommand session = new ManageCommand(leader.getContext());
+            session.executeCommand("CREATE DATABASE shop;");
+            session.executeCommand("USE shop;");
+            session.executeCommand("CREATE TABLE items (name, price);");
+            for (int i = 0; i < 8; i++) {
+                session.executeCommand("INSERT INTO items VALUES ('item" + i + "', " + i + ");");
+            }
+            session.close();
+            assertTrue(leader.handleCommand("SHOW REPLICATION;").contains("position\t12"), "Closing a session is logged.");
+            for (long first : new long[] {1, 5, 9, 13}) {
+                assertTrue(new File(leaderRoot, ReplicationLeader.LOG_FILE + "." + first).isFile(), "Segment " + first);
+            }
+
+            // the follower starts after the writes, all but the last segment are streamed from disk
+            ReplicationFollower replica = follower.startFollower("localhost", leader.getContext().getLeader().getPort());
+            assertTrue(replica.awaitPosition(12, 5000), "The follower should catch up from the segments on disk.");
+            follower.handleCommand("USE shop;");
+            assertEquals(10, follower.handleCommand("SELECT name FROM items;").split("\n").length);
+            follower.stopReplication();
+
+            // stopped while applying record 11, the last insert: whether it went in shows in the table's version
+            File position = new File(followerRoot, ReplicationFollower.POSITION_FILE);
+            follower = new DBServer(followerRoot.toString());
+            long version = follower.getContext().openDatabase("shop").loadedTable("items").currentVersion();
+            Files.writeString(position.toPath(), "10\tshop\titems\t" + version);
+            assertEquals(10, new ReplicationFollower(follower.getContext(), "localhost", 0).getApplied(), "The insert didn't go in.");
+            Files.writeString(position.toPath(), "10\tshop\titems\t" + (version - 1));
+            assertEquals(11, new ReplicationFollower(follower.getContext(), "localhost", 0).getApplied(), "The insert went in.");
+            assertEquals("11", Files.readString(position.toPath()));
+            replica = follower.startFollower("localhost", leader.getContext().getLeader().getPort());
+            assertTrue(replica.awaitPosition(12, 5000));
+            follower.handleCommand("USE shop;");
+            assertEquals(10, follower.handleCommand("SELECT name FROM items;").split("\n").length);
+        } finally {
+            leader.stopReplication();
+            follower.stopReplication();
+        }
+    }
+
+    @Test
+    public void testConcurrentWritersReplicateInCommitOrder() throws IOException, InterruptedException {
+        DBServer leader = new DBServer(Files.createTempDirectory("leader").toString());
+        DBServer follower = new DBServer(Files.createTempDirectory("follower").toString());
+        try {
+            ReplicationFollower replica = follower.startFollower("localhost", leader.startLeader(0));
+            leader.handleCommand("CREATE DATABASE shop;");
+            leader.handleCommand("USE shop;");
+            leader.handleCommand("CREATE TABLE items (name, owner);");
+            leader.handleCommand("INSERT INTO items VALUES ('shared', 'nobody');");
+            // ids follow the order the inserts commit in and the last update wins, so the follower only
+            // ends up with the same rows if it replays them in the leader's order
+            List<Thread> writers = new ArrayList<>();
+            for (int w = 0; w < 4; w++) {
+                int writer = w;
+                writers.add(new Thread(() -> {
+                    ManageCommand session = new ManageCommand(leader.getContext());
+                    session.executeCommand("USE shop;");
+                    for (int i = 0; i < 25; i++) {
+                        session.executeCommand("INSERT INTO items VALUES ('item" + writer + "_" + i + "', 'writer" + writer + "');");
+                        session.executeCommand("UPDATE items SET owner = 'writer" + writer + "' WHERE name == 'shared';");
+                    }
+                    session.close();
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long position = leader.getContext().getLeader().getPosition();
+            assertTrue(replica.awaitPosition(position, 10000), "The follower should catch up with the leader.");
+            follower.handleCommand("USE shop;");
+            List<String> rows = sortedRows(leader.handleCommand("SELECT * FROM items;"));
+            assertEquals(101, rows.size());
+            assertEquals(rows, sortedRows(follower.handleCommand("SELECT * FROM items;")));
+        } finally {
+            leader.stopReplication();
+            follower.stopReplication();
+        }
+    }
+
+    @Test
+    public void testHashPartitionedTables() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        assertTrue(sendCommand("CREATE TABLE bad (name) PARTITION BY HASH(city) INTO 4;").contains("[ERROR]"), "The key must be a column.");
+        assertTrue(sendCommand("CREATE TABLE bad (city) PARTITION BY HASH(city) INTO 0;").contains("[ERROR]"));
+        assertTrue(sendCommand("CREATE TABLE people (name, city, age) PARTITION BY HASH(city) INTO 4;").contains("[OK]"));
+        String[] cities = {"Bristol", "Bath", "Leeds", "York", "Hull", "Derby"};
+        for (int i = 0; i < 60; i++) {
+            sendCommand("INSERT INTO people VALUES ('person" + i + "', '" + cities[i % cities.length] + "', " + (20 + i % 7) + ");");
+        }
+        for (int p = 0; p < 4; p++) {
+            assertTrue(new File("databases" + File.separator + dbName + File.separator + "people.parts", "p" + p + ".tab").exists());
+        }
+        assertEquals(61, sendCommand("SELECT * FROM people;").split("\n").length - 1);
+        String bath = sendCommand("SELECT id, name FROM people WHERE city == 'Bath';");
+        assertEquals(11, bath.split("\n").length - 1);
+        assertTrue(bath.contains("2\tperson1\n") || bath.endsWith("2\tperson1"), "Ids stay unique across partitions.");
+        assertEquals(21, sendCommand("SELECT name FROM people WHERE city == 'Bath' OR city == 'York';").split("\n").length - 1);
+        assertEquals(3, sendCommand("SELECT name FROM people WHERE (city == 'Leeds') AND (age == 22);").split("\n").length - 1);
+        assertEquals(2, sendCommand("SELECT name FROM people WHERE id == 7;").split("\n").length - 1);
+        assertTrue(sendCommand("UPDATE people SET city = 'Bath' WHERE id == 1;").contains("[ERROR]"), "The key can't move rows between partitions.");
+        assertTrue(sendCommand("UPDATE people SET age = age + 10 WHERE city == 'Hull';").contains("10 record(s)"));
+        assertTrue(sendCommand("SELECT age FROM people WHERE city == 'Hull';").contains("34"));
+        assertTrue(sendCommand("DELETE FROM people WHERE city == 'Hull';").contains("10 record(s)"));
+        assertTrue(sendCommand("ALTER TABLE people ADD email;").contains("[OK]"));
+        assertTrue(sendCommand("ALTER TABLE people DROP city;").contains("[ERROR]"), "The key column stays.");
+        String analyzed = sendCommand("ANALYZE people;");
+        assertTrue(analyzed.contains("city\t5\t0") && analyzed.contains("email\t1\t50"), "Statistics cover the live rows of every partition.");
+        sendCommand("CREATE TABLE towns (city, county);");
+        sendCommand("INSERT INTO towns VALUES ('Bath', 'Somerset');");
+        assertEquals(11, sendCommand("JOIN people AND towns ON city AND city;").split("\n").length - 1);
+
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        assertEquals(51, sendCommand("SELECT * FROM people;").split("\n").length - 1);
+        sendCommand("INSERT INTO people VALUES ('late', 'York', 30, 'late@example.com');");
+        assertTrue(sendCommand("SELECT id FROM people WHERE name == 'late';").contains("61"), "Ids carry on after a reload.");
+        assertTrue(sendCommand("SELECT email FROM people WHERE city == 'York';").contains("late@example.com"));
+        assertTrue(sendCommand("DROP TABLE people;").contains("[OK]"));
+        assertFalse(new File("databases" + File.separator + dbName, "people.parts").exists());
+    }
+
+    @Test
+    public void testShardRouterAcrossServers() throws IOException {
+        List<DBServer> backends = new ArrayList<>();
+        List<java.net.InetSocketAddress> shards = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DBServer backend = new DBServer(Files.createTempDirectory("shard").toString());
+            shards.add(new java.net.InetSocketAddress("localhost", backend.listenInBackground(0)));
+            backends.add(backend);
+        }
+        File catalog = Files.createTempFile("router", ".shards").toFile();
+        ShardRouter router = new ShardRouter(shards, catalog);
+        try (DBConnection client = new DBConnection("localhost", router.listenInBackground(0), 5000)) {
+            assertTrue(client.execute("SELECT * FROM people;").contains("[ERROR]"), "No database selected yet.");
+            assertTrue(client.execute("CREATE DATABASE town;").contains("[OK]"));
+            assertTrue(client.execute("USE town;").contains("[OK]"));
+            assertTrue(client.execute("CREATE TABLE bad (name) SHARD BY HASH(city);").contains("[ERROR]"), "The key must be a column.");
+            assertTrue(client.execute("CREATE TABLE people (name, city, age) SHARD BY HASH(city);").contains("[OK]"));
+            assertTrue(client.execute("CREATE TABLE towns (city, county) SHARD BY HASH(city);").contains("[OK]"));
+            assertTrue(client.execute("CREATE TABLE pets (name, owner);").contains("[OK]"));
+            String[] cities = {"Bristol", "Bath", "Leeds", "York", "Hull", "Derby"};
+            List<String> inserts = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                inserts.add("INSERT INTO people VALUES ('person" + i + "', '" + cities[i % cities.length] + "', " + (20 + i % 7) + ");");
+            }
+            inserts.add("INSERT INTO towns VALUES ('Bath', 'Somerset');");
+            inserts.add("INSERT INTO towns VALUES ('Leeds', 'Yorkshire');");
+            inserts.add("INSERT INTO pets VALUES ('Rex', 'person1');");
+            inserts.add("INSERT INTO pets VALUES ('Tom', 'person2');");
+            inserts.add("INSERT INTO pets VALUES ('Kit', 'person1');");
+            assertTrue(client.execute(inserts).stream().allMatch(answer -> answer.startsWith("[OK]")));
+
+            // every shard holds some rows, and every row of a city sits on one shard
+            for (DBServer backend : backends) {
+                backend.handleCommand("USE town;");
+                String local = backend.handleCommand("SELECT city FROM people;");
+                assertTrue(local.split("\n").length > 2, local);
+                for (String city : cities) {
+                    long here = local.lines().filter(city::equals).count();
+                    assertTrue(here == 0 || here == 5, local);
+                }
+            }
+            String all = client.execute("SELECT * FROM people;");
+            assertEquals(31, all.split("\n").length - 1);
+            List<String> rows = Arrays.asList(all.split("\n")).subList(2, 32);
+            assertEquals(30, rows.stream().map(row -> row.split("\t")[0]).distinct().count(), "Global ids are unique: " + all);
+            String bath = client.execute("SELECT id, name FROM people WHERE city == 'Bath';");
+            assertEquals(6, bath.split("\n").length - 1, bath);
+            // ids of one shard are spaced by the shard count, ids of different shards interleave
+            for (String row : rows) {
+                String id = row.split("\t")[0];
+                String byId = client.execute("SELECT * FROM people WHERE id == " + id + ";");
+                assertEquals("[OK] \nid\tname\tcity\tage\n" + row, byId, "Ids round-trip through the router.");
+            }
+            String last = rows.get(29).split("\t")[0];
+            assertEquals(2, client.execute("SELECT id FROM people WHERE id >= " + last + ";").split("\n").length - 1);
+            assertEquals(30, client.execute("SELECT id FROM people WHERE id < " + last + ";").split("\n").length - 1);
+            assertEquals(11, client.execute("SELECT name FROM people WHERE city == 'Bath' OR city == 'York';").split("\n").length - 1);
+
+            assertTrue(client.execute("UPDATE people SET city = 'Bath' WHERE id == 1;").contains("[ERROR]"), "Rows can't move between shards.");
+            assertTrue(client.execute("UPDATE people SET age = age + 10 WHERE city == 'Hull';").contains("5 record(s)"));
+            assertTrue(client.execute("DELETE FROM people WHERE age >= 30;").contains("5 record(s)"));
+            assertEquals(26, client.execute("SELECT * FROM people;").split("\n").length - 1);
+
+            String colocated = client.execute("JOIN people AND towns ON city AND city;");
+            assertEquals(11, colocated.split("\n").length - 1, colocated);
+            assertTrue(colocated.split("\n")[1].startsWith("id\tpeople.name\tpeople.city"));
+            String fetched = client.execute("JOIN pets AND people ON owner AND name;");
+            assertEquals(4, fetched.split("\n").length - 1, fetched);
+            assertTrue(fetched.contains("1\tRex\tperson1\tperson1\tBath"), fetched);
+            assertTrue(client.execute("PREPARE p AS SELECT * FROM people;").contains("[ERROR]"));
+        } finally {
+            router.stopListening();
+            for (DBServer backend : backends) {
+                backend.stopListening();
+            }
+        }
+        assertTrue(Files.readString(catalog.toPath()).contains("town\tpeople\tcity"), "Shard keys are kept for a restarted router.");
+    }
+
+    @Test
+    public void testAsyncClientLibrary() throws Exception {
+        DBServer backend = new DBServer(Files.createTempDirectory("async").toString());
+        int port = backend.listenInBackground(0);
+        try (AsyncDBClient client = new AsyncDBClient("localhost", port, 3, 2000, 5000)) {
+            assertTrue(client.execute("CREATE DATABASE shop;").get().startsWith("[OK]"));
+            assertTrue(client.execute("USE shop;").get().startsWith("[OK]"), "USE selects the database on every pooled connection.");
+            client.execute("CREATE TABLE items (name, price);").get();
+            List<String> inserts = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                inserts.add("INSERT INTO items VALUES ('item" + i + "', " + i + ");");
+            }
+            List<String> answers = client.executeAll(inserts).get();
+            assertEquals(500, answers.size());
+            assertTrue(answers.stream().allMatch(answer -> answer.startsWith("[OK]")));
+
+            // many commands in flight at once, each future gets its own answer
+            List<java.util.concurrent.CompletableFuture<String>> futures = new ArrayList<>();
+            for (int id = 1; id <= 200; id++) {
+                futures.add(client.execute("SELECT price FROM items WHERE id == " + id + ";"));
+            }
+            for (int id = 1; id <= 200; id++) {
+                assertEquals("[OK] \nprice\n" + (id - 1), futures.get(id - 1).get());
+            }
+
+            try (AsyncDBClient.ResultStream rows = client.stream("SELECT name, price FROM items WHERE price >= 100;")) {
+                assertEquals("[OK]", rows.getStatus());
+                assertEquals(List.of("name", "price"), rows.getHeader());
+                int count = 0;
+                while (rows.hasNext()) {
+                    List<String> row = rows.next();
+                    assertEquals("item" + row.get(1), row.get(0));
+                    count++;
+                }
+                assertEquals(400, count);
+            }
+            try (AsyncDBClient.ResultStream rows = client.stream("SELECT * FROM items;")) {
+                assertEquals(List.of("1", "item0", "0"), rows.next(), "A stream can be left early.");
+            }
+            try (AsyncDBClient.ResultStream rows = client.stream("SELECT * FROM missing;")) {
+                assertTrue(rows.getStatus().startsWith("[ERROR]"));
+                assertFalse(rows.hasNext());
+            }
+            for (int i = 0; i < 6; i++) {
+                assertEquals("[OK] \nname\nitem4", client.execute("SELECT name FROM items WHERE id == 5;").get(), "Connections are still in step.");
+            }
+
+            LoadGenerator load = new LoadGenerator(client, 16, 20);
+            load.run(300);
+            assertTrue(load.getCompleted() > 0 && load.getErrors() == 0, load.report());
+        } finally {
+            backend.stopListening();
+        }
+
+        // a server that never answers
+        try (java.net.ServerSocket silent = new java.net.ServerSocket(0);
+             AsyncDBClient client = new AsyncDBClient("localhost", silent.getLocalPort(), 1, 2000, 200)) {
+            java.util.concurrent.ExecutionException timeout = assertThrows(java.util.concurrent.ExecutionException.class,
+                    () -> client.execute("SELECT * FROM items;").get());
+            assertInstanceOf(java.util.concurrent.TimeoutException.class, timeout.getCause());
+        }
+    }
+
+    @Test
+    public void testEmbeddedTypedApi() throws IOException {
+        String storage = Files.createTempDirectory("embedded").toString();
+        EmbeddedDatabase db = new EmbeddedDatabase(storage);
+        db.execute("CREATE DATABASE shop;");
+        db.use("shop");
+        db.execute("CREATE TABLE items (name, price, stocked)");
+        db.execute("CREATE TABLE sales (item, quantity) PARTITION BY HASH(item) INTO 4;");
+        db.execute("CREATE MATERIALIZED VIEW cheap AS SELECT name FROM items WHERE price < 3;");
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            rows.add(Arrays.asList("item" + i, i * 1.5, i % 2 == 0));
+        }
+        db.insertAll("items", rows);
+        assertEquals(2, db.query("SELECT * FROM cheap;").getRowCount(), "Views over the table see the batch.");
+        db.insert("items", "odd one", null, false);
+        List<List<Object>> sales = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sales.add(List.of("item" + (i % 10), i));
+        }
+        db.insertAll("sales", sales);
+        assertThrows(IllegalStateException.class, () -> db.insertAll("items", List.of(List.of("short"))), "A batch is all or nothing.");
+        assertThrows(IllegalArgumentException.class, () -> db.insert("items", "tab\there", 1, true));
+        assertThrows(IllegalArgumentException.class, () -> db.insert("items", "O'Brien", 1, true), "Followers replay quoted text.");
+
+        EmbeddedDatabase.Cursor cursor = db.query("SELECT id, name, price, stocked FROM items WHERE price >= 300 AND stocked == TRUE;");
+        assertEquals(List.of("id", "name", "price", "stocked"), cursor.getColumns());
+        assertEquals(50, cursor.getRowCount());
+        assertTrue(cursor.next());
+        assertEquals(201, cursor.getInt("id"));
+        assertEquals("item200", cursor.getString(1));
+        assertEquals(300.0, cursor.getDouble("price"));
+        assertEquals(300, cursor.getLong("price"), "Whole numbers read either way.");
+        assertTrue(cursor.getBoolean("stocked"));
+        int remaining = 0;
+        while (cursor.next()) {
+            remaining++;
+        }
+        assertEquals(49, remaining);
+
+        EmbeddedDatabase.Cursor odd = db.query("SELECT * FROM items WHERE name == 'odd one'");
+        assertTrue(odd.next());
+        assertTrue(odd.isNull("price"));
+        assertFalse(odd.getBoolean("stocked"));
+        assertFalse(odd.next());
+
+        EmbeddedDatabase.Cursor item3 = db.query("SELECT quantity FROM sales WHERE item == 'item3';");
+        long total = 0;
+        while (item3.next()) {
+            total += item3.getLong(0);
+        }
+        assertEquals(3 + 13 + 23 + 33 + 43 + 53 + 63 + 73 + 83 + 93, total);
+        EmbeddedDatabase.Cursor joined = db.query("JOIN sales AND items ON item AND name;");
+        assertEquals(100, joined.getRowCount());
+        assertTrue(joined.getColumns().contains("items.price"));
+
+        assertThrows(IllegalArgumentException.class, () -> db.query("SELECT colour FROM items;"));
+        assertThrows(IllegalArgumentException.class, () -> db.query("SELECT * FROM missing;"));
+        assertThrows(IllegalStateException.class, () -> db.execute("INSERT INTO missing VALUES (1);"));
+
+        // the batches are on disk and readable through the text protocol
+        DBServer reopened = new DBServer(storage);
+        reopened.handleCommand("USE shop;");
+        assertEquals(302, reopened.handleCommand("SELECT * FROM items;").split("\n").length - 1);
+        assertTrue(reopened.handleCommand("SELECT name FROM items WHERE id == 301;").contains("odd one"));
+        assertEquals(101, reopened.handleCommand("SELECT * FROM sales;").split("\n").length - 1);
+    }
+
+    @Test
+    public void testTimeoutsCancelAndAdmission() throws Exception {
+        String storage = Files.createTempDirectory("slow").toString();
+        EmbeddedDatabase loader = new EmbeddedDatabase(storage);
+        loader.execute("CREATE DATABASE slow;");
+        loader.use("slow");
+        loader.execute("CREATE TABLE a (k, v);");
+        loader.execute("CREATE TABLE b (k, w);");
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            rows.add(List.of("k", i));
+        }
+        loader.insertAll("a", rows);
+        loader.insertAll("b", rows);
+        // a single heavy query slot and no queue
+        System.setProperty("cwdb.heavy.limit", "1");
+        System.setProperty("cwdb.heavy.queue", "0");
+        DBServer backend;
+        try {
+            backend = new DBServer(storage);
+        } finally {
+            System.clearProperty("cwdb.heavy.limit");
+            System.clearProperty("cwdb.heavy.queue");
+        }
+        int port = backend.listenInBackground(0);
+        try (DBConnection heavy = new DBConnection("localhost", port, 10000);
+             DBConnection other = new DBConnection("localhost", port, 10000)) {
+            heavy.execute("USE slow;");
+            other.execute("USE slow;");
+            // 4 million joined rows
+            assertTrue(heavy.execute("SET TIMEOUT 100;").startsWith("[OK]"));
+            long start = System.nanoTime();
+            assertEquals("[ERROR] Query timed out after 100 ms", heavy.execute("JOIN a AND b ON k AND k;"));
+            assertTrue(System.nanoTime() - start < 2_000_000_000L, "The join stops soon after its timeout.");
+            assertEquals("[OK] \nv\n4", heavy.execute("SELECT v FROM a WHERE id == 5;"), "Short queries fit in the timeout.");
+            heavy.execute("SET TIMEOUT 0;");
+
+            heavy.write("JOIN a AND b ON k AND k;");
+            heavy.flush();
+            String queryId = null;
+            while (queryId == null) {
+                for (String line : other.execute("SHOW QUERIES;").split("\n")) {
+                    if (line.endsWith("JOIN a AND b ON k AND k;")) {
+                        queryId = line.split("\t")[0];
+                    }
+                }
+            }
+            assertTrue(other.execute("SELECT * FROM b;").startsWith("[ERROR] Server busy"), "The only heavy slot is taken.");
+            assertEquals("[OK] \nv\n4", other.execute("SELECT v FROM a WHERE id == 5;"), "Short queries aren't held up.");
+            assertTrue(other.execute("CANCEL " + queryId + ";").startsWith("[OK]"));
+            assertEquals("[ERROR] Query cancelled", heavy.read());
+            assertTrue(other.execute("CANCEL 99999;").startsWith("[ERROR]"));
+            assertEquals(2001, other.execute("SELECT * FROM b;").split("\n").length - 1, "The slot is free again.");
+            assertTrue(heavy.execute("SET TIMEOUT soon;").startsWith("[ERROR]"));
+        } finally {
+            backend.stopListening();
+        }
+    }
+
+    @Test
+    public void testChangeDataCaptureFeed() throws Exception {
+        String storage = Files.createTempDirectory("feed").toString();
+        DBServer backend = new DBServer(storage);
+        int port = backend.listenInBackground(0);
+        try (DBConnection writer = new DBConnection("localhost", port, 10000);
+             DBConnection subscriber = new DBConnection("localhost", port, 10000);
+             DBConnection slow = new DBConnection("localhost", port, 10000)) {
+            writer.execute("CREATE DATABASE feed;");
+            writer.execute("USE feed;");
+            writer.execute("CREATE TABLE people (name, age);");
+            subscriber.execute("USE feed;");
+            slow.execute("USE feed;");
+            assertTrue(subscriber.execute("SUBSCRIBE nobody;").startsWith("[ERROR]"));
+            assertTrue(subscriber.execute("SUBSCRIBE people FROM start;").startsWith("[ERROR]"));
+            assertEquals("[OK] Subscribed to people from offset 1, last committed offset 0", subscriber.execute("SUBSCRIBE people;"));
+            writer.execute("INSERT INTO people VALUES ('Ann', 30);");
+            writer.execute("INSERT INTO people VALUES ('Bob', 40);");
+            writer.execute("UPDATE people SET age = 31 WHERE name == 'Ann';");
+            writer.execute("DELETE FROM people WHERE name == 'Bob';");
+            assertEquals("1\tINSERT\t1\tAnn\t30", subscriber.readLine());
+            assertEquals("2\tINSERT\t2\tBob\t40", subscriber.readLine());
+            assertEquals("3\tUPDATE\t1\tAnn\t31", subscriber.readLine());
+            assertEquals("4\tDELETE\t2", subscriber.readLine());
+            assertEquals("[OK] Unsubscribed, resume FROM 5", subscriber.execute("STOP"));
+            assertEquals("[OK] \nname\nAnn", subscriber.execute("SELECT name FROM people;"), "The connection takes commands again.");
+
+            // a subscriber that doesn't read holds up no writer, it catches up from its offset later
+            assertTrue(slow.execute("SUBSCRIBE people FROM 3;").startsWith("[OK] Subscribed to people from offset 3"));
+            List<String> inserts = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                inserts.add("INSERT INTO people VALUES ('person" + i + "', " + i + ");");
+            }
+            long start = System.nanoTime();
+            assertTrue(writer.execute(inserts).stream().allMatch(answer -> answer.startsWith("[OK]")));
+            assertTrue(System.nanoTime() - start < 5_000_000_000L);
+            assertEquals("3\tUPDATE\t1\tAnn\t31", slow.readLine());
+            assertEquals("4\tDELETE\t2", slow.readLine());
+            for (int i = 0; i < 200; i++) {
+                assertEquals((5 + i) + "\tINSERT\t" + (3 + i) + "\tperson" + i + "\t" + i, slow.readLine());
+            }
+            writer.execute("ALTER TABLE people ADD email;");
+            assertEquals("205\tSCHEMA\tid\tname\tage\temail", slow.readLine());
+            writer.execute("DROP TABLE people;");
+            assertEquals("[OK] Table dropped, feed ended at offset 205", slow.read());
+            assertTrue(slow.execute("SHOW QUERIES;").startsWith("[OK]"), "The next line is a command again.");
+            assertFalse(new File(storage, "feed" + File.separator + "people.changes").exists());
+
+            // partitions feed the one log of their table
+            writer.execute("CREATE TABLE cities (name, county) PARTITION BY HASH(county) INTO 4;");
+            assertTrue(subscriber.execute("SUBSCRIBE cities;").startsWith("[OK]"));
+            writer.execute("INSERT INTO cities VALUES ('Bath', 'Somerset');");
+            writer.execute("INSERT INTO cities VALUES ('Leeds', 'Yorkshire');");
+            assertEquals("1\tINSERT\t1\tBath\tSomerset", subscriber.readLine());
+            assertEquals("2\tINSERT\t2\tLeeds\tYorkshire", subscriber.readLine());
+            assertTrue(subscriber.execute("STOP").startsWith("[OK] Unsubscribed"));
+        } finally {
+            backend.stopListening();
+        }
+    }
+
+    @Test
+    public void testMaterializedViews() {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE people (name, city, age);");
+        sendCommand("CREATE TABLE cities (city, county);");
+        sendCommand("INSERT INTO people VALUES ('Ann', 'Bath', 30);");
+        sendCommand("INSERT INTO people VALUES ('Bob', 'Leeds', 12);");
+        sendCommand("INSERT INTO people VALUES ('Cat', 'Bath', 45);");
+        sendCommand("INSERT INTO cities VALUES ('Bath', 'Somerset');");
+        sendCommand("INSERT INTO cities VALUES ('York', 'Yorkshire');");
+        assertTrue(sendCommand("CREATE MATERIALIZED VIEW bad AS SELECT height FROM people;").startsWith("[ERROR]"));
+        assertTrue(sendCommand("CREATE MATERIALIZED VIEW bad AS DELETE FROM people WHERE id == 1;").startsWith("[ERROR]"));
+        assertTrue(sendCommand("CREATE MATERIALIZED VIEW people AS SELECT * FROM cities;").startsWith("[ERROR]"));
+        assertTrue(sendCommand("CREATE MATERIALIZED VIEW adults AS SELECT name, age FROM people WHERE age >= 18;").startsWith("[OK]"));
+        assertTrue(sendCommand("CREATE MATERIALIZED VIEW located AS JOIN people AND cities ON city AND city;").startsWith("[OK]"));
+        assertEquals(List.of("1\tAnn\t30", "3\tCat\t45"), sortedRows(sendCommand("SELECT * FROM adults;")));
+        assertEquals(List.of("Ann\tSomerset", "Cat\tSomerset"), sortedRows(sendCommand("SELECT people.name, cities.county FROM located;")));
+
+        // every kind of change on either side of the join
+        sendCommand("INSERT INTO people VALUES ('Dan', 'York', 50);");
+        sendCommand("UPDATE people SET age = 19 WHERE name == 'Bob';");
+        sendCommand("UPDATE people SET city = 'York' WHERE name == 'Ann';");
+        sendCommand("DELETE FROM people WHERE name == 'Cat';");
+        sendCommand("INSERT INTO cities VALUES ('Leeds', 'Yorkshire');");
+        sendCommand("UPDATE cities SET county = 'North Yorkshire' WHERE city == 'York';");
+        sendCommand("ALTER TABLE people ADD email;");
+        sendCommand("INSERT INTO people VALUES ('Eve', 'Bath', 8, 'eve@example.com');");
+        assertEquals(sortedRows(sendCommand("SELECT id, name, age FROM people WHERE age >= 18;")), sortedRows(sendCommand("SELECT * FROM adults;")));
+        assertEquals(List.of("Ann\tNorth Yorkshire", "Bob\tYorkshire", "Dan\tNorth Yorkshire", "Eve\tSomerset"),
+                sortedRows(sendCommand("SELECT people.name, cities.county FROM located;")));
+        assertEquals(2, sortedRows(sendCommand("SELECT name FROM adults WHERE age > 20;")).size(), "A view reads like a table.");
+        // join keys match as the same text, a "NaN" key is not compared as a number
+        sendCommand("INSERT INTO cities VALUES ('NaN', 'Nowhere');");
+        sendCommand("INSERT INTO people VALUES ('Fay', 'NaN', 40, 'fay@example.com');");
+        assertTrue(sortedRows(sendCommand("SELECT people.name, cities.county FROM located;")).contains("Fay\tNowhere"));
+        sendCommand("DELETE FROM people WHERE name == 'Fay';");
+
+        assertTrue(sendCommand("INSERT INTO adults VALUES ('Zed', 99);").contains("materialized view"));
+        assertTrue(sendCommand("DELETE FROM located WHERE id == 1;").contains("materialized view"));
+        assertTrue(sendCommand("DROP TABLE adults;").startsWith("[ERROR]"));
+        assertTrue(sendCommand("DROP TABLE cities;").contains("located"), "Base tables stay while a view reads them.");
+
+        // the view picks up where it left off after a restart
+        server = new DBServer();
+        sendCommand("USE " + dbName + ";");
+        sendCommand("UPDATE people SET age = 17 WHERE name == 'Dan';");
+        assertEquals(List.of("1\tAnn\t30", "2\tBob\t19"), sortedRows(sendCommand("SELECT * FROM adults;")));
+        assertEquals(4, sortedRows(sendCommand("SELECT * FROM located;")).size());
+
+        assertTrue(sendCommand("DROP MATERIALIZED VIEW adults;").startsWith("[OK]"));
+        assertTrue(sendCommand("DROP MATERIALIZED VIEW located;").startsWith("[OK]"));
+        assertTrue(sendCommand("DROP TABLE cities;").startsWith("[OK]"));
+        File folder = new File("databases", dbName);
+        assertFalse(new File(folder, "adults.view").exists());
+        assertFalse(new File(folder, "located.tab").exists());
+    }
+
+    @Test
+    public void testSnapshotReadsAndAsOf() throws Exception {
+        String dbName = "advdb" + System.nanoTime();
+        sendCommand("CREATE DATABASE " + dbName + ";");
+        sendCommand("USE " + dbName + ";");
+        sendCommand("CREATE TABLE accounts (owner, balance);");
+        sendCommand("INSERT INTO accounts VALUES ('Ann', 100);");
+        sendCommand("INSERT INTO accounts VALUES ('Bob', 20);");
+        sendCommand("INSERT INTO accounts VALUES ('Cat', 75);");
+        String[] before = sendCommand("SHOW VERSION accounts;").split("\n")[2].split("\t");
+        long version = Long.parseLong(before[0]);
+        sendCommand("UPDATE accounts SET balance = 60 WHERE owner == 'Ann';");
+        sendCommand("DELETE FROM accounts WHERE owner == 'Bob';");
+        sendCommand("INSERT INTO accounts VALUES ('Dan', 5);");
+        assertEquals(List.of("1\tAnn\t100", "2\tBob\t20", "3\tCat\t75"), sortedRows(sendCommand("SELECT * FROM accounts AS OF " + version + ";")));
+        assertEquals(List.of("Ann", "Cat"), sortedRows(sendCommand("SELECT owner FROM accounts WHERE balance > 50 AS OF " + version + ";")));
+        assertEquals(List.of("1\tAnn\t60", "3\tCat\t75", "4\tDan\t5"), sortedRows(sendCommand("SELECT * FROM accounts;")));
+        assertTrue(sendCommand("SELECT * FROM accounts AS OF 999999;").startsWith("[ERROR]"));
+        assertTrue(sendCommand("SELECT * FROM accounts AS OF yesterday;").startsWith("[ERROR]"));
+        assertEquals("[OK] \nid\towner\tbalance", sendCommand("SELECT * FROM accounts WHERE owner == 'paid as of 2024';"), "AS OF inside a quoted value is part of the value.");
+        assertEquals("[OK] \nowner", sendCommand("SELECT owner FROM accounts WHERE owner == 'Ann as of 1' AS OF " + version + ";"));
+        assertTrue(sendCommand("SELECT * FROM accounts AS OF " + (Long.parseLong(before[1]) - 1) + ";").startsWith("[ERROR]"),
+                "Versions before the table was opened aren't kept.");
+
+        // versions past the retention go, unless a snapshot still reads them
+        System.setProperty("cwdb.mvcc.retention", "0");
+        RowVersions versions;
+        try {
+            versions = new RowVersions(10);
+        } finally {
+            System.clearProperty("cwdb.mvcc.retention");
+        }
+        versions.open(11);
+        versions.updated(1, List.of("id", "owner"), new String[] {"1", "Ann"});
+        versions.commit(12);
+        Thread.sleep(5);
+        versions.inserted(2);
+        versions.commit(13);
+        assertEquals(11, versions.getHorizon());
+        assertEquals("Ann", versions.at(1, 11).get("owner"));
+        assertFalse(versions.isVisible(2, 12));
+        versions.close(11);
+        Thread.sleep(5);
+        versions.inserted(3);
+        versions.commit(14);
+        assertTrue(versions.getHorizon() >= 13);
+        assertNull(versions.at(1, versions.getHorizon()));
+
+        // a whole table read is one snapshot while writers change both ends of it
+        ServerContext context = new ServerContext(Files.createTempDirectory("mvcc").toFile());
+        EmbeddedDatabase database = new EmbeddedDatabase(context);
+        database.execute("CREATE DATABASE mvcc;");
+        database.use("mvcc");
+        database.execute("CREATE TABLE items (tag);");
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            rows.add(List.of("t0"));
+        }
+        database.insertAll("items", rows);
+        // a second session on the same server, so both work on the same tables
+        EmbeddedDatabase writer = new EmbeddedDatabase(context);
+        writer.use("mvcc");
+        Thread writes = new Thread(() -> {
+            for (int i = 1; i <= 40; i++) {
+                writer.execute("UPDATE items SET tag = 't" + i + "' WHERE (id == 1) OR (id == 20000);");
+            }
+        });
+        writes.start();
+        while (writes.isAlive()) {
+            String[] lines = database.execute("SELECT id, tag FROM items;").split("\n");
+            assertEquals(20001, lines.length - 1);
+            assertEquals(lines[2].split("\t")[1], lines[lines.length - 1].split("\t")[1], "Both ends come from the same version.");
+        }
+        writes.join();
+
+        // rows deleted behind the scan were handed over already, they don't come out a second time
+        Table table = context.openDatabase("mvcc").loadedTable("items");
+        List<String> scanned = new ArrayList<>();
+        assertNull(table.scanAsOf(List.of("id"), null, table.currentVersion(), block -> {
+            if (scanned.isEmpty()) {
+                writer.execute("DELETE FROM items WHERE id <= 100;");
+                writer.execute("DELETE FROM items WHERE id > 19900;");
+            }
+            scanned.addAll(block);
+        }));
+        assertEquals(20000, scanned.size());
+        assertEquals(20000, new HashSet<>(scanned).size(), "No row comes out twice.");
+        assertEquals(19800, sortedRows(database.execute("SELECT id FROM items;")).size());
+    }
+
+    @Test
+    public void testHotBackupAndRestore() throws Exception {
+        File storage = Files.createTempDirectory("backup").toFile();
+        ServerContext context = new ServerContext(storage);
+        EmbeddedDatabase database = new EmbeddedDatabase(context);
+        database.execute("CREATE DATABASE shop;");
+        database.use("shop");
+        database.execute("CREATE TABLE items (tag, qty);");
+        database.execute("CREATE INDEX ON items (qty) USING BITMAP;");
+        database.execute("CREATE TABLE orders (item, amount) PARTITION BY HASH(item) INTO 4;");
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            rows.add(List.of("t0", i % 10));
+        }
+        database.insertAll("items", rows);
+        for (int i = 0; i < 20; i++) {
+            database.execute("INSERT INTO orders VALUES ('item" + i + "', " + i + ");");
+        }
+        database.execute("CREATE MATERIALIZED VIEW big AS SELECT tag FROM items WHERE qty > 7;");
+        database.execute("DELETE FROM items WHERE id == 5;");
+
+        // writers carry on during the backup, each UPDATE changes both ends of items at once and the
+        // DELETEs take rows out of the blocks already copied
+        EmbeddedDatabase writer = new EmbeddedDatabase(context);
+        writer.use("shop");
+        AtomicBoolean backingUp = new AtomicBoolean(true);
+        Thread writes = new Thread(() -> {
+            for (int i = 1; backingUp.get(); i++) {
+                writer.execute("UPDATE items SET tag = 't" + i + "' WHERE (id == 1) OR (id == 20000);");
+                writer.execute("INSERT INTO orders VALUES ('late" + i + "', 0);");
+                writer.execute("DELETE FROM items WHERE id == " + (1 + i) + ";");
+            }
+        });
+        writes.start();
+        String target = "shop/copy";
+        String backup;
+        try {
+            backup = database.execute("BACKUP DATABASE shop TO '" + target + "';");
+        } finally {
+            backingUp.set(false);
+            writes.join();
+        }
+        assertTrue(backup.startsWith("[OK] Backed up database shop"), backup);
+        assertTrue(backup.contains("MB/s"), "The backup reports its throughput.");
+        assertTrue(new File(storage, ".backups/shop/copy/" + Database.CATALOG_FILE).isFile(), "Backups go under the backup root.");
+        assertFalse(new File(storage, ".backups/shop/copy.partial").exists());
+        assertThrows(IllegalStateException.class, () -> database.execute("BACKUP DATABASE shop TO '" + new File(storage, "out").getAbsolutePath() + "';"));
+        assertThrows(IllegalStateException.class, () -> database.execute("BACKUP DATABASE shop TO 'shop/../../out';"));
+        assertFalse(new File(storage, "out").exists(), "Paths can't leave the backup root.");
+        assertThrows(IllegalStateException.class, () -> database.execute("BACKUP DATABASE shop TO '" + target + "';"), "A backup doesn't overwrite another.");
+
+        assertThrows(IllegalStateException.class, () -> database.execute("RESTORE DATABASE shop FROM '" + target + "';"), "Restore doesn't replace a database.");
+        assertThrows(IllegalStateException.class, () -> database.execute("RESTORE DATABASE other FROM 'shop';"), "Only a backup restores.");
+        assertThrows(IllegalStateException.class, () -> database.execute("RESTORE DATABASE other FROM '../shop';"));
+        String restore = database.execute("RESTORE DATABASE shopcopy FROM '" + target + "';");
+        assertTrue(restore.startsWith("[OK] Restored database shopcopy"), restore);
+        assertTrue(restore.contains("MB/s"));
+        database.use("shopcopy");
+        String[] items = database.execute("SELECT * FROM items;").split("\n");
+        List<String> ids = new ArrayList<>();
+        for (int i = 2; i < items.length; i++) {
+            ids.add(items[i].split("\t")[0]);
+        }
+        assertEquals(ids.size(), new HashSet<>(ids).size(), "A row deleted during the backup is copied once at most.");
+        assertTrue(ids.size() <= 19999 && ids.size() > 19000, "" + ids.size());
+        String[] first = items[2].split("\t");
+        String[] last = items[items.length - 1].split("\t");
+        assertEquals("1", first[0]);
+        assertEquals("20000", last[0]);
+        assertEquals(first[1], last[1], "Both ends come from the same version.");
+        assertTrue(context.openDatabase("shopcopy").loadedTable("items").isClusteredById(), "Rows deleted during the backup are copied in their place.");
+        // the restored table carries on from the version it was copied at
+        String version = database.execute("SHOW VERSION items;").split("\n")[2].split("\t")[0];
+        assertTrue(Arrays.asList(backup.split("\n")).contains("items\t" + version + "\t" + ids.size()), backup);
+        assertEquals(sortedRows(database.execute("SELECT tag FROM items WHERE qty > 7;")), sortedRows(database.execute("SELECT tag FROM big;")));
+        assertEquals(List.of("1\titem0\t0"), sortedRows(database.execute("SELECT * FROM orders WHERE item == 'item0';")));
+        String orders = backup.split("\norders\t")[1].split("\n")[0];
+        assertEquals(orders.split("\t")[1], String.valueOf(sortedRows(database.execute("SELECT * FROM orders;")).size()));
+        assertTrue(database.execute("INSERT INTO orders VALUES ('after', 1);").startsWith("[OK]"));
+        assertTrue(database.execute("UPDATE items SET tag = 'x' WHERE qty == 9;").startsWith("[OK]"));
+        assertEquals(sortedRows(database.execute("SELECT tag FROM items WHERE qty > 7;")), sortedRows(database.execute("SELECT tag FROM big;")));
+    }
+
+    // the rows of an answer without its status and header lines, sorted
+    private static List<String> sortedRows(String answer) {
+        List<String> lines = new ArrayList<>(Arrays.asList(answer.split("\n")));
+        List<String> rows = new ArrayList<>(lines.subList(Math.min(2, lines.size()), lines.size()));
+        rows.sort(null);
+        return rows;
+    }
+
+    // evaluateCondition's semantics, spelled out independently
+    private static boolean compare(String cell, String comparator, String literal) {
+        String value = literal.startsWith("'") ? literal.substring(1, literal.length() - 1) : literal;
+        try {
+            double condition = Double.parseDouble(value);
+            double number;
+            try {
+                number = Double.parseDouble(cell);
+            } catch (NumberFormatException e) {
+                return comparator.equals("!=");
+            }
+            switch (comparator) {
+                case "==": return number == condition;
+                case "!=": return number != condition;
+                case ">": return number > condition;
+                default: return number <= condition;
+            }
+        } catch (NumberFormatException e) {
+            return comparator.equals("==") ? cell.equals(value) : comparator.equals("!=") && !cell.equals(value);
+        }
+    }
 }